@@ -0,0 +1,430 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.connection;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+
+import com.hierynomus.msdtyp.AccessMask;
+import com.hierynomus.msfscc.FileAttributes;
+import com.hierynomus.mssmb2.SMB2CreateDisposition;
+import com.hierynomus.mssmb2.SMB2Dialect;
+import com.hierynomus.mssmb2.SMB2ShareAccess;
+import com.hierynomus.mssmb2.multichannel.NetworkInterfaceInfo;
+import com.hierynomus.smb.SMBBuffer;
+import com.hierynomus.smbj.SMBClient;
+import com.hierynomus.smbj.SmbConfig;
+import com.hierynomus.smbj.auth.AuthenticateResponse;
+import com.hierynomus.smbj.auth.AuthenticationContext;
+import com.hierynomus.smbj.auth.Authenticator;
+import com.hierynomus.smbj.session.Session;
+import com.hierynomus.smbj.share.DiskShare;
+import com.hierynomus.smbj.share.File;
+import com.hierynomus.spnego.RawToken;
+
+/**
+ * Multichannel throughput benchmark: reads a file from a local stand-in server that listens on 127.0.0.1 up to
+ * 127.0.0.N, with one channel and with a channel per address. Every server connection is throttled to
+ * SMBJ_BENCH_LINK_MBPS to model a network interface, so the gain is the extra links the client can use. The server
+ * only speaks the SMB 3.0.2 messages needed for this, without signing or encryption of its responses. Gated on
+ * SMBJ_BENCH=1 so it never runs in the normal IT suite. Results are written to /tmp/smbj-multichannel-bench.txt.
+ *
+ * Run:
+ *   SMBJ_BENCH=1 SMBJ_BENCH_CHANNELS=4 ./gradlew integrationTest --tests "*MultiChannelBenchmarkTest"
+ */
+@EnabledIfEnvironmentVariable(named = "SMBJ_BENCH", matches = "1")
+public class MultiChannelBenchmarkTest {
+    private static String env(String k, String def) {
+        String v = System.getenv(k);
+        return (v == null || v.isEmpty()) ? def : v;
+    }
+
+    private static final int CHANNELS = Integer.parseInt(env("SMBJ_BENCH_CHANNELS", "4"));
+    private static final int LINK_MBPS = Integer.parseInt(env("SMBJ_BENCH_LINK_MBPS", "100"));
+    private static final int FILE_MB = Integer.parseInt(env("SMBJ_BENCH_FILE_MB", "256"));
+    private static final int READ_SIZE = Integer.parseInt(env("SMBJ_BENCH_READ_KB", "1024")) * 1024;
+    private static final int THREADS = Integer.parseInt(env("SMBJ_BENCH_THREADS", "8"));
+
+    private static final StringBuilder OUT = new StringBuilder();
+
+    private static void line(String s) {
+        OUT.append(s).append('\n');
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        line("=== smbj multichannel benchmark ===");
+        line(String.format("channels=%d link=%dMB/s file=%dMB read=%dKB threads=%d", CHANNELS, LINK_MBPS, FILE_MB, READ_SIZE / 1024, THREADS));
+        line(String.format("%-12s %10s %10s %10s", "arm", "channels", "MB/s", "speedup"));
+
+        try (StandInServer server = new StandInServer(CHANNELS, (long) LINK_MBPS * 1024 * 1024, (long) FILE_MB * 1024 * 1024)) {
+            double single = runArm("single", 1, server);
+            double multi = runArm("multichannel", CHANNELS, server);
+            line(String.format("%-12s %10s %10s %9.2fx", "", "", "", multi / single));
+        }
+
+        line("");
+        line("MB/s = file bytes read per second by " + THREADS + " threads doing " + (READ_SIZE / 1024) + "KB reads");
+
+        String report = OUT.toString();
+        try {
+            Files.write(Paths.get("/tmp/smbj-multichannel-bench.txt"), report.getBytes(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (Exception ignore) {
+        }
+        System.out.println(report);
+    }
+
+    private double runArm(String label, int channels, StandInServer server) throws Exception {
+        SmbConfig config = SmbConfig.builder()
+            .withDialects(SMB2Dialect.SMB_3_0_2)
+            .withDfsEnabled(false)
+            .withReadBufferSize(READ_SIZE)
+            .withMultiChannel(channels)
+            .withAuthenticators(new BenchAuthenticator.Factory())
+            .build();
+        try (SMBClient client = new SMBClient(config)) {
+            Connection connection = client.connect("127.0.0.1", server.port);
+            Session session = connection.authenticate(new AuthenticationContext("bench", new char[0], null));
+            DiskShare share = (DiskShare) session.connectShare("share");
+            final File file = share.openFile("file", EnumSet.of(AccessMask.GENERIC_READ), EnumSet.of(FileAttributes.FILE_ATTRIBUTE_NORMAL),
+                SMB2ShareAccess.ALL, SMB2CreateDisposition.FILE_OPEN, null);
+            final long fileSize = (long) FILE_MB * 1024 * 1024;
+            final AtomicLong nextOffset = new AtomicLong();
+            final AtomicLong bytesRead = new AtomicLong();
+            ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+            try {
+                long t0 = System.nanoTime();
+                List<Future<?>> futures = new ArrayList<>();
+                for (int i = 0; i < THREADS; i++) {
+                    futures.add(executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            byte[] buffer = new byte[READ_SIZE];
+                            for (long offset = nextOffset.getAndAdd(READ_SIZE); offset < fileSize; offset = nextOffset.getAndAdd(READ_SIZE)) {
+                                bytesRead.addAndGet(file.read(buffer, offset));
+                            }
+                        }
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+                double seconds = (System.nanoTime() - t0) / 1e9;
+                double mbps = bytesRead.get() / seconds / (1024 * 1024);
+                line(String.format("%-12s %10d %10.1f", label, session.getChannels().size(), mbps));
+                return mbps;
+            } finally {
+                executor.shutdownNow();
+                file.close();
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Hands out a fixed session key, the stand-in server accepts any security blob.
+     */
+    private static class BenchAuthenticator implements Authenticator {
+        static class Factory implements com.hierynomus.protocol.commons.Factory.Named<Authenticator> {
+            @Override
+            public String getName() {
+                return "bench";
+            }
+
+            @Override
+            public Authenticator create() {
+                return new BenchAuthenticator();
+            }
+        }
+
+        @Override
+        public void init(SmbConfig config) {
+        }
+
+        @Override
+        public boolean supports(AuthenticationContext context) {
+            return true;
+        }
+
+        @Override
+        public AuthenticateResponse authenticate(AuthenticationContext context, byte[] gssToken, ConnectionContext connectionContext) {
+            AuthenticateResponse response = new AuthenticateResponse(new RawToken(new byte[0]));
+            response.setSessionKey(new byte[16]);
+            return response;
+        }
+    }
+
+    /**
+     * Listens on 127.0.0.1 up to 127.0.0.N on the same port and serves every connection from its own thread, writing
+     * responses no faster than the configured link speed.
+     */
+    private static class StandInServer implements AutoCloseable {
+        private static final UUID SERVER_GUID = UUID.randomUUID();
+        private static final long SESSION_ID = 0x1000L;
+        private static final int MAX_SIZE = 8 * 1024 * 1024;
+        private static final int CREDITS = 512;
+
+        private final List<ServerSocket> listeners = new ArrayList<>();
+        private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+        private final long bytesPerSecond;
+        private final long fileSize;
+        private final byte[] fileData = new byte[MAX_SIZE];
+        private final byte[] interfaces;
+        private final int port;
+
+        StandInServer(int addresses, long bytesPerSecond, long fileSize) throws IOException {
+            this.bytesPerSecond = bytesPerSecond;
+            this.fileSize = fileSize;
+            ServerSocket first = new ServerSocket();
+            first.bind(new InetSocketAddress("127.0.0.1", 0));
+            listeners.add(first);
+            this.port = first.getLocalPort();
+            SMBBuffer buffer = new SMBBuffer();
+            for (int i = 1; i <= addresses; i++) {
+                if (i > 1) {
+                    ServerSocket listener = new ServerSocket();
+                    listener.bind(new InetSocketAddress("127.0.0." + i, port));
+                    listeners.add(listener);
+                }
+                new NetworkInterfaceInfo(i, EnumSet.of(NetworkInterfaceInfo.Capability.RSS_CAPABLE), bytesPerSecond * 8,
+                    InetAddress.getByName("127.0.0." + i)).write(buffer, i == addresses);
+            }
+            this.interfaces = buffer.getCompactData();
+            for (final ServerSocket listener : listeners) {
+                daemon(new Runnable() {
+                    @Override
+                    public void run() {
+                        accept(listener);
+                    }
+                }, "stand-in-" + listener.getInetAddress().getHostAddress());
+            }
+        }
+
+        private static void daemon(Runnable runnable, String name) {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void accept(ServerSocket listener) {
+            while (!listener.isClosed()) {
+                try {
+                    final Socket socket = listener.accept();
+                    socket.setTcpNoDelay(true);
+                    sockets.add(socket);
+                    daemon(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    }, "stand-in-connection");
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void serve(Socket socket) {
+            try {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                Link link = new Link(socket.getOutputStream(), bytesPerSecond);
+                while (true) {
+                    int length = in.readInt() & 0xFFFFFF;
+                    byte[] request = new byte[length];
+                    in.readFully(request);
+                    respond(ByteBuffer.wrap(request).order(ByteOrder.LITTLE_ENDIAN), link);
+                }
+            } catch (EOFException e) {
+                // Client closed the connection
+            } catch (IOException e) {
+                // Connection closed by the benchmark
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
+        private void respond(ByteBuffer request, Link link) throws IOException {
+            int command = request.getShort(12);
+            int creditCharge = Math.max(1, request.getShort(6));
+            long messageId = request.getLong(24);
+            int treeId = request.getInt(36);
+            ByteBuffer body = ByteBuffer.allocate(128 + interfaces.length).order(ByteOrder.LITTLE_ENDIAN);
+            int credits = creditCharge;
+            long sessionId = SESSION_ID;
+            byte[] data = null;
+            int dataLength = 0;
+            switch (command) {
+                case 0x00: // NEGOTIATE
+                    sessionId = 0;
+                    credits = CREDITS;
+                    body.putShort((short) 65).putShort((short) 1).putShort((short) 0x0302).putShort((short) 0);
+                    body.putLong(SERVER_GUID.getMostSignificantBits()).putLong(SERVER_GUID.getLeastSignificantBits());
+                    body.putInt(0x04 | 0x08); // LARGE_MTU | MULTI_CHANNEL
+                    body.putInt(MAX_SIZE).putInt(MAX_SIZE).putInt(MAX_SIZE);
+                    body.putLong(0).putLong(0);
+                    body.putShort((short) 128).putShort((short) 0).putInt(0);
+                    break;
+                case 0x01: // SESSION_SETUP
+                    credits = CREDITS;
+                    body.putShort((short) 9).putShort((short) 0).putShort((short) 72).putShort((short) 0).put((byte) 0);
+                    break;
+                case 0x02: // LOGOFF
+                case 0x04: // TREE_DISCONNECT
+                    body.putShort((short) 4).putShort((short) 0);
+                    break;
+                case 0x03: // TREE_CONNECT
+                    treeId = 1;
+                    body.putShort((short) 16).put((byte) 1).put((byte) 0).putInt(0).putInt(0).putInt(0x001F01FF);
+                    break;
+                case 0x05: // CREATE
+                    body.putShort((short) 89).put((byte) 0).put((byte) 0).putInt(1);
+                    body.putLong(0).putLong(0).putLong(0).putLong(0);
+                    body.putLong(fileSize).putLong(fileSize);
+                    body.putInt(0x80).putInt(0);
+                    body.putLong(1).putLong(1);
+                    body.putInt(0).putInt(0).put((byte) 0);
+                    break;
+                case 0x06: // CLOSE
+                    body.putShort((short) 60).putShort((short) 0).putInt(0);
+                    body.putLong(0).putLong(0).putLong(0).putLong(0).putLong(0).putLong(0);
+                    body.putInt(0);
+                    break;
+                case 0x08: { // READ
+                    int readLength = request.getInt(64 + 4);
+                    long offset = request.getLong(64 + 8);
+                    dataLength = (int) Math.max(0, Math.min(readLength, fileSize - offset));
+                    if (dataLength == 0) {
+                        link.write(header(0xC0000011, command, credits, messageId, treeId, sessionId), errorBody());
+                        return;
+                    }
+                    body.putShort((short) 17).put((byte) 80).put((byte) 0).putInt(dataLength).putInt(0).putInt(0);
+                    data = fileData;
+                    break;
+                }
+                case 0x0B: // IOCTL
+                    body.putShort((short) 49).putShort((short) 0).putInt(request.getInt(64 + 4));
+                    body.putLong(-1).putLong(-1);
+                    body.putInt(112).putInt(0).putInt(112).putInt(interfaces.length).putInt(0).putInt(0);
+                    body.put(interfaces);
+                    break;
+                default:
+                    link.write(header(0xC00000BB, command, credits, messageId, treeId, sessionId), errorBody()); // NOT_SUPPORTED
+                    return;
+            }
+            byte[] bodyBytes = new byte[body.position()];
+            ((java.nio.Buffer) body).flip();
+            body.get(bodyBytes);
+            link.write(header(0, command, credits, messageId, treeId, sessionId), bodyBytes, data, dataLength);
+        }
+
+        private static byte[] errorBody() {
+            return new byte[]{9, 0, 0, 0, 0, 0, 0, 0, 0};
+        }
+
+        private static byte[] header(int status, int command, int credits, long messageId, int treeId, long sessionId) {
+            ByteBuffer header = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+            header.put((byte) 0xFE).put((byte) 'S').put((byte) 'M').put((byte) 'B');
+            header.putShort((short) 64).putShort((short) 0).putInt(status);
+            header.putShort((short) command).putShort((short) credits);
+            header.putInt(0x01).putInt(0); // SMB2_FLAGS_SERVER_TO_REDIR, NextCommand
+            header.putLong(messageId).putInt(0).putInt(treeId).putLong(sessionId);
+            return header.array();
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (ServerSocket listener : listeners) {
+                listener.close();
+            }
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * A connection of the stand-in server, which paces its writes to a fixed number of bytes per second.
+     */
+    private static class Link {
+        private static final int CHUNK = 64 * 1024;
+        private final OutputStream out;
+        private final long bytesPerSecond;
+        private long due;
+
+        Link(OutputStream out, long bytesPerSecond) {
+            this.out = out;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        void write(byte[] header, byte[] body) throws IOException {
+            write(header, body, null, 0);
+        }
+
+        void write(byte[] header, byte[] body, byte[] data, int dataLength) throws IOException {
+            int length = header.length + body.length + dataLength;
+            out.write(new byte[]{0, (byte) (length >> 16), (byte) (length >> 8), (byte) length});
+            out.write(header);
+            out.write(body);
+            for (int off = 0; off < dataLength; off += CHUNK) {
+                int n = Math.min(CHUNK, dataLength - off);
+                out.write(data, off, n);
+                pace(n);
+            }
+            out.flush();
+        }
+
+        private void pace(int bytes) throws IOException {
+            // Idle time builds up at most 10ms of burst allowance, which also absorbs oversleeping
+            due = Math.max(due, System.nanoTime() - 10_000_000L) + bytes * 1_000_000_000L / bytesPerSecond;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+        }
+    }
+}
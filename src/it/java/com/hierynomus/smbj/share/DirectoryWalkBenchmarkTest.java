@@ -0,0 +1,521 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+
+import com.hierynomus.msfscc.FileAttributes;
+import com.hierynomus.msfscc.fileinformation.FileIdBothDirectoryInformation;
+import com.hierynomus.mssmb2.SMB2Dialect;
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.smbj.SMBClient;
+import com.hierynomus.smbj.SmbConfig;
+import com.hierynomus.smbj.auth.AuthenticateResponse;
+import com.hierynomus.smbj.auth.AuthenticationContext;
+import com.hierynomus.smbj.auth.Authenticator;
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.connection.ConnectionContext;
+import com.hierynomus.smbj.session.Session;
+import com.hierynomus.spnego.RawToken;
+
+/**
+ * Directory walk benchmark: crawls a synthetic tree of about 100k entries (1111 directories of 90 files, with 10
+ * subdirectories per directory up to depth 3) from a local stand-in server that answers every request after
+ * SMBJ_BENCH_RTT_MS, modelling the round trip to a file server. The baseline is the recursive single threaded
+ * {@link DiskShare#list(String)} that indexers use, which is compared with {@link DiskShare#walk} at several levels of
+ * parallelism. Gated on SMBJ_BENCH=1 so it never runs in the normal IT suite. Results are written to
+ * /tmp/smbj-walk-bench.txt.
+ *
+ * Run:
+ *   SMBJ_BENCH=1 SMBJ_BENCH_RTT_MS=1 ./gradlew integrationTest --tests "*DirectoryWalkBenchmarkTest"
+ */
+@EnabledIfEnvironmentVariable(named = "SMBJ_BENCH", matches = "1")
+public class DirectoryWalkBenchmarkTest {
+    private static String env(String k, String def) {
+        String v = System.getenv(k);
+        return (v == null || v.isEmpty()) ? def : v;
+    }
+
+    private static final double RTT_MS = Double.parseDouble(env("SMBJ_BENCH_RTT_MS", "1"));
+    private static final int FANOUT = Integer.parseInt(env("SMBJ_BENCH_FANOUT", "10"));
+    private static final int DEPTH = Integer.parseInt(env("SMBJ_BENCH_DEPTH", "3"));
+    private static final int FILES = Integer.parseInt(env("SMBJ_BENCH_FILES", "90"));
+    private static final int ROUNDS = Integer.parseInt(env("SMBJ_BENCH_ROUNDS", "3"));
+
+    private static final StringBuilder OUT = new StringBuilder();
+
+    private static void line(String s) {
+        OUT.append(s).append('\n');
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        line("=== smbj directory walk benchmark ===");
+        line(String.format("rtt=%.1fms tree: fanout=%d depth=%d files/dir=%d rounds=%d (best of)", RTT_MS, FANOUT, DEPTH, FILES, ROUNDS));
+        line(String.format("%-14s %10s %10s %10s %12s %10s", "arm", "dirs", "entries", "ms", "entries/s", "speedup"));
+
+        try (StandInServer server = new StandInServer((long) (RTT_MS * 1_000_000L))) {
+            long baseline = runArm("list", 0, server);
+            for (int parallelism : new int[]{1, 4, 16, 64}) {
+                long nanos = runArm("walk p=" + parallelism, parallelism, server);
+                OUT.setLength(OUT.length() - 1);
+                line(String.format(" %9.2fx", (double) baseline / nanos));
+            }
+        }
+
+        line("");
+        line("list = recursive DiskShare.list from one thread; walk p=N = DiskShare.walk with N directories in flight");
+
+        String report = OUT.toString();
+        try {
+            Files.write(Paths.get("/tmp/smbj-walk-bench.txt"), report.getBytes(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (Exception ignore) {
+        }
+        System.out.println(report);
+    }
+
+    private long runArm(String label, int parallelism, StandInServer server) throws Exception {
+        SmbConfig config = SmbConfig.builder()
+            .withDialects(SMB2Dialect.SMB_3_0_2)
+            .withDfsEnabled(false)
+            .withAuthenticators(new BenchAuthenticator.Factory())
+            .build();
+        try (SMBClient client = new SMBClient(config)) {
+            Connection connection = client.connect("127.0.0.1", server.port);
+            Session session = connection.authenticate(new AuthenticationContext("bench", new char[0], null));
+            DiskShare share = (DiskShare) session.connectShare("share");
+            long best = Long.MAX_VALUE;
+            long[] counts = new long[2];
+            for (int round = 0; round < ROUNDS; round++) {
+                counts[0] = 1; // the start directory
+                counts[1] = 0;
+                long t0 = System.nanoTime();
+                if (parallelism == 0) {
+                    list(share, counts);
+                } else {
+                    walk(share, parallelism, counts);
+                }
+                best = Math.min(best, System.nanoTime() - t0);
+            }
+            line(String.format("%-14s %10d %10d %10d %12.0f", label, counts[0], counts[1], best / 1_000_000L, counts[1] / (best / 1e9)));
+            connection.close();
+            return best;
+        }
+    }
+
+    private static void list(DiskShare share, long[] counts) {
+        Deque<String> stack = new ArrayDeque<>();
+        stack.push("");
+        while (!stack.isEmpty()) {
+            String dir = stack.pop();
+            for (FileIdBothDirectoryInformation e : share.list(dir)) {
+                String name = e.getFileName();
+                if (".".equals(name) || "..".equals(name)) {
+                    continue;
+                }
+                counts[1]++;
+                if ((e.getFileAttributes() & FileAttributes.FILE_ATTRIBUTE_DIRECTORY.getValue()) != 0) {
+                    counts[0]++;
+                    stack.push(dir.isEmpty() ? name : dir + "\\" + name);
+                }
+            }
+        }
+    }
+
+    private static void walk(DiskShare share, int parallelism, final long[] counts) {
+        share.walk("", Integer.MAX_VALUE, parallelism, new DirectoryVisitor() {
+            @Override
+            public boolean visit(String path, FileIdBothDirectoryInformation entry) {
+                counts[1]++;
+                if ((entry.getFileAttributes() & FileAttributes.FILE_ATTRIBUTE_DIRECTORY.getValue()) != 0) {
+                    counts[0]++;
+                }
+                return true;
+            }
+
+            @Override
+            public void visitFailed(String path, SMBApiException e) {
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * Hands out a fixed session key, the stand-in server accepts any security blob.
+     */
+    private static class BenchAuthenticator implements Authenticator {
+        static class Factory implements com.hierynomus.protocol.commons.Factory.Named<Authenticator> {
+            @Override
+            public String getName() {
+                return "bench";
+            }
+
+            @Override
+            public Authenticator create() {
+                return new BenchAuthenticator();
+            }
+        }
+
+        @Override
+        public void init(SmbConfig config) {
+        }
+
+        @Override
+        public boolean supports(AuthenticationContext context) {
+            return true;
+        }
+
+        @Override
+        public AuthenticateResponse authenticate(AuthenticationContext context, byte[] gssToken, ConnectionContext connectionContext) {
+            AuthenticateResponse response = new AuthenticateResponse(new RawToken(new byte[0]));
+            response.setSessionKey(new byte[16]);
+            return response;
+        }
+    }
+
+    /**
+     * Serves the synthetic tree, answering every request after the configured delay. Related requests of a compound
+     * are answered with separate responses.
+     */
+    private static class StandInServer implements AutoCloseable {
+        private static final UUID SERVER_GUID = UUID.randomUUID();
+        private static final long SESSION_ID = 0x1000L;
+        private static final int MAX_SIZE = 1024 * 1024;
+        private static final int CREDITS = 512;
+        private static final int STATUS_NO_MORE_FILES = 0x80000006;
+        private static final int STATUS_OBJECT_NAME_NOT_FOUND = 0xC0000034;
+
+        private final ServerSocket listener;
+        private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+        private final long delayNanos;
+        private final int port;
+
+        StandInServer(long delayNanos) throws IOException {
+            this.delayNanos = delayNanos;
+            listener = new ServerSocket();
+            listener.bind(new InetSocketAddress("127.0.0.1", 0));
+            port = listener.getLocalPort();
+            daemon(new Runnable() {
+                @Override
+                public void run() {
+                    accept();
+                }
+            }, "stand-in");
+        }
+
+        private static void daemon(Runnable runnable, String name) {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void accept() {
+            while (!listener.isClosed()) {
+                try {
+                    final Socket socket = listener.accept();
+                    socket.setTcpNoDelay(true);
+                    sockets.add(socket);
+                    daemon(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    }, "stand-in-connection");
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void serve(Socket socket) {
+            ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+            try {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                final OutputStream out = socket.getOutputStream();
+                ConnectionState state = new ConnectionState();
+                while (true) {
+                    int length = in.readInt() & 0xFFFFFF;
+                    byte[] frame = new byte[length];
+                    in.readFully(frame);
+                    final List<byte[]> responses = respond(ByteBuffer.wrap(frame).order(ByteOrder.LITTLE_ENDIAN), state);
+                    writer.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                for (byte[] response : responses) {
+                                    out.write(response);
+                                }
+                                out.flush();
+                            } catch (IOException e) {
+                                // Connection closed by the benchmark
+                            }
+                        }
+                    }, delayNanos, TimeUnit.NANOSECONDS);
+                }
+            } catch (EOFException e) {
+                // Client closed the connection
+            } catch (IOException e) {
+                // Connection closed by the benchmark
+            } finally {
+                writer.shutdownNow();
+                try {
+                    socket.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
+        private List<byte[]> respond(ByteBuffer frame, ConnectionState state) {
+            List<byte[]> responses = new ArrayList<>();
+            long relatedId = -1;
+            int offset = 0;
+            while (true) {
+                ByteBuffer request = ((ByteBuffer) ((java.nio.Buffer) frame.duplicate()).position(offset)).slice().order(ByteOrder.LITTLE_ENDIAN);
+                int nextCommand = request.getInt(20);
+                boolean related = (request.getInt(16) & 0x04) != 0;
+                long fileId = respond(request, related ? relatedId : -1, state, responses);
+                relatedId = fileId;
+                if (nextCommand == 0) {
+                    return responses;
+                }
+                offset += nextCommand;
+            }
+        }
+
+        /**
+         * @return the file id opened by a CREATE, for the related requests that follow it
+         */
+        private long respond(ByteBuffer request, long relatedId, ConnectionState state, List<byte[]> responses) {
+            int command = request.getShort(12);
+            int creditCharge = Math.max(1, request.getShort(6));
+            long messageId = request.getLong(24);
+            int treeId = request.getInt(36);
+            ByteBuffer body = ByteBuffer.allocate(MAX_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            int credits = Math.max(creditCharge, request.getShort(14));
+            long sessionId = SESSION_ID;
+            long fileId = relatedId;
+            switch (command) {
+                case 0x00: // NEGOTIATE
+                    sessionId = 0;
+                    credits = CREDITS;
+                    body.putShort((short) 65).putShort((short) 1).putShort((short) 0x0302).putShort((short) 0);
+                    body.putLong(SERVER_GUID.getMostSignificantBits()).putLong(SERVER_GUID.getLeastSignificantBits());
+                    body.putInt(0x04); // LARGE_MTU
+                    body.putInt(MAX_SIZE).putInt(MAX_SIZE).putInt(MAX_SIZE);
+                    body.putLong(0).putLong(0);
+                    body.putShort((short) 128).putShort((short) 0).putInt(0);
+                    break;
+                case 0x01: // SESSION_SETUP
+                    credits = CREDITS;
+                    body.putShort((short) 9).putShort((short) 0).putShort((short) 72).putShort((short) 0).put((byte) 0);
+                    break;
+                case 0x02: // LOGOFF
+                case 0x04: // TREE_DISCONNECT
+                    body.putShort((short) 4).putShort((short) 0);
+                    break;
+                case 0x03: // TREE_CONNECT
+                    treeId = 1;
+                    body.putShort((short) 16).put((byte) 1).put((byte) 0).putInt(0).putInt(0).putInt(0x001F01FF);
+                    break;
+                case 0x05: { // CREATE
+                    int nameOffset = request.getShort(64 + 44) & 0xFFFF;
+                    int nameLength = request.getShort(64 + 46) & 0xFFFF;
+                    byte[] name = new byte[nameLength];
+                    ((java.nio.Buffer) request).position(nameOffset);
+                    request.get(name);
+                    String path = new String(name, StandardCharsets.UTF_16LE);
+                    if (depth(path) < 0) {
+                        responses.add(frame(header(STATUS_OBJECT_NAME_NOT_FOUND, command, credits, messageId, treeId, sessionId), errorBody()));
+                        return -1;
+                    }
+                    fileId = state.nextFileId++;
+                    state.open.put(fileId, new OpenDirectory(path));
+                    body.putShort((short) 89).put((byte) 0).put((byte) 0).putInt(1);
+                    body.putLong(0).putLong(0).putLong(0).putLong(0);
+                    body.putLong(0).putLong(0);
+                    body.putInt(0x10).putInt(0);
+                    body.putLong(fileId).putLong(fileId);
+                    body.putInt(0).putInt(0).put((byte) 0);
+                    break;
+                }
+                case 0x06: // CLOSE
+                    state.open.remove(relatedId != -1 ? relatedId : request.getLong(64 + 8));
+                    body.putShort((short) 60).putShort((short) 0).putInt(0);
+                    body.putLong(0).putLong(0).putLong(0).putLong(0).putLong(0).putLong(0);
+                    body.putInt(0);
+                    break;
+                case 0x0E: { // QUERY_DIRECTORY
+                    OpenDirectory dir = state.open.get(relatedId != -1 ? relatedId : request.getLong(64 + 8));
+                    if (dir == null) {
+                        responses.add(frame(header(0xC0000128, command, credits, messageId, treeId, sessionId), errorBody())); // FILE_CLOSED
+                        return fileId;
+                    }
+                    if ((request.get(64 + 3) & 0x01) != 0) { // RESTART_SCANS
+                        dir.next = 0;
+                    }
+                    int outputLength = Math.min(MAX_SIZE - 8, request.getInt(64 + 28));
+                    body.putShort((short) 9).putShort((short) 72).putInt(0);
+                    int start = body.position();
+                    int lastEntry = -1;
+                    while (dir.next < dir.entries.size()) {
+                        byte[] entry = dir.entries.get(dir.next);
+                        int aligned = (entry.length + 7) & ~7;
+                        if (body.position() - start + entry.length > outputLength) {
+                            break;
+                        }
+                        if (lastEntry >= 0) {
+                            body.putInt(lastEntry, body.position() - lastEntry);
+                        }
+                        lastEntry = body.position();
+                        body.put(entry);
+                        while (body.position() - lastEntry < aligned) {
+                            body.put((byte) 0);
+                        }
+                        dir.next++;
+                    }
+                    if (lastEntry < 0) {
+                        responses.add(frame(header(STATUS_NO_MORE_FILES, command, credits, messageId, treeId, sessionId), errorBody()));
+                        return fileId;
+                    }
+                    ((java.nio.Buffer) body).position(lastEntry + dir.entries.get(dir.next - 1).length);
+                    body.putInt(4, body.position() - start);
+                    break;
+                }
+                default:
+                    responses.add(frame(header(0xC00000BB, command, credits, messageId, treeId, sessionId), errorBody())); // NOT_SUPPORTED
+                    return fileId;
+            }
+            byte[] bodyBytes = new byte[body.position()];
+            ((java.nio.Buffer) body).flip();
+            body.get(bodyBytes);
+            responses.add(frame(header(0, command, credits, messageId, treeId, sessionId), bodyBytes));
+            return fileId;
+        }
+
+        /**
+         * @return the depth of a directory of the synthetic tree, or -1 if it does not exist
+         */
+        private static int depth(String path) {
+            if (path.isEmpty()) {
+                return 0;
+            }
+            String[] parts = path.split("\\\\");
+            for (String part : parts) {
+                if (!part.startsWith("d")) {
+                    return -1;
+                }
+            }
+            return parts.length <= DEPTH ? parts.length : -1;
+        }
+
+        private static byte[] entry(String name, boolean directory) {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_16LE);
+            ByteBuffer entry = ByteBuffer.allocate(104 + nameBytes.length).order(ByteOrder.LITTLE_ENDIAN);
+            entry.putInt(0).putInt(0); // NextEntryOffset, FileIndex
+            entry.putLong(0).putLong(0).putLong(0).putLong(0); // Times
+            entry.putLong(directory ? 0 : 4096).putLong(directory ? 0 : 4096); // EndOfFile, AllocationSize
+            entry.putInt(directory ? 0x10 : 0x80);
+            entry.putInt(nameBytes.length).putInt(0); // FileNameLength, EaSize
+            entry.put(new byte[28]); // ShortNameLength, Reserved1, ShortName, Reserved2
+            entry.putLong(0); // FileId
+            entry.put(nameBytes);
+            return entry.array();
+        }
+
+        private static byte[] errorBody() {
+            return new byte[]{9, 0, 0, 0, 0, 0, 0, 0, 0};
+        }
+
+        private static byte[] frame(byte[] header, byte[] body) {
+            int length = header.length + body.length;
+            byte[] frame = new byte[4 + length];
+            frame[1] = (byte) (length >> 16);
+            frame[2] = (byte) (length >> 8);
+            frame[3] = (byte) length;
+            System.arraycopy(header, 0, frame, 4, header.length);
+            System.arraycopy(body, 0, frame, 4 + header.length, body.length);
+            return frame;
+        }
+
+        private static byte[] header(int status, int command, int credits, long messageId, int treeId, long sessionId) {
+            ByteBuffer header = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+            header.put((byte) 0xFE).put((byte) 'S').put((byte) 'M').put((byte) 'B');
+            header.putShort((short) 64).putShort((short) 0).putInt(status);
+            header.putShort((short) command).putShort((short) credits);
+            header.putInt(0x01).putInt(0); // SMB2_FLAGS_SERVER_TO_REDIR, NextCommand
+            header.putLong(messageId).putInt(0).putInt(treeId).putLong(sessionId);
+            return header.array();
+        }
+
+        @Override
+        public void close() throws IOException {
+            listener.close();
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+
+        private static class ConnectionState {
+            private final Map<Long, OpenDirectory> open = new HashMap<>();
+            private long nextFileId = 1;
+        }
+
+        private static class OpenDirectory {
+            private final List<byte[]> entries = new ArrayList<>();
+            private int next;
+
+            OpenDirectory(String path) {
+                entries.add(entry(".", true));
+                entries.add(entry("..", true));
+                if (depth(path) < DEPTH) {
+                    for (int i = 0; i < FANOUT; i++) {
+                        entries.add(entry("d" + i, true));
+                    }
+                }
+                for (int i = 0; i < FILES; i++) {
+                    entries.add(entry("f" + i + ".dat", false));
+                }
+            }
+        }
+    }
+}
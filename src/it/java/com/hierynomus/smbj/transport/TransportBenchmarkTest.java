@@ -0,0 +1,322 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.transport;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+
+import com.hierynomus.protocol.Packet;
+import com.hierynomus.protocol.PacketData;
+import com.hierynomus.protocol.commons.buffer.Buffer;
+import com.hierynomus.protocol.commons.buffer.Endian;
+import com.hierynomus.protocol.transport.PacketFactory;
+import com.hierynomus.protocol.transport.PacketHandlers;
+import com.hierynomus.protocol.transport.PacketReceiver;
+import com.hierynomus.protocol.transport.PacketSerializer;
+import com.hierynomus.protocol.transport.TransportLayer;
+import com.hierynomus.smbj.SmbConfig;
+import com.hierynomus.smbj.transport.tcp.direct.DirectTcpTransportFactory;
+import com.hierynomus.smbj.transport.tcp.nio.NioSelectorTransportFactory;
+
+/**
+ * Transport scalability benchmark: opens many connections to a local single-threaded echo server and pushes
+ * Direct TCP framed packets through them, comparing the thread-per-connection {@code DirectTcpTransport} with the
+ * shared selector {@code NioSelectorTransport}. Gated on SMBJ_BENCH=1 so it never runs in the normal IT suite.
+ * Results are written to /tmp/smbj-transport-bench.txt (gradle swallows forked-JVM stdout).
+ *
+ * Run:
+ *   SMBJ_BENCH=1 SMBJ_BENCH_CONNECTIONS=2000 ./gradlew integrationTest --tests "*TransportBenchmarkTest"
+ */
+@EnabledIfEnvironmentVariable(named = "SMBJ_BENCH", matches = "1")
+public class TransportBenchmarkTest {
+    private static String env(String k, String def) {
+        String v = System.getenv(k);
+        return (v == null || v.isEmpty()) ? def : v;
+    }
+
+    private static final int CONNECTIONS = Integer.parseInt(env("SMBJ_BENCH_CONNECTIONS", "1000"));
+    private static final int MESSAGES = Integer.parseInt(env("SMBJ_BENCH_MESSAGES", "200"));
+    private static final int PAYLOAD = Integer.parseInt(env("SMBJ_BENCH_PAYLOAD", "4096"));
+    private static final int NIO_THREADS = Integer.parseInt(env("SMBJ_BENCH_NIO_THREADS", "4"));
+
+    private static final StringBuilder OUT = new StringBuilder();
+
+    private static void line(String s) {
+        OUT.append(s).append('\n');
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        line("=== smbj transport benchmark ===");
+        line(String.format("connections=%d messages/conn=%d payload=%dB nioThreads=%d", CONNECTIONS, MESSAGES, PAYLOAD, NIO_THREADS));
+        line(String.format("%-22s %10s %12s %12s %10s", "arm", "threads", "connect(ms)", "msgs/s", "MB/s"));
+
+        try (EchoServer server = new EchoServer()) {
+            server.start();
+            int threadsBefore = liveThreads();
+            runArm("direct (thread/conn)", new DirectTcpTransportFactory<EchoPacketData, EchoPacket>(), server.port(), threadsBefore);
+            threadsBefore = liveThreads();
+            NioSelectorTransportFactory<EchoPacketData, EchoPacket> nio = new NioSelectorTransportFactory<>(NIO_THREADS);
+            try {
+                runArm("nio selector", nio, server.port(), threadsBefore);
+            } finally {
+                nio.getEventLoopGroup().close();
+            }
+        }
+
+        line("");
+        line("threads = live JVM threads added while all connections are open");
+        line("msgs/s  = echoed packets per second across all connections");
+
+        String report = OUT.toString();
+        try {
+            Files.write(Paths.get("/tmp/smbj-transport-bench.txt"), report.getBytes(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (Exception ignore) {
+        }
+        System.out.println(report);
+    }
+
+    private static int liveThreads() {
+        return ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+
+    private void runArm(String label, TransportLayerFactory<EchoPacketData, EchoPacket> factory, int port, int threadsBefore) {
+        SmbConfig config = SmbConfig.builder().build();
+        CountDownLatch received = new CountDownLatch(CONNECTIONS * MESSAGES);
+        List<TransportLayer<EchoPacket>> transports = new ArrayList<>();
+        try {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < CONNECTIONS; i++) {
+                TransportLayer<EchoPacket> transport = factory.createTransportLayer(handlers(received), config);
+                transport.connect(new InetSocketAddress("localhost", port));
+                transports.add(transport);
+            }
+            long connect = System.nanoTime() - t0;
+            int threads = liveThreads() - threadsBefore;
+
+            EchoPacket packet = new EchoPacket(new byte[PAYLOAD]);
+            long t1 = System.nanoTime();
+            for (int m = 0; m < MESSAGES; m++) {
+                for (TransportLayer<EchoPacket> transport : transports) {
+                    transport.write(packet);
+                }
+            }
+            if (!received.await(5, TimeUnit.MINUTES)) {
+                throw new IllegalStateException("Only received " + (CONNECTIONS * MESSAGES - received.getCount()) + " packets");
+            }
+            long elapsed = System.nanoTime() - t1;
+            double seconds = elapsed / 1e9;
+            long total = (long) CONNECTIONS * MESSAGES;
+            line(String.format("%-22s %10d %12d %12.0f %10.1f", label, threads, TimeUnit.NANOSECONDS.toMillis(connect),
+                total / seconds, (total * (PAYLOAD + 4) * 2) / seconds / (1024 * 1024)));
+        } catch (Exception e) {
+            line(String.format("%-22s  FAILED: %s", label, e));
+        } finally {
+            for (TransportLayer<EchoPacket> transport : transports) {
+                try {
+                    transport.disconnect();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    private static PacketHandlers<EchoPacketData, EchoPacket> handlers(final CountDownLatch received) {
+        PacketSerializer<EchoPacket, Buffer.PlainBuffer> serializer = new PacketSerializer<EchoPacket, Buffer.PlainBuffer>() {
+            @Override
+            public Buffer.PlainBuffer write(EchoPacket packet) {
+                Buffer.PlainBuffer buffer = new Buffer.PlainBuffer(PAYLOAD, Endian.BE);
+                packet.write(buffer);
+                return buffer;
+            }
+
+            @Override
+            public Buffer.PlainBuffer writeGathering(EchoPacket packet) {
+                return write(packet);
+            }
+        };
+        PacketReceiver<EchoPacketData> receiver = new PacketReceiver<EchoPacketData>() {
+            @Override
+            public void handle(EchoPacketData packet) {
+                received.countDown();
+            }
+
+            @Override
+            public void handleError(Throwable t) {
+            }
+        };
+        PacketFactory<EchoPacketData> packetFactory = new PacketFactory<EchoPacketData>() {
+            @Override
+            public EchoPacketData read(byte[] data) {
+                return new EchoPacketData(data, data.length);
+            }
+
+            @Override
+            public EchoPacketData read(byte[] data, int length) {
+                return new EchoPacketData(data, length);
+            }
+
+            @Override
+            public boolean canHandle(byte[] data) {
+                return true;
+            }
+        };
+        return new PacketHandlers<>(serializer, receiver, packetFactory);
+    }
+
+    private static class EchoPacket implements Packet<Buffer.PlainBuffer> {
+        private final byte[] payload;
+
+        EchoPacket(byte[] payload) {
+            this.payload = payload;
+        }
+
+        @Override
+        public void write(Buffer.PlainBuffer buffer) {
+            buffer.putRawBytes(payload);
+        }
+
+        @Override
+        public void read(Buffer.PlainBuffer buffer) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class EchoPacketData implements PacketData<Buffer.PlainBuffer> {
+        private final Buffer.PlainBuffer buffer;
+
+        EchoPacketData(byte[] data, int length) {
+            this.buffer = new Buffer.PlainBuffer(data, length, Endian.BE);
+        }
+
+        @Override
+        public Buffer.PlainBuffer getDataBuffer() {
+            return buffer;
+        }
+    }
+
+    /**
+     * Single threaded NIO server that echoes every byte it receives, so framed requests come back as framed responses.
+     */
+    private static class EchoServer implements Runnable, AutoCloseable {
+        private final Selector selector;
+        private final ServerSocketChannel serverChannel;
+        private final Thread thread;
+        private volatile boolean stopped;
+
+        EchoServer() throws IOException {
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress("localhost", 0), 4096);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            thread = new Thread(this, "echo-server");
+            thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        int port() throws IOException {
+            return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+            while (!stopped) {
+                try {
+                    selector.select();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            SocketChannel client = serverChannel.accept();
+                            if (client != null) {
+                                client.configureBlocking(false);
+                                client.register(selector, SelectionKey.OP_READ, new ArrayDeque<ByteBuffer>());
+                            }
+                            continue;
+                        }
+                        @SuppressWarnings("unchecked")
+                        Queue<ByteBuffer> pending = (Queue<ByteBuffer>) key.attachment();
+                        SocketChannel client = (SocketChannel) key.channel();
+                        try {
+                            if (key.isReadable()) {
+                                readBuffer.clear();
+                                int read = client.read(readBuffer);
+                                if (read < 0) {
+                                    key.cancel();
+                                    client.close();
+                                    continue;
+                                }
+                                readBuffer.flip();
+                                ByteBuffer copy = ByteBuffer.allocate(readBuffer.remaining());
+                                copy.put(readBuffer).flip();
+                                pending.add(copy);
+                            }
+                            while (!pending.isEmpty()) {
+                                client.write(pending.peek());
+                                if (pending.peek().hasRemaining()) {
+                                    break;
+                                }
+                                pending.remove();
+                            }
+                            key.interestOps(pending.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        } catch (IOException e) {
+                            key.cancel();
+                            client.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            stopped = true;
+            selector.wakeup();
+            serverChannel.close();
+        }
+    }
+}
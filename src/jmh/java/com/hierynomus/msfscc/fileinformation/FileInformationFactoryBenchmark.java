@@ -0,0 +1,110 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.msfscc.fileinformation;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.hierynomus.protocol.commons.Charsets;
+import com.hierynomus.protocol.commons.buffer.Buffer;
+import com.hierynomus.protocol.commons.buffer.Endian;
+
+/**
+ * Decoding the FileIdBothDirectoryInformation entries of a QUERY_DIRECTORY response, as a directory listing does.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FileInformationFactoryBenchmark {
+    // All fixed size fields of a FileIdBothDirectoryInformation entry, up to the FileName
+    private static final int ENTRY_HEADER_SIZE = 104;
+    private static final long FILE_TIME = 133000000000000000L;
+
+    @Param({"16", "512"})
+    int entries;
+
+    private FileInformation.Decoder<FileIdBothDirectoryInformation> decoder;
+    private byte[] listing;
+
+    @Setup
+    public void setup() {
+        decoder = FileInformationFactory.getDecoder(FileIdBothDirectoryInformation.class);
+        listing = listing(entries);
+        if (FileInformationFactory.parseFileInformationList(listing, decoder).size() != entries) {
+            throw new IllegalStateException("Could not decode all entries of the directory listing");
+        }
+    }
+
+    @Benchmark
+    public List<FileIdBothDirectoryInformation> parseList() {
+        return FileInformationFactory.parseFileInformationList(listing, decoder);
+    }
+
+    @Benchmark
+    public void iterate(Blackhole blackhole) {
+        Iterator<FileIdBothDirectoryInformation> iterator = FileInformationFactory.createFileInformationIterator(listing, decoder);
+        while (iterator.hasNext()) {
+            blackhole.consume(iterator.next());
+        }
+    }
+
+    private static byte[] listing(int entries) {
+        Buffer.PlainBuffer buffer = new Buffer.PlainBuffer(Endian.LE);
+        for (int i = 0; i < entries; i++) {
+            int start = buffer.wpos();
+            byte[] fileName = ("Quarterly report " + i + ".xlsx").getBytes(Charsets.UTF_16LE);
+            // Entries are 8 byte aligned
+            int length = (ENTRY_HEADER_SIZE + fileName.length + 7) & ~7;
+            buffer.putUInt32(i == entries - 1 ? 0 : length); // NextEntryOffset
+            buffer.putUInt32(0); // FileIndex
+            for (int t = 0; t < 4; t++) {
+                buffer.putLong(FILE_TIME + i); // CreationTime, LastAccessTime, LastWriteTime, ChangeTime
+            }
+            buffer.putLong(1024L * i); // EndOfFile
+            buffer.putLong(4096L * (i + 1)); // AllocationSize
+            buffer.putUInt32(0x20); // FileAttributes (ARCHIVE)
+            buffer.putUInt32(fileName.length); // FileNameLength
+            buffer.putUInt32(0); // EaSize
+            buffer.putByte((byte) 0); // ShortNameLength
+            buffer.putByte((byte) 0); // Reserved1
+            buffer.putRawBytes(new byte[24]); // ShortName
+            buffer.putUInt16(0); // Reserved2
+            buffer.putLong(i); // FileId
+            buffer.putRawBytes(fileName);
+            while (i < entries - 1 && buffer.wpos() - start < length) {
+                buffer.putByte((byte) 0);
+            }
+        }
+        return buffer.getCompactData();
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.mssmb2;
+
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hierynomus.msdtyp.AccessMask;
+import com.hierynomus.mssmb2.messages.SMB2CreateRequest;
+import com.hierynomus.mssmb2.messages.SMB2ReadRequest;
+import com.hierynomus.mssmb2.messages.SMB2WriteRequest;
+import com.hierynomus.protocol.commons.buffer.Buffer;
+import com.hierynomus.smb.SMBBuffer;
+import com.hierynomus.smbj.common.SmbPath;
+import com.hierynomus.smbj.io.ArrayByteChunkProvider;
+
+/**
+ * Writing and parsing the SMB2 header, and serializing the most common requests into a reused buffer.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SMB2PacketSerializationBenchmark {
+    private static final SMB2Dialect DIALECT = SMB2Dialect.SMB_3_1_1;
+    private static final SMB2FileId FILE_ID = new SMB2FileId(new byte[16], new byte[16]);
+    private static final int WRITE_SIZE = 64 * 1024;
+
+    private final SMBBuffer buffer = new SMBBuffer();
+    private final byte[] writeData = new byte[WRITE_SIZE];
+    private final SmbPath path = new SmbPath("server", "share", "Documents\\report.xlsx");
+    private SMB2PacketHeader header;
+    private byte[] received;
+
+    @Setup
+    public void setup() {
+        header = new SMB2PacketHeader();
+        header.setDialect(DIALECT);
+        header.setMessageType(SMB2MessageCommandCode.SMB2_READ);
+        header.setMessageId(42);
+        header.setSessionId(0x0000100000000005L);
+        header.setTreeId(1);
+        header.setCreditCharge(1);
+        header.setCreditRequest(64);
+        SMBBuffer message = new SMBBuffer();
+        header.writeTo(message);
+        message.putRawBytes(new byte[16]);
+        received = message.getCompactData();
+    }
+
+    @Benchmark
+    public SMBBuffer writeHeader() {
+        buffer.clear();
+        header.writeTo(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public SMB2PacketData readHeader() throws Buffer.BufferException {
+        return new SMB2PacketData(received);
+    }
+
+    @Benchmark
+    public SMBBuffer writeReadRequest() {
+        buffer.clear();
+        new SMB2ReadRequest(DIALECT, FILE_ID, 1L, 1L, 0L, WRITE_SIZE).write(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public SMBBuffer writeWriteRequest() {
+        buffer.clear();
+        new SMB2WriteRequest(DIALECT, FILE_ID, 1L, 1L, new ArrayByteChunkProvider(writeData, 0L), WRITE_SIZE).write(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public SMBBuffer writeCreateRequest() {
+        buffer.clear();
+        new SMB2CreateRequest(DIALECT, 1L, 1L, SMB2ImpersonationLevel.Impersonation, EnumSet.of(AccessMask.GENERIC_READ),
+            null, EnumSet.of(SMB2ShareAccess.FILE_SHARE_READ), SMB2CreateDisposition.FILE_OPEN, null, path).write(buffer);
+        return buffer;
+    }
+}
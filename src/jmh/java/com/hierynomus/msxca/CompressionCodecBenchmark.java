@@ -0,0 +1,140 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.msxca;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compressing and decompressing a WRITE sized buffer of log text, CSV or random data with the pure Java MS-XCA codecs.
+ * <p>
+ * Random data does not compress, so {@code decompress} only measures the (empty) benchmark overhead for it.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CompressionCodecBenchmark {
+    @Param({"LZNT1", "LZ77", "LZ77_HUFFMAN"})
+    String codecName;
+
+    @Param({"log", "csv", "random"})
+    String data;
+
+    @Param({"1048576"})
+    int size;
+
+    private CompressionCodec codec;
+    private byte[] in;
+    private byte[] compressed;
+    private int compressedLength;
+    private byte[] out;
+
+    @Setup
+    public void setup() throws CompressionException {
+        codec = codec(codecName);
+        in = data(data, size);
+        compressed = new byte[size];
+        out = new byte[size];
+        compressedLength = compress();
+        if (compressedLength >= 0) {
+            decompress();
+            if (!Arrays.equals(in, out)) {
+                throw new IllegalStateException(codecName + " did not round trip " + data);
+            }
+        }
+    }
+
+    @Benchmark
+    public int compress() {
+        return codec.compress(in, 0, in.length, compressed, 0, compressed.length);
+    }
+
+    @Benchmark
+    public byte[] decompress() throws CompressionException {
+        if (compressedLength >= 0) {
+            codec.decompress(compressed, 0, compressedLength, out, 0, out.length);
+        }
+        return out;
+    }
+
+    private static CompressionCodec codec(String name) {
+        switch (name) {
+            case "LZNT1":
+                return new Lznt1Codec();
+            case "LZ77":
+                return new Lz77Codec();
+            case "LZ77_HUFFMAN":
+                return new Lz77HuffmanCodec();
+            default:
+                throw new IllegalArgumentException("Unknown codec " + name);
+        }
+    }
+
+    private static byte[] data(String name, int size) {
+        switch (name) {
+            case "log":
+                return logText(size);
+            case "csv":
+                return csv(size);
+            case "random":
+                byte[] data = new byte[size];
+                new Random(3).nextBytes(data);
+                return data;
+            default:
+                throw new IllegalArgumentException("Unknown data " + name);
+        }
+    }
+
+    private static byte[] logText(int size) {
+        Random random = new Random(1);
+        String[] levels = {"DEBUG", "INFO", "WARN"};
+        String[] loggers = {"com.hierynomus.smbj.connection.Connection", "com.hierynomus.smbj.session.Session", "com.hierynomus.smbj.share.TreeConnect"};
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < size) {
+            sb.append(String.format("2016-10-17 12:%02d:%02d.%03d %-5s %s - Received packet with message id << %d >>%n",
+                random.nextInt(60), random.nextInt(60), random.nextInt(1000), levels[random.nextInt(levels.length)],
+                loggers[random.nextInt(loggers.length)], random.nextInt(100000)));
+        }
+        return Arrays.copyOf(sb.toString().getBytes(StandardCharsets.UTF_8), size);
+    }
+
+    private static byte[] csv(int size) {
+        Random random = new Random(2);
+        StringBuilder sb = new StringBuilder("id,timestamp,host,bytes,status\n");
+        for (int id = 0; sb.length() < size; id++) {
+            sb.append(id).append(',').append(1476705600L + id).append(",fileserver").append(random.nextInt(8))
+                .append(',').append(random.nextInt(1 << 20)).append(',').append(random.nextBoolean() ? "OK" : "RETRY").append('\n');
+        }
+        return Arrays.copyOf(sb.toString().getBytes(StandardCharsets.UTF_8), size);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.ntlm.functions;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hierynomus.ntlm.av.AvId;
+import com.hierynomus.ntlm.av.AvPairString;
+import com.hierynomus.ntlm.messages.TargetInfo;
+import com.hierynomus.security.SecurityProvider;
+import com.hierynomus.security.bc.BCSecurityProvider;
+import com.hierynomus.security.jce.JceSecurityProvider;
+
+/**
+ * The NTLM functions that are computed for every authentication, with the MS-NLMP 4.2.4 example values.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NtlmFunctionsBenchmark {
+    private static final byte[] SERVER_CHALLENGE = {0x01, 0x23, 0x45, 0x67, (byte) 0x89, (byte) 0xab, (byte) 0xcd, (byte) 0xef};
+    private static final byte[] CLIENT_CHALLENGE = {(byte) 0xaa, (byte) 0xaa, (byte) 0xaa, (byte) 0xaa, (byte) 0xaa, (byte) 0xaa, (byte) 0xaa, (byte) 0xaa};
+
+    @Param({"bc", "jce"})
+    String provider;
+
+    private SecurityProvider securityProvider;
+    private NtlmV1Functions v1;
+    private NtlmV2Functions v2;
+    private TargetInfo targetInfo;
+    private byte[] responseKeyNT;
+    private byte[] ntProofStr;
+    private byte[] exportedSessionKey;
+
+    @Setup
+    public void setup() {
+        securityProvider = "jce".equals(provider) ? new JceSecurityProvider() : new BCSecurityProvider();
+        v1 = new NtlmV1Functions(new Random(1), securityProvider);
+        v2 = new NtlmV2Functions(new Random(1), securityProvider);
+        targetInfo = new TargetInfo();
+        targetInfo.putAvPair(new AvPairString(AvId.MsvAvNbDomainName, "Domain"));
+        targetInfo.putAvPair(new AvPairString(AvId.MsvAvNbComputerName, "Server"));
+        responseKeyNT = v2.NTOWFv2("Password", "User", "Domain");
+        ntProofStr = new byte[16];
+        System.arraycopy(getNtV2Response(), 0, ntProofStr, 0, ntProofStr.length);
+        exportedSessionKey = new byte[16];
+        new Random(2).nextBytes(exportedSessionKey);
+    }
+
+    @Benchmark
+    public byte[] ntowfV1() {
+        return v1.NTOWFv1("Password", "User", "Domain");
+    }
+
+    @Benchmark
+    public byte[] ntowfV2() {
+        return v2.NTOWFv2("Password", "User", "Domain");
+    }
+
+    @Benchmark
+    public byte[] getNtV2Response() {
+        return v2.getNtV2Response(responseKeyNT, SERVER_CHALLENGE, CLIENT_CHALLENGE, 0L, targetInfo);
+    }
+
+    @Benchmark
+    public byte[] getLmV2Response() {
+        return v2.getLmV2Response(responseKeyNT, SERVER_CHALLENGE, CLIENT_CHALLENGE);
+    }
+
+    @Benchmark
+    public byte[] getSessionBaseKey() {
+        return v2.getSessionBaseKey(responseKeyNT, ntProofStr);
+    }
+
+    @Benchmark
+    public byte[] encryptedRandomSessionKey() {
+        return NtlmFunctions.rc4k(securityProvider, v2.getSessionBaseKey(responseKeyNT, ntProofStr), exportedSessionKey);
+    }
+}
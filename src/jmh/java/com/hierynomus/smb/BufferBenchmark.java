@@ -0,0 +1,123 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smb;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hierynomus.protocol.commons.Charsets;
+import com.hierynomus.protocol.commons.buffer.Buffer;
+
+/**
+ * The read and write primitives of {@link SMBBuffer} that every message is (de)serialized with.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BufferBenchmark {
+    private static final int VALUES = 256;
+    private static final int RAW_SIZE = 64 * 1024;
+    private static final String NAME = "Documents\\Quarterly report 2024 (final).xlsx";
+
+    private SMBBuffer writeBuffer;
+    private SMBBuffer integers;
+    private SMBBuffer rawBytes;
+    private SMBBuffer string;
+    private byte[] raw;
+    private byte[] rawTarget;
+
+    @Setup
+    public void setup() {
+        writeBuffer = new SMBBuffer();
+        integers = new SMBBuffer();
+        putIntegers(integers);
+        raw = new byte[RAW_SIZE];
+        new Random(1).nextBytes(raw);
+        rawTarget = new byte[RAW_SIZE];
+        rawBytes = new SMBBuffer();
+        rawBytes.putRawBytes(raw);
+        string = new SMBBuffer();
+        string.putString(NAME);
+    }
+
+    @Benchmark
+    public SMBBuffer putIntegers() {
+        writeBuffer.clear();
+        putIntegers(writeBuffer);
+        return writeBuffer;
+    }
+
+    @Benchmark
+    public long readIntegers() throws Buffer.BufferException {
+        integers.rpos(0);
+        long sum = 0;
+        for (int i = 0; i < VALUES; i++) {
+            sum += integers.readUInt16();
+            sum += integers.readUInt32();
+            sum += integers.readLong();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public SMBBuffer putRawBytes() {
+        writeBuffer.clear();
+        writeBuffer.putRawBytes(raw);
+        return writeBuffer;
+    }
+
+    @Benchmark
+    public byte[] readRawBytes() throws Buffer.BufferException {
+        rawBytes.rpos(0);
+        rawBytes.readRawBytes(rawTarget);
+        return rawTarget;
+    }
+
+    @Benchmark
+    public SMBBuffer putString() {
+        writeBuffer.clear();
+        writeBuffer.putString(NAME);
+        return writeBuffer;
+    }
+
+    @Benchmark
+    public String readString() throws Buffer.BufferException {
+        string.rpos(0);
+        return string.readString(Charsets.UTF_16LE, NAME.length());
+    }
+
+    private static void putIntegers(SMBBuffer buffer) {
+        for (int i = 0; i < VALUES; i++) {
+            buffer.putUInt16(i);
+            buffer.putUInt32(i * 31L);
+            buffer.putLong(i * 0x9E3779B97F4A7C15L);
+        }
+    }
+}
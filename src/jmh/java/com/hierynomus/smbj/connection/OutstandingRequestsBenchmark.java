@@ -0,0 +1,82 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.connection;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hierynomus.mssmb2.messages.SMB2Echo;
+
+/**
+ * Registering requests in {@link OutstandingRequests} and completing them once their response is received, with a
+ * window of requests in flight per thread.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OutstandingRequestsBenchmark {
+    private static final int IN_FLIGHT = 64;
+
+    private final OutstandingRequests requests = new OutstandingRequests();
+    private final AtomicLong messageIds = new AtomicLong();
+    private final SMB2Echo packet = new SMB2Echo();
+
+    @State(Scope.Thread)
+    public static class InFlight {
+        final long[] messageIds = new long[IN_FLIGHT];
+        int next;
+        int count;
+    }
+
+    @Benchmark
+    public Request registerAndReceive(InFlight inFlight) {
+        return registerAndReceiveOldest(inFlight);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Request registerAndReceiveContended(InFlight inFlight) {
+        return registerAndReceiveOldest(inFlight);
+    }
+
+    private Request registerAndReceiveOldest(InFlight inFlight) {
+        long messageId = messageIds.getAndIncrement();
+        requests.registerOutstanding(new Request(packet, messageId));
+        int slot = inFlight.next;
+        inFlight.next = (slot + 1) % IN_FLIGHT;
+        long oldest = inFlight.messageIds[slot];
+        inFlight.messageIds[slot] = messageId;
+        if (inFlight.count < IN_FLIGHT) {
+            inFlight.count++;
+            return null;
+        }
+        return requests.receivedResponseFor(oldest);
+    }
+}
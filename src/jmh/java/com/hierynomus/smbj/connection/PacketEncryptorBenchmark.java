@@ -0,0 +1,110 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.connection;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hierynomus.mssmb2.SMB2Dialect;
+import com.hierynomus.mssmb2.SMB2MessageCommandCode;
+import com.hierynomus.mssmb2.SMB2Packet;
+import com.hierynomus.mssmb2.SMB3EncryptedPacketData;
+import com.hierynomus.mssmb2.SMB3EncryptionCipher;
+import com.hierynomus.protocol.commons.buffer.Buffer;
+import com.hierynomus.security.SecurityProvider;
+import com.hierynomus.security.bc.BCSecurityProvider;
+import com.hierynomus.security.jce.JceSecurityProvider;
+import com.hierynomus.smb.SMBBuffer;
+
+/**
+ * Encrypting a message into a reused transport buffer, and decrypting a received message.
+ * <p>
+ * The JDK providers have no AES-CCM, so the {@code jce} provider only works with the GCM ciphers
+ * ({@code -p provider=jce -p cipher=AES_128_GCM,AES_256_GCM}).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketEncryptorBenchmark {
+    @Param({"AES_128_GCM", "AES_256_GCM", "AES_128_CCM", "AES_256_CCM"})
+    SMB3EncryptionCipher cipher;
+
+    @Param({"bc"})
+    String provider;
+
+    @Param({"4096", "65536", "1048576"})
+    int size;
+
+    private PacketEncryptor encryptor;
+    private SecretKey key;
+    private SMB2Packet packet;
+    private SMBBuffer buffer;
+    private byte[] received;
+
+    @Setup
+    public void setup() {
+        SecurityProvider securityProvider = "jce".equals(provider) ? new JceSecurityProvider() : new BCSecurityProvider();
+        encryptor = new PacketEncryptor(securityProvider);
+        encryptor.setCipher(cipher);
+        byte[] keyBytes = new byte[cipher.getKeyLength()];
+        new Random(1).nextBytes(keyBytes);
+        key = new SecretKeySpec(keyBytes, cipher.getAlgorithmName());
+        byte[] payload = new byte[size];
+        new Random(2).nextBytes(payload);
+        packet = writePacket(payload);
+        buffer = new SMBBuffer();
+        received = encrypt().getCompactData();
+    }
+
+    @Benchmark
+    public SMBBuffer encrypt() {
+        buffer.clear();
+        encryptor.encrypt(packet, key).write(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public byte[] decrypt() throws Buffer.BufferException {
+        return encryptor.decrypt(new SMB3EncryptedPacketData(received), key);
+    }
+
+    private static SMB2Packet writePacket(final byte[] payload) {
+        return new SMB2Packet(49, SMB2Dialect.SMB_3_1_1, SMB2MessageCommandCode.SMB2_WRITE, 1L, 1L) {
+            @Override
+            protected void writeTo(SMBBuffer buffer) {
+                buffer.putRawBytes(payload);
+            }
+        };
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.connection;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hierynomus.mssmb2.SMB2Dialect;
+import com.hierynomus.mssmb2.SMB2FileId;
+import com.hierynomus.mssmb2.SMB2PacketData;
+import com.hierynomus.mssmb2.SMB2PacketHeader;
+import com.hierynomus.mssmb2.SMB2SigningAlgorithm;
+import com.hierynomus.mssmb2.messages.SMB2WriteRequest;
+import com.hierynomus.security.SecurityProvider;
+import com.hierynomus.security.bc.BCSecurityProvider;
+import com.hierynomus.security.jce.JceSecurityProvider;
+import com.hierynomus.smb.SMBBuffer;
+import com.hierynomus.smbj.io.ArrayByteChunkProvider;
+
+/**
+ * Signing an outgoing write request and verifying the signature of a received message of the same size.
+ * <p>
+ * The JDK providers have no AES-CMAC, so the {@code jce} provider only works with the other algorithms
+ * ({@code -p provider=jce -p algorithm=HMAC_SHA256,AES_GMAC}).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketSignatoryBenchmark {
+    @Param({"HMAC_SHA256", "AES_CMAC", "AES_GMAC"})
+    SMB2SigningAlgorithm algorithm;
+
+    @Param({"bc"})
+    String provider;
+
+    @Param({"1024", "65536"})
+    int size;
+
+    private PacketSignatory signatory;
+    private SecretKey key;
+    private byte[] data;
+    private SMBBuffer buffer;
+    private SMB2PacketData received;
+
+    @Setup
+    public void setup() throws Exception {
+        SecurityProvider securityProvider = "jce".equals(provider) ? new JceSecurityProvider() : new BCSecurityProvider();
+        signatory = new PacketSignatory(securityProvider);
+        byte[] keyBytes = new byte[16];
+        new Random(1).nextBytes(keyBytes);
+        key = new SecretKeySpec(keyBytes, algorithm.getAlgorithmName());
+        data = new byte[size];
+        new Random(2).nextBytes(data);
+        buffer = new SMBBuffer();
+
+        signatory.sign(writeRequest(), key).write(buffer);
+        byte[] message = buffer.getCompactData();
+        if (algorithm == SMB2SigningAlgorithm.AES_GMAC) {
+            // The AES-GMAC nonce differs between client and server, sign it as the server would
+            Arrays.fill(message, SMB2PacketHeader.SIGNATURE_OFFSET, SMB2PacketHeader.STRUCTURE_SIZE, (byte) 0);
+            byte[] signature = serverGmac(keyBytes, message);
+            System.arraycopy(signature, 0, message, SMB2PacketHeader.SIGNATURE_OFFSET, SMB2PacketHeader.SIGNATURE_SIZE);
+        }
+        received = new SMB2PacketData(message);
+        if (!signatory.verify(received, key)) {
+            throw new IllegalStateException("Could not verify the signature of the received message");
+        }
+    }
+
+    @Benchmark
+    public SMBBuffer sign() {
+        buffer.clear();
+        signatory.sign(writeRequest(), key).write(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return signatory.verify(received, key);
+    }
+
+    private SMB2WriteRequest writeRequest() {
+        return new SMB2WriteRequest(SMB2Dialect.SMB_3_1_1, new SMB2FileId(new byte[16], new byte[16]), 1L, 1L,
+            new ArrayByteChunkProvider(data, 0L), size);
+    }
+
+    private static byte[] serverGmac(byte[] key, byte[] message) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(128, PacketSignatory.gmacNonce(0, true, false)));
+        cipher.updateAAD(message);
+        return cipher.doFinal();
+    }
+}
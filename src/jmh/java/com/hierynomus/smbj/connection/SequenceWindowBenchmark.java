@@ -0,0 +1,86 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.connection;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Handing out sequence numbers from a {@link SequenceWindow} that is shared between sending threads, while the
+ * read thread adds the credits granted by the responses.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SequenceWindowBenchmark {
+
+    @State(Scope.Group)
+    public static class Granting {
+        SequenceWindow window;
+
+        @Setup
+        public void setup() {
+            window = new SequenceWindow();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Unlimited {
+        SequenceWindow window;
+
+        @Setup
+        public void setup() {
+            window = new SequenceWindow();
+            window.disableCredits();
+        }
+    }
+
+    @Benchmark
+    @Group("granting")
+    @GroupThreads(3)
+    public boolean reserve(Granting granting) {
+        long messageId = granting.window.reserve(1);
+        return granting.window.isGranted(messageId, 1);
+    }
+
+    @Benchmark
+    @Group("granting")
+    @GroupThreads(1)
+    public void grant(Granting granting) {
+        granting.window.creditsGranted(1);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long get(Unlimited unlimited) {
+        return unlimited.window.get();
+    }
+}
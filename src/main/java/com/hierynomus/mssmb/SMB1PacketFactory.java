@@ -26,6 +26,11 @@ public class SMB1PacketFactory implements PacketFactory<SMB1PacketData> {
         throw new SMB1NotSupportedException();
     }
 
+    @Override
+    public SMB1PacketData read(byte[] data, int length) throws Buffer.BufferException, IOException {
+        throw new SMB1NotSupportedException();
+    }
+
     @Override
     public boolean canHandle(byte[] data) {
         return data.length >= 4 && data[0] == (byte) 0xFF && data[1] == 'S' && data[2] == 'M' && data[3] == 'B';
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.mssmb2;
+
+import com.hierynomus.smb.SMBBuffer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * [MS-SMB2] 3.2.4.1.4 Sending Compounded Requests
+ * <p>
+ * A chain of requests that is sent to the server in a single network send. Every request except the last one is
+ * padded to an 8-byte boundary and its NextCommand field is set to the offset of the next request. Requests in the
+ * chain are still signed individually, including their padding, whereas an encrypted chain is encrypted as a whole.
+ * <p>
+ * The requests in the chain should be {@link #chain(SMB2Packet, boolean) chained} before they are signed, so that the
+ * signature covers the NextCommand field.
+ */
+public class SMB2CompoundRequest extends SMB2Packet {
+    private static final int NEXT_COMMAND_OFFSET = 20;
+    private static final byte[] PADDING = new byte[8];
+
+    /**
+     * [MS-SMB2] 3.2.4.1.4 The FileId to use in a related request to refer to the file opened by a previous CREATE.
+     */
+    public static final SMB2FileId RELATED_FILE_ID = new SMB2FileId();
+
+    private final List<SMB2Packet> requests;
+
+    public SMB2CompoundRequest(List<? extends SMB2Packet> requests) {
+        if (requests.isEmpty()) {
+            throw new IllegalArgumentException("A compound request needs at least one request");
+        }
+        this.requests = Collections.unmodifiableList(new ArrayList<>(requests));
+    }
+
+    /**
+     * Wrap a request so that it is written as part of a compound chain.
+     *
+     * @param request The request
+     * @param last    Whether this is the last request in the chain, which is neither padded nor has a NextCommand
+     * @return The wrapped request
+     */
+    public static SMB2Packet chain(SMB2Packet request, boolean last) {
+        return last ? request : new ChainedRequest(request);
+    }
+
+    /**
+     * Mark the request as a related operation, which works on the file (and session and tree) of the previous request
+     * in the chain. Related requests should use {@link #RELATED_FILE_ID} as their file id.
+     */
+    public static void related(SMB2Packet request) {
+        request.getHeader().setFlag(SMB2MessageFlag.SMB2_FLAGS_RELATED_OPERATIONS);
+    }
+
+    /**
+     * @return The requests in the chain, as they are written
+     */
+    public List<SMB2Packet> getRequests() {
+        return requests;
+    }
+
+    @Override
+    public void write(SMBBuffer buffer) {
+        for (SMB2Packet request : requests) {
+            request.write(buffer);
+        }
+    }
+
+    @Override
+    public SMB2PacketHeader getHeader() {
+        return requests.get(0).getHeader();
+    }
+
+    @Override
+    public long getSequenceNumber() {
+        return requests.get(0).getSequenceNumber();
+    }
+
+    @Override
+    public String toString() {
+        return "Compound" + requests;
+    }
+
+    private static class ChainedRequest extends SMB2Packet {
+        private final SMB2Packet request;
+
+        ChainedRequest(SMB2Packet request) {
+            this.request = request;
+        }
+
+        @Override
+        public void write(SMBBuffer buffer) {
+            SMBBuffer plain = new SMBBuffer();
+            request.write(plain);
+            int length = plain.available();
+            int nextCommand = (length + 7) & ~7;
+            request.getHeader().setNextCommandOffset(nextCommand);
+            byte[] data = plain.array();
+            int pos = plain.rpos() + NEXT_COMMAND_OFFSET;
+            data[pos] = (byte) nextCommand;
+            data[pos + 1] = (byte) (nextCommand >> 8);
+            data[pos + 2] = (byte) (nextCommand >> 16);
+            data[pos + 3] = (byte) (nextCommand >> 24);
+            buffer.putRawBytes(data, plain.rpos(), length);
+            buffer.putRawBytes(PADDING, 0, nextCommand - length);
+        }
+
+        @Override
+        public SMB2PacketHeader getHeader() {
+            return request.getHeader();
+        }
+
+        @Override
+        public long getSequenceNumber() {
+            return request.getSequenceNumber();
+        }
+
+        @Override
+        public int getMaxPayloadSize() {
+            return request.getMaxPayloadSize();
+        }
+
+        @Override
+        public SMB2Packet getPacket() {
+            return request.getPacket();
+        }
+
+        @Override
+        public String toString() {
+            return request.toString();
+        }
+    }
+}
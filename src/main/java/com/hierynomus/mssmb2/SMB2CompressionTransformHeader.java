@@ -30,16 +30,38 @@ import com.hierynomus.smbj.common.Check;
  * This optional header is only valid for the SMB 3.1.1 dialect&lt;73&gt;.
  */
 public class SMB2CompressionTransformHeader implements SMBHeader {
+    public static final int STRUCTURE_SIZE = 16;
+    public static final int SMB2_COMPRESSION_FLAG_NONE = 0x0000;
+    public static final int SMB2_COMPRESSION_FLAG_CHAINED = 0x0001;
     private static final byte[] COMPRESSED_PROTOCOL_ID = {(byte) 0xFC, 'S', 'M', 'B'};
     private int headerStartPosition;
     private int originalCompressedSegmentSize;
     private SMB3CompressionAlgorithm compressionAlgorithm;
+    private int flags;
     private int offset;
     private int messageEndPosition;
 
+    public SMB2CompressionTransformHeader() {
+    }
+
+    /**
+     * Create a header to write. For a chained header, the algorithm, flags and offset are those of the first payload
+     * header.
+     */
+    public SMB2CompressionTransformHeader(int originalCompressedSegmentSize, SMB3CompressionAlgorithm compressionAlgorithm, int flags, int offset) {
+        this.originalCompressedSegmentSize = originalCompressedSegmentSize;
+        this.compressionAlgorithm = compressionAlgorithm;
+        this.flags = flags;
+        this.offset = offset;
+    }
+
     @Override
     public void writeTo(SMBBuffer buffer) {
-
+        buffer.putRawBytes(COMPRESSED_PROTOCOL_ID); // ProtocolId (4 bytes)
+        buffer.putUInt32(originalCompressedSegmentSize & 0xFFFFFFFFL); // OriginalCompressedSegmentSize (4 bytes)
+        buffer.putUInt16((int) compressionAlgorithm.getValue()); // CompressionAlgorithm (2 bytes)
+        buffer.putUInt16(flags); // Flags (2 bytes)
+        buffer.putUInt32(offset & 0xFFFFFFFFL); // Offset/Length (4 bytes)
     }
 
     @Override
@@ -48,10 +70,11 @@ public class SMB2CompressionTransformHeader implements SMBHeader {
         byte[] protocolId = buffer.readRawBytes(4); // ProtocolId (4 bytes) (already verified)
         Check.ensureEquals(protocolId, COMPRESSED_PROTOCOL_ID, "Could not find SMB2 Packet header");
         this.originalCompressedSegmentSize = buffer.readUInt32AsInt(); // OriginalCompressedSegmentSize (4 bytes)
-        this.compressionAlgorithm = EnumWithValue.EnumUtils.valueOf(buffer.readUInt16(), SMB3CompressionAlgorithm.class, null);
-        Check.ensure(compressionAlgorithm != null && compressionAlgorithm != SMB3CompressionAlgorithm.NONE, "The CompressionAlgorithm field of the SMB2_COMPRESSION_TRANSFORM_HEADER should contain a valid value.");
-        buffer.skip(2);
-        this.offset = buffer.readUInt32AsInt(); // Offset (4 bytes)
+        this.compressionAlgorithm = EnumWithValue.EnumUtils.valueOf(buffer.readUInt16(), SMB3CompressionAlgorithm.class, null); // CompressionAlgorithm (2 bytes)
+        this.flags = buffer.readUInt16(); // Flags (2 bytes)
+        // If chained, these are the fields of the first SMB2_COMPRESSION_CHAINED_PAYLOAD_HEADER, which may be uncompressed
+        Check.ensure(compressionAlgorithm != null && (isChained() || compressionAlgorithm != SMB3CompressionAlgorithm.NONE), "The CompressionAlgorithm field of the SMB2_COMPRESSION_TRANSFORM_HEADER should contain a valid value.");
+        this.offset = buffer.readUInt32AsInt(); // Offset/Length (4 bytes)
         this.messageEndPosition = buffer.wpos();
     }
 
@@ -73,10 +96,25 @@ public class SMB2CompressionTransformHeader implements SMBHeader {
         return compressionAlgorithm;
     }
 
+    /**
+     * @return The offset of the compressed data, or if {@link #isChained() chained}, the length of the first payload.
+     */
     public int getOffset() {
         return offset;
     }
 
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * @return whether this is an SMB2_COMPRESSION_TRANSFORM_HEADER_CHAINED, followed by compression payloads.
+     */
+    public boolean isChained() {
+        return (flags & SMB2_COMPRESSION_FLAG_CHAINED) != 0;
+    }
+
+
     public static boolean isCompressed(byte[] header) {
         return Arrays.equals(COMPRESSED_PROTOCOL_ID, header);
     }
@@ -38,7 +38,16 @@ public class SMB2FileId {
         this.volatileHandle = volatileHandle;
     }
 
-    public void write(SMBBuffer buffer) {
+    /**
+     * Take over the handles of {@code reclaimed}, the id the server returned when this open was reclaimed after a
+     * reconnect ([MS-SMB2] 3.2.4.4), so that everything holding this id keeps working.
+     */
+    public synchronized void reclaimed(SMB2FileId reclaimed) {
+        this.persistentHandle = reclaimed.persistentHandle;
+        this.volatileHandle = reclaimed.volatileHandle;
+    }
+
+    public synchronized void write(SMBBuffer buffer) {
         buffer.putRawBytes(persistentHandle);
         buffer.putRawBytes(volatileHandle);
     }
@@ -59,4 +59,9 @@ public enum SMB2LeaseState implements EnumWithValue<SMB2LeaseState> {
     public static long readHandle() {
         return SMB2_LEASE_READ_CACHING.value | SMB2_LEASE_HANDLE_CACHING.value;
     }
+
+    /** The RWH bitmask value (0x7) — the full file lease. */
+    public static long readWriteHandle() {
+        return readHandle() | SMB2_LEASE_WRITE_CACHING.value;
+    }
 }
@@ -29,7 +29,10 @@ public class SMB2MultiCreditPacket extends SMB2Packet {
         return this.maxPayloadSize;
     }
 
-    protected int getPayloadSize() {
+    /**
+     * @return the size of the payload carried by this packet, which depends on the credits assigned to it
+     */
+    public int getPayloadSize() {
         return Math.min(maxPayloadSize, SINGLE_CREDIT_PAYLOAD_SIZE * getCreditsAssigned());
     }
 }
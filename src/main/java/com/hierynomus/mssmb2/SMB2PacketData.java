@@ -35,6 +35,10 @@ public class SMB2PacketData extends SMBPacketData<SMB2PacketHeader> {
         super(new SMB2PacketHeader(), data);
     }
 
+    public SMB2PacketData(byte[] data, int length) throws Buffer.BufferException {
+        super(new SMB2PacketHeader(), data, length);
+    }
+
     SMB2PacketData(SMBBuffer buffer) throws Buffer.BufferException {
         super(new SMB2PacketHeader(), buffer);
     }
@@ -83,6 +87,17 @@ public class SMB2PacketData extends SMBPacketData<SMB2PacketHeader> {
         }
     }
 
+    /**
+     * Copy the bytes of this single message out of the underlying buffer, so that the returned packet data stays
+     * valid after the (pooled) receive buffer has been released and reused.
+     */
+    public SMB2PacketData copy() throws Buffer.BufferException {
+        int start = getHeader().getHeaderStartPosition();
+        byte[] messageBytes = new byte[getHeader().getMessageEndPosition() - start];
+        System.arraycopy(dataBuffer.array(), start, messageBytes, 0, messageBytes.length);
+        return isDecrypted() ? new SMB2DecryptedPacketData(messageBytes) : new SMB2PacketData(messageBytes);
+    }
+
     public boolean isDecrypted() {
         return false;
     }
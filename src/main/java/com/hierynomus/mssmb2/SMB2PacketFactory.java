@@ -25,6 +25,11 @@ public class SMB2PacketFactory implements PacketFactory<SMB2PacketData> {
         return new SMB2PacketData(data);
     }
 
+    @Override
+    public SMB2PacketData read(byte[] data, int length) throws Buffer.BufferException {
+        return new SMB2PacketData(data, length);
+    }
+
     @Override
     public boolean canHandle(byte[] data) {
         return data.length >= 4 && data[0] == (byte) 0xFE && data[1] == 'S' && data[2] == 'M' && data[3] == 'B';
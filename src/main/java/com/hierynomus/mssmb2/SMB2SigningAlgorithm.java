@@ -0,0 +1,43 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.mssmb2;
+
+import com.hierynomus.protocol.commons.EnumWithValue;
+
+/***
+ * [MS-SMB2].pdf 2.2.3.1.7 SMB2_SIGNING_CAPABILITIES -- SigningAlgorithms
+ */
+public enum SMB2SigningAlgorithm implements EnumWithValue<SMB2SigningAlgorithm> {
+    HMAC_SHA256(0x0000L, "HmacSHA256"),
+    AES_CMAC(0x0001L, "AesCmac"),
+    AES_GMAC(0x0002L, "AesGmac");
+
+    private long value;
+    private String algorithmName;
+
+    SMB2SigningAlgorithm(long value, String algorithmName) {
+        this.value = value;
+        this.algorithmName = algorithmName;
+    }
+
+    public long getValue() {
+        return value;
+    }
+
+    public String getAlgorithmName() {
+        return algorithmName;
+    }
+}
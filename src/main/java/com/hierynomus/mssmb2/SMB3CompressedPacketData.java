@@ -30,6 +30,10 @@ public class SMB3CompressedPacketData extends SMBPacketData<SMB2CompressionTrans
         this.decrypted = decrypted;
     }
 
+    public SMB3CompressedPacketData(byte[] data, int length) throws Buffer.BufferException {
+        super(new SMB2CompressionTransformHeader(), data, length);
+    }
+
     public boolean isDecrypted() {
         return decrypted;
     }
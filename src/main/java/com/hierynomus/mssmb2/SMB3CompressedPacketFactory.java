@@ -26,6 +26,11 @@ public class SMB3CompressedPacketFactory implements PacketFactory<SMB3Compressed
         return new SMB3CompressedPacketData(data);
     }
 
+    @Override
+    public SMB3CompressedPacketData read(byte[] data, int length) throws Buffer.BufferException, IOException {
+        return new SMB3CompressedPacketData(data, length);
+    }
+
     @Override
     public boolean canHandle(byte[] data) {
         return data.length >= 4 && data[0] == (byte) 0xFC && data[1] == 'S' && data[2] == 'M' && data[3] == 'B';
@@ -23,6 +23,10 @@ public class SMB3EncryptedPacketData extends SMBPacketData<SMB2TransformHeader>
         super(new SMB2TransformHeader(), data);
     }
 
+    public SMB3EncryptedPacketData(byte[] data, int length) throws Buffer.BufferException {
+        super(new SMB2TransformHeader(), data, length);
+    }
+
     public byte[] getCipherText() throws Buffer.BufferException {
         return getDataBuffer().readRawBytes(getHeader().getOriginalMessageSize());
     }
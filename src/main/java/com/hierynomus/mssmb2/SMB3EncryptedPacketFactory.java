@@ -26,6 +26,11 @@ public class SMB3EncryptedPacketFactory implements PacketFactory<SMB3EncryptedPa
         return new SMB3EncryptedPacketData(data);
     }
 
+    @Override
+    public SMB3EncryptedPacketData read(byte[] data, int length) throws Buffer.BufferException, IOException {
+        return new SMB3EncryptedPacketData(data, length);
+    }
+
     @Override
     public boolean canHandle(byte[] data) {
         return data.length >= 4 && data[0] == (byte) 0xFD && data[1] == 'S' && data[2] == 'M' && data[3] == 'B';
@@ -23,6 +23,8 @@ import com.hierynomus.mssmb2.SMB2FileId;
 import com.hierynomus.mssmb2.SMB2OplockLevel;
 import com.hierynomus.mssmb2.SMB2Packet;
 import com.hierynomus.mssmb2.messages.create.SMB2CreateContext;
+import com.hierynomus.mssmb2.messages.create.SMB2DurableHandleRequestV2;
+import com.hierynomus.mssmb2.messages.create.SMB2DurableHandleResponseV2;
 import com.hierynomus.mssmb2.messages.create.SMB2LeaseCreateContext;
 import com.hierynomus.mssmb2.messages.create.SMB2LeaseResponseContext;
 import com.hierynomus.protocol.commons.EnumWithValue;
@@ -46,6 +48,7 @@ public class SMB2CreateResponse extends SMB2Packet {
     private FileTime lastAccessTime;
     private FileTime lastWriteTime;
     private FileTime changeTime;
+    private long endOfFile;
     private Set<FileAttributes> fileAttributes;
     private SMB2FileId fileId;
     private SMB2OplockLevel oplockLevel = SMB2OplockLevel.SMB2_OPLOCK_LEVEL_NONE;
@@ -63,7 +66,7 @@ public class SMB2CreateResponse extends SMB2Packet {
         lastWriteTime = MsDataTypes.readFileTime(buffer); // LastWriteTime (8 bytes)
         changeTime = MsDataTypes.readFileTime(buffer); // ChangeTime (8 bytes)
         buffer.readRawBytes(8); // AllocationSize (8 bytes) - Ignore
-        buffer.readRawBytes(8); // EndOfFile (8 bytes)
+        endOfFile = buffer.readUInt64(); // EndOfFile (8 bytes)
         fileAttributes = toEnumSet(buffer.readUInt32(), FileAttributes.class); // FileAttributes (4 bytes)
         buffer.skip(4); // Reserved2 (4 bytes)
         fileId = SMB2FileId.read(buffer); // FileId (16 bytes)
@@ -99,6 +102,16 @@ public class SMB2CreateResponse extends SMB2Packet {
         return null;
     }
 
+    /** The granted durable handle ("DH2Q") response context, or {@code null} if the open is not durable. */
+    public SMB2DurableHandleResponseV2 getDurableHandleResponseContext() throws Buffer.BufferException {
+        for (SMB2CreateContext ctx : createContexts) {
+            if (Arrays.equals(ctx.getName(), SMB2DurableHandleRequestV2.NAME)) {
+                return SMB2DurableHandleResponseV2.from(ctx);
+            }
+        }
+        return null;
+    }
+
     public SMB2CreateAction getCreateAction() {
         return createAction;
     }
@@ -119,6 +132,10 @@ public class SMB2CreateResponse extends SMB2Packet {
         return changeTime;
     }
 
+    public long getEndOfFile() {
+        return endOfFile;
+    }
+
     public Set<FileAttributes> getFileAttributes() {
         return fileAttributes;
     }
@@ -127,6 +144,10 @@ public class SMB2CreateResponse extends SMB2Packet {
         return fileId;
     }
 
+    public void setEndOfFile(long endOfFile) {
+        this.endOfFile = endOfFile;
+    }
+
     public void setFileAttributes(Set<FileAttributes> fileAttributes) {
         this.fileAttributes = fileAttributes;
     }
@@ -17,9 +17,11 @@ package com.hierynomus.mssmb2.messages;
 
 import com.hierynomus.msdtyp.MsDataTypes;
 import com.hierynomus.mssmb2.*;
+import com.hierynomus.mssmb2.messages.negotiate.SMB2CompressionCapabilities;
 import com.hierynomus.mssmb2.messages.negotiate.SMB2EncryptionCapabilities;
 import com.hierynomus.mssmb2.messages.negotiate.SMB2NegotiateContext;
 import com.hierynomus.mssmb2.messages.negotiate.SMB2PreauthIntegrityCapabilities;
+import com.hierynomus.mssmb2.messages.negotiate.SMB2SigningCapabilities;
 import com.hierynomus.protocol.commons.EnumWithValue;
 import com.hierynomus.smb.SMBBuffer;
 
@@ -43,25 +45,66 @@ public class SMB2NegotiateRequest extends SMB2Packet {
      * @param salt
      */
     public SMB2NegotiateRequest(Set<SMB2Dialect> dialects, UUID clientGuid, boolean clientSigningRequired, Set<SMB2GlobalCapability> capabilities, byte[] salt) {
+        this(dialects, clientGuid, clientSigningRequired, capabilities, salt, Collections.<SMB3CompressionAlgorithm>emptyList());
+    }
+
+    /**
+     * Request constructor.
+     *
+     * @param compressionAlgorithms The compression algorithms to offer when negotiating SMB 3.1.1, in order of
+     *                              preference, empty to not negotiate compression.
+     */
+    public SMB2NegotiateRequest(Set<SMB2Dialect> dialects, UUID clientGuid, boolean clientSigningRequired, Set<SMB2GlobalCapability> capabilities, byte[] salt, List<SMB3CompressionAlgorithm> compressionAlgorithms) {
+        this(dialects, clientGuid, clientSigningRequired, capabilities, salt, compressionAlgorithms, Collections.<SMB2SigningAlgorithm>emptyList());
+    }
+
+    /**
+     * Request constructor.
+     *
+     * @param compressionAlgorithms The compression algorithms to offer when negotiating SMB 3.1.1, in order of
+     *                              preference, empty to not negotiate compression.
+     * @param signingAlgorithms     The signing algorithms to offer when negotiating SMB 3.1.1, in order of preference,
+     *                              empty to sign with AES-CMAC.
+     */
+    public SMB2NegotiateRequest(Set<SMB2Dialect> dialects, UUID clientGuid, boolean clientSigningRequired, Set<SMB2GlobalCapability> capabilities, byte[] salt, List<SMB3CompressionAlgorithm> compressionAlgorithms, List<SMB2SigningAlgorithm> signingAlgorithms) {
+        // [MS-SMB2].pdf <104> Section 3.2.4.2.2.2: Windows 10, Windows Server 2016, and
+        // Windows Server operating system initialize with AES-128-GCM(0x0002)
+        // followed by AES-128-CCM(0x0001).
+        this(dialects, clientGuid, clientSigningRequired, capabilities, salt, compressionAlgorithms, signingAlgorithms, Arrays.asList(SMB3EncryptionCipher.AES_128_GCM, SMB3EncryptionCipher.AES_128_CCM));
+    }
+
+    /**
+     * Request constructor.
+     *
+     * @param compressionAlgorithms The compression algorithms to offer when negotiating SMB 3.1.1, in order of
+     *                              preference, empty to not negotiate compression.
+     * @param signingAlgorithms     The signing algorithms to offer when negotiating SMB 3.1.1, in order of preference,
+     *                              empty to sign with AES-CMAC.
+     * @param ciphers               The encryption ciphers to offer when negotiating SMB 3.1.1 with encryption, in order
+     *                              of preference.
+     */
+    public SMB2NegotiateRequest(Set<SMB2Dialect> dialects, UUID clientGuid, boolean clientSigningRequired, Set<SMB2GlobalCapability> capabilities, byte[] salt, List<SMB3CompressionAlgorithm> compressionAlgorithms, List<SMB2SigningAlgorithm> signingAlgorithms, List<SMB3EncryptionCipher> ciphers) {
         super(36, SMB2Dialect.UNKNOWN, SMB2MessageCommandCode.SMB2_NEGOTIATE, 0, 0);
         this.dialects = dialects;
         this.clientGuid = clientGuid;
         this.clientSigningRequired = clientSigningRequired;
         this.capabilities = capabilities;
-        this.negotiateContextList = buildNegotiateContextList(salt);
+        this.negotiateContextList = buildNegotiateContextList(salt, compressionAlgorithms, signingAlgorithms, ciphers);
     }
 
-    private List<SMB2NegotiateContext> buildNegotiateContextList(byte[] salt) {
+    private List<SMB2NegotiateContext> buildNegotiateContextList(byte[] salt, List<SMB3CompressionAlgorithm> compressionAlgorithms, List<SMB2SigningAlgorithm> signingAlgorithms, List<SMB3EncryptionCipher> ciphers) {
         if (dialects.contains(SMB2Dialect.SMB_3_1_1)) {
             List<SMB2NegotiateContext> contexts = new ArrayList<>();
             List<SMB3HashAlgorithm> hashAlgorithmList = Arrays.asList(SMB3HashAlgorithm.SHA_512);
             contexts.add(new SMB2PreauthIntegrityCapabilities(hashAlgorithmList, salt));
             if (this.capabilities.contains(SMB2GlobalCapability.SMB2_GLOBAL_CAP_ENCRYPTION)) { // SMB2_GLOBAL_CAP_ENCRYPTION is only present if isEncryptionSupported is true
-                // [MS-SMB2].pdf <104> Section 3.2.4.2.2.2: Windows 10, Windows Server 2016, and
-                // Windows Server operating system initialize with AES-128-GCM(0x0002)
-                // followed by AES-128-CCM(0x0001).
-                List<SMB3EncryptionCipher> cipherList = Arrays.asList(SMB3EncryptionCipher.AES_128_GCM, SMB3EncryptionCipher.AES_128_CCM);
-                contexts.add(new SMB2EncryptionCapabilities(cipherList));
+                contexts.add(new SMB2EncryptionCapabilities(ciphers));
+            }
+            if (!compressionAlgorithms.isEmpty()) {
+                contexts.add(new SMB2CompressionCapabilities(compressionAlgorithms, true));
+            }
+            if (!signingAlgorithms.isEmpty()) {
+                contexts.add(new SMB2SigningCapabilities(signingAlgorithms));
             }
             return contexts;
         }
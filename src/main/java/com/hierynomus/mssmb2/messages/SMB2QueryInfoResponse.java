@@ -33,7 +33,7 @@ public class SMB2QueryInfoResponse extends SMB2Packet {
         buffer.skip(2); // StructureSize (2 bytes)
         int outputBufferOffset = buffer.readUInt16(); // OutputBufferOffset (2 bytes)
         int outBufferLength = buffer.readUInt32AsInt(); // OutputBufferLength (4 bytes)
-        buffer.rpos(outputBufferOffset);
+        buffer.rpos(header.getHeaderStartPosition() + outputBufferOffset); // Relative to the header when compounded
         outputBuffer = buffer.readRawBytes(outBufferLength); // Buffer (variable)
     }
 
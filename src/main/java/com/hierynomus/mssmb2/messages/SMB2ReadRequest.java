@@ -25,9 +25,11 @@ import com.hierynomus.smb.SMBBuffer;
  * [MS-SMB2].pdf 2.2.19 SMB2 READ Request
  */
 public class SMB2ReadRequest extends SMB2MultiCreditPacket {
+    private static final byte SMB2_READFLAG_REQUEST_COMPRESSED = 0x02;
 
     private final long offset;
     private final SMB2FileId fileId;
+    private boolean requestCompressed;
 
     public SMB2ReadRequest(
         SMB2Dialect dialect, SMB2FileId fileId,
@@ -41,7 +43,7 @@ public class SMB2ReadRequest extends SMB2MultiCreditPacket {
     protected void writeTo(SMBBuffer buffer) {
         buffer.putUInt16(structureSize); // StructureSize (2 bytes)
         buffer.putByte((byte) 0); // Padding (1 byte)
-        buffer.putByte((byte) 0); // Flags (1 byte)
+        buffer.putByte(requestCompressed ? SMB2_READFLAG_REQUEST_COMPRESSED : 0); // Flags (1 byte)
         // fix read extra bytes and conflict with exclusive lock, use getPayloadSize() to handle multi credit issue
         buffer.putUInt32(getPayloadSize()); // Length (4 bytes)
         buffer.putUInt64(offset); // Offset (8 bytes)
@@ -53,4 +55,11 @@ public class SMB2ReadRequest extends SMB2MultiCreditPacket {
         buffer.putUInt16(0); // ReadChannelInfoLength (2 bytes)
         buffer.putByte((byte) 0); // Buffer (variable)
     }
+
+    /**
+     * Request the server to compress the response (SMB 3.1.1 only, if compression was negotiated).
+     */
+    public void setRequestCompressed(boolean requestCompressed) {
+        this.requestCompressed = requestCompressed;
+    }
 }
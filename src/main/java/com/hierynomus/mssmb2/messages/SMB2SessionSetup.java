@@ -38,6 +38,7 @@ public class SMB2SessionSetup extends SMB2Packet {
     private long clientCapabilities;
     private byte[] securityBuffer;
     private long previousSessionId;
+    private boolean binding;
 
     private Set<SMB2SessionFlags> sessionFlags;
 
@@ -88,7 +89,7 @@ public class SMB2SessionSetup extends SMB2Packet {
     }
 
     private void putFlags(SMBBuffer buffer) {
-        if (negotiatedDialect.isSmb3x() && previousSessionId != 0L) {
+        if (negotiatedDialect.isSmb3x() && binding) {
             buffer.putByte((byte) 0x01);
         } else {
             buffer.putByte((byte) 0);
@@ -107,6 +108,17 @@ public class SMB2SessionSetup extends SMB2Packet {
         this.previousSessionId = previousSessionId;
     }
 
+    /**
+     * Set SMB2_SESSION_FLAG_BINDING, to bind an existing session to the connection this request is sent on.
+     */
+    public void setBinding(boolean binding) {
+        this.binding = binding;
+    }
+
+    public boolean isBinding() {
+        return binding;
+    }
+
     public void setSecurityBuffer(byte[] securityBuffer) {
         this.securityBuffer = securityBuffer;
     }
@@ -48,6 +48,6 @@ public class SMB2WriteRequest extends SMB2MultiCreditPacket {
         buffer.putUInt16(0); // WriteChannelInfoOffset (2 bytes)
         buffer.putUInt16(0); // WriteChannelInfoLength (2 bytes)
         buffer.putUInt32(0); // Flags (4 bytes)
-        byteProvider.writeChunks(buffer, getCreditsAssigned());
+        byteProvider.writePayload(buffer, getCreditsAssigned()); // not copied if the buffer accepts payload segments
     }
 }
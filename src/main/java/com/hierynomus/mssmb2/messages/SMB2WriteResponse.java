@@ -39,4 +39,8 @@ public class SMB2WriteResponse extends SMB2Packet {
     public int getBytesWritten() {
         return bytesWritten;
     }
+
+    public void setBytesWritten(int bytesWritten) {
+        this.bytesWritten = bytesWritten;
+    }
 }
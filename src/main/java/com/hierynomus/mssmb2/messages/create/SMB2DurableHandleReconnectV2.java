@@ -0,0 +1,55 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.mssmb2.messages.create;
+
+import java.util.UUID;
+
+import com.hierynomus.msdtyp.MsDataTypes;
+import com.hierynomus.mssmb2.SMB2FileId;
+import com.hierynomus.smb.SMBBuffer;
+
+/**
+ * Builds the {@code DH2C} durable handle reconnect create-context payload ([MS-SMB2] 2.2.13.2.12), which reclaims an
+ * open that was granted with a {@link SMB2DurableHandleRequestV2 DH2Q} context after its connection was lost.
+ */
+public class SMB2DurableHandleReconnectV2 {
+    /** The "DH2C" 4CC in network (big-endian) order. */
+    public static final byte[] NAME = {0x44, 0x48, 0x32, 0x43};
+
+    private final SMB2FileId fileId;
+    private final UUID createGuid;
+    private final long flags;
+
+    public SMB2DurableHandleReconnectV2(SMB2FileId fileId, UUID createGuid, boolean persistent) {
+        this.fileId = fileId;
+        this.createGuid = createGuid;
+        this.flags = persistent ? SMB2DurableHandleRequestV2.FLAG_PERSISTENT : 0L;
+    }
+
+    /** The inner data blob (36 bytes). */
+    public byte[] toBytes() {
+        SMBBuffer b = new SMBBuffer();
+        fileId.write(b);                      // FileId (16)
+        MsDataTypes.putGuid(createGuid, b);   // CreateGuid (16)
+        b.putUInt32(flags);                   // Flags (4)
+        return b.getCompactData();
+    }
+
+    /** Wrap into the generic create-context (name "DH2C", data = {@link #toBytes()}). */
+    public SMB2CreateContext toCreateContext() {
+        return new SMB2CreateContext(NAME, toBytes());
+    }
+}
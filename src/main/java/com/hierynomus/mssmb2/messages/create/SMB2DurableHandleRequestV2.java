@@ -0,0 +1,75 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.mssmb2.messages.create;
+
+import java.util.UUID;
+
+import com.hierynomus.msdtyp.MsDataTypes;
+import com.hierynomus.smb.SMBBuffer;
+
+/**
+ * Builds the {@code DH2Q} durable handle create-context request payload ([MS-SMB2] 2.2.13.2.11). Asks the server to
+ * keep the open alive for {@code timeout} milliseconds after the connection is lost, so that it can be reclaimed with a
+ * {@link SMB2DurableHandleReconnectV2 DH2C} context identified by the same {@code CreateGuid}.
+ */
+public class SMB2DurableHandleRequestV2 {
+    /** The "DH2Q" 4CC in network (big-endian) order. */
+    public static final byte[] NAME = {0x44, 0x48, 0x32, 0x51};
+    /** SMB2_DHANDLE_FLAG_PERSISTENT, only granted on continuously available shares. */
+    public static final long FLAG_PERSISTENT = 0x02L;
+
+    private final long timeout;
+    private final long flags;
+    private final UUID createGuid;
+
+    /**
+     * @param timeout    the requested timeout in milliseconds, 0 lets the server choose
+     * @param persistent whether to request a persistent handle
+     * @param createGuid the id that identifies this open when it is reclaimed
+     */
+    public SMB2DurableHandleRequestV2(long timeout, boolean persistent, UUID createGuid) {
+        this.timeout = timeout;
+        this.flags = persistent ? FLAG_PERSISTENT : 0L;
+        this.createGuid = createGuid;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public long getFlags() {
+        return flags;
+    }
+
+    public UUID getCreateGuid() {
+        return createGuid;
+    }
+
+    /** The inner data blob (32 bytes). */
+    public byte[] toBytes() {
+        SMBBuffer b = new SMBBuffer();
+        b.putUInt32(timeout);                 // Timeout (4)
+        b.putUInt32(flags);                   // Flags (4)
+        b.putReserved(8);                     // Reserved (8)
+        MsDataTypes.putGuid(createGuid, b);   // CreateGuid (16)
+        return b.getCompactData();
+    }
+
+    /** Wrap into the generic create-context (name "DH2Q", data = {@link #toBytes()}). */
+    public SMB2CreateContext toCreateContext() {
+        return new SMB2CreateContext(NAME, toBytes());
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.mssmb2.messages.create;
+
+import java.util.Arrays;
+
+import com.hierynomus.protocol.commons.buffer.Buffer;
+import com.hierynomus.smb.SMBBuffer;
+
+/**
+ * Parses the {@code DH2Q} durable handle create-context <b>response</b> payload ([MS-SMB2] 2.2.14.2.12). Its presence
+ * means the server granted a durable open, with the timeout the server will keep it after a disconnect.
+ */
+public class SMB2DurableHandleResponseV2 {
+    private final long timeout;
+    private final long flags;
+
+    private SMB2DurableHandleResponseV2(long timeout, long flags) {
+        this.timeout = timeout;
+        this.flags = flags;
+    }
+
+    /** Parse the inner data blob (8 bytes). */
+    public static SMB2DurableHandleResponseV2 read(byte[] data) throws Buffer.BufferException {
+        if (data.length != 8) {
+            throw new IllegalArgumentException("Malformed DH2Q response: DataLength=" + data.length);
+        }
+        SMBBuffer b = new SMBBuffer(data);
+        long timeout = b.readUInt32();
+        long flags = b.readUInt32();
+        return new SMB2DurableHandleResponseV2(timeout, flags);
+    }
+
+    /** Convenience over an already-located "DH2Q" create context. */
+    public static SMB2DurableHandleResponseV2 from(SMB2CreateContext ctx) throws Buffer.BufferException {
+        if (!Arrays.equals(ctx.getName(), SMB2DurableHandleRequestV2.NAME)) {
+            throw new IllegalArgumentException("Not a DH2Q create context");
+        }
+        return read(ctx.getData());
+    }
+
+    /** The time in milliseconds the server keeps the open after the connection is lost. */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public long getFlags() {
+        return flags;
+    }
+
+    public boolean isPersistent() {
+        return (flags & SMB2DurableHandleRequestV2.FLAG_PERSISTENT) != 0;
+    }
+}
@@ -27,17 +27,20 @@ import java.util.List;
  * [MS-SMB2].pdf 2.2.3.1.3 / 2.2.4.1.3 SMB2_COMPRESSION_CAPABILITIES Request / Response
  */
 public class SMB2CompressionCapabilities extends SMB2NegotiateContext {
+    private static final long SMB2_COMPRESSION_CAPABILITIES_FLAG_CHAINED = 0x00000001L;
 
     private List<SMB3CompressionAlgorithm> compressionAlgorithms;
+    private boolean chained;
 
     SMB2CompressionCapabilities() {
         super(SMB2NegotiateContextType.SMB2_COMPRESSION_CAPABILITIES);
         this.compressionAlgorithms = new ArrayList<>();
     }
 
-    SMB2CompressionCapabilities(List<SMB3CompressionAlgorithm> compressionAlgorithms) {
+    public SMB2CompressionCapabilities(List<SMB3CompressionAlgorithm> compressionAlgorithms, boolean chained) {
         super(SMB2NegotiateContextType.SMB2_COMPRESSION_CAPABILITIES);
         this.compressionAlgorithms = compressionAlgorithms;
+        this.chained = chained;
     }
 
     @Override
@@ -47,7 +50,7 @@ public class SMB2CompressionCapabilities extends SMB2NegotiateContext {
         }
         buffer.putUInt16(compressionAlgorithms.size()); // CompressionAlgorithmCount (2 bytes)
         buffer.putReserved2(); // Padding (2 bytes)
-        buffer.putReserved4(); // Reserved (4 bytes)
+        buffer.putUInt32(chained ? SMB2_COMPRESSION_CAPABILITIES_FLAG_CHAINED : 0); // Flags (4 bytes)
         for (SMB3CompressionAlgorithm compressionAlgorithm : compressionAlgorithms) {
             buffer.putUInt16((int) compressionAlgorithm.getValue()); // CompresisonAlgorithm (2 bytes)
         }
@@ -58,7 +61,7 @@ public class SMB2CompressionCapabilities extends SMB2NegotiateContext {
     protected void readContext(SMBBuffer buffer, int dataSize) throws Buffer.BufferException {
         int compressionAlgorithmCount = buffer.readUInt16(); // CompressionAlgorithmCount (2 bytes)
         buffer.skip(2); // Padding (2 bytes)
-        buffer.skip(4); // Reserved (4 bytes)
+        chained = (buffer.readUInt32() & SMB2_COMPRESSION_CAPABILITIES_FLAG_CHAINED) != 0; // Flags (4 bytes)
         for (int i = 0; i < compressionAlgorithmCount; i++) {
             int l = buffer.readUInt16();
             SMB3CompressionAlgorithm alg = EnumWithValue.EnumUtils.valueOf(l, SMB3CompressionAlgorithm.class, null);
@@ -72,4 +75,12 @@ public class SMB2CompressionCapabilities extends SMB2NegotiateContext {
     public List<SMB3CompressionAlgorithm> getCompressionAlgorithms() {
         return compressionAlgorithms;
     }
+
+    /**
+     * @return whether chained compression is supported, in which case a message can be compressed in multiple
+     * payloads, each with their own algorithm.
+     */
+    public boolean isChained() {
+        return chained;
+    }
 }
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.mssmb2.messages.negotiate;
+
+import com.hierynomus.mssmb2.SMB2SigningAlgorithm;
+import com.hierynomus.protocol.commons.EnumWithValue;
+import com.hierynomus.protocol.commons.buffer.Buffer;
+import com.hierynomus.smb.SMBBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * [MS-SMB2].pdf 2.2.3.1.7 / 2.2.4.1.7 SMB2_SIGNING_CAPABILITIES Request/Response
+ */
+public class SMB2SigningCapabilities extends SMB2NegotiateContext {
+    private List<SMB2SigningAlgorithm> signingAlgorithms;
+
+    public SMB2SigningCapabilities() {
+        super(SMB2NegotiateContextType.SMB2_SIGNING_CAPABILITIES);
+        this.signingAlgorithms = new ArrayList<>();
+    }
+
+    public SMB2SigningCapabilities(List<SMB2SigningAlgorithm> signingAlgorithms) {
+        super(SMB2NegotiateContextType.SMB2_SIGNING_CAPABILITIES);
+        this.signingAlgorithms = signingAlgorithms;
+    }
+
+    @Override
+    protected int writeContext(SMBBuffer buffer) {
+        if (signingAlgorithms == null || signingAlgorithms.isEmpty()) {
+            throw new IllegalStateException("Cannot serialize an empty or null signingAlgorithms list");
+        }
+
+        buffer.putUInt16(signingAlgorithms.size()); // SigningAlgorithmCount (2 bytes)
+        // SigningAlgorithms (variable)
+        for (SMB2SigningAlgorithm signingAlgorithm : signingAlgorithms) {
+            buffer.putUInt16((int) signingAlgorithm.getValue()); // SigningAlgorithm (2 bytes)
+        }
+        return 2 + 2 * signingAlgorithms.size();
+    }
+
+    @Override
+    protected void readContext(SMBBuffer buffer, int dataSize) throws Buffer.BufferException {
+        int signingAlgorithmCount = buffer.readUInt16(); // SigningAlgorithmCount (2 bytes)
+        for (int i = 0; i < signingAlgorithmCount; i++) {
+            signingAlgorithms.add(EnumWithValue.EnumUtils.valueOf(buffer.readUInt16(), SMB2SigningAlgorithm.class, null)); // SigningAlgorithm (2 bytes)
+        }
+    }
+
+    public List<SMB2SigningAlgorithm> getSigningAlgorithms() {
+        return signingAlgorithms;
+    }
+}
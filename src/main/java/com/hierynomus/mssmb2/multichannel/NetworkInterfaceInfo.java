@@ -0,0 +1,174 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.mssmb2.multichannel;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import com.hierynomus.protocol.commons.EnumWithValue;
+import com.hierynomus.protocol.commons.buffer.Buffer;
+import com.hierynomus.smb.SMBBuffer;
+
+/**
+ * [MS-SMB2] 2.2.32.5 NETWORK_INTERFACE_INFO Response
+ * <p>
+ * One network interface of the server, as returned by FSCTL_QUERY_NETWORK_INTERFACE_INFO. The response holds a chain
+ * of these, linked by their Next field.
+ */
+public class NetworkInterfaceInfo {
+    public static final long FSCTL_QUERY_NETWORK_INTERFACE_INFO = 0x001401FCL;
+    public static final int STRUCTURE_SIZE = 152;
+
+    private static final int AF_INET = 0x0002;
+    private static final int AF_INET6 = 0x0017;
+
+    private long ifIndex;
+    private Set<Capability> capabilities;
+    private long linkSpeed;
+    private InetAddress address;
+
+    public NetworkInterfaceInfo() {
+    }
+
+    public NetworkInterfaceInfo(long ifIndex, Set<Capability> capabilities, long linkSpeed, InetAddress address) {
+        this.ifIndex = ifIndex;
+        this.capabilities = capabilities;
+        this.linkSpeed = linkSpeed;
+        this.address = address;
+    }
+
+    /**
+     * Read all interfaces from the output of FSCTL_QUERY_NETWORK_INTERFACE_INFO. Interfaces with an address family
+     * other than IPv4 or IPv6 are skipped.
+     */
+    public static List<NetworkInterfaceInfo> readAll(byte[] data) throws Buffer.BufferException {
+        List<NetworkInterfaceInfo> interfaces = new ArrayList<>();
+        SMBBuffer buffer = new SMBBuffer(data);
+        int offset = 0;
+        while (data.length - offset >= STRUCTURE_SIZE) {
+            buffer.rpos(offset);
+            long next = buffer.readUInt32(); // Next (4 bytes)
+            NetworkInterfaceInfo info = new NetworkInterfaceInfo();
+            if (info.read(buffer)) {
+                interfaces.add(info);
+            }
+            if (next == 0 || next > data.length - offset) {
+                break;
+            }
+            offset += (int) next;
+        }
+        return interfaces;
+    }
+
+    private boolean read(SMBBuffer buffer) throws Buffer.BufferException {
+        ifIndex = buffer.readUInt32(); // IfIndex (4 bytes)
+        capabilities = EnumWithValue.EnumUtils.toEnumSet(buffer.readUInt32(), Capability.class); // Capability (4 bytes)
+        buffer.skip(4); // Reserved (4 bytes)
+        linkSpeed = buffer.readLong(); // LinkSpeed (8 bytes)
+        int family = buffer.readUInt16(); // Family (2 bytes)
+        buffer.skip(2); // Port (2 bytes), 0
+        try {
+            if (family == AF_INET) {
+                address = InetAddress.getByAddress(buffer.readRawBytes(4)); // IPv4Address (4 bytes)
+                return true;
+            } else if (family == AF_INET6) {
+                buffer.skip(4); // FlowInfo (4 bytes)
+                byte[] ip = buffer.readRawBytes(16); // IPv6Address (16 bytes)
+                int scopeId = (int) buffer.readUInt32(); // ScopeId (4 bytes)
+                address = Inet6Address.getByAddress(null, ip, scopeId);
+                return true;
+            }
+        } catch (UnknownHostException e) {
+            throw new Buffer.BufferException("Invalid address in NETWORK_INTERFACE_INFO: " + e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Write this interface, followed by another one if {@code last} is false.
+     */
+    public void write(SMBBuffer buffer, boolean last) {
+        int start = buffer.wpos();
+        buffer.putUInt32(last ? 0 : STRUCTURE_SIZE); // Next (4 bytes)
+        buffer.putUInt32(ifIndex); // IfIndex (4 bytes)
+        buffer.putUInt32(EnumWithValue.EnumUtils.toLong(capabilities)); // Capability (4 bytes)
+        buffer.putReserved4(); // Reserved (4 bytes)
+        buffer.putLong(linkSpeed); // LinkSpeed (8 bytes)
+        if (address instanceof Inet4Address) {
+            buffer.putUInt16(AF_INET); // Family (2 bytes)
+            buffer.putUInt16(0); // Port (2 bytes)
+            buffer.putRawBytes(address.getAddress()); // IPv4Address (4 bytes)
+        } else {
+            buffer.putUInt16(AF_INET6); // Family (2 bytes)
+            buffer.putUInt16(0); // Port (2 bytes)
+            buffer.putUInt32(0); // FlowInfo (4 bytes)
+            buffer.putRawBytes(address.getAddress()); // IPv6Address (16 bytes)
+            buffer.putUInt32(((Inet6Address) address).getScopeId()); // ScopeId (4 bytes)
+        }
+        int written = buffer.wpos() - start;
+        buffer.putRawBytes(new byte[STRUCTURE_SIZE - written]); // Rest of the SOCKADDR_STORAGE
+    }
+
+    public long getIfIndex() {
+        return ifIndex;
+    }
+
+    public Set<Capability> getCapabilities() {
+        return capabilities;
+    }
+
+    /**
+     * @return The speed of the interface in bits per second.
+     */
+    public long getLinkSpeed() {
+        return linkSpeed;
+    }
+
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    @Override
+    public String toString() {
+        return "NetworkInterfaceInfo{" +
+            "ifIndex=" + ifIndex +
+            ", capabilities=" + capabilities +
+            ", linkSpeed=" + linkSpeed +
+            ", address=" + address +
+            '}';
+    }
+
+    public enum Capability implements EnumWithValue<Capability> {
+        RSS_CAPABLE(0x00000001),
+        RDMA_CAPABLE(0x00000002);
+
+        private final long value;
+
+        Capability(long value) {
+            this.value = value;
+        }
+
+        @Override
+        public long getValue() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.msxca;
+
+/**
+ * Little endian access and match copying shared by the codecs.
+ */
+final class CodecSupport {
+    private CodecSupport() {
+    }
+
+    static int copyMatch(byte[] out, int outOff, int outPos, int outEnd, int offset, long length) throws CompressionException {
+        if (offset > outPos - outOff) {
+            throw new CompressionException("Match offset " + offset + " before the start of the output");
+        }
+        if (length > outEnd - outPos) {
+            throw new CompressionException("Match of " + length + " bytes overflows the output");
+        }
+        int end = outPos + (int) length;
+        int src = outPos - offset;
+        if (offset >= length) {
+            System.arraycopy(out, src, out, outPos, (int) length);
+            return end;
+        }
+        // Overlapping match, repeats the last offset bytes
+        while (outPos < end) {
+            out[outPos++] = out[src++];
+        }
+        return end;
+    }
+
+    static void ensureAvailable(int pos, int n, int end) throws CompressionException {
+        if (pos + n > end) {
+            throw new CompressionException("Compressed data is truncated");
+        }
+    }
+
+    static int getUInt16(byte[] b, int pos) {
+        return (b[pos] & 0xFF) | (b[pos + 1] & 0xFF) << 8;
+    }
+
+    static int getUInt32(byte[] b, int pos) {
+        return (b[pos] & 0xFF) | (b[pos + 1] & 0xFF) << 8 | (b[pos + 2] & 0xFF) << 16 | (b[pos + 3] & 0xFF) << 24;
+    }
+
+    static void putUInt16(byte[] b, int pos, int v) {
+        b[pos] = (byte) v;
+        b[pos + 1] = (byte) (v >>> 8);
+    }
+
+    static void putUInt32(byte[] b, int pos, int v) {
+        b[pos] = (byte) v;
+        b[pos + 1] = (byte) (v >>> 8);
+        b[pos + 2] = (byte) (v >>> 16);
+        b[pos + 3] = (byte) (v >>> 24);
+    }
+}
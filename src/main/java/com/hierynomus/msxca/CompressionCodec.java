@@ -0,0 +1,40 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.msxca;
+
+/**
+ * A [MS-XCA] compression algorithm.
+ * <p>
+ * Implementations do not keep state between calls, so a single instance can be shared between threads.
+ */
+public interface CompressionCodec {
+
+    /**
+     * Compress {@code inLen} bytes of {@code in} into {@code out}.
+     *
+     * @param outLimit The maximum number of bytes to write to {@code out}
+     * @return The number of bytes written to {@code out}, or -1 if the compressed data does not fit in
+     * {@code outLimit} bytes, in which case the contents of {@code out} are undefined.
+     */
+    int compress(byte[] in, int inOff, int inLen, byte[] out, int outOff, int outLimit);
+
+    /**
+     * Decompress {@code inLen} bytes of {@code in} into exactly {@code outLen} bytes of {@code out}.
+     *
+     * @throws CompressionException If the compressed data is malformed, or does not decompress to {@code outLen} bytes
+     */
+    void decompress(byte[] in, int inOff, int inLen, byte[] out, int outOff, int outLen) throws CompressionException;
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.msxca;
+
+import static com.hierynomus.msxca.CodecSupport.*;
+
+/**
+ * [MS-XCA] 2.3 / 2.4 Plain LZ77 compression.
+ * <p>
+ * The compressed data is a sequence of 32-bit flag words, each followed by the literals and matches it describes. A
+ * match is encoded in 16 bits (a 13-bit offset and a 3-bit length), longer lengths are continued in a shared
+ * half-byte, a byte, and a 16 or 32-bit value.
+ */
+public class Lz77Codec implements CompressionCodec {
+    private static final int MAX_OFFSET = 1 << 13;
+    private static final int MAX_CHAIN_LENGTH = 32;
+    // Worst case output for a single literal or match, including a new flag word
+    private static final int MAX_ITEM_SIZE = 4 + 2 + 1 + 1 + 2 + 4;
+
+    @Override
+    public int compress(byte[] in, int inOff, int inLen, byte[] out, int outOff, int outLimit) {
+        MatchFinder matchFinder = new MatchFinder(MAX_OFFSET, MAX_CHAIN_LENGTH);
+        matchFinder.reset(in, inOff, inLen);
+        int outEnd = outOff + outLimit;
+        if (outLimit < 4) {
+            return -1;
+        }
+        int inPos = inOff;
+        int inEnd = inOff + inLen;
+        int flags = 0;
+        int flagCount = 0;
+        int flagPos = outOff;
+        int outPos = outOff + 4;
+        int lastLengthHalfByte = -1;
+        while (inPos < inEnd) {
+            if (outPos + MAX_ITEM_SIZE > outEnd) {
+                return -1;
+            }
+            int matchLength = matchFinder.find(inPos, MAX_OFFSET, Integer.MAX_VALUE);
+            if (matchLength == 0) {
+                out[outPos++] = in[inPos++];
+                flags <<= 1;
+            } else {
+                int matchOffset = matchFinder.getMatchOffset();
+                for (int i = 1; i < matchLength; i++) {
+                    matchFinder.insert(inPos + i);
+                }
+                inPos += matchLength;
+                int length = matchLength - 3;
+                int token = (matchOffset - 1) << 3;
+                if (length < 7) {
+                    putUInt16(out, outPos, token | length);
+                    outPos += 2;
+                } else {
+                    putUInt16(out, outPos, token | 7);
+                    outPos += 2;
+                    length -= 7;
+                    int halfByte = Math.min(length, 15);
+                    if (lastLengthHalfByte < 0) {
+                        lastLengthHalfByte = outPos;
+                        out[outPos++] = (byte) halfByte;
+                    } else {
+                        out[lastLengthHalfByte] |= (byte) (halfByte << 4);
+                        lastLengthHalfByte = -1;
+                    }
+                    if (length >= 15) {
+                        length -= 15;
+                        if (length < 255) {
+                            out[outPos++] = (byte) length;
+                        } else {
+                            out[outPos++] = (byte) 0xFF;
+                            length += 15 + 7;
+                            if (length < (1 << 16)) {
+                                putUInt16(out, outPos, length);
+                                outPos += 2;
+                            } else {
+                                putUInt16(out, outPos, 0);
+                                putUInt32(out, outPos + 2, length);
+                                outPos += 6;
+                            }
+                        }
+                    }
+                }
+                flags = (flags << 1) | 1;
+            }
+            if (++flagCount == 32) {
+                putUInt32(out, flagPos, flags);
+                flagCount = 0;
+                flagPos = outPos;
+                outPos += 4;
+            }
+        }
+        // Mark the remainder of the last flag word as matches, a match without data terminates the stream
+        flags <<= 32 - flagCount;
+        flags |= (int) ((1L << (32 - flagCount)) - 1);
+        putUInt32(out, flagPos, flags);
+        return outPos - outOff;
+    }
+
+    @Override
+    public void decompress(byte[] in, int inOff, int inLen, byte[] out, int outOff, int outLen) throws CompressionException {
+        int inPos = inOff;
+        int inEnd = inOff + inLen;
+        int outPos = outOff;
+        int outEnd = outOff + outLen;
+        int flags = 0;
+        int flagCount = 0;
+        int lastLengthHalfByte = -1;
+        while (outPos < outEnd) {
+            if (flagCount == 0) {
+                if (inPos + 4 > inEnd) {
+                    break;
+                }
+                flags = getUInt32(in, inPos);
+                inPos += 4;
+                flagCount = 32;
+            }
+            flagCount--;
+            if ((flags & (1 << flagCount)) == 0) {
+                if (inPos >= inEnd) {
+                    break;
+                }
+                out[outPos++] = in[inPos++];
+                continue;
+            }
+            if (inPos == inEnd) {
+                break;
+            }
+            ensureAvailable(inPos, 2, inEnd);
+            int token = getUInt16(in, inPos);
+            inPos += 2;
+            long length = token & 7;
+            int offset = (token >>> 3) + 1;
+            if (length == 7) {
+                if (lastLengthHalfByte < 0) {
+                    ensureAvailable(inPos, 1, inEnd);
+                    length = in[inPos] & 0x0F;
+                    lastLengthHalfByte = inPos++;
+                } else {
+                    length = (in[lastLengthHalfByte] & 0xF0) >>> 4;
+                    lastLengthHalfByte = -1;
+                }
+                if (length == 15) {
+                    ensureAvailable(inPos, 1, inEnd);
+                    length = in[inPos++] & 0xFF;
+                    if (length == 255) {
+                        ensureAvailable(inPos, 2, inEnd);
+                        length = getUInt16(in, inPos);
+                        inPos += 2;
+                        if (length == 0) {
+                            ensureAvailable(inPos, 4, inEnd);
+                            length = getUInt32(in, inPos) & 0xFFFFFFFFL;
+                            inPos += 4;
+                        }
+                        if (length < 15 + 7) {
+                            throw new CompressionException("Invalid match length " + length);
+                        }
+                        length -= 15 + 7;
+                    }
+                    length += 15;
+                }
+                length += 7;
+            }
+            length += 3;
+            outPos = copyMatch(out, outOff, outPos, outEnd, offset, length);
+        }
+        if (outPos != outEnd) {
+            throw new CompressionException("Decompressed " + (outPos - outOff) + " bytes, expected " + outLen);
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.msxca;
+
+import static com.hierynomus.msxca.CodecSupport.*;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * [MS-XCA] 2.1 / 2.2 LZ77+Huffman compression.
+ * <p>
+ * Every block of 65536 uncompressed bytes starts with a table of the 4-bit code lengths of the 512 symbols: 256
+ * literals and 256 match symbols combining the (capped) match length with the bit length of the offset. It is
+ * followed by the canonical Huffman encoded symbols as a bit stream of 16-bit little endian words. Match offset bits
+ * are part of the bit stream, whereas extended match lengths are stored as whole bytes in between the words, at the
+ * position where the decoder will be reading at that point.
+ */
+public class Lz77HuffmanCodec implements CompressionCodec {
+    private static final int BLOCK_SIZE = 1 << 16;
+    private static final int SYMBOLS = 512;
+    private static final int TABLE_SIZE = SYMBOLS / 2;
+    private static final int MAX_CODE_LENGTH = 15;
+    private static final int EOF_SYMBOL = 256;
+    private static final int MAX_OFFSET = BLOCK_SIZE - 1;
+    private static final int MAX_LENGTH = (1 << 16) - 1 + 3;
+    private static final int MAX_CHAIN_LENGTH = 32;
+    // Worst case output for a single match: three bytes of extended length and two words of bits
+    private static final int MAX_ITEM_SIZE = 3 + 4;
+
+    @Override
+    public int compress(byte[] in, int inOff, int inLen, byte[] out, int outOff, int outLimit) {
+        MatchFinder matchFinder = new MatchFinder(MAX_OFFSET, MAX_CHAIN_LENGTH);
+        matchFinder.reset(in, inOff, inLen);
+        int[] items = new int[Math.min(inLen, BLOCK_SIZE) + 1];
+        int[] offsets = new int[items.length];
+        int[] frequencies = new int[SYMBOLS];
+        byte[] lengths = new byte[SYMBOLS];
+        int[] codes = new int[SYMBOLS];
+        BitWriter writer = new BitWriter(out, outOff + outLimit);
+        writer.outPos = outOff;
+
+        int inEnd = inOff + inLen;
+        int blockStart = inOff;
+        do {
+            int blockEnd = Math.min(inEnd, blockStart + BLOCK_SIZE);
+            boolean last = blockEnd == inEnd;
+            int itemCount = parse(matchFinder, in, blockStart, blockEnd, items, offsets, frequencies);
+            if (last) {
+                frequencies[EOF_SYMBOL]++;
+            }
+            buildCodeLengths(frequencies, lengths);
+            buildCodes(lengths, codes);
+            if (!writer.startBlock(lengths)) {
+                return -1;
+            }
+            for (int i = 0; i < itemCount; i++) {
+                if (!writer.ensureCapacity(MAX_ITEM_SIZE)) {
+                    return -1;
+                }
+                int item = items[i];
+                if (item < 256) {
+                    writer.writeBits(codes[item], lengths[item]);
+                    continue;
+                }
+                int length = item - 256 - 3;
+                int offset = offsets[i];
+                int offsetBits = 31 - Integer.numberOfLeadingZeros(offset);
+                int symbol = 256 + Math.min(length, 15) + (offsetBits << 4);
+                writer.writeBits(codes[symbol], lengths[symbol]);
+                if (length >= 15) {
+                    if (length - 15 < 255) {
+                        writer.writeByte(length - 15);
+                    } else {
+                        writer.writeByte(0xFF);
+                        writer.writeByte(length);
+                        writer.writeByte(length >>> 8);
+                    }
+                }
+                writer.writeBits(offset - (1 << offsetBits), offsetBits);
+            }
+            if (last) {
+                if (!writer.ensureCapacity(MAX_ITEM_SIZE)) {
+                    return -1;
+                }
+                writer.writeBits(codes[EOF_SYMBOL], lengths[EOF_SYMBOL]);
+            }
+            writer.endBlock();
+            blockStart = blockEnd;
+        } while (blockStart < inEnd);
+        return writer.outPos - outOff;
+    }
+
+    /**
+     * Parse a block into literals and matches that do not cross the end of the block.
+     *
+     * @return the number of items, a literal is stored as its byte value, a match as 256 plus its length.
+     */
+    private static int parse(MatchFinder matchFinder, byte[] in, int start, int end, int[] items, int[] offsets, int[] frequencies) {
+        Arrays.fill(frequencies, 0);
+        int count = 0;
+        int pos = start;
+        while (pos < end) {
+            int length = matchFinder.find(pos, MAX_OFFSET, Math.min(MAX_LENGTH, end - pos));
+            if (length == 0) {
+                int literal = in[pos++] & 0xFF;
+                items[count++] = literal;
+                frequencies[literal]++;
+            } else {
+                int offset = matchFinder.getMatchOffset();
+                for (int i = 1; i < length; i++) {
+                    matchFinder.insert(pos + i);
+                }
+                pos += length;
+                offsets[count] = offset;
+                items[count++] = 256 + length;
+                int offsetBits = 31 - Integer.numberOfLeadingZeros(offset);
+                frequencies[256 + Math.min(length - 3, 15) + (offsetBits << 4)]++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Build Huffman code lengths of at most {@link #MAX_CODE_LENGTH} bits for the symbols, making sure that the code
+     * is complete as the decoder requires.
+     */
+    static void buildCodeLengths(int[] frequencies, byte[] lengths) {
+        int[] freq = frequencies.clone();
+        int used = 0;
+        for (int f : freq) {
+            if (f > 0) {
+                used++;
+            }
+        }
+        if (used < 2) {
+            // A single symbol still needs a complete code, add a second (unused) symbol
+            freq[freq[0] > 0 ? 1 : 0] = 1;
+        }
+        int[] parent = new int[2 * SYMBOLS];
+        while (true) {
+            PriorityQueue<Long> queue = new PriorityQueue<>();
+            for (int s = 0; s < SYMBOLS; s++) {
+                if (freq[s] > 0) {
+                    queue.add(((long) freq[s] << 11) | s);
+                }
+            }
+            int next = SYMBOLS;
+            while (queue.size() > 1) {
+                long a = queue.poll();
+                long b = queue.poll();
+                int node = next++;
+                parent[(int) (a & 0x7FF)] = node;
+                parent[(int) (b & 0x7FF)] = node;
+                queue.add((((a >>> 11) + (b >>> 11)) << 11) | node);
+            }
+            int root = next - 1;
+            int maxLength = 0;
+            for (int s = 0; s < SYMBOLS; s++) {
+                int length = 0;
+                if (freq[s] > 0) {
+                    for (int n = s; n != root; n = parent[n]) {
+                        length++;
+                    }
+                }
+                lengths[s] = (byte) length;
+                maxLength = Math.max(maxLength, length);
+            }
+            if (maxLength <= MAX_CODE_LENGTH) {
+                return;
+            }
+            // Flatten the distribution and try again
+            for (int s = 0; s < SYMBOLS; s++) {
+                if (freq[s] > 0) {
+                    freq[s] = (freq[s] >>> 1) | 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Assign canonical codes: ordered by code length, then by symbol.
+     */
+    private static void buildCodes(byte[] lengths, int[] codes) {
+        int code = 0;
+        for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+            for (int s = 0; s < SYMBOLS; s++) {
+                if (lengths[s] == length) {
+                    codes[s] = code++;
+                }
+            }
+            code <<= 1;
+        }
+    }
+
+    @Override
+    public void decompress(byte[] in, int inOff, int inLen, byte[] out, int outOff, int outLen) throws CompressionException {
+        int inPos = inOff;
+        int inEnd = inOff + inLen;
+        int outPos = outOff;
+        int outEnd = outOff + outLen;
+        byte[] lengths = new byte[SYMBOLS];
+        short[] table = new short[1 << MAX_CODE_LENGTH];
+        while (outPos < outEnd) {
+            ensureAvailable(inPos, TABLE_SIZE + 4, inEnd);
+            for (int i = 0; i < TABLE_SIZE; i++) {
+                lengths[2 * i] = (byte) (in[inPos + i] & 0x0F);
+                lengths[2 * i + 1] = (byte) ((in[inPos + i] & 0xF0) >>> 4);
+            }
+            buildDecodingTable(lengths, table);
+            inPos += TABLE_SIZE;
+            int nextBits = getUInt16(in, inPos) << 16 | getUInt16(in, inPos + 2);
+            inPos += 4;
+            int extraBitCount = 16;
+            int blockEnd = Math.min(outEnd, outPos + BLOCK_SIZE);
+            while (outPos < blockEnd) {
+                int symbol = table[nextBits >>> (32 - MAX_CODE_LENGTH)];
+                int symbolLength = lengths[symbol];
+                nextBits <<= symbolLength;
+                extraBitCount -= symbolLength;
+                if (extraBitCount < 0) {
+                    nextBits |= readWord(in, inPos, inEnd) << -extraBitCount;
+                    inPos += 2;
+                    extraBitCount += 16;
+                }
+                if (symbol < 256) {
+                    out[outPos++] = (byte) symbol;
+                    continue;
+                }
+                symbol -= 256;
+                long length = symbol & 0x0F;
+                int offsetBits = symbol >>> 4;
+                if (length == 15) {
+                    ensureAvailable(inPos, 1, inEnd);
+                    length = in[inPos++] & 0xFF;
+                    if (length == 255) {
+                        ensureAvailable(inPos, 2, inEnd);
+                        length = getUInt16(in, inPos);
+                        inPos += 2;
+                        if (length == 0) {
+                            ensureAvailable(inPos, 4, inEnd);
+                            length = getUInt32(in, inPos) & 0xFFFFFFFFL;
+                            inPos += 4;
+                        }
+                        if (length < 15) {
+                            throw new CompressionException("Invalid match length " + length);
+                        }
+                        length -= 15;
+                    }
+                    length += 15;
+                }
+                length += 3;
+                int offset = (offsetBits == 0 ? 0 : nextBits >>> (32 - offsetBits)) + (1 << offsetBits);
+                nextBits = offsetBits == 0 ? nextBits : nextBits << offsetBits;
+                extraBitCount -= offsetBits;
+                if (extraBitCount < 0) {
+                    nextBits |= readWord(in, inPos, inEnd) << -extraBitCount;
+                    inPos += 2;
+                    extraBitCount += 16;
+                }
+                outPos = copyMatch(out, outOff, outPos, outEnd, offset, length);
+            }
+        }
+    }
+
+    private static void buildDecodingTable(byte[] lengths, short[] table) throws CompressionException {
+        int entry = 0;
+        for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+            int count = 1 << (MAX_CODE_LENGTH - length);
+            for (int s = 0; s < SYMBOLS; s++) {
+                if (lengths[s] == length) {
+                    if (entry + count > table.length) {
+                        throw new CompressionException("Invalid Huffman code lengths");
+                    }
+                    Arrays.fill(table, entry, entry + count, (short) s);
+                    entry += count;
+                }
+            }
+        }
+        if (entry != table.length) {
+            throw new CompressionException("Incomplete Huffman code lengths");
+        }
+    }
+
+    /**
+     * The bit stream may be read up to a word beyond the data that is actually used, which is read as zero.
+     */
+    private static int readWord(byte[] in, int pos, int end) {
+        return pos + 2 <= end ? getUInt16(in, pos) : 0;
+    }
+
+    /**
+     * Writes the bit stream in 16-bit words. The next two words are always reserved before any bytes that are written
+     * in between, as the decoder reads two words ahead.
+     */
+    private static class BitWriter {
+        private final byte[] out;
+        private final int outEnd;
+        private int outPos;
+        private int word0;
+        private int word1;
+        private long bits;
+        private int bitCount;
+
+        BitWriter(byte[] out, int outEnd) {
+            this.out = out;
+            this.outEnd = outEnd;
+        }
+
+        boolean ensureCapacity(int n) {
+            return outPos + n <= outEnd;
+        }
+
+        boolean startBlock(byte[] lengths) {
+            if (!ensureCapacity(TABLE_SIZE + 4)) {
+                return false;
+            }
+            for (int i = 0; i < TABLE_SIZE; i++) {
+                out[outPos++] = (byte) (lengths[2 * i] | lengths[2 * i + 1] << 4);
+            }
+            word0 = outPos;
+            word1 = outPos + 2;
+            outPos += 4;
+            bits = 0;
+            bitCount = 0;
+            return true;
+        }
+
+        void writeBits(int value, int n) {
+            bits = (bits << n) | value;
+            bitCount += n;
+            if (bitCount > 16) {
+                bitCount -= 16;
+                putUInt16(out, word0, (int) (bits >>> bitCount));
+                bits &= (1L << bitCount) - 1;
+                word0 = word1;
+                word1 = outPos;
+                outPos += 2;
+            }
+        }
+
+        void writeByte(int value) {
+            out[outPos++] = (byte) value;
+        }
+
+        void endBlock() {
+            putUInt16(out, word0, (int) (bits << (16 - bitCount)));
+            putUInt16(out, word1, 0);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.msxca;
+
+import static com.hierynomus.msxca.CodecSupport.*;
+
+/**
+ * [MS-XCA] 2.5 LZNT1 compression.
+ * <p>
+ * The data is compressed in independent chunks of 4096 bytes, each preceded by a 16-bit header holding the size of
+ * the chunk and whether it is compressed. Within a compressed chunk, groups of eight literals or matches are preceded
+ * by a flag byte. A match is a 16-bit token of which the split between offset and length depends on the position in
+ * the chunk: the further into the chunk, the more bits are used for the offset.
+ */
+public class Lznt1Codec implements CompressionCodec {
+    private static final int CHUNK_SIZE = 4096;
+    private static final int CHUNK_HEADER_SIZE = 2;
+    private static final int COMPRESSED = 0x8000;
+    private static final int SIGNATURE = 0x3000;
+    private static final int SIZE_MASK = 0x0FFF;
+    private static final int MAX_CHAIN_LENGTH = 16;
+
+    @Override
+    public int compress(byte[] in, int inOff, int inLen, byte[] out, int outOff, int outLimit) {
+        MatchFinder matchFinder = new MatchFinder(CHUNK_SIZE, MAX_CHAIN_LENGTH);
+        matchFinder.reset(in, inOff, inLen);
+        int outPos = outOff;
+        int outEnd = outOff + outLimit;
+        for (int chunk = inOff; chunk < inOff + inLen; chunk += CHUNK_SIZE) {
+            int chunkLen = Math.min(CHUNK_SIZE, inOff + inLen - chunk);
+            if (outPos + CHUNK_HEADER_SIZE + chunkLen > outEnd) {
+                return -1; // Not even room for storing it uncompressed
+            }
+            int compressed = compressChunk(matchFinder, in, chunk, chunkLen, out, outPos + CHUNK_HEADER_SIZE);
+            if (compressed > 0) {
+                putUInt16(out, outPos, COMPRESSED | SIGNATURE | (compressed + CHUNK_HEADER_SIZE - 3));
+                outPos += CHUNK_HEADER_SIZE + compressed;
+            } else {
+                putUInt16(out, outPos, SIGNATURE | (chunkLen + CHUNK_HEADER_SIZE - 3));
+                System.arraycopy(in, chunk, out, outPos + CHUNK_HEADER_SIZE, chunkLen);
+                outPos += CHUNK_HEADER_SIZE + chunkLen;
+            }
+        }
+        return outPos - outOff;
+    }
+
+    /**
+     * @return the compressed size, or -1 if the chunk does not compress to less than its own size.
+     */
+    private static int compressChunk(MatchFinder matchFinder, byte[] in, int chunk, int chunkLen, byte[] out, int outOff) {
+        matchFinder.restart(chunk, chunkLen); // Matches do not cross chunk boundaries
+        int outPos = outOff;
+        int outEnd = outOff + chunkLen - 1;
+        int pos = 0;
+        int flagPos = 0;
+        int flagBit = 8;
+        while (pos < chunkLen) {
+            if (flagBit == 8) {
+                if (outPos >= outEnd) {
+                    return -1;
+                }
+                flagPos = outPos++;
+                out[flagPos] = 0;
+                flagBit = 0;
+            }
+            int offsetShift = offsetShift(pos);
+            int matchLength = pos == 0 ? 0
+                : matchFinder.find(chunk + pos, Math.min(pos, 1 << (16 - offsetShift)), ((1 << offsetShift) - 1) + 3);
+            if (matchLength == 0) {
+                if (pos == 0) {
+                    matchFinder.insert(chunk);
+                }
+                if (outPos + 1 > outEnd) {
+                    return -1;
+                }
+                out[outPos++] = in[chunk + pos++];
+            } else {
+                if (outPos + 2 > outEnd) {
+                    return -1;
+                }
+                for (int i = 1; i < matchLength; i++) {
+                    matchFinder.insert(chunk + pos + i);
+                }
+                putUInt16(out, outPos, (matchFinder.getMatchOffset() - 1) << offsetShift | (matchLength - 3));
+                outPos += 2;
+                out[flagPos] |= (byte) (1 << flagBit);
+                pos += matchLength;
+            }
+            flagBit++;
+        }
+        return outPos - outOff;
+    }
+
+    @Override
+    public void decompress(byte[] in, int inOff, int inLen, byte[] out, int outOff, int outLen) throws CompressionException {
+        int inPos = inOff;
+        int inEnd = inOff + inLen;
+        int outPos = outOff;
+        int outEnd = outOff + outLen;
+        while (inPos + CHUNK_HEADER_SIZE <= inEnd && outPos < outEnd) {
+            int header = getUInt16(in, inPos);
+            inPos += CHUNK_HEADER_SIZE;
+            if (header == 0) {
+                break; // End of the compressed stream
+            }
+            int chunkEnd = inPos + (header & SIZE_MASK) + 3 - CHUNK_HEADER_SIZE;
+            if (chunkEnd > inEnd) {
+                throw new CompressionException("Compressed data is truncated");
+            }
+            if ((header & COMPRESSED) == 0) {
+                int length = chunkEnd - inPos;
+                if (length > outEnd - outPos) {
+                    throw new CompressionException("Uncompressed chunk of " + length + " bytes overflows the output");
+                }
+                System.arraycopy(in, inPos, out, outPos, length);
+                outPos += length;
+            } else {
+                outPos = decompressChunk(in, inPos, chunkEnd, out, outPos, Math.min(outEnd, outPos + CHUNK_SIZE));
+            }
+            inPos = chunkEnd;
+        }
+        if (outPos != outEnd) {
+            throw new CompressionException("Decompressed " + (outPos - outOff) + " bytes, expected " + outLen);
+        }
+    }
+
+    private static int decompressChunk(byte[] in, int inPos, int inEnd, byte[] out, int chunkStart, int outEnd) throws CompressionException {
+        int outPos = chunkStart;
+        while (inPos < inEnd) {
+            int flags = in[inPos++] & 0xFF;
+            for (int bit = 0; bit < 8 && inPos < inEnd; bit++) {
+                if ((flags & (1 << bit)) == 0) {
+                    if (outPos >= outEnd) {
+                        throw new CompressionException("Literal overflows the output");
+                    }
+                    out[outPos++] = in[inPos++];
+                } else {
+                    ensureAvailable(inPos, 2, inEnd);
+                    int token = getUInt16(in, inPos);
+                    inPos += 2;
+                    int offsetShift = offsetShift(outPos - chunkStart);
+                    int offset = (token >>> offsetShift) + 1;
+                    int length = (token & ((1 << offsetShift) - 1)) + 3;
+                    if (offset > outPos - chunkStart) {
+                        throw new CompressionException("Match offset " + offset + " before the start of the chunk");
+                    }
+                    outPos = copyMatch(out, chunkStart, outPos, outEnd, offset, length);
+                }
+            }
+        }
+        return outPos;
+    }
+
+    /**
+     * The number of bits used for the length in a match token at position {@code pos} in the chunk.
+     */
+    private static int offsetShift(int pos) {
+        int shift = 12;
+        for (int i = pos - 1; i >= 0x10; i >>= 1) {
+            shift--;
+        }
+        return shift;
+    }
+}
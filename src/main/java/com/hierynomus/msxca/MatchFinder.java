@@ -0,0 +1,132 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.msxca;
+
+import java.util.Arrays;
+
+/**
+ * Finds earlier occurrences of the bytes at the current position using hash chains over 3-byte prefixes.
+ * <p>
+ * Positions are absolute indexes in the input array. Every position should be {@link #insert(int) inserted} once,
+ * in increasing order, before a later position can match against it.
+ */
+class MatchFinder {
+    static final int MIN_MATCH = 3;
+
+    private static final int HASH_BITS = 15;
+    private static final int HASH_MASK = (1 << HASH_BITS) - 1;
+
+    private final int[] head = new int[1 << HASH_BITS];
+    private final int[] prev;
+    private final int windowMask;
+    private final int maxChainLength;
+
+    private byte[] data;
+    private int start;
+    private int end;
+    private int matchOffset;
+
+    /**
+     * @param windowSize     The largest offset that is searched for, rounded up to a power of two
+     * @param maxChainLength The maximum number of candidates to compare per position
+     */
+    MatchFinder(int windowSize, int maxChainLength) {
+        int size = Integer.highestOneBit(Math.max(windowSize, 2) - 1) << 1;
+        this.prev = new int[size];
+        this.windowMask = size - 1;
+        this.maxChainLength = maxChainLength;
+    }
+
+    /**
+     * Start finding matches in {@code data[off, off + len)}, forgetting any earlier positions.
+     */
+    void reset(byte[] data, int off, int len) {
+        Arrays.fill(head, -1);
+        this.data = data;
+        restart(off, len);
+    }
+
+    /**
+     * Continue with {@code data[off, off + len)}, which should lie after all positions inserted so far. Earlier
+     * positions are no longer matched against, without the cost of clearing the hash table.
+     */
+    void restart(int off, int len) {
+        this.start = off;
+        this.end = off + len;
+    }
+
+    void insert(int pos) {
+        if (pos + MIN_MATCH <= end) {
+            int h = hash(pos);
+            prev[pos & windowMask] = head[h];
+            head[h] = pos;
+        }
+    }
+
+    /**
+     * Find the longest match for the bytes at {@code pos} and insert {@code pos}.
+     *
+     * @param maxOffset The largest offset the caller can encode
+     * @param maxLength The longest match the caller can encode
+     * @return The length of the longest match, or 0 if there is no match of at least {@link #MIN_MATCH} bytes. The
+     * offset of the match is available from {@link #getMatchOffset()}.
+     */
+    int find(int pos, int maxOffset, int maxLength) {
+        int limit = Math.min(maxLength, end - pos);
+        if (limit < MIN_MATCH) {
+            insert(pos);
+            return 0;
+        }
+        int h = hash(pos);
+        int candidate = head[h];
+        prev[pos & windowMask] = candidate;
+        head[h] = pos;
+
+        byte[] d = data;
+        int bestLength = MIN_MATCH - 1;
+        int chain = maxChainLength;
+        while (candidate >= start && pos - candidate <= maxOffset && chain-- > 0) {
+            if (d[candidate + bestLength] == d[pos + bestLength] && d[candidate] == d[pos]) {
+                int length = 1;
+                while (length < limit && d[candidate + length] == d[pos + length]) {
+                    length++;
+                }
+                if (length > bestLength) {
+                    bestLength = length;
+                    matchOffset = pos - candidate;
+                    if (length == limit) {
+                        break;
+                    }
+                }
+            }
+            int next = prev[candidate & windowMask];
+            if (next >= candidate) {
+                break; // The slot was reused for a position outside the window
+            }
+            candidate = next;
+        }
+        return bestLength >= MIN_MATCH ? bestLength : 0;
+    }
+
+    int getMatchOffset() {
+        return matchOffset;
+    }
+
+    private int hash(int pos) {
+        int v = (data[pos] & 0xFF) | (data[pos + 1] & 0xFF) << 8 | (data[pos + 2] & 0xFF) << 16;
+        return (v * 0x9E3779B1) >>> (32 - HASH_BITS) & HASH_MASK;
+    }
+}
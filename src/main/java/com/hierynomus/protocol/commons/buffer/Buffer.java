@@ -22,8 +22,12 @@ import org.slf4j.LoggerFactory;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.UnsupportedCharsetException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public class Buffer<T extends Buffer<T>> {
     private static final Logger logger = LoggerFactory.getLogger(Buffer.class);
@@ -49,6 +53,10 @@ public class Buffer<T extends Buffer<T>> {
             super(data, endianness);
         }
 
+        public PlainBuffer(byte[] data, int length, Endian endianness) {
+            super(data, length, endianness);
+        }
+
         public PlainBuffer(int size, Endian endianness) {
             super(size, endianness);
         }
@@ -77,6 +85,9 @@ public class Buffer<T extends Buffer<T>> {
     private Endian endianness;
     protected int rpos;
     protected int wpos;
+    private boolean payloadSegmentsEnabled;
+    private List<ByteBuffer> payloadSegments;
+    private int payloadSegmentsSize;
 
     /**
      * @see #DEFAULT_SIZE
@@ -95,6 +106,17 @@ public class Buffer<T extends Buffer<T>> {
         this(data, true, endianness);
     }
 
+    /**
+     * Wrap the first {@code length} bytes of the array for reading, the array may be larger (e.g. a pooled buffer).
+     */
+    public Buffer(byte[] data, int length, Endian endianness) {
+        this(data, false, endianness);
+        if (length < 0 || length > data.length) {
+            throw new IllegalArgumentException("Length " + length + " out of bounds for array of size " + data.length);
+        }
+        wpos = length;
+    }
+
     public Buffer(int size, Endian endianness) {
         this(new byte[getNextPowerOf2(size)], false, endianness);
     }
@@ -117,6 +139,55 @@ public class Buffer<T extends Buffer<T>> {
         return data;
     }
 
+    /**
+     * Allow payload to be added as {@link #putPayloadSegment(ByteBuffer) segments} which are not copied into this
+     * buffer. Only enable this if the consumer of the buffer sends the payload segments after its contents.
+     */
+    public void enablePayloadSegments() {
+        this.payloadSegmentsEnabled = true;
+    }
+
+    public boolean isPayloadSegmentsEnabled() {
+        return payloadSegmentsEnabled;
+    }
+
+    /**
+     * Append the remaining bytes of the segment as payload. If payload segments are enabled the segment is kept as is
+     * (so it should not be modified until the buffer has been sent), otherwise its bytes are copied into this buffer.
+     * No other data can be written to the buffer after a payload segment.
+     *
+     * @param segment The payload, its position is not changed.
+     * @return this
+     */
+    public Buffer<T> putPayloadSegment(ByteBuffer segment) {
+        if (!payloadSegmentsEnabled) {
+            ensureCapacity(segment.remaining());
+            segment.duplicate().get(data, wpos, segment.remaining());
+            wpos += segment.remaining();
+            return this;
+        }
+        if (payloadSegments == null) {
+            payloadSegments = new ArrayList<>(2);
+        }
+        payloadSegments.add(segment.duplicate());
+        payloadSegmentsSize += segment.remaining();
+        return this;
+    }
+
+    /**
+     * @return The payload segments which follow the contents of this buffer.
+     */
+    public List<ByteBuffer> getPayloadSegments() {
+        return payloadSegments == null ? Collections.<ByteBuffer>emptyList() : payloadSegments;
+    }
+
+    /**
+     * @return The total number of bytes in the payload segments.
+     */
+    public int getPayloadSegmentsSize() {
+        return payloadSegmentsSize;
+    }
+
     /**
      * Returns the number of bytes still available to read from the buffer.
      *
@@ -134,6 +205,8 @@ public class Buffer<T extends Buffer<T>> {
     public void clear() {
         rpos = 0;
         wpos = 0;
+        payloadSegments = null;
+        payloadSegmentsSize = 0;
     }
 
     /**
@@ -193,6 +266,9 @@ public class Buffer<T extends Buffer<T>> {
      * @param capacity The capacity required/
      */
     public void ensureCapacity(int capacity) {
+        if (payloadSegments != null && capacity > 0) {
+            throw new IllegalStateException("Cannot write to the buffer after its payload segments");
+        }
         if (data.length - wpos < capacity) {
             int cw = wpos + capacity;
             byte[] tmp = new byte[getNextPowerOf2(cw)];
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.protocol.commons.buffer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of receive buffers for the transports.
+ * <p>
+ * Byte arrays are handed out in power-of-two size classes, so an acquired array is usually larger than requested and
+ * the caller needs to keep track of the actual length of the data in it. Released arrays are kept on a bounded stack
+ * per size class; once that is full, or if the array is larger than the {@link #getMaxPooledSize() maximum pooled
+ * size}, it is left to the garbage collector.
+ * <p>
+ * The pool can optionally hand out direct {@link ByteBuffer ByteBuffers} as read buffers for the channel based
+ * transports, which saves the JDK from copying every read through a temporary direct buffer.
+ */
+public class BufferPool {
+    /**
+     * Large enough for the biggest Direct TCP packet (24-bit length).
+     */
+    public static final int DEFAULT_MAX_POOLED_SIZE = 1 << 24;
+    public static final int DEFAULT_MAX_BUFFERS_PER_SIZE = 64;
+
+    private static final int MIN_SIZE_SHIFT = 10; // 1KiB
+    private static final int MAX_RETAINED_BYTES_PER_SIZE = 1 << 24;
+
+    private final SizeClass[] sizeClasses;
+    private final int maxPooledSize;
+    private final boolean directReadBuffers;
+
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong reuses = new AtomicLong();
+
+    public BufferPool() {
+        this(DEFAULT_MAX_POOLED_SIZE, DEFAULT_MAX_BUFFERS_PER_SIZE, false);
+    }
+
+    /**
+     * @param maxPooledSize     The largest array size that is pooled, 0 disables pooling.
+     * @param maxBuffersPerSize The maximum number of arrays retained per size class.
+     * @param directReadBuffers Whether {@link #allocateReadBuffer(int)} returns direct buffers.
+     */
+    public BufferPool(int maxPooledSize, int maxBuffersPerSize, boolean directReadBuffers) {
+        if (maxPooledSize < 0 || maxPooledSize > Buffer.MAX_SIZE) {
+            throw new IllegalArgumentException("Maximum pooled size should be between 0 and " + Buffer.MAX_SIZE);
+        }
+        this.directReadBuffers = directReadBuffers;
+        if (maxPooledSize == 0 || maxBuffersPerSize <= 0) {
+            this.maxPooledSize = 0;
+            this.sizeClasses = new SizeClass[0];
+            return;
+        }
+        int maxShift = Math.max(MIN_SIZE_SHIFT, 32 - Integer.numberOfLeadingZeros(maxPooledSize - 1));
+        this.maxPooledSize = 1 << maxShift;
+        this.sizeClasses = new SizeClass[maxShift - MIN_SIZE_SHIFT + 1];
+        for (int i = 0; i < sizeClasses.length; i++) {
+            int size = 1 << (MIN_SIZE_SHIFT + i);
+            sizeClasses[i] = new SizeClass(size, Math.max(1, Math.min(maxBuffersPerSize, MAX_RETAINED_BYTES_PER_SIZE / size)));
+        }
+    }
+
+    /**
+     * Acquire an array of at least {@code minLength} bytes. The contents of the array are undefined.
+     */
+    public byte[] acquire(int minLength) {
+        SizeClass sizeClass = sizeClassFor(minLength);
+        if (sizeClass != null) {
+            byte[] bytes = sizeClass.poll();
+            if (bytes != null) {
+                reuses.incrementAndGet();
+                return bytes;
+            }
+            allocations.incrementAndGet();
+            return new byte[sizeClass.size];
+        }
+        allocations.incrementAndGet();
+        return new byte[minLength];
+    }
+
+    /**
+     * Return an array to the pool. The caller must not use the array after releasing it. Arrays that do not match a
+     * size class of this pool are silently dropped.
+     */
+    public void release(byte[] bytes) {
+        if (bytes == null) {
+            return;
+        }
+        SizeClass sizeClass = sizeClassFor(bytes.length);
+        if (sizeClass != null && sizeClass.size == bytes.length) {
+            sizeClass.offer(bytes);
+        }
+    }
+
+    /**
+     * Allocate a (big endian) read buffer for a channel, which is direct if this pool is configured to do so.
+     */
+    public ByteBuffer allocateReadBuffer(int capacity) {
+        ByteBuffer buffer = directReadBuffers ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        return buffer.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    public int getMaxPooledSize() {
+        return maxPooledSize;
+    }
+
+    public boolean isDirectReadBuffers() {
+        return directReadBuffers;
+    }
+
+    /**
+     * @return The number of arrays allocated because no pooled array was available.
+     */
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+    /**
+     * @return The number of times a pooled array was handed out again.
+     */
+    public long getReuses() {
+        return reuses.get();
+    }
+
+    private SizeClass sizeClassFor(int length) {
+        if (length > maxPooledSize || sizeClasses.length == 0) {
+            return null;
+        }
+        int shift = length <= (1 << MIN_SIZE_SHIFT) ? MIN_SIZE_SHIFT : 32 - Integer.numberOfLeadingZeros(length - 1);
+        return sizeClasses[shift - MIN_SIZE_SHIFT];
+    }
+
+    private static class SizeClass {
+        private final int size;
+        private final byte[][] stack;
+        private int count;
+
+        SizeClass(int size, int capacity) {
+            this.size = size;
+            this.stack = new byte[capacity][];
+        }
+
+        synchronized byte[] poll() {
+            if (count == 0) {
+                return null;
+            }
+            byte[] bytes = stack[--count];
+            stack[count] = null;
+            return bytes;
+        }
+
+        synchronized void offer(byte[] bytes) {
+            if (count < stack.length) {
+                stack[count++] = bytes;
+            }
+        }
+    }
+}
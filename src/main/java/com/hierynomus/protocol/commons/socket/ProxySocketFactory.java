@@ -53,6 +53,14 @@ public class ProxySocketFactory extends SocketFactory {
         this.connectTimeout = connectTimeout;
     }
 
+    public Proxy getProxy() {
+        return proxy;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
     @Override
     public Socket createSocket() {
         return new Socket(proxy);
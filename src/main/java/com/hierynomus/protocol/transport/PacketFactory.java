@@ -19,6 +19,7 @@ import com.hierynomus.protocol.PacketData;
 import com.hierynomus.protocol.commons.buffer.Buffer;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 public interface PacketFactory<D extends PacketData<?>> {
 
@@ -30,6 +31,21 @@ public interface PacketFactory<D extends PacketData<?>> {
      */
     D read(byte[] data) throws Buffer.BufferException, IOException;
 
+    /**
+     * Construct {@link PacketData packet data} out of the first {@code length} bytes of the byte array.
+     * <p>
+     * The array can be larger than the packet, as the transports read into pooled receive buffers. The returned
+     * packet data may wrap the array, it is then only valid until the transport releases the buffer after handling it.
+     * The default implementation reads a copy of the packet data with {@link #read(byte[])}.
+     *
+     * @param data   the byte array containing the full packet data
+     * @param length the number of bytes of packet data in the array
+     * @return A newly constructed {@link PacketData} object.
+     */
+    default D read(byte[] data, int length) throws Buffer.BufferException, IOException {
+        return read(Arrays.copyOf(data, length));
+    }
+
     /**
      * Checks whether this PacketFactory is able to handle the incoming raw byte data.
      *
@@ -26,4 +26,14 @@ import com.hierynomus.protocol.commons.buffer.Buffer;
 public interface PacketSerializer<P extends Packet<B>, B extends Buffer<B>> {
 
     B write(P packet);
+
+    /**
+     * Serialize the packet into a buffer which has {@link Buffer#enablePayloadSegments() payload segments enabled}, so
+     * that large payloads are not copied. Only used by transports which send the payload segments after the buffer.
+     * <p>
+     * The default implementation serializes the whole packet into a single buffer with {@link #write(Packet)}.
+     */
+    default B writeGathering(P packet) {
+        return write(packet);
+    }
 }
@@ -27,6 +27,41 @@ public interface AEADBlockCipher {
 
     byte[] doFinal(byte[] in, int inOffset, int inLength) throws SecurityException;
 
+    /**
+     * Process the input into the given output array, which may be the input array (with the same offset) to work in
+     * place.
+     * <p>
+     * The default implementation copies the result of {@link #update(byte[], int, int)} to the output.
+     *
+     * @return The number of bytes written to the output.
+     */
+    default int update(byte[] in, int inOffset, int inLength, byte[] out, int outOffset) throws SecurityException {
+        byte[] result = update(in, inOffset, inLength);
+        if (result == null) {
+            return 0;
+        }
+        System.arraycopy(result, 0, out, outOffset, result.length);
+        return result.length;
+    }
+
+    /**
+     * Process the last of the input into the given output array, which may be the input array (with the same offset)
+     * to work in place. When encrypting the authentication tag is appended to the output, so the output should have
+     * room for the input and the tag.
+     * <p>
+     * The default implementation copies the result of {@link #doFinal(byte[], int, int)} to the output.
+     *
+     * @return The number of bytes written to the output.
+     */
+    default int doFinal(byte[] in, int inOffset, int inLength, byte[] out, int outOffset) throws SecurityException {
+        byte[] result = doFinal(in, inOffset, inLength);
+        if (result == null) {
+            return 0;
+        }
+        System.arraycopy(result, 0, out, outOffset, result.length);
+        return result.length;
+    }
+
     void reset();
 
 }
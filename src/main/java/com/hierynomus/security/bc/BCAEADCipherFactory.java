@@ -21,6 +21,7 @@ import com.hierynomus.security.Cipher.CryptMode;
 import com.hierynomus.security.SecurityException;
 
 import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.DataLengthException;
 import org.bouncycastle.crypto.InvalidCipherTextException;
 import org.bouncycastle.crypto.engines.AESEngine;
 import org.bouncycastle.crypto.modes.CCMBlockCipher;
@@ -28,6 +29,7 @@ import org.bouncycastle.crypto.modes.GCMBlockCipher;
 import org.bouncycastle.crypto.params.AEADParameters;
 import org.bouncycastle.crypto.params.KeyParameter;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -42,10 +44,10 @@ public class BCAEADCipherFactory {
             public AEADBlockCipher create() {
                 return new BCAEADBlockCipher(new CCMBlockCipher(new AESEngine())) {
                     @Override
-                    protected CipherParameters createParams(byte[] key,
+                    protected CipherParameters createParams(KeyParameter key,
                                                             GCMParameterSpec gcmParameterSpec) {
                         return new AEADParameters(
-                            new KeyParameter(key),
+                            key,
                             gcmParameterSpec.getTLen(),
                             gcmParameterSpec.getIV()
                         );
@@ -58,10 +60,10 @@ public class BCAEADCipherFactory {
             public AEADBlockCipher create() {
                 return new BCAEADBlockCipher(new GCMBlockCipher(new AESEngine())) {
                     @Override
-                    protected CipherParameters createParams(byte[] key,
+                    protected CipherParameters createParams(KeyParameter key,
                                                             GCMParameterSpec gcmParameterSpec) {
                         return new AEADParameters(
-                            new KeyParameter(key),
+                            key,
                             gcmParameterSpec.getTLen(),
                             gcmParameterSpec.getIV()
                         );
@@ -80,7 +82,10 @@ public class BCAEADCipherFactory {
     }
 
     private static abstract class BCAEADBlockCipher implements AEADBlockCipher {
+        private static final int IN_PLACE_CHUNK_SIZE = 16 * 1024;
         private org.bouncycastle.crypto.modes.AEADBlockCipher wrappedCipher;
+        private byte[] key;
+        private byte[] chunk;
 
         BCAEADBlockCipher(org.bouncycastle.crypto.modes.AEADBlockCipher aeadBlockCipher) {
             this.wrappedCipher = aeadBlockCipher;
@@ -88,7 +93,15 @@ public class BCAEADCipherFactory {
 
         @Override
         public void init(CryptMode cryptMode, byte[] bytes, GCMParameterSpec gcmParameterSpec) throws SecurityException {
-            wrappedCipher.init(cryptMode == CryptMode.ENCRYPT, createParams(bytes, gcmParameterSpec));
+            // Passing no key re-uses the key schedule (and GHASH tables) of the previous init
+            boolean sameKey = key != null && Arrays.equals(key, bytes);
+            key = null;
+            try {
+                wrappedCipher.init(cryptMode == CryptMode.ENCRYPT, createParams(sameKey ? null : new KeyParameter(bytes), gcmParameterSpec));
+            } catch (IllegalArgumentException e) {
+                throw new SecurityException(e);
+            }
+            key = bytes.clone();
         }
 
         @Override
@@ -118,11 +131,50 @@ public class BCAEADCipherFactory {
             return out;
         }
 
+        @Override
+        public int update(byte[] in, int inOffset, int inLength, byte[] out, int outOffset) throws SecurityException {
+            try {
+                return processBytes(in, inOffset, inLength, out, outOffset);
+            } catch (DataLengthException | IllegalStateException e) {
+                throw new SecurityException(e);
+            }
+        }
+
+        @Override
+        public int doFinal(byte[] in, int inOffset, int inLength, byte[] out, int outOffset) throws SecurityException {
+            try {
+                int length = processBytes(in, inOffset, inLength, out, outOffset);
+                return length + wrappedCipher.doFinal(out, outOffset + length);
+            } catch (InvalidCipherTextException | DataLengthException | IllegalStateException e) {
+                throw new SecurityException(e);
+            }
+        }
+
+        /**
+         * BouncyCastle copies the whole input if it overlaps the output, so feed in place input through a small chunk
+         * instead. The output never overtakes the input, as it is at most as long as the input processed so far.
+         */
+        private int processBytes(byte[] in, int inOffset, int inLength, byte[] out, int outOffset) {
+            if (in != out || outOffset > inOffset || outOffset + inLength <= inOffset) {
+                return wrappedCipher.processBytes(in, inOffset, inLength, out, outOffset);
+            }
+            if (chunk == null) {
+                chunk = new byte[IN_PLACE_CHUNK_SIZE];
+            }
+            int written = 0;
+            for (int pos = 0; pos < inLength; pos += chunk.length) {
+                int length = Math.min(chunk.length, inLength - pos);
+                System.arraycopy(in, inOffset + pos, chunk, 0, length);
+                written += wrappedCipher.processBytes(chunk, 0, length, out, outOffset + written);
+            }
+            return written;
+        }
+
         @Override
         public void reset() {
             wrappedCipher.reset();
         }
 
-        protected abstract CipherParameters createParams(byte[] key, GCMParameterSpec gcmParameterSpec);
+        protected abstract CipherParameters createParams(KeyParameter key, GCMParameterSpec gcmParameterSpec);
     }
 }
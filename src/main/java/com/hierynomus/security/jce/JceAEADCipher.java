@@ -28,6 +28,7 @@ import java.security.Provider;
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -80,6 +81,24 @@ public class JceAEADCipher implements AEADBlockCipher {
         }
     }
 
+    @Override
+    public int update(byte[] in, int inOffset, int inLength, byte[] out, int outOffset) throws SecurityException {
+        try {
+            return cipher.update(in, inOffset, inLength, out, outOffset);
+        } catch (ShortBufferException e) {
+            throw new SecurityException(e);
+        }
+    }
+
+    @Override
+    public int doFinal(byte[] in, int inOffset, int inLength, byte[] out, int outOffset) throws SecurityException {
+        try {
+            return cipher.doFinal(in, inOffset, inLength, out, outOffset);
+        } catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+            throw new SecurityException(e);
+        }
+    }
+
     @Override
     public void reset() {
         // no-op
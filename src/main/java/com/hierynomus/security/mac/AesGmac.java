@@ -0,0 +1,115 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.security.mac;
+
+import com.hierynomus.security.AEADBlockCipher;
+import com.hierynomus.security.Cipher;
+import com.hierynomus.security.Mac;
+import com.hierynomus.security.SecurityException;
+
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * AES-GMAC, which is AES-GCM over only additional authenticated data. The tag of an empty GCM encryption is the MAC.
+ * <p>
+ * GMAC needs a unique nonce per message, so it should be set with {@link #setNonce(byte[])} before every
+ * {@link #init(byte[])}.
+ */
+public class AesGmac implements Mac {
+    private static final int TAG_LENGTH = 128;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final AEADBlockCipher cipher;
+    private final byte[] pending = new byte[64];
+    private int pendingLength;
+    private byte[] key;
+    private byte[] nonce;
+
+    public AesGmac(AEADBlockCipher cipher) {
+        this.cipher = cipher;
+    }
+
+    public void setNonce(byte[] nonce) {
+        this.nonce = nonce;
+    }
+
+    @Override
+    public void init(byte[] key) throws SecurityException {
+        if (key == null) {
+            throw new SecurityException("Missing key data");
+        }
+        if (nonce == null) {
+            throw new SecurityException("Missing nonce");
+        }
+        this.key = key;
+        reset();
+    }
+
+    @Override
+    public void update(byte b) {
+        // Single bytes are written for every header field, hand them to the cipher in batches
+        if (pendingLength == pending.length) {
+            flush();
+        }
+        pending[pendingLength++] = b;
+    }
+
+    @Override
+    public void update(byte[] array) {
+        update(array, 0, array.length);
+    }
+
+    @Override
+    public void update(byte[] array, int offset, int length) {
+        flush();
+        updateAAD(array, offset, length);
+    }
+
+    @Override
+    public byte[] doFinal() {
+        flush();
+        try {
+            return cipher.doFinal(EMPTY, 0, 0);
+        } catch (SecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void reset() {
+        pendingLength = 0;
+        try {
+            cipher.init(Cipher.CryptMode.ENCRYPT, key, new GCMParameterSpec(TAG_LENGTH, nonce));
+        } catch (SecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void flush() {
+        if (pendingLength > 0) {
+            updateAAD(pending, 0, pendingLength);
+            pendingLength = 0;
+        }
+    }
+
+    private void updateAAD(byte[] array, int offset, int length) {
+        try {
+            cipher.updateAAD(array, offset, length);
+        } catch (SecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -33,6 +33,10 @@ public class SMBBuffer extends Buffer<SMBBuffer> {
         super(data, Endian.LE);
     }
 
+    public SMBBuffer(byte[] data, int length) {
+        super(data, length, Endian.LE);
+    }
+
     /**
      * Puts '0' bytes for reserved parts of messages/headers
      *
@@ -33,6 +33,10 @@ public abstract class SMBPacketData<H extends SMBHeader> implements PacketData<S
         this(header, new SMBBuffer(data));
     }
 
+    public SMBPacketData(H header, byte[] data, int length) throws Buffer.BufferException {
+        this(header, new SMBBuffer(data, length));
+    }
+
     protected SMBPacketData(H header, SMBBuffer buffer) throws Buffer.BufferException {
         this.header = header;
         this.dataBuffer = buffer;
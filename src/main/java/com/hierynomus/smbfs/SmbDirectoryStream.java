@@ -15,20 +15,34 @@
  */
 package com.hierynomus.smbfs;
 
+import com.hierynomus.msfscc.fileinformation.FileIdBothDirectoryInformation;
+import com.hierynomus.smbj.common.SMBRuntimeException;
+import com.hierynomus.smbj.share.Directory;
+
 import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Path;
 import java.util.Iterator;
-import java.util.List;
+import java.util.NoSuchElementException;
 
+/**
+ * Streams the entries of an open directory as they arrive in QUERY_DIRECTORY batches. The directory handle is released
+ * when the stream is closed or the last entry has been read.
+ */
 class SmbDirectoryStream implements DirectoryStream<Path> {
-    private final List<Path> list;
+    private final Directory directory;
+    private final Path dir;
+    private final Filter<? super Path> filter;
 
     private boolean closed;
+    private boolean released;
     private boolean iteratorTaken;
 
-    SmbDirectoryStream(List<Path> list) {
-        this.list = list;
+    SmbDirectoryStream(Directory directory, Path dir, Filter<? super Path> filter) {
+        this.directory = directory;
+        this.dir = dir;
+        this.filter = filter;
     }
 
     @Override
@@ -41,11 +55,84 @@ class SmbDirectoryStream implements DirectoryStream<Path> {
         }
         iteratorTaken = true;
 
-        return list.iterator();
+        try {
+            return new EntryIterator(directory.iterator());
+        } catch (SMBRuntimeException e) {
+            release();
+            throw new DirectoryIteratorException(new IOException(e));
+        }
     }
 
     @Override
     public void close() throws IOException {
         closed = true;
+        try {
+            release();
+        } catch (SMBRuntimeException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void release() {
+        if (!released) {
+            released = true;
+            directory.close();
+        }
+    }
+
+    private class EntryIterator implements Iterator<Path> {
+        private final Iterator<FileIdBothDirectoryInformation> entries;
+        private Path next;
+
+        EntryIterator(Iterator<FileIdBothDirectoryInformation> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                next = readNext();
+            }
+            return next != null;
+        }
+
+        @Override
+        public Path next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Path path = next;
+            next = null;
+            return path;
+        }
+
+        private Path readNext() {
+            // A closed stream behaves as if the end of the directory has been reached
+            while (!closed) {
+                FileIdBothDirectoryInformation entry;
+                try {
+                    if (!entries.hasNext()) {
+                        release();
+                        return null;
+                    }
+                    entry = entries.next();
+                } catch (SMBRuntimeException e) {
+                    throw new DirectoryIteratorException(new IOException(e));
+                }
+                String name = entry.getFileName();
+                if (name.equals(".") || name.equals("..")) {
+                    continue;
+                }
+                Path path = dir.resolve(name);
+                try {
+                    if (filter.accept(path)) {
+                        return path;
+                    }
+                } catch (IOException e) {
+                    throw new DirectoryIteratorException(e);
+                }
+            }
+            return null;
+        }
     }
 }
@@ -17,9 +17,9 @@ package com.hierynomus.smbfs;
 
 import com.hierynomus.msdtyp.AccessMask;
 import com.hierynomus.msfscc.fileinformation.FileAllInformation;
-import com.hierynomus.msfscc.fileinformation.FileIdBothDirectoryInformation;
 import com.hierynomus.mssmb2.SMB2CreateDisposition;
 import com.hierynomus.mssmb2.SMB2CreateOptions;
+import com.hierynomus.mssmb2.SMB2ShareAccess;
 import com.hierynomus.mssmb2.SMBApiException;
 import com.hierynomus.protocol.commons.buffer.Buffer;
 import com.hierynomus.smbj.common.SMBRuntimeException;
@@ -43,16 +43,16 @@ import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttribute;
 import java.nio.file.attribute.UserPrincipalLookupService;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
 
 import static com.hierynomus.msdtyp.AccessMask.FILE_ADD_SUBDIRECTORY;
 import static com.hierynomus.msdtyp.AccessMask.FILE_LIST_DIRECTORY;
+import static com.hierynomus.msdtyp.AccessMask.FILE_READ_ATTRIBUTES;
+import static com.hierynomus.msdtyp.AccessMask.FILE_READ_EA;
 import static com.hierynomus.mserref.NtStatus.STATUS_OBJECT_NAME_NOT_FOUND;
 import static com.hierynomus.mserref.NtStatus.STATUS_OBJECT_PATH_NOT_FOUND;
 import static com.hierynomus.mssmb2.SMB2CreateDisposition.FILE_CREATE;
@@ -196,24 +196,10 @@ public class SmbFileSystem extends FileSystem {
         throws IOException {
 
         DiskShare ds = shares.getShare(share);
-        List<Path> list = new ArrayList<>();
+        Directory directory = ds.openDirectory(path.toString(), EnumSet.of(FILE_LIST_DIRECTORY, FILE_READ_ATTRIBUTES, FILE_READ_EA),
+            null, SMB2ShareAccess.ALL, SMB2CreateDisposition.FILE_OPEN, null);
 
-        for (FileIdBothDirectoryInformation each : ds.list(path.toString())) {
-            String name = each.getFileName();
-            if (name.equals(".") || name.equals("..")) {
-                continue;
-            }
-
-            Path eachPath = path.resolve(name);
-
-            if (!filter.accept(eachPath)) {
-                continue;
-            }
-
-            list.add(eachPath);
-        }
-
-        return new SmbDirectoryStream(list);
+        return new SmbDirectoryStream(directory, path, filter);
     }
 
     void createDirectory(Path dir, FileAttribute<?>[] attrs) throws IOException {
@@ -16,6 +16,7 @@
 package com.hierynomus.smbj;
 
 import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.connection.ConnectionPool;
 import com.hierynomus.smbj.event.ConnectionClosed;
 import com.hierynomus.smbj.event.SMBEventBus;
 import com.hierynomus.smbj.server.ServerList;
@@ -25,10 +26,6 @@ import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-
-import static com.hierynomus.protocol.commons.IOUtils.closeSilently;
 
 /**
  * Server Message Block Client API.
@@ -39,8 +36,8 @@ public class SMBClient implements Closeable {
      */
     public static final int DEFAULT_PORT = 445;
 
-    private Map<String, Connection> connectionTable = new ConcurrentHashMap<>();
     private ServerList serverList = new ServerList();
+    private ConnectionPool connectionPool;
 
     private SmbConfig config;
 
@@ -57,6 +54,7 @@ public class SMBClient implements Closeable {
     public SMBClient(SmbConfig config, SMBEventBus bus) {
         this.config = config;
         this.bus = bus;
+        this.connectionPool = new ConnectionPool(config, this, bus, serverList);
         bus.subscribe(this);
     }
 
@@ -68,7 +66,7 @@ public class SMBClient implements Closeable {
      * @throws IOException If the connection could not be established.
      */
     public Connection connect(String hostname) throws IOException {
-        return getEstablishedOrConnect(hostname, DEFAULT_PORT);
+        return connectionPool.connect(hostname, DEFAULT_PORT);
     }
 
     /**
@@ -80,41 +78,18 @@ public class SMBClient implements Closeable {
      * @throws IOException If the connection could not be established.
      */
     public Connection connect(String hostname, int port) throws IOException {
-        return getEstablishedOrConnect(hostname, port);
-    }
-
-    private Connection getEstablishedOrConnect(String hostname, int port) throws IOException {
-        synchronized (this) {
-            String hostPort = hostname + ":" + port;
-            Connection cachedConnection = connectionTable.get(hostPort);
-            if (cachedConnection != null) {
-                cachedConnection = cachedConnection.lease();
-            }
-            if (cachedConnection == null || !cachedConnection.isConnected()) {
-                Connection connection = new Connection(config, this, bus, serverList);
-                try {
-                    connection.connect(hostname, port);
-                } catch (IOException e) {
-                    closeSilently(connection); // Quietly close broken connection.
-                    throw e;
-                }
-                connectionTable.put(hostPort, connection);
-                return connection;
-            }
-
-            return cachedConnection;
-        }
+        return connectionPool.connect(hostname, port);
     }
 
     @Handler
     @SuppressWarnings("unused")
     private void connectionClosed(ConnectionClosed event) {
-        synchronized (this) {
-            String hostPort = event.getHostname() + ":" + event.getPort();
-            connectionTable.remove(hostPort);
+        String hostPort = event.getHostname() + ":" + event.getPort();
+        if (connectionPool.getConnectionCount(event.getHostname(), event.getPort()) == 0) {
+            // Keep the negotiated server info while other connections to the host are still open
             serverList.unregister(event.getHostname());
-            logger.debug("Connection to << {} >> closed", hostPort);
         }
+        logger.debug("Connection to << {} >> closed", hostPort);
     }
 
     private static final Logger logger = LoggerFactory.getLogger(SMBClient.class);
@@ -122,14 +97,11 @@ public class SMBClient implements Closeable {
     @Override
     public void close() {
         logger.info("Going to close all remaining connections");
-        for (Connection connection : connectionTable.values()) {
-            try {
-                connection.close(true);
-            } catch (Exception e) {
-                logger.debug("Error closing connection to host {}", connection.getRemoteHostname());
-                logger.debug("Exception was: ", e);
-            }
-        }
+        connectionPool.close();
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
     }
 
     public ServerList getServerList() {
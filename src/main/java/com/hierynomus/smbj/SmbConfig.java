@@ -36,8 +36,12 @@ import javax.net.SocketFactory;
 
 import com.hierynomus.mssmb2.SMB2Dialect;
 import com.hierynomus.mssmb2.SMB2GlobalCapability;
+import com.hierynomus.mssmb2.SMB2SigningAlgorithm;
+import com.hierynomus.mssmb2.SMB3EncryptionCipher;
+import com.hierynomus.mssmb2.SMB3CompressionAlgorithm;
 import com.hierynomus.ntlm.NtlmConfig;
 import com.hierynomus.protocol.commons.Factory;
+import com.hierynomus.protocol.commons.buffer.BufferPool;
 import com.hierynomus.protocol.commons.socket.ProxySocketFactory;
 import com.hierynomus.security.SecurityProvider;
 import com.hierynomus.security.bc.BCSecurityProvider;
@@ -47,14 +51,24 @@ import com.hierynomus.smbj.auth.Authenticator;
 import com.hierynomus.smbj.auth.NtlmAuthenticator;
 import com.hierynomus.smbj.common.SMBRuntimeException;
 import com.hierynomus.smbj.transport.TransportLayerFactory;
+import com.hierynomus.smbj.transport.tcp.async.AsyncDirectTcpTransport;
 import com.hierynomus.smbj.transport.tcp.direct.DirectTcpTransportFactory;
 
 public final class SmbConfig {
+    /**
+     * Size the read ahead window of file input streams automatically, see {@link Builder#withReadAhead(int)}.
+     */
+    public static final int READ_AHEAD_AUTO = 0;
+
     private static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
 
     private static final int DEFAULT_SO_TIMEOUT = 0;
     private static final TimeUnit DEFAULT_SO_TIMEOUT_UNIT = TimeUnit.SECONDS;
 
+    private static final int DEFAULT_COMPRESSION_THRESHOLD = 4096;
+    private static final int DEFAULT_MAX_OUTSTANDING_READS = 8;
+    private static final int DEFAULT_FILE_CACHE_SIZE = 4 * 1024 * 1024;
+
     private static final int DEFAULT_TIMEOUT = 60;
     private static final TimeUnit DEFAULT_TIMEOUT_UNIT = TimeUnit.SECONDS;
 
@@ -91,8 +105,28 @@ public final class SmbConfig {
     private long transactTimeout;
     private GSSContextConfig clientGSSContextConfig;
     private boolean encryptData;
+    private List<SMB3EncryptionCipher> encryptionCiphers;
     private boolean directoryLeasingEnabled = true; // default ON so it's active for any builder()-built config
+    private boolean fileLeasingEnabled;
+    private int fileCacheSize;
+    private int metadataCacheSize;
+    private long metadataCacheTtl;
+    private boolean durableHandlesEnabled;
+    private int maxConnectionsPerHost;
+    private long connectionIdleTimeout;
+    private int packetWorkerThreads;
+    private long durableHandleTimeout;
     private NtlmConfig ntlmConfig;
+    private BufferPool bufferPool;
+    private int maxWriteBatchSize;
+    private long maxWriteBatchDelay;
+    private List<SMB3CompressionAlgorithm> compressionAlgorithms;
+    private List<SMB2SigningAlgorithm> signingAlgorithms;
+    private int compressionThreshold;
+    private int maxChannels;
+    private int maxOutstandingReads;
+    private int readAhead;
+    private int writeBehind;
 
     private int soTimeout;
 
@@ -112,13 +146,30 @@ public final class SmbConfig {
                 .withBufferSize(DEFAULT_BUFFER_SIZE)
                 .withTransportLayerFactory(DEFAULT_TRANSPORT_LAYER_FACTORY)
                 .withSoTimeout(DEFAULT_SO_TIMEOUT, DEFAULT_SO_TIMEOUT_UNIT)
+                .withBufferPool(new BufferPool())
+                .withWriteBatching(AsyncDirectTcpTransport.DEFAULT_MAX_WRITE_BATCH_SIZE, 0, TimeUnit.MILLISECONDS)
                 .withDialects(SMB_3_1_1, SMB_3_0_2, SMB_3_0, SMB_2_1, SMB_2_0_2)
                 // order is important.  The authenticators listed first will be selected
                 .withAuthenticators(getDefaultAuthenticators())
                 .withTimeout(DEFAULT_TIMEOUT, DEFAULT_TIMEOUT_UNIT)
                 .withClientGSSContextConfig(GSSContextConfig.createDefaultConfig())
                 .withEncryptData(false)
-                .withDirectoryLeasingEnabled(true);
+                .withEncryptionCiphers(SMB3EncryptionCipher.AES_128_GCM, SMB3EncryptionCipher.AES_256_GCM, SMB3EncryptionCipher.AES_128_CCM, SMB3EncryptionCipher.AES_256_CCM)
+                .withCompression(DEFAULT_COMPRESSION_THRESHOLD)
+                .withSigningAlgorithms(SMB2SigningAlgorithm.AES_GMAC, SMB2SigningAlgorithm.AES_CMAC)
+                .withMultiChannel(1)
+                .withMaxOutstandingReads(DEFAULT_MAX_OUTSTANDING_READS)
+                .withReadAhead(1)
+                .withWriteBehind(1)
+                .withDirectoryLeasingEnabled(true)
+                .withFileLeasingEnabled(false)
+                .withFileCacheSize(DEFAULT_FILE_CACHE_SIZE)
+                .withMetadataCache(0, 0, TimeUnit.MILLISECONDS)
+                .withDurableHandlesEnabled(false)
+                .withDurableHandleTimeout(0, TimeUnit.MILLISECONDS)
+                .withMaxConnectionsPerHost(1)
+                .withConnectionIdleTimeout(0, TimeUnit.MILLISECONDS)
+                .withPacketWorkerThreads(0);
 
         return b;
     }
@@ -151,6 +202,9 @@ public final class SmbConfig {
         dialects = EnumSet.noneOf(SMB2Dialect.class);
         random = new SecureRandom();
         authenticators = new ArrayList<>();
+        compressionAlgorithms = new ArrayList<>();
+        signingAlgorithms = new ArrayList<>();
+        encryptionCiphers = new ArrayList<>();
     }
 
     private SmbConfig(SmbConfig other) {
@@ -175,8 +229,28 @@ public final class SmbConfig {
         useMultiProtocolNegotiate = other.useMultiProtocolNegotiate;
         clientGSSContextConfig = other.clientGSSContextConfig;
         encryptData = other.encryptData;
+        encryptionCiphers.addAll(other.encryptionCiphers);
         directoryLeasingEnabled = other.directoryLeasingEnabled;
+        fileLeasingEnabled = other.fileLeasingEnabled;
+        fileCacheSize = other.fileCacheSize;
+        metadataCacheSize = other.metadataCacheSize;
+        metadataCacheTtl = other.metadataCacheTtl;
+        durableHandlesEnabled = other.durableHandlesEnabled;
+        durableHandleTimeout = other.durableHandleTimeout;
+        maxConnectionsPerHost = other.maxConnectionsPerHost;
+        connectionIdleTimeout = other.connectionIdleTimeout;
+        packetWorkerThreads = other.packetWorkerThreads;
         ntlmConfig = other.ntlmConfig;
+        bufferPool = other.bufferPool;
+        maxWriteBatchSize = other.maxWriteBatchSize;
+        maxWriteBatchDelay = other.maxWriteBatchDelay;
+        compressionAlgorithms.addAll(other.compressionAlgorithms);
+        signingAlgorithms.addAll(other.signingAlgorithms);
+        compressionThreshold = other.compressionThreshold;
+        maxChannels = other.maxChannels;
+        maxOutstandingReads = other.maxOutstandingReads;
+        readAhead = other.readAhead;
+        writeBehind = other.writeBehind;
     }
 
     public Random getRandomProvider() {
@@ -257,6 +331,77 @@ public final class SmbConfig {
         return soTimeout;
     }
 
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * @return The compression algorithms offered to an SMB 3.1.1 server, in order of preference. Empty if compression
+     * is not negotiated.
+     */
+    public List<SMB3CompressionAlgorithm> getCompressionAlgorithms() {
+        return compressionAlgorithms;
+    }
+
+    /**
+     * @return The signing algorithms offered to an SMB 3.1.1 server, in order of preference. Empty if AES-CMAC is
+     * always used.
+     */
+    public List<SMB2SigningAlgorithm> getSigningAlgorithms() {
+        return signingAlgorithms;
+    }
+
+    /**
+     * @return The minimum payload size of a WRITE request before compression is attempted.
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * @return The maximum number of channels (connections) per session, 1 if multichannel is disabled.
+     */
+    public int getMaxChannels() {
+        return maxChannels;
+    }
+
+    public boolean isMultiChannelEnabled() {
+        return maxChannels > 1;
+    }
+
+    /**
+     * @return The maximum number of READ requests that a single read of a file keeps outstanding.
+     */
+    public int getMaxOutstandingReads() {
+        return maxOutstandingReads;
+    }
+
+    /**
+     * @return The number of READ requests a file input stream keeps outstanding ahead of the data that was read, or
+     * {@link #READ_AHEAD_AUTO}.
+     */
+    public int getReadAhead() {
+        return readAhead;
+    }
+
+    /**
+     * @return The number of WRITE requests a file output stream keeps outstanding while accepting more data.
+     */
+    public int getWriteBehind() {
+        return writeBehind;
+    }
+
+    public int getMaxWriteBatchSize() {
+        return maxWriteBatchSize;
+    }
+
+    /**
+     * @return The maximum write batch delay in nanoseconds.
+     */
+    public long getMaxWriteBatchDelay() {
+        return maxWriteBatchDelay;
+    }
+
     public SocketFactory getSocketFactory() {
         return socketFactory;
     }
@@ -269,10 +414,66 @@ public final class SmbConfig {
         return encryptData;
     }
 
+    /**
+     * @return The encryption ciphers offered to an SMB 3.1.1 server, in order of preference.
+     */
+    public List<SMB3EncryptionCipher> getEncryptionCiphers() {
+        return encryptionCiphers;
+    }
+
     public boolean isDirectoryLeasingEnabled() {
         return directoryLeasingEnabled;
     }
 
+    public boolean isFileLeasingEnabled() {
+        return fileLeasingEnabled;
+    }
+
+    public int getFileCacheSize() {
+        return fileCacheSize;
+    }
+
+    public int getMetadataCacheSize() {
+        return metadataCacheSize;
+    }
+
+    /**
+     * @return the time to live of metadata cache entries in nanoseconds
+     */
+    public long getMetadataCacheTtl() {
+        return metadataCacheTtl;
+    }
+
+    public boolean isDurableHandlesEnabled() {
+        return durableHandlesEnabled;
+    }
+
+    /**
+     * @return the requested durable handle timeout in milliseconds, 0 lets the server choose
+     */
+    public long getDurableHandleTimeout() {
+        return durableHandleTimeout;
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * @return how long a connection that is no longer used is kept open for reuse, in milliseconds
+     */
+    public long getConnectionIdleTimeout() {
+        return connectionIdleTimeout;
+    }
+
+    /**
+     * @return the number of threads per connection that decrypt and verify received packets, 0 if this is done on the
+     * transport's read thread
+     */
+    public int getPacketWorkerThreads() {
+        return packetWorkerThreads;
+    }
+
     /**
      * Get the work station name to be used in the NTLM authentication.
      *
@@ -297,6 +498,9 @@ public final class SmbConfig {
         if (isEncryptData()) {
             set.add(SMB2GlobalCapability.SMB2_GLOBAL_CAP_ENCRYPTION);
         }
+        if (isMultiChannelEnabled()) {
+            set.add(SMB2GlobalCapability.SMB2_GLOBAL_CAP_MULTI_CHANNEL);
+        }
         if (isDirectoryLeasingEnabled()) {
             // A server (e.g. Samba, Windows) only echoes the leasing capabilities in its
             // NEGOTIATE response -- and only grants leases -- when the client advertises
@@ -304,6 +508,12 @@ public final class SmbConfig {
             set.add(SMB2GlobalCapability.SMB2_GLOBAL_CAP_LEASING);
             set.add(SMB2GlobalCapability.SMB2_GLOBAL_CAP_DIRECTORY_LEASING);
         }
+        if (isFileLeasingEnabled()) {
+            set.add(SMB2GlobalCapability.SMB2_GLOBAL_CAP_LEASING);
+        }
+        if (isDurableHandlesEnabled()) {
+            set.add(SMB2GlobalCapability.SMB2_GLOBAL_CAP_PERSISTENT_HANDLES);
+        }
         return set;
     }
 
@@ -481,6 +691,142 @@ public final class SmbConfig {
             return this;
         }
 
+        /**
+         * Set the pool from which the transports take their receive buffers. A pooled buffer is released as soon as
+         * the received packet has been handled, so the pool can be shared by all connections using this config.
+         */
+        public Builder withBufferPool(BufferPool bufferPool) {
+            if (bufferPool == null) {
+                throw new IllegalArgumentException("Buffer pool may not be null");
+            }
+            config.bufferPool = bufferPool;
+            return this;
+        }
+
+        /**
+         * Configure how the {@link AsyncDirectTcpTransport} batches the packets waiting to be written into a single
+         * gathering write.
+         *
+         * @param maxBatchSize The maximum number of packets per write.
+         * @param maxDelay     How long a packet may be held back to wait for other packets to join its batch, 0 (the
+         *                     default) only batches the packets that queue up while a previous write is in progress.
+         */
+        public Builder withWriteBatching(int maxBatchSize, long maxDelay, TimeUnit maxDelayUnit) {
+            if (maxBatchSize < 1 || maxBatchSize > AsyncDirectTcpTransport.MAX_WRITE_BATCH_SIZE) {
+                throw new IllegalArgumentException("Write batch size should be between 1 and " + AsyncDirectTcpTransport.MAX_WRITE_BATCH_SIZE);
+            }
+            if (maxDelay < 0) {
+                throw new IllegalArgumentException("Write batch delay should be either 0 (no delay) or a positive value");
+            }
+            config.maxWriteBatchSize = maxBatchSize;
+            config.maxWriteBatchDelay = maxDelayUnit.toNanos(maxDelay);
+            return this;
+        }
+
+        /**
+         * Negotiate SMB 3.1.1 compression with the given algorithms, in order of preference. If negotiated, WRITE
+         * requests with a payload of at least {@code threshold} bytes are compressed with the first of the algorithms
+         * the server supports (if that makes them smaller), and READ responses are requested to be compressed.
+         * {@link SMB3CompressionAlgorithm#PATTERN_V1} can be added to compress runs of a repeated byte at the start
+         * and end of the payload.
+         * <p>
+         * Compression is off by default, call without algorithms to turn it off again.
+         */
+        public Builder withCompression(int threshold, SMB3CompressionAlgorithm... algorithms) {
+            if (threshold < 0) {
+                throw new IllegalArgumentException("Compression threshold should be 0 or more");
+            }
+            List<SMB3CompressionAlgorithm> list = Arrays.asList(algorithms);
+            if (list.contains(null) || list.contains(SMB3CompressionAlgorithm.NONE)) {
+                throw new IllegalArgumentException("Compression algorithms may not be null or NONE");
+            }
+            config.compressionAlgorithms.clear();
+            config.compressionAlgorithms.addAll(list);
+            config.compressionThreshold = threshold;
+            return this;
+        }
+
+        /**
+         * The signing algorithms to offer to an SMB 3.1.1 server, in order of preference. The server picks one of
+         * them, or signs with AES-CMAC if it does not support the SMB2_SIGNING_CAPABILITIES negotiate context. SMB
+         * 3.0.x always signs with AES-CMAC and SMB 2.x with HMAC-SHA256.
+         * <p>
+         * Defaults to AES-GMAC followed by AES-CMAC. AES-GMAC is much cheaper on large READ and WRITE payloads when
+         * the CPU has AES and carry-less multiplication instructions. Call without algorithms to not send the
+         * negotiate context.
+         */
+        public Builder withSigningAlgorithms(SMB2SigningAlgorithm... algorithms) {
+            List<SMB2SigningAlgorithm> list = Arrays.asList(algorithms);
+            if (list.contains(null)) {
+                throw new IllegalArgumentException("Signing algorithms may not be null");
+            }
+            config.signingAlgorithms.clear();
+            config.signingAlgorithms.addAll(list);
+            return this;
+        }
+
+        /**
+         * Use SMB 3.x multichannel: after authenticating, the network interfaces of the server are queried and up to
+         * {@code maxChannels - 1} additional connections are bound to the session. READ requests are spread over all
+         * channels of the session and are sent again on another channel if theirs drops. WRITE requests, compounded
+         * requests and all other requests are sent on the connection the session was established on.
+         * <p>
+         * The default of 1 uses a single connection per session.
+         */
+        public Builder withMultiChannel(int maxChannels) {
+            if (maxChannels < 1) {
+                throw new IllegalArgumentException("Maximum number of channels should be at least 1");
+            }
+            config.maxChannels = maxChannels;
+            return this;
+        }
+
+        /**
+         * Reads of a file that are larger than the read buffer size are split into READ requests, of which up to
+         * {@code maxOutstandingReads} are sent before waiting for the first response. Requests that do not fit in the
+         * credits granted by the server wait until more credits are granted.
+         * <p>
+         * The default is 8, 1 sends the READ requests one after the other.
+         */
+        public Builder withMaxOutstandingReads(int maxOutstandingReads) {
+            if (maxOutstandingReads < 1) {
+                throw new IllegalArgumentException("Maximum number of outstanding reads should be at least 1");
+            }
+            config.maxOutstandingReads = maxOutstandingReads;
+            return this;
+        }
+
+        /**
+         * The number of READ requests of the read buffer size that the {@link java.io.InputStream} of a file keeps
+         * outstanding ahead of the data that was read. A single stream is otherwise limited to one read buffer per
+         * round trip.
+         * <p>
+         * With {@link SmbConfig#READ_AHEAD_AUTO} the window grows every time the reader has to wait for data, until it
+         * covers the bandwidth-delay product of the connection. The default of 1 prefetches the next read buffer only.
+         */
+        public Builder withReadAhead(int readAhead) {
+            if (readAhead < 0) {
+                throw new IllegalArgumentException("Read ahead should be READ_AHEAD_AUTO or at least 1 request");
+            }
+            config.readAhead = readAhead;
+            return this;
+        }
+
+        /**
+         * The number of WRITE requests of the write buffer size that the {@link java.io.OutputStream} of a file keeps
+         * outstanding while it accepts more data, each with a buffer of its own. A failed WRITE is thrown from the next
+         * write, flush or close of the stream, and a flush waits for all outstanding WRITEs.
+         * <p>
+         * The default of 1 waits for the response to every WRITE before accepting more data.
+         */
+        public Builder withWriteBehind(int writeBehind) {
+            if (writeBehind < 1) {
+                throw new IllegalArgumentException("Write behind should be at least 1 request");
+            }
+            config.writeBehind = writeBehind;
+            return this;
+        }
+
         public SmbConfig build() {
             if (config.dialects.isEmpty()) {
                 throw new IllegalStateException("At least one SMB dialect should be specified");
@@ -498,6 +844,18 @@ public final class SmbConfig {
                 throw new IllegalStateException("If encryption is enabled, at least one dialect should be SMB3.x compatible");
             }
 
+            if (!config.compressionAlgorithms.isEmpty() && !config.dialects.contains(SMB_3_1_1)) {
+                throw new IllegalStateException("If compression is enabled, the SMB 3.1.1 dialect should be supported");
+            }
+
+            if (!config.compressionAlgorithms.isEmpty() && EnumSet.copyOf(config.compressionAlgorithms).equals(EnumSet.of(SMB3CompressionAlgorithm.PATTERN_V1))) {
+                throw new IllegalStateException("Compression needs at least one compression algorithm besides PATTERN_V1");
+            }
+
+            if (config.maxChannels > 1 && !SMB2Dialect.supportsSmb3x(config.dialects)) {
+                throw new IllegalStateException("If multichannel is enabled, at least one dialect should be SMB3.x compatible");
+            }
+
             config.ntlmConfig = ntlmConfigBuilder.build();
 
             return new SmbConfig(config);
@@ -518,6 +876,120 @@ public final class SmbConfig {
             return this;
         }
 
+        /**
+         * Whether {@link com.hierynomus.smbj.share.DiskShare#openFile} requests a read/write/handle lease on SMB3
+         * dialects. While the server grants read caching, the positional reads of the file are served from a local
+         * cache; while it grants write caching, positional writes are buffered in that cache until the file is
+         * flushed or closed, or the lease is broken. Defaults to {@code false}.
+         */
+        public Builder withFileLeasingEnabled(boolean fileLeasingEnabled) {
+            config.fileLeasingEnabled = fileLeasingEnabled;
+            return this;
+        }
+
+        /**
+         * The number of bytes of file data that is cached per leased file. Defaults to 4 MiB.
+         */
+        public Builder withFileCacheSize(int fileCacheSize) {
+            if (fileCacheSize < 1) {
+                throw new IllegalArgumentException("File cache size should be at least 1 byte");
+            }
+            config.fileCacheSize = fileCacheSize;
+            return this;
+        }
+
+        /**
+         * Cache the file information that {@link com.hierynomus.smbj.share.DiskShare#getFileInformation(String, Class)}
+         * queries, per share and path. An entry is served until the read/handle lease on its parent directory is
+         * broken if one was held when it was queried (see {@link #withDirectoryLeasingEnabled(boolean)}), and otherwise
+         * until its time to live expires. Writes, renames and deletes through the same share drop the entries of the
+         * path.
+         *
+         * @param maxEntries the maximum number of entries per share, 0 (the default) disables the cache
+         * @param ttl        how long an entry without a directory lease is served, 0 only caches entries under a lease
+         */
+        public Builder withMetadataCache(int maxEntries, long ttl, TimeUnit ttlUnit) {
+            if (maxEntries < 0) {
+                throw new IllegalArgumentException("Metadata cache size should be either 0 (disabled) or a positive value");
+            }
+            if (ttl < 0) {
+                throw new IllegalArgumentException("Metadata cache time to live should be either 0 or a positive value");
+            }
+            config.metadataCacheSize = maxEntries;
+            config.metadataCacheTtl = ttlUnit.toNanos(ttl);
+            return this;
+        }
+
+        /**
+         * Whether {@link com.hierynomus.smbj.share.DiskShare#openFile} requests a durable handle (DH2Q) on SMB3
+         * dialects. When the connection of a share with durable handles is lost, the share reconnects to the server,
+         * authenticates again, reclaims its durable handles and sends the reads and writes that were in flight again.
+         * To send a write again, the share holds on to its data until the write completes: data that is already in
+         * memory (a {@code byte[]} or {@link java.nio.ByteBuffer}) is referenced, not copied, and must not be modified
+         * until then, any other data (e.g. from a stream or file) is read into a buffer of up to the write buffer size.
+         * A server only grants a durable handle together with a handle lease (see
+         * {@link #withFileLeasingEnabled(boolean)}), or as a persistent handle on a continuously available share.
+         * Defaults to {@code false}.
+         */
+        public Builder withDurableHandlesEnabled(boolean durableHandlesEnabled) {
+            config.durableHandlesEnabled = durableHandlesEnabled;
+            return this;
+        }
+
+        /**
+         * How long the server should keep a durable handle after the connection is lost, 0 (the default) lets the
+         * server choose.
+         */
+        public Builder withDurableHandleTimeout(long timeout, TimeUnit timeoutUnit) {
+            if (timeout < 0) {
+                throw new IllegalArgumentException("Durable handle timeout should be either 0 or a positive value");
+            }
+            config.durableHandleTimeout = timeoutUnit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * The maximum number of connections that {@link com.hierynomus.smbj.SMBClient#connect(String, int)} opens to
+         * the same host and port. A new connection is opened while all connections to the host have requests pending,
+         * otherwise the least loaded connection is shared. Defaults to 1, which shares one connection per host.
+         */
+        public Builder withMaxConnectionsPerHost(int maxConnectionsPerHost) {
+            if (maxConnectionsPerHost < 1) {
+                throw new IllegalArgumentException("Max connections per host should be at least 1");
+            }
+            config.maxConnectionsPerHost = maxConnectionsPerHost;
+            return this;
+        }
+
+        /**
+         * How long a connection is kept open after its last user closed it, so that the next
+         * {@link com.hierynomus.smbj.SMBClient#connect(String, int)} to the same host can reuse it without a new
+         * handshake. Idle connections are closed once this expires. Defaults to 0, which closes a connection as soon
+         * as its last user closed it.
+         */
+        public Builder withConnectionIdleTimeout(long idleTimeout, TimeUnit idleTimeoutUnit) {
+            if (idleTimeout < 0) {
+                throw new IllegalArgumentException("Connection idle timeout should be either 0 or a positive value");
+            }
+            config.connectionIdleTimeout = idleTimeoutUnit.toMillis(idleTimeout);
+            return this;
+        }
+
+        /**
+         * The number of threads per connection that decrypt, decompress and verify the signature of received packets,
+         * so that the transport's read thread can go on reading while this is done. Responses are still processed in
+         * the order in which they were received. Defaults to 0, which does all of this on the read thread. Recommended
+         * with the {@link com.hierynomus.smbj.transport.tcp.nio.NioSelectorTransportFactory NIO transport}, whose read
+         * thread is shared by all of its connections.
+         */
+        public Builder withPacketWorkerThreads(int packetWorkerThreads) {
+            if (packetWorkerThreads < 0) {
+                throw new IllegalArgumentException("Packet worker threads should be either 0 or a positive value");
+            }
+            config.packetWorkerThreads = packetWorkerThreads;
+            return this;
+        }
+
         public Builder withMultiProtocolNegotiate(boolean useMultiProtocolNegotiate) {
             config.useMultiProtocolNegotiate = useMultiProtocolNegotiate;
             return this;
@@ -531,6 +1003,24 @@ public final class SmbConfig {
             return this;
         }
 
+        /**
+         * The encryption ciphers to offer to an SMB 3.1.1 server, in order of preference. SMB 3.0.x always encrypts
+         * with AES-128-CCM.
+         * <p>
+         * Defaults to AES-128-GCM, AES-256-GCM, AES-128-CCM and AES-256-CCM. The GCM ciphers come first because CCM
+         * costs about twice the CPU per encrypted byte. To require AES-256, offer only
+         * {@link SMB3EncryptionCipher#AES_256_GCM} and {@link SMB3EncryptionCipher#AES_256_CCM}.
+         */
+        public Builder withEncryptionCiphers(SMB3EncryptionCipher... ciphers) {
+            List<SMB3EncryptionCipher> list = Arrays.asList(ciphers);
+            if (list.isEmpty() || list.contains(null)) {
+                throw new IllegalArgumentException("Encryption ciphers should contain at least one cipher, and may not contain null");
+            }
+            config.encryptionCiphers.clear();
+            config.encryptionCiphers.addAll(list);
+            return this;
+        }
+
         public Builder withEncryptData(boolean encryptData) {
             config.encryptData = encryptData;
             return this;
@@ -24,6 +24,7 @@ import com.hierynomus.spnego.SpnegoToken;
 public class AuthenticateResponse {
     private SpnegoToken negToken;
     private byte[] sessionKey;
+    private byte[] fullSessionKey;
     private WindowsVersion windowsVersion;
     private String netBiosName;
     private Set<NtlmNegotiateFlag> negotiateFlags;
@@ -59,6 +60,18 @@ public class AuthenticateResponse {
         this.sessionKey = sessionKey;
     }
 
+    /**
+     * @return The cryptographic key of the GSS context as it was negotiated, before it was truncated or padded to the
+     * 16 byte session key. Falls back to the session key when the mechanism did not provide a longer key.
+     */
+    public byte[] getFullSessionKey() {
+        return fullSessionKey != null ? fullSessionKey : sessionKey;
+    }
+
+    public void setFullSessionKey(byte[] fullSessionKey) {
+        this.fullSessionKey = fullSessionKey;
+    }
+
     public String getNetBiosName() {
         return netBiosName;
     }
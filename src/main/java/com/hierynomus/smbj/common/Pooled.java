@@ -30,10 +30,22 @@ public class Pooled<A extends Pooled<A>> {
      */
     @SuppressWarnings("unchecked")
     public A lease() {
-        if (leases.getAndIncrement() > 0) {
-            return (A) this;
-        }
-        return null;
+        int current;
+        do {
+            current = leases.get();
+            if (current <= 0) {
+                return null;
+            }
+        } while (!leases.compareAndSet(current, current + 1));
+        return (A) this;
+    }
+
+    /**
+     * Takes the first lease again on an object that was released by all its users, but was kept to be reused.
+     * @return <code>true</code> if the object had no outstanding leases and is leased now
+     */
+    protected boolean revive() {
+        return leases.compareAndSet(0, 1);
     }
 
     /**
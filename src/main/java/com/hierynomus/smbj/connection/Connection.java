@@ -21,10 +21,16 @@ import static java.lang.String.format;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.util.UUID;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.hierynomus.mssmb.SMB1PacketFactory;
 import com.hierynomus.mssmb2.*;
@@ -43,8 +49,10 @@ import com.hierynomus.smbj.SMBClient;
 import com.hierynomus.smbj.SmbConfig;
 import com.hierynomus.smbj.auth.AuthenticationContext;
 import com.hierynomus.smbj.common.Pooled;
+import com.hierynomus.smbj.common.SMBRuntimeException;
 import com.hierynomus.smbj.connection.packet.DeadLetterPacketHandler;
 import com.hierynomus.smbj.connection.packet.IncomingPacketHandler;
+import com.hierynomus.smbj.connection.packet.OffloadingPacketHandler;
 import com.hierynomus.smbj.connection.packet.SMB1PacketHandler;
 import com.hierynomus.smbj.connection.packet.SMB2AsyncResponsePacketHandler;
 import com.hierynomus.smbj.connection.packet.SMB2CompoundedPacketHandler;
@@ -53,6 +61,7 @@ import com.hierynomus.smbj.connection.packet.SMB2IsOutstandingPacketHandler;
 import com.hierynomus.smbj.connection.packet.SMB2LeaseBreakPacketHandler;
 import com.hierynomus.smbj.connection.packet.SMB2ProcessResponsePacketHandler;
 import com.hierynomus.smbj.connection.packet.SMB2SignatureVerificationPacketHandler;
+import com.hierynomus.smbj.connection.packet.SMB3DecompressingPacketHandler;
 import com.hierynomus.smbj.connection.packet.SMB3DecryptingPacketHandler;
 import com.hierynomus.smbj.event.ConnectionClosed;
 import com.hierynomus.smbj.event.SMBEventBus;
@@ -61,6 +70,7 @@ import com.hierynomus.smbj.paths.DFSPathResolver;
 import com.hierynomus.smbj.paths.PathResolver;
 import com.hierynomus.smbj.paths.SymlinkPathResolver;
 import com.hierynomus.smbj.server.ServerList;
+import com.hierynomus.smbj.session.Channel;
 import com.hierynomus.smbj.session.Session;
 
 import org.slf4j.Logger;
@@ -77,11 +87,12 @@ public class Connection extends Pooled<Connection> implements Closeable, PacketR
     private IncomingPacketHandler packetHandlerChain;
 
     private ConnectionContext connectionContext;
-    private final LeaseManager leaseManager = new LeaseManager();
+    private final LeaseManager leaseManager;
     private SessionTable sessionTable = new SessionTable();
     private SessionTable preauthSessionTable = new SessionTable();
     OutstandingRequests outstandingRequests = new OutstandingRequests();
     SequenceWindow sequenceWindow;
+    CreditScheduler creditScheduler;
     private SMB2MessageConverter messageConverter = new SMB2MessageConverter();
     private PathResolver pathResolver;
 
@@ -90,6 +101,11 @@ public class Connection extends Pooled<Connection> implements Closeable, PacketR
 
     private Signatory signatory;
     private PacketEncryptor encryptor;
+    private PacketCompressor compressor;
+    // Decrypts and verifies received packets if configured, otherwise that is done on the transport's read thread
+    private ExecutorService packetWorkers;
+    // Sends the requests that were queued for credits, off the transport's read thread
+    private ExecutorService creditSender;
 
     public SMBClient getClient() {
         return client;
@@ -98,7 +114,11 @@ public class Connection extends Pooled<Connection> implements Closeable, PacketR
     private SmbConfig config;
     TransportLayer<SMBPacket<?, ?>> transport;
     private final SMBEventBus bus;
-    private final ReentrantLock lock = new ReentrantLock();
+    // The connection this connection is an additional channel of, or null
+    private final Connection primary;
+    private final List<Connection> channelConnections = new CopyOnWriteArrayList<>();
+    // The pool this connection was opened by, or null
+    volatile ConnectionPool pool;
 
     public Connection(SmbConfig config, SMBClient client, SMBEventBus bus, ServerList serverList) {
         this.config = config;
@@ -106,12 +126,37 @@ public class Connection extends Pooled<Connection> implements Closeable, PacketR
         this.transport = config.getTransportLayerFactory().createTransportLayer(new PacketHandlers<>(new SMBPacketSerializer(), this, converter), config);
         this.bus = bus;
         this.serverList = serverList;
+        this.leaseManager = new LeaseManager();
+        this.primary = null;
+        init();
+    }
+
+    /**
+     * A connection that is bound as an additional channel to the sessions of {@code primary}. It shares the lease
+     * manager of the primary connection, but has its own event bus, so that closing it is not seen as the primary
+     * connection closing.
+     */
+    private Connection(Connection primary, SmbConfig config) {
+        this.config = config;
+        this.client = primary.client;
+        this.transport = config.getTransportLayerFactory().createTransportLayer(new PacketHandlers<>(new SMBPacketSerializer(), this, converter), config);
+        this.bus = new SMBEventBus();
+        this.serverList = new ServerList();
+        this.leaseManager = primary.leaseManager;
+        this.primary = primary;
         init();
     }
 
     private void init() {
         bus.subscribe(this);
         this.sequenceWindow = new SequenceWindow();
+        this.creditSender = createWorkers("smbj-credit-sender", 1);
+        this.creditScheduler = new CreditScheduler(sequenceWindow, outstandingRequests, new CreditScheduler.Sender() {
+            @Override
+            public void send(SMB2Packet packet) throws TransportException {
+                transport.write(packet);
+            }
+        }, creditSender);
         if (config.isSigningEnabled()) {
             this.signatory = new PacketSignatory(config.getSecurityProvider());
         } else {
@@ -119,16 +164,51 @@ public class Connection extends Pooled<Connection> implements Closeable, PacketR
             this.signatory = new NoSignatory();
         }
         this.encryptor = new PacketEncryptor(config.getSecurityProvider());
-
-        this.packetHandlerChain = new SMB3DecryptingPacketHandler(sessionTable, encryptor).setNext(
-            new SMB2CompoundedPacketHandler().setNext(
+        this.compressor = new PacketCompressor(config);
+
+        if (config.getPacketWorkerThreads() > 0) {
+            this.packetWorkers = createWorkers("smbj-packet-worker", config.getPacketWorkerThreads());
+            OffloadingPacketHandler offloadingHandler = new OffloadingPacketHandler(packetWorkers, converter, config.getBufferPool(), this);
+            this.packetHandlerChain = offloadingHandler.setWorkerChain(
+                new SMB3DecryptingPacketHandler(sessionTable, encryptor),
+                new SMB3DecompressingPacketHandler(compressor),
+                new SMB2CompoundedPacketHandler(),
+                new SMB2SignatureVerificationPacketHandler(this, sessionTable, signatory)
+            ).setNext(
                 new SMB2IsOutstandingPacketHandler(outstandingRequests).setNext(
                     new SMB2LeaseBreakPacketHandler(leaseManager).setNext(
-                    new SMB2SignatureVerificationPacketHandler(sessionTable, signatory).setNext(
-                        new SMB2CreditGrantingPacketHandler(sequenceWindow).setNext(
-                            new SMB2AsyncResponsePacketHandler(outstandingRequests).setNext(
-                                new SMB2ProcessResponsePacketHandler(messageConverter, outstandingRequests).setNext(
-                                    new SMB1PacketHandler().setNext(new DeadLetterPacketHandler())))))))));
+                        responseHandlers())));
+        } else {
+            this.packetHandlerChain = new SMB3DecryptingPacketHandler(sessionTable, encryptor).setNext(
+                new SMB3DecompressingPacketHandler(compressor).setNext(
+                new SMB2CompoundedPacketHandler().setNext(
+                    new SMB2IsOutstandingPacketHandler(outstandingRequests).setNext(
+                        new SMB2LeaseBreakPacketHandler(leaseManager).setNext(
+                        new SMB2SignatureVerificationPacketHandler(this, sessionTable, signatory).setNext(
+                            responseHandlers()))))));
+        }
+    }
+
+    private IncomingPacketHandler responseHandlers() {
+        return new SMB2CreditGrantingPacketHandler(creditScheduler).setNext(
+            new SMB2AsyncResponsePacketHandler(outstandingRequests).setNext(
+                new SMB2ProcessResponsePacketHandler(messageConverter, outstandingRequests).setNext(
+                    new SMB1PacketHandler().setNext(new DeadLetterPacketHandler()))));
+    }
+
+    private static ThreadPoolExecutor createWorkers(final String name, int threads) {
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        workers.allowCoreThreadTimeOut(true);
+        return workers;
     }
 
     public Connection(Connection connection) {
@@ -137,6 +217,8 @@ public class Connection extends Pooled<Connection> implements Closeable, PacketR
         this.transport = connection.transport;
         this.bus = connection.bus;
         this.serverList = connection.serverList;
+        this.leaseManager = new LeaseManager();
+        this.primary = null;
         init();
     }
 
@@ -148,6 +230,7 @@ public class Connection extends Pooled<Connection> implements Closeable, PacketR
         this.connectionContext = new ConnectionContext(config.getClientGuid(), hostname, port, config);
         new SMBProtocolNegotiator(this, config, connectionContext).negotiateDialect();
         this.encryptor.init(connectionContext);
+        this.compressor.init(connectionContext);
 
         this.pathResolver = new SymlinkPathResolver(PathResolver.LOCAL);
         if (config.isDfsEnabled() && connectionContext.supportsDFS()) {
@@ -178,19 +261,50 @@ public class Connection extends Pooled<Connection> implements Closeable, PacketR
         if (!force && !release()) {
             return;
         }
+        boolean parked = false;
         try {
             if (!force) {
                 for (Session session : sessionTable.activeSessions()) {
+                    if (session.getConnection() != this) {
+                        // Bound to this connection as an additional channel, it is closed by its own connection
+                        continue;
+                    }
                     try {
                         session.close();
                     } catch (IOException e) {
                         logger.warn("Exception while closing session {}", session.getSessionId(), e);
                     }
                 }
+                // Kept open to be reused, the pool closes it once it has been idle for too long
+                parked = pool != null && pool.park(this);
             }
         } finally {
-            leaseManager.close();
+            if (!parked) {
+                disconnect();
+            }
+        }
+    }
+
+    private void disconnect() throws IOException {
+        try {
+            for (Connection channelConnection : channelConnections) {
+                channelConnection.close(true);
+            }
+            channelConnections.clear();
+            if (primary == null) {
+                leaseManager.close();
+            } else {
+                primary.channelConnections.remove(this);
+            }
             transport.disconnect();
+        } finally {
+            if (packetWorkers != null) {
+                packetWorkers.shutdown();
+            }
+            creditSender.shutdown();
+            if (pool != null) {
+                pool.remove(this);
+            }
             logger.info("Closed connection to {}", getRemoteHostname());
             bus.publish(new ConnectionClosed(connectionContext.getServer().getServerName(), connectionContext.getServer().getPort()));
         }
@@ -202,71 +316,130 @@ public class Connection extends Pooled<Connection> implements Closeable, PacketR
      * @return a (new) Session that is authenticated for the user.
      */
     public Session authenticate(AuthenticationContext authContext) {
-        return new SMBSessionBuilder(this, config, new SMBSessionBuilder.SessionFactory() {
+        return authenticate(authContext, 0L);
+    }
+
+    /**
+     * [MS-SMB2] 3.2.4.4 Re-establishing a Durable Open
+     * <p>
+     * Authenticate again with the credentials of {@code previous}, a session that was lost with its connection. The
+     * new session tells the server to tear down the previous one, so that its durable opens can be reclaimed.
+     *
+     * @return a new Session that is authenticated for the user of {@code previous}.
+     */
+    public Session reestablish(Session previous) {
+        return authenticate(previous.getAuthenticationContext(), previous.getSessionId());
+    }
+
+    private Session authenticate(AuthenticationContext authContext, long previousSessionId) {
+        Session session = new SMBSessionBuilder(this, config, new SMBSessionBuilder.SessionFactory() {
             @Override
             public Session createSession(AuthenticationContext context) {
-                return new Session(Connection.this, config, context, bus, pathResolver, signatory, encryptor);
+                return new Session(Connection.this, config, context, bus, pathResolver, signatory, encryptor, compressor);
+            }
+        }).establish(authContext, previousSessionId);
+        if (config.isMultiChannelEnabled() && connectionContext.supportsMultiChannel() && session.getSessionContext().getSigningKey() != null) {
+            try {
+                session.bindChannels();
+            } catch (RuntimeException e) {
+                logger.warn("Could not bind additional channels to session {}, continuing with a single channel: {}", session.getSessionId(), e.getMessage());
+            }
+        }
+        return session;
+    }
+
+    /**
+     * [MS-SMB2] 3.2.4.1.7 Binding a Session to a New Connection
+     * <p>
+     * Connect to the same server at {@code address} and bind {@code session} to the new connection by authenticating
+     * again with the credentials of the session. The new connection must negotiate the same dialect and server GUID.
+     *
+     * @return the new channel of the session
+     * @throws IOException If the connection could not be established
+     */
+    public Channel bindChannel(Session session, String address, int port) throws IOException {
+        if (!connectionContext.supportsMultiChannel()) {
+            throw new SMBRuntimeException(format("Server %s does not support multichannel", getRemoteHostname()));
+        }
+        if (session.getSessionContext().getSigningKey() == null) {
+            throw new SMBRuntimeException(format("Session %d has no signing key and cannot be bound to a new connection", session.getSessionId()));
+        }
+        Connection channelConnection = new Connection(this, config);
+        try {
+            channelConnection.connect(address, port);
+            ConnectionContext channelContext = channelConnection.getConnectionContext();
+            if (channelContext.getNegotiatedProtocol().getDialect() != getNegotiatedProtocol().getDialect()
+                || !channelContext.getServer().getServerGUID().equals(connectionContext.getServer().getServerGUID())) {
+                throw new SMBRuntimeException(format("Connection to %s negotiated %s with server %s, which does not match %s on %s",
+                    address, channelContext.getNegotiatedProtocol().getDialect(), channelContext.getServer().getServerGUID(),
+                    getNegotiatedProtocol().getDialect(), getRemoteHostname()));
             }
-        }).establish(authContext);
+            Channel channel = new SMBSessionBuilder(channelConnection, config, null).bind(session);
+            channelConnections.add(channelConnection);
+            return channel;
+        } catch (IOException | RuntimeException e) {
+            if (channelConnection.getConnectionContext() != null) {
+                channelConnection.close(true);
+            } else {
+                channelConnection.transport.disconnect();
+            }
+            throw e;
+        }
     }
 
     /**
      * send a packet.
+     * <p>
+     * This does not wait for credits: if the server has not granted enough credits yet, the packet is queued and sent
+     * once they are granted.
      *
      * @param packet SMBPacket to send
      * @return a Future to be used to retrieve the response packet
      * @throws TransportException When a transport level error occurred
      */
     public <T extends SMB2Packet> Future<T> send(SMB2Packet packet) throws TransportException {
-        Future<T> f = null;
-        if (!(packet.getPacket() instanceof SMB2Cancel)) {
-            // Need to lock around the sequence window calls to ensure no credits get stolen by another thread
-            lock.lock();
-            try {
-                int availableCredits = sequenceWindow.available();
-                int grantCredits = calculateGrantedCredits(packet, availableCredits);
-                if (availableCredits == 0) {
-                    logger.warn(
-                        "There are no credits left to send {}, will block until there are more credits available.",
-                        packet.getHeader().getMessage());
-                }
-                long[] messageIds = sequenceWindow.get(grantCredits);
-                packet.getHeader().setMessageId(messageIds[0]);
-                packet.getHeader().setCreditRequest(Math.max(SequenceWindow.PREFERRED_MINIMUM_CREDITS - availableCredits - grantCredits,
-                        grantCredits));
-                logger.debug("Granted {} (out of {}) credits to {}", grantCredits, availableCredits, packet);
-            } finally {
-                lock.unlock();
-            }
+        if (packet.getPacket() instanceof SMB2Cancel) {
+            transport.write(packet);
+            return null;
+        }
+        Request request = creditScheduler.send(packet, creditsNeeded(packet));
+        return request.getFuture(new CancelRequest(request, packet.getHeader().getSessionId()));
+    }
 
-            Request request = new Request(packet.getPacket(), packet.getHeader().getMessageId(), UUID.randomUUID());
-            outstandingRequests.registerOutstanding(request);
-            f = request.getFuture(new CancelRequest(request, packet.getHeader().getSessionId()));
+    /**
+     * send a compounded request in a single network send.
+     *
+     * @param packet The {@link SMB2CompoundRequest}, possibly wrapped for encryption
+     * @return a Future per request in the chain to be used to retrieve its response packet
+     * @throws TransportException When a transport level error occurred
+     */
+    public List<Future<SMB2Packet>> sendCompound(SMB2Packet packet) throws TransportException {
+        if (!(packet.getPacket() instanceof SMB2CompoundRequest)) {
+            throw new IllegalArgumentException("Not a compounded request: " + packet);
         }
-        transport.write(packet);
-        return f;
+        List<SMB2Packet> requests = ((SMB2CompoundRequest) packet.getPacket()).getRequests();
+        int[] creditsNeeded = new int[requests.size()];
+        for (int i = 0; i < creditsNeeded.length; i++) {
+            creditsNeeded[i] = creditsNeeded(requests.get(i));
+        }
+        List<Future<SMB2Packet>> futures = new ArrayList<>(requests.size());
+        for (Request request : creditScheduler.send(packet, requests, creditsNeeded)) {
+            futures.add(request.<SMB2Packet>getFuture(new CancelRequest(request, packet.getHeader().getSessionId())));
+        }
+        return futures;
     }
 
     <T extends SMB2Packet> T sendAndReceive(SMB2Packet packet) throws TransportException {
         return Futures.get(this.<T>send(packet), config.getTransactTimeout(), TimeUnit.MILLISECONDS, TransportException.Wrapper);
     }
 
-    private int calculateGrantedCredits(final SMB2Packet packet, final int availableCredits) {
-        final int grantCredits;
-        int maxPayloadSize = packet.getMaxPayloadSize();
-        int creditsNeeded = creditsNeeded(maxPayloadSize);
+    private int creditsNeeded(final SMB2Packet packet) {
+        int creditsNeeded = creditsNeeded(packet.getMaxPayloadSize());
         if (creditsNeeded > 1 && !connectionContext.supportsMultiCredit()) {
             logger.trace("Connection to {} does not support multi-credit requests.", getRemoteHostname());
-            grantCredits = 1;
-        } else if (creditsNeeded < availableCredits) { // Scale the credits dynamically
-            grantCredits = creditsNeeded;
-        } else if (creditsNeeded > 1 && availableCredits > 1) { // creditsNeeded >= availableCredits
-            grantCredits = availableCredits - 1; // Keep 1 credit left for a simple request
-        } else {
-            grantCredits = 1;
+            return 1;
         }
-        packet.setCreditsAssigned(grantCredits);
-        return grantCredits;
+        return creditsNeeded;
     }
 
     /**
@@ -298,9 +471,12 @@ public class Connection extends Pooled<Connection> implements Closeable, PacketR
 
     @Override
     public void handleError(Throwable t) {
+        creditScheduler.clear();
         outstandingRequests.handleError(t);
         try {
-            this.close();
+            // The sessions cannot be logged off anymore; they stay open on the server until they time out, or until a
+            // share reconnects and reclaims its durable handles.
+            this.close(true);
         } catch (Exception e) {
             String exceptionClass = e.getClass().getSimpleName();
             logger.debug("{} while closing connection on error, ignoring: {}", exceptionClass, e.getMessage());
@@ -315,6 +491,26 @@ public class Connection extends Pooled<Connection> implements Closeable, PacketR
         return transport.isConnected();
     }
 
+    @Override
+    protected boolean revive() {
+        // Visible to the connection pool, which takes the idle connections it kept back into use
+        return super.revive();
+    }
+
+    /**
+     * @return The number of requests that wait for a response or for credits on this connection.
+     */
+    public int getLoad() {
+        return outstandingRequests.size() + creditScheduler.getQueuedCredits();
+    }
+
+    /**
+     * @return The number of credits granted by the server that are not yet used.
+     */
+    public int getAvailableCredits() {
+        return creditScheduler.available();
+    }
+
     public ConnectionContext getConnectionContext() {
         return connectionContext;
     }
@@ -347,6 +543,18 @@ public class Connection extends Pooled<Connection> implements Closeable, PacketR
             throw new IOException("Unknown packet format received.");
         }
 
+        @Override
+        public SMBPacketData<?> read(byte[] data, int length) throws Buffer.BufferException, IOException {
+            if (length >= 4) {
+                for (PacketFactory<?> packetFactory : packetFactories) {
+                    if (packetFactory.canHandle(data)) {
+                        return (SMBPacketData<?>) packetFactory.read(data, length);
+                    }
+                }
+            }
+            throw new IOException("Unknown packet format received.");
+        }
+
         @Override
         public boolean canHandle(byte[] data) {
             for (PacketFactory<?> packetFactory : packetFactories) {
@@ -380,13 +588,25 @@ public class Connection extends Pooled<Connection> implements Closeable, PacketR
                 request.getMessageId(),
                 request.getAsyncId());
             try {
-                sessionTable.find(sessionId).send(cancel);
+                sessionTable.find(sessionId).send(Connection.this, cancel);
             } catch (TransportException e) {
                 logger.error("Failed to send {}", cancel);
             }
         }
     }
 
+    Signatory getSignatory() {
+        return signatory;
+    }
+
+    PacketEncryptor getEncryptor() {
+        return encryptor;
+    }
+
+    PacketCompressor getCompressor() {
+        return compressor;
+    }
+
     SessionTable getSessionTable() {
         return sessionTable;
     }
@@ -22,6 +22,7 @@ import java.util.UUID;
 
 import com.hierynomus.mssmb2.SMB2Dialect;
 import com.hierynomus.mssmb2.SMB2GlobalCapability;
+import com.hierynomus.mssmb2.SMB2SigningAlgorithm;
 import com.hierynomus.mssmb2.SMB3CompressionAlgorithm;
 import com.hierynomus.mssmb2.SMB3EncryptionCipher;
 import com.hierynomus.mssmb2.SMB3HashAlgorithm;
@@ -59,7 +60,9 @@ public class ConnectionContext {
     private SMB3HashAlgorithm preauthIntegrityHashId;
     private byte[] preauthIntegrityHashValue;
     private SMB3EncryptionCipher cipherId;
+    private SMB2SigningAlgorithm signingAlgorithmId;
     private Set<SMB3CompressionAlgorithm> compressionIds;
+    private boolean compressionChained;
     // How much the SMB server clock is off from client clock
     private Long timeOffsetMillis;
 
@@ -80,7 +83,9 @@ public class ConnectionContext {
         this.server = negotiationContext.getServer();
         this.negotiatedProtocol = new NegotiatedProtocol(response.getDialect(), response.getMaxTransactSize(), response.getMaxReadSize(), response.getMaxWriteSize(), supportsMultiCredit());
         this.cipherId = negotiationContext.getCipher();
+        this.signingAlgorithmId = negotiationContext.getSigningAlgorithm();
         this.compressionIds = negotiationContext.getCompressionIds();
+        this.compressionChained = negotiationContext.isCompressionChained();
         this.preauthIntegrityHashId = negotiationContext.getPreauthIntegrityHashId();
         this.preauthIntegrityHashValue = negotiationContext.getPreauthIntegrityHashValue() != null ? negotiationContext.getPreauthIntegrityHashValue() : new byte[0];
         timeOffsetMillis = System.currentTimeMillis() - response.getSystemTime().toEpochMillis();
@@ -150,6 +155,13 @@ public class ConnectionContext {
         return cipherId;
     }
 
+    /**
+     * @return The algorithm that signs the messages of this connection, chosen during negotiation.
+     */
+    public SMB2SigningAlgorithm getSigningAlgorithmId() {
+        return signingAlgorithmId;
+    }
+
     public boolean supportsEncryption() {
         SMB2Dialect dialect = negotiatedProtocol.getDialect();
         if (dialect == SMB2Dialect.SMB_3_1_1) {
@@ -246,4 +258,15 @@ public class ConnectionContext {
     public Set<SMB3CompressionAlgorithm> getCompressionIds() {
         return compressionIds;
     }
+
+    /**
+     * @return whether compression was negotiated, so the server may send compressed responses.
+     */
+    public boolean supportsCompression() {
+        return compressionIds != null && !compressionIds.isEmpty();
+    }
+
+    public boolean isCompressionChained() {
+        return compressionChained;
+    }
 }
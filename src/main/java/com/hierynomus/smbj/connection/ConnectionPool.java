@@ -0,0 +1,358 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.connection;
+
+import com.hierynomus.protocol.commons.concurrent.ExceptionWrapper;
+import com.hierynomus.protocol.commons.concurrent.Promise;
+import com.hierynomus.protocol.transport.TransportException;
+import com.hierynomus.smbj.SMBClient;
+import com.hierynomus.smbj.SmbConfig;
+import com.hierynomus.smbj.event.SMBEventBus;
+import com.hierynomus.smbj.server.ServerList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hierynomus.protocol.commons.IOUtils.closeSilently;
+
+/**
+ * The connections an {@link SMBClient} holds to its servers.
+ * <p>
+ * Up to {@link SmbConfig#getMaxConnectionsPerHost()} connections are opened to the same host and port. A
+ * {@link #connect(String, int) connect} shares the least loaded connection, measured by the requests waiting for a
+ * response or for credits, and prefers the connection with the most unused credits when the load is equal. A new
+ * connection is only opened while every connection to the host is busy.
+ * <p>
+ * When {@link SmbConfig#getConnectionIdleTimeout()} is set, a connection that is closed by its last user is kept open
+ * for that long, so that a next connect to the same host does not need a new handshake.
+ */
+public class ConnectionPool implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+    private static final ExceptionWrapper<IOException> CONNECT_FAILED = new ExceptionWrapper<IOException>() {
+        @Override
+        public IOException wrap(Throwable throwable) {
+            if (throwable instanceof IOException) {
+                return (IOException) throwable;
+            }
+            return new TransportException(throwable);
+        }
+    };
+
+    private final SmbConfig config;
+    private final SMBClient client;
+    private final SMBEventBus bus;
+    private final ServerList serverList;
+
+    // Guarded by this
+    private final Map<String, List<Connection>> connections = new HashMap<>();
+    // The connections without users, with the time they were released, guarded by this
+    private final Map<Connection, Long> idle = new LinkedHashMap<>();
+    // The handshakes in flight per host and port, guarded by this
+    private final Map<String, Promise<Connection, IOException>> connecting = new HashMap<>();
+    private ScheduledExecutorService evictor;
+
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    public ConnectionPool(SmbConfig config, SMBClient client, SMBEventBus bus, ServerList serverList) {
+        this.config = config;
+        this.client = client;
+        this.bus = bus;
+        this.serverList = serverList;
+    }
+
+    /**
+     * Lease a connection to the host at <pre>hostname</pre> on the given port, opening a new one if there is no
+     * connection that can be shared.
+     * <p>
+     * The handshake of a new connection runs without holding the pool lock, so connects to different hosts proceed in
+     * parallel. Callers that need a new connection to a host while a handshake to it is already in flight wait for
+     * that handshake and share its connection, or its failure.
+     *
+     * @param hostname The hostname to connect to.
+     * @param port     The port to connect to
+     * @return An established connection, which should be closed by the caller when it is no longer used.
+     * @throws IOException If the connection could not be established.
+     */
+    public Connection connect(String hostname, int port) throws IOException {
+        String key = key(hostname, port);
+        while (true) {
+            Promise<Connection, IOException> handshake;
+            boolean owner = false;
+            synchronized (this) {
+                List<Connection> hostConnections = connections.get(key);
+                if (hostConnections != null) {
+                    Connection connection = lease(hostConnections);
+                    if (connection != null) {
+                        reused.incrementAndGet();
+                        return connection;
+                    }
+                }
+                handshake = connecting.get(key);
+                if (handshake == null) {
+                    handshake = new Promise<>("connect-" + key, CONNECT_FAILED);
+                    connecting.put(key, handshake);
+                    owner = true;
+                }
+            }
+            if (owner) {
+                return open(hostname, port, key, handshake);
+            }
+            Connection connection = handshake.retrieve().lease();
+            if (connection != null) {
+                reused.incrementAndGet();
+                return connection;
+            }
+            // Closed again before we could lease it, start over
+        }
+    }
+
+    private Connection open(String hostname, int port, String key, Promise<Connection, IOException> handshake) throws IOException {
+        Connection connection = new Connection(config, client, bus, serverList);
+        try {
+            connection.connect(hostname, port);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                connecting.remove(key);
+            }
+            handshake.deliverError(e);
+            closeSilently(connection); // Quietly close broken connection.
+            throw e;
+        }
+        connection.pool = this;
+        int count;
+        synchronized (this) {
+            List<Connection> hostConnections = connections.get(key);
+            if (hostConnections == null) {
+                hostConnections = new ArrayList<>();
+                connections.put(key, hostConnections);
+            }
+            hostConnections.add(connection);
+            count = hostConnections.size();
+            connecting.remove(key);
+        }
+        opened.incrementAndGet();
+        handshake.deliver(connection);
+        logger.debug("Opened connection {} of {} to {}", count, config.getMaxConnectionsPerHost(), key);
+        return connection;
+    }
+
+    private Connection lease(List<Connection> hostConnections) {
+        Connection best = null;
+        int live = 0;
+        for (Connection connection : hostConnections) {
+            if (!connection.isConnected()) {
+                continue;
+            }
+            live++;
+            if (idle.containsKey(connection)) {
+                if (connection.revive()) {
+                    idle.remove(connection);
+                    return connection;
+                }
+                continue;
+            }
+            if (best == null || isLessLoaded(connection, best)) {
+                best = connection;
+            }
+        }
+        if (best == null || (best.getLoad() > 0 && live < config.getMaxConnectionsPerHost())) {
+            return null;
+        }
+        // Null when the last user is closing it concurrently
+        return best.lease();
+    }
+
+    private static boolean isLessLoaded(Connection connection, Connection other) {
+        int load = connection.getLoad();
+        int otherLoad = other.getLoad();
+        if (load != otherLoad) {
+            return load < otherLoad;
+        }
+        return connection.getAvailableCredits() > other.getAvailableCredits();
+    }
+
+    /**
+     * Keep a connection that was released by its last user open to be reused.
+     *
+     * @return <code>true</code> if the connection is kept, <code>false</code> if it should be closed.
+     */
+    synchronized boolean park(Connection connection) {
+        long idleTimeout = config.getConnectionIdleTimeout();
+        if (idleTimeout <= 0 || !connection.isConnected() || !contains(connection)) {
+            return false;
+        }
+        idle.put(connection, System.currentTimeMillis());
+        if (evictor == null) {
+            evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "smbj-connection-evictor");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            long period = Math.max(1L, Math.min(idleTimeout / 2, 1000L));
+            evictor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    evictIdle(System.currentTimeMillis());
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+        logger.debug("Keeping idle connection to {} for {} ms", connection.getRemoteHostname(), idleTimeout);
+        return true;
+    }
+
+    /**
+     * Close the connections that have been idle for longer than the idle timeout at <pre>now</pre>.
+     */
+    void evictIdle(long now) {
+        List<Connection> expired = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Map.Entry<Connection, Long>> it = idle.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Connection, Long> entry = it.next();
+                if (now - entry.getValue() >= config.getConnectionIdleTimeout()) {
+                    it.remove();
+                    expired.add(entry.getKey());
+                }
+            }
+        }
+        for (Connection connection : expired) {
+            logger.debug("Closing idle connection to {}", connection.getRemoteHostname());
+            evicted.incrementAndGet();
+            try {
+                connection.close(true);
+            } catch (Exception e) {
+                logger.debug("Error closing idle connection to host {}", connection.getRemoteHostname());
+                logger.debug("Exception was: ", e);
+            }
+        }
+    }
+
+    synchronized void remove(Connection connection) {
+        idle.remove(connection);
+        Iterator<List<Connection>> it = connections.values().iterator();
+        while (it.hasNext()) {
+            List<Connection> hostConnections = it.next();
+            if (hostConnections.remove(connection) && hostConnections.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    private boolean contains(Connection connection) {
+        for (List<Connection> hostConnections : connections.values()) {
+            if (hostConnections.contains(connection)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String key(String hostname, int port) {
+        return hostname + ":" + port;
+    }
+
+    /**
+     * @return The number of open connections, including the idle ones.
+     */
+    public synchronized int getConnectionCount() {
+        int count = 0;
+        for (List<Connection> hostConnections : connections.values()) {
+            count += hostConnections.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of open connections to the host at <pre>hostname</pre> on the given port, including the
+     * idle ones.
+     */
+    public synchronized int getConnectionCount(String hostname, int port) {
+        List<Connection> hostConnections = connections.get(key(hostname, port));
+        return hostConnections == null ? 0 : hostConnections.size();
+    }
+
+    /**
+     * @return The number of connections that are kept open without users.
+     */
+    public synchronized int getIdleConnectionCount() {
+        return idle.size();
+    }
+
+    /**
+     * @return The number of connections opened since this pool was created.
+     */
+    public long getConnectionsOpened() {
+        return opened.get();
+    }
+
+    /**
+     * @return The number of times a connect was served by an already open connection.
+     */
+    public long getConnectionsReused() {
+        return reused.get();
+    }
+
+    /**
+     * @return The number of idle connections that were closed because they exceeded the idle timeout.
+     */
+    public long getConnectionsEvicted() {
+        return evicted.get();
+    }
+
+    /**
+     * Close all connections, without logging off their sessions.
+     */
+    @Override
+    public void close() {
+        List<Connection> all = new ArrayList<>();
+        synchronized (this) {
+            for (List<Connection> hostConnections : connections.values()) {
+                all.addAll(hostConnections);
+            }
+            idle.clear();
+            if (evictor != null) {
+                evictor.shutdownNow();
+                evictor = null;
+            }
+        }
+        for (Connection connection : all) {
+            try {
+                connection.close(true);
+            } catch (Exception e) {
+                logger.debug("Error closing connection to host {}", connection.getRemoteHostname());
+                logger.debug("Exception was: ", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.connection;
+
+import com.hierynomus.mssmb2.SMB2Packet;
+import com.hierynomus.mssmb2.SMB2PacketHeader;
+import com.hierynomus.protocol.transport.TransportException;
+import com.hierynomus.smb.SMBBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * [MS-SMB2] 3.2.4.1.5 / 3.2.4.1.6 Assigns credits and message ids to outgoing requests without blocking the sender.
+ * <p>
+ * A request that fits in the credits granted by the server is sent right away by the calling thread. Otherwise the
+ * sequence numbers are reserved beyond the granted window and the request is queued, after which the calling thread
+ * serializes (and signs or encrypts) it outside of the lock. Queued requests are sent, in message id order, on the
+ * release executor once the missing credits are granted. They are never sent by the thread handling the granting
+ * response, as a blocking transport would then wait on its own read thread, and no thread has to wait for credits
+ * while holding a lock.
+ * <p>
+ * Multi-credit requests (READ, WRITE, ...) are split to fit the available credits: they are charged fewer credits and
+ * carry a correspondingly smaller payload, the reader and writer loops take care of the rest. When the window is
+ * depleted they are charged a single credit.
+ * <p>
+ * The number of credits asked from the server adapts to the depth of the queue: as long as requests have to wait
+ * for credits, the target window grows to cover them, and it slowly shrinks back once the queue stays empty.
+ * <p>
+ * Credits are only granted in responses, so a request that does not fit in the window while no request is in flight
+ * would wait forever. Such a request fails right away instead. Sending an ECHO to ask for credits would not help, as
+ * the ECHO needs a credit itself.
+ */
+public class CreditScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(CreditScheduler.class);
+    static final int MAX_CREDIT_TARGET = 8192;
+
+    interface Sender {
+        void send(SMB2Packet packet) throws TransportException;
+    }
+
+    private final SequenceWindow sequenceWindow;
+    private final OutstandingRequests outstandingRequests;
+    private final Sender sender;
+    private final Executor releaseExecutor;
+    private final Runnable releaseTask = new Runnable() {
+        @Override
+        public void run() {
+            sendReleased();
+        }
+    };
+
+    // Guarded by this
+    private final Queue<QueuedPacket> queue = new ArrayDeque<>();
+    private int queuedCredits;
+    private int queuedRequests;
+    private int creditTarget = SequenceWindow.PREFERRED_MINIMUM_CREDITS;
+    private boolean releasing;
+
+    /**
+     * @param releaseExecutor Sends the queued packets once their credits are granted, at most one task runs at a time
+     */
+    CreditScheduler(SequenceWindow sequenceWindow, OutstandingRequests outstandingRequests, Sender sender, Executor releaseExecutor) {
+        this.sequenceWindow = sequenceWindow;
+        this.outstandingRequests = outstandingRequests;
+        this.sender = sender;
+        this.releaseExecutor = releaseExecutor;
+    }
+
+    /**
+     * Assign credits and a message id to the packet, register it as outstanding and send it as soon as the credits
+     * are granted.
+     *
+     * @param packet        The packet to send
+     * @param creditsNeeded The number of credits the full payload of the packet would need
+     * @return The outstanding request for the packet
+     */
+    Request send(SMB2Packet packet, int creditsNeeded) throws TransportException {
+        return send(packet, Collections.singletonList(packet), new int[]{creditsNeeded}).get(0);
+    }
+
+    /**
+     * Assign credits and consecutive message ids to the requests that are written by the packet, register them as
+     * outstanding and send the packet as soon as the credits for all of them are granted.
+     *
+     * @param packet        The packet to send, which writes all the requests (e.g. a compounded request)
+     * @param requests      The requests in the packet
+     * @param creditsNeeded The number of credits the full payload of each request would need
+     * @return The outstanding requests
+     */
+    List<Request> send(SMB2Packet packet, List<SMB2Packet> requests, int[] creditsNeeded) throws TransportException {
+        List<Request> outstanding = new ArrayList<>(requests.size());
+        QueuedPacket queued;
+        synchronized (this) {
+            long balance = sequenceWindow.balance();
+            int[] credits = new int[requests.size()];
+            int totalCredits = 0;
+            for (int i = 0; i < requests.size(); i++) {
+                credits[i] = creditsFor(creditsNeeded[i], balance - totalCredits);
+                totalCredits += credits[i];
+            }
+            boolean granted = totalCredits <= balance;
+            if (!granted && outstandingRequests.size() <= queuedRequests) {
+                throw new TransportException("Not enough credits (" + Math.max(0, balance) + " available) to send " + packet
+                        + ", and no requests in flight that would grant more");
+            }
+            for (int i = 0; i < requests.size(); i++) {
+                SMB2Packet request = requests.get(i);
+                request.setCreditsAssigned(credits[i]);
+                request.getHeader().setMessageId(sequenceWindow.reserve(credits[i]));
+            }
+            long firstMessageId = requests.get(0).getHeader().getMessageId();
+            if (!granted) {
+                creditTarget = Math.min(MAX_CREDIT_TARGET, Math.max(creditTarget, SequenceWindow.PREFERRED_MINIMUM_CREDITS + 2 * (queuedCredits + totalCredits)));
+            }
+            for (int i = 0; i < requests.size(); i++) {
+                SMB2Packet request = requests.get(i);
+                boolean last = i == requests.size() - 1;
+                request.getHeader().setCreditRequest(last ? creditRequest(request.getCreditsAssigned(), balance - totalCredits) : 0);
+                Request r = new Request(request.getPacket(), request.getHeader().getMessageId());
+                outstandingRequests.registerOutstanding(r);
+                outstanding.add(r);
+            }
+            logger.debug("Assigned {} credits (out of {} available) to {}", totalCredits, Math.max(0, balance), packet);
+
+            if (granted) {
+                queued = null;
+            } else {
+                logger.debug("Not enough credits granted for {}, queueing it behind {} credits", packet, queuedCredits);
+                queued = new QueuedPacket(packet, outstanding, firstMessageId, totalCredits);
+                queue.add(queued);
+                queuedCredits += totalCredits;
+                queuedRequests += outstanding.size();
+            }
+        }
+        if (queued == null) {
+            sender.send(packet);
+            return outstanding;
+        }
+
+        try {
+            queued.serialize();
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                if (queue.remove(queued)) {
+                    queuedCredits -= queued.credits;
+                    queuedRequests -= queued.requests.size();
+                }
+            }
+            for (Request request : outstanding) {
+                outstandingRequests.receivedResponseFor(request.getMessageId());
+            }
+            throw e;
+        }
+        synchronized (this) {
+            queued.serialized = true;
+            scheduleRelease();
+        }
+        return outstanding;
+    }
+
+    /**
+     * Called for every response with the credits it granted, schedules the queued packets that now fit in the window
+     * to be sent on the release executor.
+     */
+    public void creditsGranted(int credits) {
+        synchronized (this) {
+            sequenceWindow.creditsGranted(credits);
+            if (queue.isEmpty()) {
+                // Shrink the target back to the preferred window when no request is waiting for credits.
+                creditTarget = Math.max(SequenceWindow.PREFERRED_MINIMUM_CREDITS, creditTarget - (creditTarget - SequenceWindow.PREFERRED_MINIMUM_CREDITS + 7) / 8);
+                return;
+            }
+            scheduleRelease();
+        }
+    }
+
+    // Guarded by this
+    private void scheduleRelease() {
+        if (releasing || !isReleasable(queue.peek())) {
+            return;
+        }
+        releasing = true;
+        try {
+            releaseExecutor.execute(releaseTask);
+        } catch (RejectedExecutionException e) {
+            // The connection is closing, the queued requests are failed through the OutstandingRequests
+            logger.debug("Not sending the queued packets, the release executor is shut down");
+            releasing = false;
+        }
+    }
+
+    // Guarded by this
+    private boolean isReleasable(QueuedPacket head) {
+        return head != null && head.serialized && sequenceWindow.isGranted(head.messageId, head.credits);
+    }
+
+    /**
+     * Sends the queued packets, in message id order, for as long as the head of the queue is granted and serialized.
+     */
+    private void sendReleased() {
+        while (true) {
+            List<QueuedPacket> released = new ArrayList<>();
+            synchronized (this) {
+                for (QueuedPacket head = queue.peek(); isReleasable(head); head = queue.peek()) {
+                    queue.remove();
+                    queuedCredits -= head.credits;
+                    queuedRequests -= head.requests.size();
+                    released.add(head);
+                }
+                if (released.isEmpty()) {
+                    releasing = false;
+                    return;
+                }
+            }
+            sendQueued(released);
+        }
+    }
+
+    private void sendQueued(List<QueuedPacket> released) {
+        for (QueuedPacket queued : released) {
+            try {
+                sender.send(queued.packet);
+            } catch (TransportException | RuntimeException e) {
+                logger.debug("Failed to send queued {}: {}", queued.packet, e.getMessage());
+                for (Request request : queued.requests) {
+                    outstandingRequests.receivedResponseFor(request.getMessageId());
+                    request.getPromise().deliverError(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The number of granted credits that are not yet used.
+     */
+    public int available() {
+        return sequenceWindow.available();
+    }
+
+    /**
+     * @return The credits of the requests waiting for a grant.
+     */
+    public synchronized int getQueuedCredits() {
+        return queuedCredits;
+    }
+
+    synchronized int getCreditTarget() {
+        return creditTarget;
+    }
+
+    /**
+     * Drop the queued packets, their requests are failed through the {@link OutstandingRequests}.
+     */
+    synchronized void clear() {
+        queue.clear();
+        queuedCredits = 0;
+    }
+
+    /**
+     * [MS-SMB2] 3.1.5.2 Split a multi-credit request to what is available, keeping 1 credit for a simple request.
+     */
+    private static int creditsFor(int creditsNeeded, long balance) {
+        if (creditsNeeded <= 1 || balance <= 1) {
+            return 1;
+        } else if (creditsNeeded < balance) {
+            return creditsNeeded;
+        } else {
+            return (int) balance - 1;
+        }
+    }
+
+    /**
+     * [MS-SMB2] 3.2.4.1.2 Request at least the credits this request consumes, and enough to top up the window to the
+     * current target.
+     */
+    private int creditRequest(int credits, long balanceAfter) {
+        return (int) Math.max(credits, Math.min(MAX_CREDIT_TARGET, creditTarget - balanceAfter));
+    }
+
+    private static class QueuedPacket {
+        private final SerializedPacket packet;
+        private final List<Request> requests;
+        private final long messageId;
+        private final int credits;
+        // Guarded by the scheduler
+        private boolean serialized;
+
+        QueuedPacket(SMB2Packet packet, List<Request> requests, long messageId, int credits) {
+            this.packet = new SerializedPacket(packet);
+            this.requests = requests;
+            this.messageId = messageId;
+            this.credits = credits;
+        }
+
+        void serialize() {
+            packet.serialize();
+        }
+    }
+
+    /**
+     * A packet that is serialized (and signed or encrypted) when it is queued, so that it does not consume its payload
+     * from a {@link com.hierynomus.smbj.io.ByteChunkProvider} after the sender already moved on.
+     */
+    private static class SerializedPacket extends SMB2Packet {
+        private final SMB2Packet packet;
+        private final SMBBuffer serialized = new SMBBuffer();
+
+        SerializedPacket(SMB2Packet packet) {
+            this.packet = packet;
+        }
+
+        void serialize() {
+            serialized.enablePayloadSegments();
+            packet.write(serialized);
+        }
+
+        @Override
+        public void write(SMBBuffer buffer) {
+            buffer.putBuffer(serialized);
+            for (ByteBuffer segment : serialized.getPayloadSegments()) {
+                buffer.putPayloadSegment(segment.duplicate());
+            }
+        }
+
+        @Override
+        public SMB2PacketHeader getHeader() {
+            return packet.getHeader();
+        }
+
+        @Override
+        public long getSequenceNumber() {
+            return packet.getSequenceNumber();
+        }
+
+        @Override
+        public int getStructureSize() {
+            return packet.getStructureSize();
+        }
+
+        @Override
+        public SMB2Packet getPacket() {
+            return packet.getPacket();
+        }
+
+        @Override
+        public String toString() {
+            return packet.toString();
+        }
+    }
+}
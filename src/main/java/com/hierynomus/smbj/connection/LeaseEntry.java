@@ -23,6 +23,7 @@ import com.hierynomus.mssmb2.SMB2FileId;
 import com.hierynomus.smbj.session.Session;
 import com.hierynomus.smbj.share.Directory;
 import com.hierynomus.smbj.share.LeasedDirectoryCache;
+import com.hierynomus.smbj.share.LeasedFileCache;
 
 /**
  * Client-side state for one directory lease. Registered in the {@link LeaseManager}
@@ -53,6 +54,8 @@ public class LeaseEntry {
     // A dedicated, kept-open directory handle owned by DiskShare.list() for cache enumeration.
     // It is NEVER handed to the application, so the app closing its own handles cannot close it.
     private volatile Directory cacheDirectory;
+    // The data cache of a file lease, shared by the handles opened with this lease key; null for a directory.
+    private volatile LeasedFileCache fileCache;
 
     public LeaseEntry(LeaseKey leaseKey, LeaseKey parentLeaseKey, long requestedState, String path) {
         this.leaseKey = leaseKey;
@@ -152,6 +155,14 @@ public class LeaseEntry {
         this.cacheDirectory = cacheDirectory;
     }
 
+    public LeasedFileCache getFileCache() {
+        return fileCache;
+    }
+
+    public void setFileCache(LeasedFileCache fileCache) {
+        this.fileCache = fileCache;
+    }
+
     /** Evict the cached enumeration tied to this lease and bump the generation (break/downgrade hook).
      *  Also closes and nulls the kept-open cache-enumeration handle so the server can reclaim it. */
     public int invalidateCache() {
@@ -31,6 +31,7 @@ import com.hierynomus.mssmb2.LeaseKey;
 import com.hierynomus.mssmb2.messages.SMB2LeaseBreakAcknowledgment;
 import com.hierynomus.mssmb2.messages.SMB2LeaseBreakNotification;
 import com.hierynomus.smbj.share.Directory;
+import com.hierynomus.smbj.share.LeasedFileCache;
 
 /**
  * Per-{@link Connection} lease table. An inbound lease break carries no session/tree id,
@@ -89,6 +90,33 @@ public class LeaseManager implements Closeable {
         byKey.remove(key);
     }
 
+    /**
+     * A durable open holding the lease of {@code entry} was reclaimed on this connection and the server granted
+     * {@code grantedState}. Takes over the entry; if the lease came back with less caching than it had, that is
+     * applied like a break, off the reconnecting thread.
+     */
+    public void reclaimed(final LeaseEntry entry, final long grantedState, int epoch) {
+        register(entry);
+        long previousState = entry.getGrantedState();
+        entry.setGrantedState(grantedState);
+        if (epoch != 0) {
+            entry.setEpoch(epoch);
+        }
+        if ((previousState & ~grantedState) == 0) {
+            return;
+        }
+        breakExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                LeasedFileCache fileCache = entry.getFileCache();
+                if (fileCache != null) {
+                    fileCache.onBreak(grantedState);
+                }
+                entry.invalidateCache();
+            }
+        });
+    }
+
     /** Number of lease breaks fully handled (test/diagnostic hook). */
     public int getBreaksHandled() {
         return breaksHandled.get();
@@ -124,7 +152,7 @@ public class LeaseManager implements Closeable {
         });
     }
 
-    /** Resolve → epoch-check → invalidate → update state → ack (runs on {@link #breakExecutor}). */
+    /** Resolve → epoch-check → write back/invalidate → update state → ack (runs on {@link #breakExecutor}). */
     void onBreak(SMB2LeaseBreakNotification n) throws Exception {
         LeaseEntry entry = byKey.get(n.getLeaseKey());
         if (entry == null) {
@@ -139,7 +167,12 @@ public class LeaseManager implements Closeable {
             return;
         }
 
-        // Apply: invalidate cache, update stored state/epoch, mark broken.
+        // Apply: write back and drop cached file data, invalidate cache, update stored state/epoch, mark broken.
+        // The file data must reach the server before the ack gives up the write-caching lease.
+        LeasedFileCache fileCache = entry.getFileCache();
+        if (fileCache != null) {
+            fileCache.onBreak(n.getNewLeaseState());
+        }
         entry.invalidateCache();
         entry.setGrantedState(n.getNewLeaseState());
         if (n.getNewEpoch() != 0) {
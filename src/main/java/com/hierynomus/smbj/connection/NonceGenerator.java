@@ -0,0 +1,39 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.connection;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates the nonces of the messages that are encrypted with one key. A nonce must never be re-used with the same
+ * key, so everything that encrypts with the key, e.g. all channels of a session, should share the same generator.
+ */
+public class NonceGenerator {
+    private final AtomicLong last = new AtomicLong();
+
+    /**
+     * The clock, but never the same value twice.
+     */
+    public long next() {
+        while (true) {
+            long previous = last.get();
+            long next = Math.max(System.nanoTime(), previous + 1);
+            if (last.compareAndSet(previous, next)) {
+                return next;
+            }
+        }
+    }
+}
@@ -17,78 +17,107 @@ package com.hierynomus.smbj.connection;
 
 import com.hierynomus.smbj.common.SMBRuntimeException;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+/**
+ * The requests on a connection that are waiting for a response, keyed by their message id.
+ * <p>
+ * Message ids are handed out sequentially by the {@link SequenceWindow} and are never reused on a connection, so the
+ * outstanding requests are stored in a ring of slots indexed by the low bits of the message id. Registering, looking
+ * up and completing a request is a single (compare-and-)set on that slot, without taking a lock. Only when a slot is
+ * still taken by a much older request (e.g. a long running CHANGE_NOTIFY) does the request go to an overflow map.
+ * <p>
+ * As message ids are unique for the lifetime of the connection, the message id of a request doubles as its cancel id.
+ */
 public class OutstandingRequests {
-    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-    private Map<Long, Request> lookup = new HashMap<>();
-    private Map<UUID, Request> cancelLookup = new HashMap<>();
+    static final int DEFAULT_CAPACITY = 1024;
 
-    public boolean isOutstanding(Long messageId) {
-        lock.readLock().lock();
-        try {
-            return lookup.containsKey(messageId);
-        } finally {
-            lock.readLock().unlock();
-        }
+    private final AtomicReferenceArray<Request> slots;
+    private final int mask;
+    private final ConcurrentHashMap<Long, Request> overflow = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    public OutstandingRequests() {
+        this(DEFAULT_CAPACITY);
     }
 
-    public Request getRequestByMessageId(Long messageId) {
-        lock.readLock().lock();
-        try {
-            return lookup.get(messageId);
-        } finally {
-            lock.readLock().unlock();
+    /**
+     * @param capacity The number of slots, rounded up to a power of two.
+     */
+    OutstandingRequests(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity should be between 1 and " + (1 << 30));
         }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(Math.max(1, size));
+        this.mask = slots.length() - 1;
+    }
+
+    public boolean isOutstanding(long messageId) {
+        return getRequestByMessageId(messageId) != null;
     }
 
-    Request getRequestByCancelId(UUID cancelId) {
-        lock.readLock().lock();
-        try {
-            return cancelLookup.get(cancelId);
-        } finally {
-            lock.readLock().unlock();
+    public Request getRequestByMessageId(long messageId) {
+        Request r = slots.get(slot(messageId));
+        if (r != null && r.getMessageId() == messageId) {
+            return r;
         }
+        return overflow.isEmpty() ? null : overflow.get(messageId);
     }
 
-    public Request receivedResponseFor(Long messageId) {
-        lock.writeLock().lock();
-        try {
-            Request r = lookup.remove(messageId);
-            if (r == null) {
-                throw new SMBRuntimeException("Unable to find outstanding request for messageId " + messageId);
-            }
-            cancelLookup.remove(r.getCancelId());
+    Request getRequestByCancelId(long cancelId) {
+        return getRequestByMessageId(cancelId);
+    }
+
+    public Request receivedResponseFor(long messageId) {
+        int slot = slot(messageId);
+        Request r = slots.get(slot);
+        if (r != null && r.getMessageId() == messageId && slots.compareAndSet(slot, r, null)) {
+            size.decrementAndGet();
             return r;
-        } finally {
-            lock.writeLock().unlock();
         }
+        r = overflow.isEmpty() ? null : overflow.remove(messageId);
+        if (r == null) {
+            throw new SMBRuntimeException("Unable to find outstanding request for messageId " + messageId);
+        }
+        size.decrementAndGet();
+        return r;
+    }
+
+    /**
+     * @return the number of requests waiting for a response
+     */
+    public int size() {
+        return Math.max(0, size.get());
     }
 
     void registerOutstanding(Request request) {
-        lock.writeLock().lock();
-        try {
-            lookup.put(request.getMessageId(), request);
-            cancelLookup.put(request.getCancelId(), request);
-        } finally {
-            lock.writeLock().unlock();
+        size.incrementAndGet();
+        if (!slots.compareAndSet(slot(request.getMessageId()), null, request)) {
+            overflow.put(request.getMessageId(), request);
         }
     }
 
     void handleError(Throwable t) {
-        lock.writeLock().lock();
-        try {
-            for (Long id : new HashSet<>(lookup.keySet())) {
-                Request removed = lookup.remove(id);
-                cancelLookup.remove(removed.getCancelId());
+        for (int i = 0; i < slots.length(); i++) {
+            Request removed = slots.getAndSet(i, null);
+            if (removed != null) {
+                size.decrementAndGet();
+                removed.getPromise().deliverError(t);
+            }
+        }
+        for (Long id : overflow.keySet()) {
+            Request removed = overflow.remove(id);
+            if (removed != null) {
+                size.decrementAndGet();
                 removed.getPromise().deliverError(t);
             }
-        } finally {
-            lock.writeLock().unlock();
         }
     }
+
+    private int slot(long messageId) {
+        return (int) messageId & mask;
+    }
 }
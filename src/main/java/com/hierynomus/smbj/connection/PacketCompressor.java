@@ -0,0 +1,346 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.connection;
+
+import static com.hierynomus.mssmb2.SMB2CompressionTransformHeader.SMB2_COMPRESSION_FLAG_CHAINED;
+import static com.hierynomus.mssmb2.SMB2CompressionTransformHeader.SMB2_COMPRESSION_FLAG_NONE;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hierynomus.msxca.CompressionCodec;
+import com.hierynomus.msxca.CompressionException;
+import com.hierynomus.msxca.Lz77Codec;
+import com.hierynomus.msxca.Lz77HuffmanCodec;
+import com.hierynomus.msxca.Lznt1Codec;
+import com.hierynomus.mssmb2.SMB2CompressionTransformHeader;
+import com.hierynomus.mssmb2.SMB2Packet;
+import com.hierynomus.mssmb2.SMB2PacketHeader;
+import com.hierynomus.mssmb2.SMB3CompressedPacketData;
+import com.hierynomus.mssmb2.SMB3CompressionAlgorithm;
+import com.hierynomus.mssmb2.messages.SMB2WriteRequest;
+import com.hierynomus.protocol.commons.EnumWithValue;
+import com.hierynomus.smb.SMBBuffer;
+import com.hierynomus.smbj.SmbConfig;
+
+/**
+ * [MS-SMB2] 3.1.4.4 Compressing the Message and 3.2.5.1.10 Decompressing the Message
+ * <p>
+ * Only the data of WRITE requests is compressed, the SMB2 header and the WRITE request structure are sent
+ * uncompressed in front of it. With chained compression, a run of a single repeated byte at the start or end of the
+ * data is sent as a Pattern_V1 payload, if negotiated. A request is only sent compressed if that makes it smaller.
+ */
+public class PacketCompressor {
+    private static final Logger logger = LoggerFactory.getLogger(PacketCompressor.class);
+
+    private static final int WRITE_DATA_OFFSET = SMB2PacketHeader.STRUCTURE_SIZE + 48;
+    private static final int CHAINED_PAYLOAD_HEADER_SIZE = 8;
+    private static final int ORIGINAL_PAYLOAD_SIZE_SIZE = 4;
+    private static final int PATTERN_V1_PAYLOAD_SIZE = 8;
+    private static final int MIN_PATTERN_LENGTH = 64;
+    // Room for the headers of the response next to the largest negotiated payload
+    private static final int MAX_HEADERS_SIZE = 4096;
+
+    private static final CompressionCodec LZNT1 = new Lznt1Codec();
+    private static final CompressionCodec LZ77 = new Lz77Codec();
+    private static final CompressionCodec LZ77_HUFFMAN = new Lz77HuffmanCodec();
+
+    private final List<SMB3CompressionAlgorithm> preferredAlgorithms;
+    private final int threshold;
+    private Set<SMB3CompressionAlgorithm> negotiatedAlgorithms = EnumSet.noneOf(SMB3CompressionAlgorithm.class);
+    private SMB3CompressionAlgorithm algorithm;
+    private boolean chained;
+    private boolean patternV1;
+    private int maxMessageSize;
+
+    public PacketCompressor(SmbConfig config) {
+        this.preferredAlgorithms = config.getCompressionAlgorithms();
+        this.threshold = config.getCompressionThreshold();
+    }
+
+    void init(ConnectionContext connectionContext) {
+        NegotiatedProtocol protocol = connectionContext.getNegotiatedProtocol();
+        init(connectionContext.getCompressionIds(), connectionContext.isCompressionChained(),
+            Math.max(protocol.getMaxTransactSize(), Math.max(protocol.getMaxReadSize(), protocol.getMaxWriteSize())) + MAX_HEADERS_SIZE);
+    }
+
+    void init(Set<SMB3CompressionAlgorithm> compressionIds, boolean chained, int maxMessageSize) {
+        this.negotiatedAlgorithms = compressionIds == null || compressionIds.isEmpty()
+            ? EnumSet.noneOf(SMB3CompressionAlgorithm.class) : EnumSet.copyOf(compressionIds);
+        this.chained = chained;
+        this.algorithm = null;
+        for (SMB3CompressionAlgorithm preferred : preferredAlgorithms) {
+            if (negotiatedAlgorithms.contains(preferred) && preferred != SMB3CompressionAlgorithm.PATTERN_V1) {
+                this.algorithm = preferred;
+                break;
+            }
+        }
+        this.patternV1 = chained && negotiatedAlgorithms.contains(SMB3CompressionAlgorithm.PATTERN_V1);
+        this.maxMessageSize = maxMessageSize;
+        if (algorithm != null) {
+            logger.info("Initialized PacketCompressor with << {} >>, chained: {}, Pattern_V1: {}", algorithm, chained, patternV1);
+        }
+    }
+
+    /**
+     * @return The packet, wrapped to be compressed when it is written if it is a large enough WRITE request.
+     */
+    public SMB2Packet compress(SMB2Packet packet) {
+        if (algorithm != null && packet.getPacket() instanceof SMB2WriteRequest && packet.getMaxPayloadSize() >= threshold) {
+            return new CompressedPacketWrapper(packet);
+        }
+        return packet;
+    }
+
+    /**
+     * Write the WRITE request {@code message} to the buffer, compressed if that makes it smaller.
+     */
+    void writeCompressed(byte[] message, int length, SMBBuffer buffer) {
+        int dataLength = length - WRITE_DATA_OFFSET;
+        if (dataLength < Math.max(threshold, 1) || !(chained ? writeChained(message, length, buffer) : writeUnchained(message, length, buffer))) {
+            buffer.putRawBytes(message, 0, length);
+        }
+    }
+
+    private boolean writeUnchained(byte[] message, int length, SMBBuffer buffer) {
+        int dataLength = length - WRITE_DATA_OFFSET;
+        byte[] compressed = new byte[dataLength];
+        int compressedLength = codecFor(algorithm).compress(message, WRITE_DATA_OFFSET, dataLength, compressed, 0, dataLength - SMB2CompressionTransformHeader.STRUCTURE_SIZE - 1);
+        if (compressedLength < 0) {
+            return false;
+        }
+        new SMB2CompressionTransformHeader(dataLength, algorithm, SMB2_COMPRESSION_FLAG_NONE, WRITE_DATA_OFFSET).writeTo(buffer);
+        buffer.putRawBytes(message, 0, WRITE_DATA_OFFSET);
+        buffer.putRawBytes(compressed, 0, compressedLength);
+        return true;
+    }
+
+    private boolean writeChained(byte[] message, int length, SMBBuffer buffer) {
+        int leading = patternV1 ? leadingRunLength(message, WRITE_DATA_OFFSET, length) : 0;
+        leading = leading >= MIN_PATTERN_LENGTH ? leading : 0;
+        int trailing = patternV1 ? trailingRunLength(message, WRITE_DATA_OFFSET + leading, length) : 0;
+        trailing = trailing >= MIN_PATTERN_LENGTH ? trailing : 0;
+        int middleStart = WRITE_DATA_OFFSET + leading;
+        int middleLength = length - trailing - middleStart;
+
+        byte[] compressed = null;
+        int compressedLength = -1;
+        if (middleLength > 0) {
+            compressed = new byte[middleLength];
+            compressedLength = codecFor(algorithm).compress(message, middleStart, middleLength, compressed, 0, middleLength - ORIGINAL_PAYLOAD_SIZE_SIZE - 1);
+        }
+        if (compressedLength < 0 && leading == 0 && trailing == 0) {
+            return false;
+        }
+
+        // The chained transform header includes the header of the first, uncompressed, payload
+        new SMB2CompressionTransformHeader(length, SMB3CompressionAlgorithm.NONE, SMB2_COMPRESSION_FLAG_CHAINED, WRITE_DATA_OFFSET).writeTo(buffer);
+        buffer.putRawBytes(message, 0, WRITE_DATA_OFFSET);
+        if (leading > 0) {
+            putPatternPayload(buffer, message[WRITE_DATA_OFFSET], leading);
+        }
+        if (compressedLength >= 0) {
+            putPayloadHeader(buffer, algorithm, ORIGINAL_PAYLOAD_SIZE_SIZE + compressedLength);
+            buffer.putUInt32(middleLength); // OriginalPayloadSize (4 bytes)
+            buffer.putRawBytes(compressed, 0, compressedLength);
+        } else if (middleLength > 0) {
+            putPayloadHeader(buffer, SMB3CompressionAlgorithm.NONE, middleLength);
+            buffer.putRawBytes(message, middleStart, middleLength);
+        }
+        if (trailing > 0) {
+            putPatternPayload(buffer, message[length - 1], trailing);
+        }
+        return true;
+    }
+
+    private static void putPayloadHeader(SMBBuffer buffer, SMB3CompressionAlgorithm algorithm, int length) {
+        buffer.putUInt16((int) algorithm.getValue()); // CompressionAlgorithm (2 bytes)
+        buffer.putUInt16(SMB2_COMPRESSION_FLAG_CHAINED); // Flags (2 bytes)
+        buffer.putUInt32(length); // Length (4 bytes)
+    }
+
+    private static void putPatternPayload(SMBBuffer buffer, byte pattern, int repetitions) {
+        putPayloadHeader(buffer, SMB3CompressionAlgorithm.PATTERN_V1, PATTERN_V1_PAYLOAD_SIZE);
+        buffer.putByte(pattern); // Pattern (1 byte)
+        buffer.putByte((byte) 0); // Reserved1 (1 byte)
+        buffer.putUInt16(0); // Reserved2 (2 bytes)
+        buffer.putUInt32(repetitions); // Repetitions (4 bytes)
+    }
+
+    private static int leadingRunLength(byte[] data, int start, int end) {
+        int pos = start;
+        while (pos < end && data[pos] == data[start]) {
+            pos++;
+        }
+        return pos - start;
+    }
+
+    private static int trailingRunLength(byte[] data, int start, int end) {
+        int pos = end;
+        while (pos > start && data[pos - 1] == data[end - 1]) {
+            pos--;
+        }
+        return end - pos;
+    }
+
+    /**
+     * Decompress a received compressed message.
+     *
+     * @return The decompressed SMB2 message
+     * @throws CompressionException If the message is malformed or uses an algorithm that was not negotiated, in
+     *                              which case the connection should be dropped.
+     */
+    public byte[] decompress(SMB3CompressedPacketData packetData) throws CompressionException {
+        SMB2CompressionTransformHeader header = packetData.getHeader();
+        byte[] in = packetData.getDataBuffer().array();
+        int start = header.getHeaderStartPosition();
+        int end = header.getMessageEndPosition();
+        int originalSize = header.getOriginalCompressedSegmentSize();
+        if (header.isChained()) {
+            checkSize(originalSize);
+            byte[] out = new byte[originalSize];
+            int outPos = 0;
+            // The first payload header overlaps with the transform header
+            int pos = start + SMB2CompressionTransformHeader.STRUCTURE_SIZE - CHAINED_PAYLOAD_HEADER_SIZE;
+            while (pos < end) {
+                ensure(pos + CHAINED_PAYLOAD_HEADER_SIZE <= end, "Truncated compression payload header");
+                SMB3CompressionAlgorithm payloadAlgorithm = algorithm(getUInt16(in, pos));
+                int length = getUInt32(in, pos + 4);
+                pos += CHAINED_PAYLOAD_HEADER_SIZE;
+                ensure(length >= 0 && length <= end - pos, "Compression payload of " + length + " bytes exceeds the message");
+                if (payloadAlgorithm == SMB3CompressionAlgorithm.NONE) {
+                    ensure(length <= originalSize - outPos, "Uncompressed payload exceeds the original size");
+                    System.arraycopy(in, pos, out, outPos, length);
+                    outPos += length;
+                } else if (payloadAlgorithm == SMB3CompressionAlgorithm.PATTERN_V1) {
+                    ensure(length >= PATTERN_V1_PAYLOAD_SIZE, "Truncated Pattern_V1 payload");
+                    int repetitions = getUInt32(in, pos + 4);
+                    ensure(repetitions >= 0 && repetitions <= originalSize - outPos, "Pattern_V1 payload exceeds the original size");
+                    Arrays.fill(out, outPos, outPos + repetitions, in[pos]);
+                    outPos += repetitions;
+                } else {
+                    ensure(length >= ORIGINAL_PAYLOAD_SIZE_SIZE, "Truncated compression payload");
+                    int payloadSize = getUInt32(in, pos);
+                    ensure(payloadSize >= 0 && payloadSize <= originalSize - outPos, "Compressed payload exceeds the original size");
+                    codecFor(payloadAlgorithm).decompress(in, pos + ORIGINAL_PAYLOAD_SIZE_SIZE, length - ORIGINAL_PAYLOAD_SIZE_SIZE, out, outPos, payloadSize);
+                    outPos += payloadSize;
+                }
+                pos += length;
+            }
+            ensure(outPos == originalSize, "Decompressed " + outPos + " bytes, expected " + originalSize);
+            return out;
+        }
+
+        SMB3CompressionAlgorithm compressionAlgorithm = algorithm(header.getCompressionAlgorithm().getValue());
+        int dataStart = start + SMB2CompressionTransformHeader.STRUCTURE_SIZE;
+        int offset = header.getOffset();
+        ensure(offset >= 0 && offset <= end - dataStart, "Compression offset " + offset + " exceeds the message");
+        checkSize(offset + (long) originalSize);
+        byte[] out = new byte[offset + originalSize];
+        System.arraycopy(in, dataStart, out, 0, offset);
+        codecFor(compressionAlgorithm).decompress(in, dataStart + offset, end - dataStart - offset, out, offset, originalSize);
+        return out;
+    }
+
+    private SMB3CompressionAlgorithm algorithm(long value) throws CompressionException {
+        SMB3CompressionAlgorithm payloadAlgorithm = EnumWithValue.EnumUtils.valueOf(value, SMB3CompressionAlgorithm.class, null);
+        ensure(payloadAlgorithm != null, "Unknown compression algorithm " + value);
+        ensure(payloadAlgorithm == SMB3CompressionAlgorithm.NONE || negotiatedAlgorithms.contains(payloadAlgorithm),
+            "Compression algorithm " + payloadAlgorithm + " was not negotiated");
+        return payloadAlgorithm;
+    }
+
+    private void checkSize(long size) throws CompressionException {
+        ensure(size >= 0 && size <= maxMessageSize, "Decompressed size " + size + " exceeds the maximum message size " + maxMessageSize);
+    }
+
+    private static void ensure(boolean condition, String message) throws CompressionException {
+        if (!condition) {
+            throw new CompressionException(message);
+        }
+    }
+
+    static CompressionCodec codecFor(SMB3CompressionAlgorithm algorithm) {
+        switch (algorithm) {
+            case LZNT1:
+                return LZNT1;
+            case LZ77:
+                return LZ77;
+            case LZ77_HUFFMAN:
+                return LZ77_HUFFMAN;
+            default:
+                throw new IllegalArgumentException("No codec for compression algorithm " + algorithm);
+        }
+    }
+
+    private static int getUInt16(byte[] b, int pos) {
+        return (b[pos] & 0xFF) | (b[pos + 1] & 0xFF) << 8;
+    }
+
+    private static int getUInt32(byte[] b, int pos) {
+        return (b[pos] & 0xFF) | (b[pos + 1] & 0xFF) << 8 | (b[pos + 2] & 0xFF) << 16 | (b[pos + 3] & 0xFF) << 24;
+    }
+
+    public class CompressedPacketWrapper extends SMB2Packet {
+        private final SMB2Packet packet;
+
+        CompressedPacketWrapper(SMB2Packet packet) {
+            this.packet = packet;
+        }
+
+        @Override
+        public void write(SMBBuffer buffer) {
+            SMBBuffer plain = new SMBBuffer();
+            packet.write(plain);
+            writeCompressed(plain.array(), plain.wpos(), buffer);
+        }
+
+        @Override
+        public SMB2PacketHeader getHeader() {
+            return packet.getHeader();
+        }
+
+        @Override
+        public int getMaxPayloadSize() {
+            return packet.getMaxPayloadSize();
+        }
+
+        @Override
+        public long getSequenceNumber() {
+            return packet.getSequenceNumber();
+        }
+
+        @Override
+        public int getStructureSize() {
+            return packet.getStructureSize();
+        }
+
+        @Override
+        public String toString() {
+            return "Compressed[" + packet.toString() + "]";
+        }
+
+        @Override
+        public SMB2Packet getPacket() {
+            return packet.getPacket();
+        }
+    }
+}
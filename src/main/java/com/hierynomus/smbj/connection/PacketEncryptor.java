@@ -28,15 +28,32 @@ import org.slf4j.LoggerFactory;
 
 import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Encrypts and decrypts SMB3 messages.
+ * <p>
+ * Cipher instances are cached per thread, and re-initialized with the key and nonce of every message. Outgoing
+ * messages are serialized straight into the transport buffer and encrypted in place, incoming messages are decrypted
+ * from the receive buffer straight into the plaintext array, so every payload byte is copied once and encrypted or
+ * decrypted once.
+ */
 public class PacketEncryptor {
     private static final Logger logger = LoggerFactory.getLogger(PacketEncryptor.class);
+    private static final int TRANSFORM_HEADER_SIZE = 52;
+    private static final int SIGNATURE_OFFSET = 4;
+    private static final int SIGNATURE_SIZE = 16;
+    // The SMB2 TRANSFORM_HEADER, excluding the ProtocolId and Signature fields, is the optional authenticated data
+    private static final int AAD_OFFSET = SIGNATURE_OFFSET + SIGNATURE_SIZE;
+    private static final int AAD_LENGTH = TRANSFORM_HEADER_SIZE - AAD_OFFSET;
+
     private SecurityProvider securityProvider;
     private SMB3EncryptionCipher cipher;
     private SMB2Dialect dialect;
-    private AtomicInteger nonceCounter = new AtomicInteger(0);
+    private final NonceGenerator nonceGenerator = new NonceGenerator(); // for messages encrypted without a session
+    private volatile ThreadLocal<AEADBlockCipher> encryptCiphers = new ThreadLocal<>();
+    private volatile ThreadLocal<AEADBlockCipher> decryptCiphers = new ThreadLocal<>();
 
     public PacketEncryptor(SecurityProvider securityProvider) {
         this.securityProvider = securityProvider;
@@ -47,9 +64,9 @@ public class PacketEncryptor {
         // The client MUST decrypt the message using Session.DecryptionKey. If Connection.Dialect is "3.1.1", the algorithm
         // specified by Connection.CipherId is used. Otherwise, the AES-128-CCM algorithm is used.
         if (connectionContext.getNegotiatedProtocol().getDialect().equals(SMB2Dialect.SMB_3_1_1)) {
-            cipher = connectionContext.getCipherId();
+            setCipher(connectionContext.getCipherId());
         } else {
-            cipher = SMB3EncryptionCipher.AES_128_CCM;
+            setCipher(SMB3EncryptionCipher.AES_128_CCM);
         }
         logger.info("Initialized PacketEncryptor with Cipher << {} >>", cipher);
     }
@@ -61,37 +78,55 @@ public class PacketEncryptor {
     }
 
     public byte[] decrypt(SMB3EncryptedPacketData packetData, SecretKey decryptionKey) {
-        byte[] realNonce = Arrays.copyOf(packetData.getHeader().getNonce(), cipher.getNonceLength());
+        SMB2TransformHeader header = packetData.getHeader();
+        byte[] realNonce = Arrays.copyOf(header.getNonce(), cipher.getNonceLength());
+        SMBBuffer dataBuffer = packetData.getDataBuffer();
+        int cipherTextLength = header.getOriginalMessageSize();
+        if (cipherTextLength < 0 || dataBuffer.available() < cipherTextLength) {
+            logger.error("Could not read cipherText from packet << {} >>", packetData);
+            throw new SMBRuntimeException("Could not read cipherText from packet", new Buffer.BufferException("Underflow"));
+        }
+        byte[] data = dataBuffer.array();
+        int cipherTextOffset = dataBuffer.rpos();
+        ThreadLocal<AEADBlockCipher> ciphers = decryptCiphers;
         try {
-            byte[] aad = createAAD(packetData.getHeader());
-            byte[] cipherText = packetData.getCipherText();
-            byte[] signature = packetData.getHeader().getSignature();
-
-            AEADBlockCipher aeadBlockCipher = securityProvider.getAEADBlockCipher(cipher.getAlgorithmName());
-            aeadBlockCipher.init(Cipher.CryptMode.DECRYPT, decryptionKey.getEncoded(), new GCMParameterSpec(128, realNonce));
-            aeadBlockCipher.updateAAD(aad, 0, aad.length);
-            byte[] bytes = aeadBlockCipher.update(cipherText, 0, cipherText.length);
-            byte[] bytes2 = aeadBlockCipher.doFinal(signature, 0, signature.length);
-            if (bytes != null && bytes.length != 0) {
-                byte[] decrypted = new byte[bytes.length + bytes2.length];
-                System.arraycopy(bytes, 0, decrypted, 0, bytes.length);
-                System.arraycopy(bytes2, 0, decrypted, bytes.length, bytes2.length);
-                return decrypted;
+            AEADBlockCipher aeadBlockCipher = initCipher(ciphers, Cipher.CryptMode.DECRYPT, decryptionKey, realNonce);
+            aeadBlockCipher.updateAAD(data, header.getHeaderStartPosition() + AAD_OFFSET, AAD_LENGTH);
+            byte[] plainText = new byte[cipherTextLength];
+            int cipherTextEnd = cipherTextOffset + cipherTextLength;
+            int length;
+            if (cipherTextEnd >= dataBuffer.wpos() && data.length - cipherTextEnd >= SIGNATURE_SIZE) {
+                // Append the signature to the cipherText in the spare room of the (pooled) receive buffer, so that
+                // the cipher can decrypt in one pass, instead of buffering the whole cipherText until it gets the tag.
+                System.arraycopy(header.getSignature(), 0, data, cipherTextEnd, SIGNATURE_SIZE);
+                length = aeadBlockCipher.doFinal(data, cipherTextOffset, cipherTextLength + SIGNATURE_SIZE, plainText, 0);
             } else {
-                return bytes2;
+                length = aeadBlockCipher.update(data, cipherTextOffset, cipherTextLength, plainText, 0);
+                length += aeadBlockCipher.doFinal(header.getSignature(), 0, SIGNATURE_SIZE, plainText, length);
             }
+            if (length != cipherTextLength) {
+                throw new IllegalStateException("Invalid length for plainText after decryption.");
+            }
+            dataBuffer.rpos(cipherTextOffset + cipherTextLength);
+            return plainText;
         } catch (SecurityException e) {
+            ciphers.remove(); // Do not rely on the state of a cipher which failed
             logger.error("Security exception while decrypting packet << {} >>", packetData);
             throw new SMBRuntimeException(e);
-        } catch (Buffer.BufferException be) {
-            logger.error("Could not read cipherText from packet << {} >>", packetData);
-            throw new SMBRuntimeException("Could not read cipherText from packet", be);
         }
     }
 
     public SMB2Packet encrypt(SMB2Packet packet, SecretKey encryptionKey) {
+        return encrypt(packet, encryptionKey, nonceGenerator);
+    }
+
+    /**
+     * @param nonceGenerator the generator shared by everything that encrypts with the key, e.g. all channels of the
+     *                       session
+     */
+    public SMB2Packet encrypt(SMB2Packet packet, SecretKey encryptionKey, NonceGenerator nonceGenerator) {
         if (encryptionKey != null) {
-            return new EncryptedPacketWrapper(packet, encryptionKey);
+            return new EncryptedPacketWrapper(packet, encryptionKey, nonceGenerator);
         } else {
             logger.debug("Not wrapping {} as encrypted, as no key is set.", packet.getHeader().getMessage());
             return packet;
@@ -101,14 +136,17 @@ public class PacketEncryptor {
     byte[] createAAD(SMB2TransformHeader header) {
         SMBBuffer b = new SMBBuffer();
         header.writeTo(b); // Write the header
-        b.rpos(20); // Skip ProtocolId (4 bytes) AND Signature (16 bytes)
+        b.rpos(AAD_OFFSET); // Skip ProtocolId (4 bytes) AND Signature (16 bytes)
         return b.getCompactData();
     }
 
     byte[] getNewNonce() {
-        long nonce = System.nanoTime();
+        return getNewNonce(nonceGenerator);
+    }
+
+    private byte[] getNewNonce(NonceGenerator nonceGenerator) {
         SMBBuffer b = new SMBBuffer();
-        b.putUInt64(nonce); // Little Endians go first
+        b.putUInt64(nonceGenerator.next()); // Little Endians go first
         int padding = cipher.getNonceLength() - 8; // 64 bits = 8 bytes
         b.putReserved(padding);
         return b.getCompactData();
@@ -116,60 +154,76 @@ public class PacketEncryptor {
 
     public void setCipher(SMB3EncryptionCipher cipher) {
         this.cipher = cipher;
+        // Drop the cached instances of the previous cipher
+        this.encryptCiphers = new ThreadLocal<>();
+        this.decryptCiphers = new ThreadLocal<>();
+    }
+
+    private AEADBlockCipher initCipher(ThreadLocal<AEADBlockCipher> ciphers, Cipher.CryptMode cryptMode, SecretKey key, byte[] nonce) throws SecurityException {
+        AEADBlockCipher aeadBlockCipher = ciphers.get();
+        if (aeadBlockCipher == null) {
+            aeadBlockCipher = securityProvider.getAEADBlockCipher(cipher.getAlgorithmName());
+            ciphers.set(aeadBlockCipher);
+        }
+        aeadBlockCipher.init(cryptMode, key.getEncoded(), new GCMParameterSpec(128, nonce));
+        return aeadBlockCipher;
     }
 
     public class EncryptedPacketWrapper extends SMB2Packet {
         private final SMB2Packet packet;
         private final SecretKey encryptionKey;
+        private final NonceGenerator nonceGenerator;
 
         public EncryptedPacketWrapper(SMB2Packet packet, SecretKey encryptionKey) {
+            this(packet, encryptionKey, PacketEncryptor.this.nonceGenerator);
+        }
+
+        EncryptedPacketWrapper(SMB2Packet packet, SecretKey encryptionKey, NonceGenerator nonceGenerator) {
             this.packet = packet;
             this.encryptionKey = encryptionKey;
+            this.nonceGenerator = nonceGenerator;
         }
 
         @Override
         public void write(SMBBuffer buffer) {
-            SMBBuffer wrappedPacketPlain = new SMBBuffer();
+            // Leave room for the SMB2 TRANSFORM_HEADER, which needs the size of the plainText
+            int headerStart = buffer.wpos();
+            int plainTextStart = headerStart + TRANSFORM_HEADER_SIZE;
+            buffer.wpos(plainTextStart);
             // Write the whole plainText packet to the buffer
-            packet.write(wrappedPacketPlain);
-
-            // number of bytes available to read is equals to packet size
-            final byte[] plainText = wrappedPacketPlain.getCompactData();
+            packet.write(new PlainTextBuffer(buffer));
+            int plainTextLength = buffer.wpos() - plainTextStart;
 
             // The nonce used in the SMB2_TRANSFORM_HEADER
-            final byte[] nonceField = getNewNonce();
-            // the nonce actually used in encryption
-            final GCMParameterSpec parameterSpec = new GCMParameterSpec(128, nonceField);
-
-            // 3.1.4.3 Encrypting the Message, The SMB2 TRANSFORM_HEADER,
-            // excluding the ProtocolId and Signature fields,
-            // as the optional authenticated data.
-            SMB2TransformHeader header = new SMB2TransformHeader(nonceField, plainText.length, packet.getHeader().getSessionId());
-            final byte[] aad = createAAD(header);
+            final byte[] nonceField = getNewNonce(nonceGenerator);
+            SMB2TransformHeader header = new SMB2TransformHeader(nonceField, plainTextLength, packet.getHeader().getSessionId());
+            buffer.wpos(headerStart);
+            header.writeTo(buffer);
+            buffer.wpos(plainTextStart + plainTextLength);
+            // Room for the authentication tag, which is written after the cipherText
+            buffer.ensureCapacity(SIGNATURE_SIZE);
+            byte[] data = buffer.array();
 
             // the AEC-CCM and AES-GCM both will generate cipherText with authentication tag
-            byte[] cipherTextWithMac;
+            ThreadLocal<AEADBlockCipher> ciphers = encryptCiphers;
+            int length;
             try {
-                AEADBlockCipher aeadBlockCipher = securityProvider.getAEADBlockCipher(cipher.getAlgorithmName());
-                aeadBlockCipher.init(Cipher.CryptMode.ENCRYPT, encryptionKey.getEncoded(), parameterSpec);
-                aeadBlockCipher.updateAAD(aad, 0, aad.length);
-                cipherTextWithMac = aeadBlockCipher.doFinal(plainText, 0, plainText.length);
+                AEADBlockCipher aeadBlockCipher = initCipher(ciphers, Cipher.CryptMode.ENCRYPT, encryptionKey, nonceField);
+                aeadBlockCipher.updateAAD(data, headerStart + AAD_OFFSET, AAD_LENGTH);
+                length = aeadBlockCipher.doFinal(data, plainTextStart, plainTextLength, data, plainTextStart);
             } catch (SecurityException e) {
+                ciphers.remove(); // Do not rely on the state of a cipher which failed
                 logger.error("Security exception while encrypting packet << {} >>", packet.getHeader());
                 throw new SMBRuntimeException(e);
             }
 
             // the plainTextSize should equals cipherTextSize - AUTHENTICATION_TAG_LENGTH
-            if (cipherTextWithMac.length != plainText.length + 16) {
+            if (length != plainTextLength + SIGNATURE_SIZE) {
                 throw new IllegalStateException("Invalid length for cipherText after encryption.");
             }
 
-            byte[] signature = new byte[16];
-            System.arraycopy(cipherTextWithMac, plainText.length, signature, 0, signature.length);
-            header.setSignature(signature);
-
-            header.writeTo(buffer);
-            buffer.putRawBytes(cipherTextWithMac, 0, plainText.length);
+            // Move the authentication tag into the Signature field of the header
+            System.arraycopy(data, plainTextStart + plainTextLength, data, headerStart + SIGNATURE_OFFSET, SIGNATURE_SIZE);
         }
 
         @Override
@@ -207,4 +261,70 @@ public class PacketEncryptor {
         }
 
     }
+
+    /**
+     * A view on the wrapped buffer, which writes the plainText straight into it so that it can be encrypted in place.
+     * Payload segments are copied in as well, as they need to be encrypted.
+     */
+    private static class PlainTextBuffer extends SMBBuffer {
+        private static final byte[] NO_DATA = new byte[0];
+        private final SMBBuffer wrappedBuffer;
+
+        PlainTextBuffer(SMBBuffer wrappedBuffer) {
+            super(NO_DATA, 0);
+            this.wrappedBuffer = wrappedBuffer;
+        }
+
+        @Override
+        public byte[] array() {
+            return wrappedBuffer.array();
+        }
+
+        @Override
+        public int wpos() {
+            return wrappedBuffer.wpos();
+        }
+
+        @Override
+        public void wpos(int wpos) {
+            wrappedBuffer.wpos(wpos);
+        }
+
+        @Override
+        public void ensureCapacity(int capacity) {
+            wrappedBuffer.ensureCapacity(capacity);
+        }
+
+        @Override
+        public Buffer<SMBBuffer> putByte(byte b) {
+            wrappedBuffer.putByte(b);
+            return this;
+        }
+
+        @Override
+        public Buffer<SMBBuffer> putBuffer(Buffer<? extends Buffer<?>> buffer) {
+            wrappedBuffer.putBuffer(buffer);
+            return this;
+        }
+
+        @Override
+        public Buffer<SMBBuffer> putRawBytes(byte[] buf, int offset, int length) {
+            wrappedBuffer.putRawBytes(buf, offset, length);
+            return this;
+        }
+
+        @Override
+        public boolean isPayloadSegmentsEnabled() {
+            return false;
+        }
+
+        @Override
+        public Buffer<SMBBuffer> putPayloadSegment(ByteBuffer segment) {
+            int length = segment.remaining();
+            int wpos = wrappedBuffer.wpos();
+            wrappedBuffer.wpos(wpos + length);
+            segment.duplicate().get(wrappedBuffer.array(), wpos, length);
+            return this;
+        }
+    }
 }
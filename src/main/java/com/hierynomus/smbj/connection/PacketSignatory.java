@@ -21,6 +21,7 @@ import static com.hierynomus.mssmb2.SMB2PacketHeader.SIGNATURE_OFFSET;
 import static com.hierynomus.mssmb2.SMB2PacketHeader.SIGNATURE_SIZE;
 import static com.hierynomus.mssmb2.SMB2PacketHeader.STRUCTURE_SIZE;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import javax.crypto.SecretKey;
@@ -28,19 +29,25 @@ import javax.crypto.SecretKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.hierynomus.mssmb2.SMB2MessageCommandCode;
 import com.hierynomus.mssmb2.SMB2Packet;
 import com.hierynomus.mssmb2.SMB2PacketData;
 import com.hierynomus.mssmb2.SMB2PacketHeader;
+import com.hierynomus.mssmb2.SMB2SigningAlgorithm;
 import com.hierynomus.protocol.commons.buffer.Buffer;
 import com.hierynomus.security.Mac;
 import com.hierynomus.security.SecurityException;
 import com.hierynomus.security.SecurityProvider;
+import com.hierynomus.security.mac.AesGmac;
 import com.hierynomus.smb.SMBBuffer;
 
 public class PacketSignatory implements Signatory {
     private static final Logger logger = LoggerFactory.getLogger(PacketSignatory.class);
+    private static final String GCM_ALGORITHM = "AES/GCM/NoPadding";
 
     private SecurityProvider securityProvider;
+    // The GCM cipher behind AES-GMAC is costly to create, so keep one per thread and only re-init it per packet
+    private final ThreadLocal<AesGmac> gmacs = new ThreadLocal<>();
 
     PacketSignatory(SecurityProvider securityProvider) {
         this.securityProvider = securityProvider;
@@ -61,10 +68,13 @@ public class PacketSignatory implements Signatory {
     public boolean verify(SMB2PacketData packet, SecretKey secretKey) {
         try {
             SMBBuffer buffer = packet.getDataBuffer();
-            Mac mac = getMac(secretKey, securityProvider);
-            mac.update(buffer.array(), packet.getHeader().getHeaderStartPosition(), SIGNATURE_OFFSET);
+            // A compounded response is signed on its own, from its header up to the next message in the chain
+            int start = packet.getHeader().getHeaderStartPosition();
+            int end = packet.getHeader().getMessageEndPosition();
+            Mac mac = getMac(secretKey, packet.getHeader(), true);
+            mac.update(buffer.array(), start, SIGNATURE_OFFSET);
             mac.update(EMPTY_SIGNATURE);
-            mac.update(buffer.array(), STRUCTURE_SIZE, packet.getHeader().getMessageEndPosition() - STRUCTURE_SIZE);
+            mac.update(buffer.array(), start + STRUCTURE_SIZE, end - start - STRUCTURE_SIZE);
             byte[] signature = mac.doFinal();
             byte[] receivedSignature = packet.getHeader().getSignature();
             for (int i = 0; i < SIGNATURE_SIZE; i++) {
@@ -82,12 +92,36 @@ public class PacketSignatory implements Signatory {
         }
     }
 
-    private static Mac getMac(SecretKey secretKey, SecurityProvider securityProvider) throws SecurityException {
-        Mac mac = securityProvider.getMac(secretKey.getAlgorithm());
+    private Mac getMac(SecretKey secretKey, SMB2PacketHeader header, boolean fromServer) throws SecurityException {
+        Mac mac;
+        if (SMB2SigningAlgorithm.AES_GMAC.getAlgorithmName().equals(secretKey.getAlgorithm())) {
+            AesGmac gmac = gmacs.get();
+            if (gmac == null) {
+                gmac = new AesGmac(securityProvider.getAEADBlockCipher(GCM_ALGORITHM));
+                gmacs.set(gmac);
+            }
+            gmac.setNonce(gmacNonce(header.getMessageId(), fromServer, header.getMessage() == SMB2MessageCommandCode.SMB2_CANCEL));
+            mac = gmac;
+        } else {
+            mac = securityProvider.getMac(secretKey.getAlgorithm());
+        }
         mac.init(secretKey.getEncoded());
         return mac;
     }
 
+    /**
+     * [MS-SMB2].pdf 3.1.4.1 Signing An Outgoing Message: the AES-GMAC nonce is the MessageId, followed by 4 bytes of
+     * which the lowest bit is set for a message sent by the server, and the second bit for an SMB2 CANCEL request.
+     */
+    static byte[] gmacNonce(long messageId, boolean fromServer, boolean cancel) {
+        byte[] nonce = new byte[12];
+        for (int i = 0; i < 8; i++) {
+            nonce[i] = (byte) (messageId >>> (8 * i));
+        }
+        nonce[8] = (byte) ((fromServer ? 0x01 : 0) | (cancel ? 0x02 : 0));
+        return nonce;
+    }
+
     public class SignedPacketWrapper extends SMB2Packet {
         private final SMB2Packet wrappedPacket;
         private SecretKey secretKey;
@@ -126,7 +160,7 @@ public class PacketSignatory implements Signatory {
 
             SigningBuffer(SMBBuffer wrappedBuffer) throws SecurityException {
                 this.wrappedBuffer = wrappedBuffer;
-                mac = getMac(secretKey, PacketSignatory.this.securityProvider);
+                mac = getMac(secretKey, wrappedPacket.getHeader(), false);
             }
 
             @Override
@@ -149,6 +183,29 @@ public class PacketSignatory implements Signatory {
                 wrappedBuffer.putRawBytes(buf, offset, length);
                 return this;
             }
+
+            @Override
+            public boolean isPayloadSegmentsEnabled() {
+                return wrappedBuffer.isPayloadSegmentsEnabled();
+            }
+
+            @Override
+            public Buffer<SMBBuffer> putPayloadSegment(ByteBuffer segment) {
+                // Sign the payload without copying it into the buffer
+                if (segment.hasArray()) {
+                    mac.update(segment.array(), segment.arrayOffset() + segment.position(), segment.remaining());
+                } else {
+                    ByteBuffer toSign = segment.duplicate();
+                    byte[] chunk = new byte[Math.min(toSign.remaining(), 8192)];
+                    while (toSign.hasRemaining()) {
+                        int length = Math.min(chunk.length, toSign.remaining());
+                        toSign.get(chunk, 0, length);
+                        mac.update(chunk, 0, length);
+                    }
+                }
+                wrappedBuffer.putPayloadSegment(segment);
+                return this;
+            }
         }
 
         @Override
@@ -23,21 +23,18 @@ import com.hierynomus.smb.SMBPacket;
 import com.hierynomus.smbj.common.SMBRuntimeException;
 
 import java.util.Date;
-import java.util.UUID;
 
 public class Request {
 
     private final Promise<SMB2Packet, SMBRuntimeException> promise;
     private SMBPacket<?, ?> packet;
     private final long messageId;
-    private final UUID cancelId;
     private final Date timestamp;
     private long asyncId;
 
-    public Request(SMBPacket<?, ?> packet, long messageId, UUID cancelId) {
+    public Request(SMBPacket<?, ?> packet, long messageId) {
         this.packet = packet;
         this.messageId = messageId;
-        this.cancelId = cancelId;
         timestamp = new Date();
         this.promise = new Promise<>(String.valueOf(messageId), SMBRuntimeException.Wrapper);
     }
@@ -64,8 +61,11 @@ public class Request {
 
     }
 
-    UUID getCancelId() {
-        return cancelId;
+    /**
+     * Message ids are never reused on a connection, so the message id also identifies the request for cancellation.
+     */
+    long getCancelId() {
+        return messageId;
     }
 
     public Date getTimestamp() {
@@ -27,4 +27,12 @@ public class SMBPacketSerializer implements PacketSerializer<SMBPacket<?, ?>, SM
         packet.write(b);
         return b;
     }
+
+    @Override
+    public SMBBuffer writeGathering(SMBPacket<?, ?> packet) {
+        SMBBuffer b = new SMBBuffer();
+        b.enablePayloadSegments();
+        packet.write(b);
+        return b;
+    }
 }
@@ -25,6 +25,7 @@ import com.hierynomus.mssmb2.messages.negotiate.SMB2CompressionCapabilities;
 import com.hierynomus.mssmb2.messages.negotiate.SMB2EncryptionCapabilities;
 import com.hierynomus.mssmb2.messages.negotiate.SMB2NegotiateContext;
 import com.hierynomus.mssmb2.messages.negotiate.SMB2PreauthIntegrityCapabilities;
+import com.hierynomus.mssmb2.messages.negotiate.SMB2SigningCapabilities;
 import com.hierynomus.protocol.commons.concurrent.Futures;
 import com.hierynomus.protocol.transport.TransportException;
 import com.hierynomus.security.MessageDigest;
@@ -40,7 +41,6 @@ import org.slf4j.LoggerFactory;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Set;
-import java.util.UUID;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
@@ -88,12 +88,15 @@ class SMBProtocolNegotiator {
     private void initializeNegotiationContext() {
         // if dialect is 3.1.1, read the NegotiateContextList. Otherwise, using the default.
         SMB2Dialect dialect = negotiationContext.negotiationResponse.getDialect();
+        // [MS-SMB2] 3.2.5.2: AES-CMAC for SMB 3.x unless SMB2_SIGNING_CAPABILITIES selects another one
+        negotiationContext.signingAlgorithm = dialect.isSmb3x() ? SMB2SigningAlgorithm.AES_CMAC : SMB2SigningAlgorithm.HMAC_SHA256;
         if (dialect == SMB2Dialect.SMB_3_1_1) {
             List<SMB2NegotiateContext> negotiateContextList = this.negotiationContext.negotiationResponse.getNegotiateContextList();
             if (negotiateContextList != null) {
                 boolean seenPreAuth = false;
                 boolean seenEncryption = false;
                 boolean seenCompression = false;
+                boolean seenSigning = false;
                 for (SMB2NegotiateContext negotiateContext: negotiateContextList) {
                     switch (negotiateContext.getNegotiateContextType()) {
                         case SMB2_PREAUTH_INTEGRITY_CAPABILITIES:
@@ -117,6 +120,13 @@ class SMBProtocolNegotiator {
                             seenCompression = true;
                             handleCompressionNegotiateContext((SMB2CompressionCapabilities) negotiateContext);
                             break;
+                        case SMB2_SIGNING_CAPABILITIES:
+                            if (seenSigning) {
+                                throw new IllegalStateException("SMB2_SIGNING_CAPABILITIES should only appear once in the NegotiateContextList");
+                            }
+                            seenSigning = true;
+                            handleSigningNegotiateContext((SMB2SigningCapabilities) negotiateContext);
+                            break;
                         default:
                             throw new IllegalStateException("unknown negotiate context type");
                     }
@@ -141,8 +151,19 @@ class SMBProtocolNegotiator {
             return;
         }
 
-        // TODO flags CHAINED
         negotiationContext.compressionIds = EnumSet.copyOf(compressionAlgorithms);
+        negotiationContext.compressionChained = negotiateContext.isChained();
+    }
+
+    private void handleSigningNegotiateContext(SMB2SigningCapabilities negotiateContext) {
+        List<SMB2SigningAlgorithm> signingAlgorithms = negotiateContext.getSigningAlgorithms();
+        if (signingAlgorithms.size() != 1 || signingAlgorithms.get(0) == null) {
+            throw new IllegalStateException("The SMB2SigningCapabilities NegotiateContext does not contain exactly 1 known signing algorithm");
+        }
+        if (!config.getSigningAlgorithms().contains(signingAlgorithms.get(0))) {
+            throw new IllegalStateException("The server selected signing algorithm " + signingAlgorithms.get(0) + " which was not offered");
+        }
+        negotiationContext.signingAlgorithm = signingAlgorithms.get(0);
     }
 
     private void handleEncryptionNegotiateContext(SMB2EncryptionCapabilities negotiateContext) {
@@ -150,6 +171,9 @@ class SMBProtocolNegotiator {
         if (cipherList.size() != 1) {
             throw new IllegalStateException("The SMB2EncryptionCapabilities NegotiateContext does not contain exactly 1 cipher");
         }
+        if (cipherList.get(0) != null && !config.getEncryptionCiphers().contains(cipherList.get(0))) {
+            throw new IllegalStateException("The server selected cipher " + cipherList.get(0) + " which was not offered");
+        }
         negotiationContext.cipher = cipherList.get(0);
     }
 
@@ -189,7 +213,7 @@ class SMBProtocolNegotiator {
     private SMB2NegotiateResponse smb2OnlyNegotiate() throws TransportException {
         byte[] salt = new byte[32];
         config.getRandomProvider().nextBytes(salt);
-        SMB2Packet negotiatePacket = new SMB2NegotiateRequest(config.getSupportedDialects(), connectionContext.getClientGuid(), config.isSigningRequired(), config.getClientCapabilities(), salt);
+        SMB2Packet negotiatePacket = new SMB2NegotiateRequest(config.getSupportedDialects(), connectionContext.getClientGuid(), config.isSigningRequired(), config.getClientCapabilities(), salt, config.getCompressionAlgorithms(), config.getSigningAlgorithms(), config.getEncryptionCiphers());
         this.negotiationContext.negotiationRequest = negotiatePacket;
         return connection.sendAndReceive(negotiatePacket);
     }
@@ -200,7 +224,7 @@ class SMBProtocolNegotiator {
         if (l != 0) {
             throw new IllegalStateException("The SMBv1 SMB_COM_NEGOTIATE packet needs to be the first packet sent.");
         }
-        Request request = new Request(negotiatePacket, l, UUID.randomUUID());
+        Request request = new Request(negotiatePacket, l);
         connection.outstandingRequests.registerOutstanding(request);
         this.negotiationContext.negotiationRequest = negotiatePacket;
         connection.transport.write(negotiatePacket);
@@ -237,8 +261,10 @@ class SMBProtocolNegotiator {
         private SMBPacket<?, ?> negotiationRequest;
         private SMB2NegotiateResponse negotiationResponse;
         private SMB3EncryptionCipher cipher;
+        private SMB2SigningAlgorithm signingAlgorithm;
         private SMB3HashAlgorithm preauthIntegrityHashId;
         private Set<SMB3CompressionAlgorithm> compressionIds = EnumSet.noneOf(SMB3CompressionAlgorithm.class);
+        private boolean compressionChained;
         private byte[] preauthIntegrityHashValue;
         private Server server;
 
@@ -254,6 +280,10 @@ class SMBProtocolNegotiator {
             return cipher;
         }
 
+        public SMB2SigningAlgorithm getSigningAlgorithm() {
+            return signingAlgorithm;
+        }
+
         public SMB3HashAlgorithm getPreauthIntegrityHashId() {
             return preauthIntegrityHashId;
         }
@@ -262,6 +292,10 @@ class SMBProtocolNegotiator {
             return compressionIds;
         }
 
+        public boolean isCompressionChained() {
+            return compressionChained;
+        }
+
         public Server getServer() {
             return server;
         }
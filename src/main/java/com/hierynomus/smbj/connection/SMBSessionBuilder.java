@@ -19,12 +19,15 @@ import com.hierynomus.asn1.types.primitive.ASN1ObjectIdentifier;
 import com.hierynomus.mserref.NtStatus;
 import com.hierynomus.mssmb2.SMB2Dialect;
 import com.hierynomus.mssmb2.SMB2Packet;
+import com.hierynomus.mssmb2.SMB2SigningAlgorithm;
+import com.hierynomus.mssmb2.SMB3EncryptionCipher;
 import com.hierynomus.mssmb2.SMBApiException;
 import com.hierynomus.mssmb2.messages.SMB2SessionSetup;
 import com.hierynomus.protocol.commons.Factory;
 import com.hierynomus.protocol.commons.buffer.Buffer;
 import com.hierynomus.protocol.commons.buffer.Endian;
 import com.hierynomus.protocol.transport.TransportException;
+import com.hierynomus.smb.SMBBuffer;
 import com.hierynomus.security.DerivationFunction;
 import com.hierynomus.security.MessageDigest;
 import com.hierynomus.security.SecurityException;
@@ -37,6 +40,7 @@ import com.hierynomus.smbj.auth.Authenticator;
 import com.hierynomus.smbj.auth.NtlmAuthenticator;
 import com.hierynomus.smbj.auth.NtlmSealer;
 import com.hierynomus.smbj.common.SMBRuntimeException;
+import com.hierynomus.smbj.session.Channel;
 import com.hierynomus.smbj.session.SMB2GuestSigningRequiredException;
 import com.hierynomus.smbj.session.Session;
 import com.hierynomus.smbj.session.SessionContext;
@@ -105,6 +109,17 @@ public class SMBSessionBuilder {
      * @return a (new) Session that is authenticated for the user.
      */
     public Session establish(AuthenticationContext authContext) {
+        return establish(authContext, 0L);
+    }
+
+    /**
+     * [MS-SMB2] 3.2.4.1.3 / 3.2.4.4 Establish a new session on the connection to replace {@code previousSessionId},
+     * which was lost together with its connection. The server tears down the previous session, so that its durable
+     * opens can be reclaimed on the new session.
+     *
+     * @return a (new) Session that is authenticated for the user.
+     */
+    public Session establish(AuthenticationContext authContext, long previousSessionId) {
         try {
             Authenticator authenticator = getAuthenticator(authContext);
             if (authenticator instanceof NtlmAuthenticator && config.getNtlmConfig().isIntegrityEnabled() && !(authContext.isAnonymous() && !(authContext.isGuest()))) {
@@ -112,6 +127,7 @@ public class SMBSessionBuilder {
             }
 
             BuilderContext ctx = newContext(authContext, authenticator);
+            ctx.previousSessionId = previousSessionId;
 
             authenticator.init(config);
             processAuthenticationToken(ctx, connectionContext.getGssNegotiateToken());
@@ -125,6 +141,81 @@ public class SMBSessionBuilder {
         }
     }
 
+    /**
+     * [MS-SMB2] 3.2.4.1.7 Binding a Session to a New Connection
+     * <p>
+     * Bind an established session to the connection of this builder by authenticating again with the credentials of
+     * the session. The SESSION_SETUP requests are signed with the signing key of the session, the signing key of the
+     * new channel is derived from the session key of this authentication.
+     *
+     * @return the new channel of the session
+     */
+    public Channel bind(Session session) {
+        try {
+            AuthenticationContext authContext = session.getAuthenticationContext();
+            Authenticator authenticator = getAuthenticator(authContext);
+            if (authenticator instanceof NtlmAuthenticator && config.getNtlmConfig().isIntegrityEnabled() && !(authContext.isAnonymous() && !(authContext.isGuest()))) {
+                authenticator = new NtlmSealer((NtlmAuthenticator) authenticator);
+            }
+
+            BuilderContext ctx = newContext(authContext, authenticator);
+            ctx.sessionId = session.getSessionId();
+            ctx.bindingSession = session;
+            ctx.preauthIntegrityHashValue = connectionContext.getPreauthIntegrityHashValue();
+
+            authenticator.init(config);
+            processAuthenticationToken(ctx, connectionContext.getGssNegotiateToken());
+
+            SecretKey signingKey = bindChannel(ctx);
+            logger.info("Successfully bound session {} to {}", session.getSessionId(), connection.getRemoteHostname());
+            sessionTable.registerSession(session.getSessionId(), session);
+            return new Channel(connection, signingKey, connection.getSignatory(), connection.getEncryptor(), connection.getCompressor());
+        } catch (SpnegoException | IOException e) {
+            throw new SMBRuntimeException(e);
+        }
+    }
+
+    private SecretKey bindChannel(BuilderContext ctx) throws IOException {
+        SMB2SessionSetup req = newSessionSetupRequest(ctx.securityContext);
+        req.setBinding(true);
+        req.getHeader().setSessionId(ctx.sessionId);
+        ctx.request = connection.getSignatory().sign(req, ctx.bindingSession.getSessionContext().getSigningKey());
+        ctx.response = connection.sendAndReceive(ctx.request);
+        SMB2Dialect dialect = connectionContext.getNegotiatedProtocol().getDialect();
+        long status = ctx.response.getHeader().getStatusCode();
+        if (status == NtStatus.STATUS_MORE_PROCESSING_REQUIRED.getValue()) {
+            if (dialect == SMB2Dialect.SMB_3_1_1) {
+                ctx.preauthIntegrityHashValue = digest(ctx, ctx.preauthIntegrityHashValue, writtenPacketBytes(ctx.request));
+                ctx.preauthIntegrityHashValue = digest(ctx, ctx.preauthIntegrityHashValue, Packets.getPacketBytes(ctx.response));
+            }
+            logger.debug("More processing required for binding session {} using {}", ctx.sessionId, ctx.authenticator);
+            processAuthenticationToken(ctx, ctx.response.getSecurityBuffer());
+            return bindChannel(ctx);
+        } else if (status != NtStatus.STATUS_SUCCESS.getValue()) {
+            throw new SMBApiException(ctx.response.getHeader(), format("Binding session %d failed for '%s' using %s", ctx.sessionId, ctx.authContext.getUsername(), ctx.authenticator));
+        }
+
+        processAuthenticationToken(ctx, ctx.response.getSecurityBuffer());
+        if (ctx.sessionKey == null) {
+            throw new SMBRuntimeException(format("No session key was established for binding session %d", ctx.sessionId));
+        }
+        SecretKey sessionKey = new SecretKeySpec(ctx.sessionKey, HMAC_SHA256_ALGORITHM);
+        if (dialect == SMB2Dialect.SMB_3_1_1) {
+            ctx.preauthIntegrityHashValue = digest(ctx, ctx.preauthIntegrityHashValue, writtenPacketBytes(ctx.request));
+            return deriveKey(sessionKey, KDF_SIGN_LABEL_SMB311, ctx.preauthIntegrityHashValue, signingAlgorithm());
+        }
+        return deriveKey(sessionKey, KDF_SIGN_LABEL, KDF_SIGN_CONTEXT, signingAlgorithm());
+    }
+
+    /**
+     * A signed packet does not keep the buffer it was written to, so write it again to get the bytes that were sent.
+     */
+    private static byte[] writtenPacketBytes(SMB2Packet packet) {
+        SMBBuffer buffer = new SMBBuffer();
+        packet.write(buffer);
+        return buffer.getCompactData();
+    }
+
     private BuilderContext newContext(AuthenticationContext authContext, Authenticator authenticator) {
         BuilderContext ctx = new BuilderContext();
         ctx.authenticator = authenticator;
@@ -165,6 +256,7 @@ public class SMBSessionBuilder {
             processAuthenticationToken(ctx, response.getSecurityBuffer());
             if (ctx.sessionKey != null) {
                 context.setSessionKey(new SecretKeySpec(ctx.sessionKey, HMAC_SHA256_ALGORITHM));
+                context.setFullSessionKey(new SecretKeySpec(ctx.fullSessionKey, HMAC_SHA256_ALGORITHM));
             }
             if (dialect == SMB2Dialect.SMB_3_1_1) {
                 updatePreauthIntegrityValue(ctx, context, ctx.request);
@@ -195,6 +287,7 @@ public class SMBSessionBuilder {
         connectionContext.setNetBiosName(resp.getNetBiosName());
 
         ctx.sessionKey = resp.getSessionKey();
+        ctx.fullSessionKey = resp.getFullSessionKey();
 
         SpnegoToken token = resp.getNegToken();
         Buffer.PlainBuffer negTokenBuffer = new Buffer.PlainBuffer(Endian.LE);
@@ -207,15 +300,21 @@ public class SMBSessionBuilder {
     }
 
     private BuilderContext initiateSessionSetup(BuilderContext ctx, byte[] securityContext) throws TransportException {
+        SMB2SessionSetup req = newSessionSetupRequest(securityContext);
+        req.getHeader().setSessionId(ctx.sessionId);
+        req.setPreviousSessionId(ctx.previousSessionId);
+        ctx.request = req;
+        ctx.response = connection.sendAndReceive(req);
+        return ctx;
+    }
+
+    private SMB2SessionSetup newSessionSetupRequest(byte[] securityContext) {
         SMB2SessionSetup req = new SMB2SessionSetup(
             connectionContext.getNegotiatedProtocol().getDialect(),
             connectionContext.isServerRequiresSigning() ? EnumSet.of(SMB2_NEGOTIATE_SIGNING_REQUIRED) : EnumSet.of(SMB2_NEGOTIATE_SIGNING_ENABLED),
             connectionContext.getClientCapabilities());
         req.setSecurityBuffer(securityContext);
-        req.getHeader().setSessionId(ctx.sessionId);
-        ctx.request = req;
-        ctx.response = connection.sendAndReceive(req);
-        return ctx;
+        return req;
     }
 
     private Authenticator getAuthenticator(AuthenticationContext context) throws SpnegoException {
@@ -269,6 +368,10 @@ public class SMBSessionBuilder {
     }
 
     private void updatePreauthIntegrityValue(BuilderContext ctx, SessionContext sessionContext, SMB2Packet packet) {
+        sessionContext.setPreauthIntegrityHashValue(digest(ctx, sessionContext.getPreauthIntegrityHashValue(), Packets.getPacketBytes(packet)));
+    }
+
+    private byte[] digest(BuilderContext ctx, byte[] previousHashValue, byte[] packetBytes) {
         if (ctx.digest == null) {
             String algorithmName = connection.getConnectionContext().getPreauthIntegrityHashId().getAlgorithmName();
             try {
@@ -278,7 +381,7 @@ public class SMBSessionBuilder {
             }
         }
 
-        sessionContext.setPreauthIntegrityHashValue(DigestUtil.digest(ctx.digest, sessionContext.getPreauthIntegrityHashValue(), Packets.getPacketBytes(packet)));
+        return DigestUtil.digest(ctx.digest, previousHashValue, packetBytes);
     }
 
     private void deriveKeys(SMB2SessionSetup response, SMB2Dialect dialect, SessionContext context) {
@@ -287,16 +390,20 @@ public class SMBSessionBuilder {
             !response.getSessionFlags().contains(SMB2SessionSetup.SMB2SessionFlags.SMB2_SESSION_FLAG_IS_GUEST)) {
             // derive signingKey
             if (dialect == SMB2Dialect.SMB_3_1_1) {
-                context.setSigningKey(deriveKey(context.getSessionKey(), KDF_SIGN_LABEL_SMB311, context.getPreauthIntegrityHashValue(), AES_128_CMAC_ALGORITHM));
+                context.setSigningKey(deriveKey(context.getSessionKey(), KDF_SIGN_LABEL_SMB311, context.getPreauthIntegrityHashValue(), signingAlgorithm()));
             } else {
-                context.setSigningKey(deriveKey(context.getSessionKey(), KDF_SIGN_LABEL, KDF_SIGN_CONTEXT, AES_128_CMAC_ALGORITHM));
+                context.setSigningKey(deriveKey(context.getSessionKey(), KDF_SIGN_LABEL, KDF_SIGN_CONTEXT, signingAlgorithm()));
             }
             // derive other key if encryption supported
             if (connectionContext.supportsEncryption()) {
-                String alg = connectionContext.getCipherId().getAlgorithmName();
+                SMB3EncryptionCipher cipher = connectionContext.getCipherId();
+                String alg = cipher.getAlgorithmName();
                 if (dialect == SMB2Dialect.SMB_3_1_1) {
-                    context.setEncryptionKey(deriveKey(context.getSessionKey(), KDF_ENC_LABEL_SMB311, context.getPreauthIntegrityHashValue(), alg));
-                    context.setDecryptionKey(deriveKey(context.getSessionKey(), KDF_DEC_LABEL_SMB311, context.getPreauthIntegrityHashValue(), alg));
+                    // [MS-SMB2] 3.2.5.3.1: the AES-256 ciphers use 256 bit keys, derived from the full session key
+                    int keyLength = cipher.getKeyLength();
+                    SecretKey encDecKey = keyLength > 16 ? context.getFullSessionKey() : context.getSessionKey();
+                    context.setEncryptionKey(deriveKey(encDecKey, KDF_ENC_LABEL_SMB311, context.getPreauthIntegrityHashValue(), alg, keyLength));
+                    context.setDecryptionKey(deriveKey(encDecKey, KDF_DEC_LABEL_SMB311, context.getPreauthIntegrityHashValue(), alg, keyLength));
                     context.setApplicationKey(deriveKey(context.getSessionKey(), KDF_APP_LABEL_SMB311, context.getPreauthIntegrityHashValue(), alg));
                 } else {
                     context.setEncryptionKey(deriveKey(context.getSessionKey(), KDF_ENCDEC_LABEL, KDF_ENC_CONTEXT, alg));
@@ -307,13 +414,23 @@ public class SMBSessionBuilder {
         }
     }
 
+    private String signingAlgorithm() {
+        SMB2SigningAlgorithm signingAlgorithm = connectionContext.getSigningAlgorithmId();
+        return signingAlgorithm != null ? signingAlgorithm.getAlgorithmName() : AES_128_CMAC_ALGORITHM;
+    }
+
     private SecretKey deriveKey(SecretKey derivationKey, byte[] label, byte[] context, String algorithm) {
+        return deriveKey(derivationKey, label, context, algorithm, 16);
+    }
+
+    private SecretKey deriveKey(SecretKey derivationKey, byte[] label, byte[] context, String algorithm, int keyLength) {
         ByteArrayOutputStream fixedSuffixTemp = new ByteArrayOutputStream(25);
         try {
             fixedSuffixTemp.write(label);
             fixedSuffixTemp.write(0);
             fixedSuffixTemp.write(context);
-            fixedSuffixTemp.write(new byte[]{0x0, 0x0, 0x0, (byte) 0x80}); // 128 bits (BE byte order)
+            int bits = keyLength * 8;
+            fixedSuffixTemp.write(new byte[]{0x0, 0x0, (byte) (bits >> 8), (byte) bits}); // L: key length in bits (BE byte order)
         } catch (IOException e) {
             logger.error("Unable to format suffix, error occur : ", e);
             return null;
@@ -322,7 +439,7 @@ public class SMBSessionBuilder {
             DerivationFunction kdf = config.getSecurityProvider().getDerivationFunction("KDF/Counter/HMACSHA256");
             byte[] fixedSuffix = fixedSuffixTemp.toByteArray();
             kdf.init(new CounterDerivationParameters(derivationKey.getEncoded(), fixedSuffix, 32));
-            byte[] derived = new byte[16]; // 16 bytes = 128 bits
+            byte[] derived = new byte[keyLength];
             kdf.generateBytes(derived, 0, derived.length);
             return new SecretKeySpec(derived, algorithm);
         } catch (SecurityException se) {
@@ -338,10 +455,14 @@ public class SMBSessionBuilder {
         private Authenticator authenticator;
         private long sessionId;
         private byte[] sessionKey;
+        private byte[] fullSessionKey;
         private AuthenticationContext authContext;
         private byte[] securityContext;
-        private SMB2SessionSetup request;
+        private SMB2Packet request;
         private SMB2SessionSetup response;
         private MessageDigest digest;
+        private Session bindingSession;
+        private byte[] preauthIntegrityHashValue;
+        private long previousSessionId;
     }
 }
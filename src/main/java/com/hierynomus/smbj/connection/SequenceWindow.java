@@ -17,10 +17,6 @@ package com.hierynomus.smbj.connection;
 
 import com.hierynomus.smbj.common.SMBRuntimeException;
 
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
-
 /**
  * [MS-SMB2] 3.2.4.1.6 Algorithm for Handling Available Message Sequence Numbers by the Client.
  * <p/>
@@ -38,37 +34,71 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 public class SequenceWindow {
     static final int PREFERRED_MINIMUM_CREDITS = 512;
-    private AtomicLong lowestAvailable = new AtomicLong(0);
-    private Semaphore available = new Semaphore(1);
-    private static final long MAX_WAIT = 5000;
+    private static final long UNLIMITED = Long.MAX_VALUE / 2;
+
+    // Guarded by this; message ids below limit have been granted by the server.
+    private long lowestAvailable = 0;
+    private long limit = 1;
 
     long get() {
         return get(1)[0];
     }
 
-    long[] get(int credits) {
-        try {
-            if (available.tryAcquire(credits, MAX_WAIT, TimeUnit.MILLISECONDS)) {
-                long lowest = lowestAvailable.getAndAdd(credits);
-                return range(lowest, lowest + credits);
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new SMBRuntimeException("Got interrupted waiting for " + credits + " to be available. Credits available at this moment: " + available.availablePermits());
+    /**
+     * Hand out the next {@code credits} sequence numbers, which need to be granted already.
+     */
+    synchronized long[] get(int credits) {
+        if (available() < credits) {
+            throw new SMBRuntimeException("Not enough credits (" + available() + " available) to hand out " + credits + " sequence numbers");
         }
-        throw new SMBRuntimeException("Not enough credits (" + available.availablePermits() + " available) to hand out " + credits + " sequence numbers");
+        long lowest = lowestAvailable;
+        lowestAvailable += credits;
+        return range(lowest, lowest + credits);
+    }
+
+    /**
+     * Reserve the next {@code credits} sequence numbers, even if the server has not granted them yet. A request using
+     * them may only be sent once {@link #isGranted(long, int)}.
+     *
+     * @return the first reserved sequence number
+     */
+    synchronized long reserve(int credits) {
+        long lowest = lowestAvailable;
+        lowestAvailable += credits;
+        return lowest;
+    }
+
+    synchronized boolean isGranted(long messageId, int credits) {
+        return messageId + credits <= limit;
     }
 
     void disableCredits() {
-        this.available = new NoopSemaphore();
+        synchronized (this) {
+            this.limit = UNLIMITED;
+        }
     }
 
-    public int available() {
-        return available.availablePermits();
+    /**
+     * @return the number of granted sequence numbers that have not been handed out yet.
+     */
+    public synchronized int available() {
+        if (limit >= UNLIMITED) {
+            return Integer.MAX_VALUE;
+        }
+        return (int) Math.max(0, limit - lowestAvailable);
     }
 
-    public void creditsGranted(int credits) {
-        available.release(credits);
+    /**
+     * @return the granted minus the handed out sequence numbers, which is negative if more were reserved than granted.
+     */
+    synchronized long balance() {
+        return limit - lowestAvailable;
+    }
+
+    public synchronized void creditsGranted(int credits) {
+        if (limit < UNLIMITED) {
+            limit += credits;
+        }
     }
 
     private long[] range(long start, long stop) {
@@ -80,41 +110,4 @@ public class SequenceWindow {
 
         return result;
     }
-
-    @SuppressWarnings("serial")
-    private static class NoopSemaphore extends Semaphore {
-        public NoopSemaphore() {
-            super(1);
-        }
-
-        @Override
-        public boolean tryAcquire() {
-            return true;
-        }
-
-        @Override
-        public boolean tryAcquire(long timeout, TimeUnit unit) {
-            return true;
-        }
-
-        @Override
-        public boolean tryAcquire(int permits) {
-            return true;
-        }
-
-        @Override
-        public boolean tryAcquire(int permits, long timeout, TimeUnit unit) {
-            return true;
-        }
-
-        @Override
-        public void release(int permits) {
-            // no-op
-        }
-
-        @Override
-        public int availablePermits() {
-            return Integer.MAX_VALUE;
-        }
-    }
 }
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.connection.packet;
+
+import static com.hierynomus.mssmb2.SMB2MessageFlag.SMB2_FLAGS_SIGNED;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hierynomus.mssmb2.SMB2PacketData;
+import com.hierynomus.mssmb2.SMB3CompressedPacketData;
+import com.hierynomus.mssmb2.SMB3EncryptedPacketData;
+import com.hierynomus.protocol.commons.buffer.Buffer;
+import com.hierynomus.protocol.commons.buffer.BufferPool;
+import com.hierynomus.protocol.transport.PacketFactory;
+import com.hierynomus.protocol.transport.PacketReceiver;
+import com.hierynomus.protocol.transport.TransportException;
+import com.hierynomus.smb.SMBBuffer;
+import com.hierynomus.smb.SMBPacketData;
+
+/**
+ * Moves decryption, decompression and signature verification of received packets off the transport's read thread.
+ * <p>
+ * The read thread only looks at the transform or SMB2 header that the transport already parsed, to decide whether the
+ * packet needs any of this work. If it does, the packet is copied out of the transport's receive buffer (which is
+ * reused as soon as this handler returns) and run through the worker chain on the executor. The worker chain splits
+ * compounded responses, so one received packet can produce several messages. These are passed on to the next handler
+ * strictly in the order in which the packets were received, one packet at a time, so that responses, credit grants
+ * and interim responses are processed exactly as they would be on the read thread.
+ * <p>
+ * A packet that needs no work is run through the worker chain and the next handler inline, as long as no earlier
+ * packet is still queued.
+ * <p>
+ * The worker chain is linked by {@link #setWorkerChain(IncomingPacketHandler...)}, which ends it with a private
+ * handler that collects its packets. If the worker chain or the next handler fails, the error is reported to the error
+ * receiver and no further packets are passed on.
+ */
+public class OffloadingPacketHandler implements IncomingPacketHandler {
+    private static final Logger logger = LoggerFactory.getLogger(OffloadingPacketHandler.class);
+
+    private final Executor executor;
+    private final PacketFactory<SMBPacketData<?>> packetFactory;
+    private final BufferPool bufferPool;
+    private final PacketReceiver<?> errorReceiver;
+    private final WorkerChainEnd workerChainEnd = new WorkerChainEnd();
+    // The packet the worker chain is running for on the current thread, or null if it runs inline
+    private final ThreadLocal<ReceivedPacket> current = new ThreadLocal<>();
+
+    // Guarded by this
+    private final Deque<ReceivedPacket> received = new ArrayDeque<>();
+    private boolean delivering;
+    private boolean failed;
+
+    private IncomingPacketHandler workerChain;
+    private IncomingPacketHandler next;
+
+    public OffloadingPacketHandler(Executor executor, PacketFactory<SMBPacketData<?>> packetFactory, BufferPool bufferPool, PacketReceiver<?> errorReceiver) {
+        this.executor = executor;
+        this.packetFactory = packetFactory;
+        this.bufferPool = bufferPool;
+        this.errorReceiver = errorReceiver;
+    }
+
+    /**
+     * Set the handlers that are run on the worker threads, in order. They are chained to each other, and the last one
+     * to the handler that collects the packets coming out of the worker chain.
+     */
+    public OffloadingPacketHandler setWorkerChain(IncomingPacketHandler... handlers) {
+        if (handlers.length == 0) {
+            throw new IllegalArgumentException("The worker chain needs at least one handler");
+        }
+        for (int i = 0; i < handlers.length; i++) {
+            handlers[i].setNext(i + 1 < handlers.length ? handlers[i + 1] : workerChainEnd);
+        }
+        this.workerChain = handlers[0];
+        return this;
+    }
+
+    @Override
+    public IncomingPacketHandler setNext(IncomingPacketHandler handler) {
+        this.next = handler;
+        return this;
+    }
+
+    @Override
+    public void handle(SMBPacketData<?> packetData) throws TransportException {
+        if (!needsWorker(packetData) && startInline()) {
+            try {
+                workerChain.handle(packetData);
+            } finally {
+                synchronized (this) {
+                    delivering = false;
+                }
+            }
+            return;
+        }
+
+        ReceivedPacket packet = copy(packetData);
+        synchronized (this) {
+            if (failed) {
+                bufferPool.release(packet.bytes);
+                return;
+            }
+            received.add(packet);
+        }
+        try {
+            executor.execute(packet);
+        } catch (RejectedExecutionException e) {
+            // The connection is being closed
+            logger.debug("Dropping packet {}, as the packet workers are shut down", packetData);
+            packet.completed();
+        }
+    }
+
+    private static boolean needsWorker(SMBPacketData<?> packetData) {
+        if (packetData instanceof SMB3EncryptedPacketData || packetData instanceof SMB3CompressedPacketData) {
+            return true;
+        }
+        if (packetData instanceof SMB2PacketData) {
+            SMB2PacketData smb2PacketData = (SMB2PacketData) packetData;
+            return smb2PacketData.isCompounded() || smb2PacketData.getHeader().isFlagSet(SMB2_FLAGS_SIGNED);
+        }
+        return false;
+    }
+
+    private synchronized boolean startInline() {
+        if (delivering || failed || !received.isEmpty()) {
+            return false;
+        }
+        delivering = true;
+        return true;
+    }
+
+    private ReceivedPacket copy(SMBPacketData<?> packetData) throws TransportException {
+        SMBBuffer buffer = packetData.getDataBuffer();
+        int length = buffer.wpos();
+        byte[] bytes = bufferPool.acquire(length);
+        System.arraycopy(buffer.array(), 0, bytes, 0, length);
+        try {
+            return new ReceivedPacket(bytes, packetFactory.read(bytes, length));
+        } catch (Buffer.BufferException | IOException e) {
+            bufferPool.release(bytes);
+            throw new TransportException(e);
+        }
+    }
+
+    /**
+     * Pass on the packets that completed the worker chain, in the order in which they were received. Only one thread
+     * delivers at a time, a thread that finds another one delivering leaves its packet to that thread.
+     */
+    private void deliverCompleted() {
+        while (true) {
+            ReceivedPacket packet;
+            boolean skip;
+            synchronized (this) {
+                packet = received.peek();
+                if (delivering || packet == null || !packet.completed) {
+                    return;
+                }
+                received.poll();
+                delivering = true;
+                skip = failed;
+            }
+            try {
+                if (!skip) {
+                    deliver(packet);
+                }
+            } finally {
+                bufferPool.release(packet.bytes);
+                synchronized (this) {
+                    delivering = false;
+                }
+            }
+        }
+    }
+
+    private void deliver(ReceivedPacket packet) {
+        if (packet.error != null) {
+            fail(packet.error);
+            return;
+        }
+        for (SMBPacketData<?> packetData : packet.results) {
+            try {
+                next.handle(packetData);
+            } catch (TransportException | RuntimeException e) {
+                fail(e);
+                return;
+            }
+        }
+    }
+
+    private void fail(Throwable t) {
+        synchronized (this) {
+            if (failed) {
+                return;
+            }
+            failed = true;
+        }
+        logger.error("Failed to handle a received packet", t);
+        errorReceiver.handleError(t);
+    }
+
+    /**
+     * The end of the worker chain, which is never handed out: it does not pass packets on to a next handler, the
+     * OffloadingPacketHandler does that once all earlier packets are delivered.
+     */
+    private class WorkerChainEnd implements IncomingPacketHandler {
+        @Override
+        public void handle(SMBPacketData<?> packetData) throws TransportException {
+            ReceivedPacket packet = current.get();
+            if (packet == null) {
+                next.handle(packetData);
+            } else if (packetData instanceof SMB2PacketData && ((SMB2PacketData) packetData).isCompounded()) {
+                // The next message of the compound is read from the same buffer before this one is passed on, so it
+                // gets its own copy, and the buffer is positioned at the next message as if this one had been read.
+                SMB2PacketData message = (SMB2PacketData) packetData;
+                try {
+                    packet.results.add(message.copy());
+                } catch (Buffer.BufferException e) {
+                    throw new TransportException("Could not copy compounded message " + message, e);
+                }
+                message.getDataBuffer().rpos(message.getHeader().getMessageEndPosition());
+            } else {
+                packet.results.add(packetData);
+            }
+        }
+
+        @Override
+        public IncomingPacketHandler setNext(IncomingPacketHandler handler) {
+            // Terminal, the packets are passed on by the OffloadingPacketHandler
+            return this;
+        }
+    }
+
+    private class ReceivedPacket implements Runnable {
+        private final byte[] bytes;
+        private final SMBPacketData<?> packetData;
+        private final List<SMBPacketData<?>> results = new ArrayList<>(1);
+        private Throwable error;
+        // Guarded by OffloadingPacketHandler.this
+        private boolean completed;
+
+        ReceivedPacket(byte[] bytes, SMBPacketData<?> packetData) {
+            this.bytes = bytes;
+            this.packetData = packetData;
+        }
+
+        @Override
+        public void run() {
+            current.set(this);
+            try {
+                workerChain.handle(packetData);
+            } catch (TransportException | RuntimeException e) {
+                error = e;
+            } finally {
+                current.remove();
+            }
+            completed();
+        }
+
+        void completed() {
+            synchronized (OffloadingPacketHandler.this) {
+                completed = true;
+            }
+            deliverCompleted();
+        }
+    }
+}
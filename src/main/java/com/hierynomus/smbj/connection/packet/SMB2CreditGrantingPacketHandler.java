@@ -17,7 +17,7 @@ package com.hierynomus.smbj.connection.packet;
 
 import com.hierynomus.mssmb2.SMB2PacketData;
 import com.hierynomus.protocol.transport.TransportException;
-import com.hierynomus.smbj.connection.SequenceWindow;
+import com.hierynomus.smbj.connection.CreditScheduler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,20 +27,20 @@ import org.slf4j.LoggerFactory;
  * If CreditResponse is greater than 0, the client MUST insert the newly granted credits into the
  * Connection.SequenceWindow. For each credit that is granted, the client MUST insert the next highest value into the
  * sequence window, as specified in section 3.2.4.1.6. The client MUST then signal any requests that were waiting for
- * available message identifiers to continue processing.
+ * available message identifiers to continue processing, which the {@link CreditScheduler} does by sending them.
  */
 public class SMB2CreditGrantingPacketHandler extends SMB2PacketHandler {
     private static final Logger logger = LoggerFactory.getLogger(SMB2CreditGrantingPacketHandler.class);
-    private SequenceWindow sequenceWindow;
+    private CreditScheduler creditScheduler;
 
-    public SMB2CreditGrantingPacketHandler(SequenceWindow sequenceWindow) {
-        this.sequenceWindow = sequenceWindow;
+    public SMB2CreditGrantingPacketHandler(CreditScheduler creditScheduler) {
+        this.creditScheduler = creditScheduler;
     }
 
     @Override
     protected void doSMB2Handle(SMB2PacketData packetData) throws TransportException {
-        sequenceWindow.creditsGranted(packetData.getHeader().getCreditResponse());
-        logger.debug("Server granted us {} credits for {}, now available: {} credits", packetData.getHeader().getCreditResponse(), packetData, sequenceWindow.available());
+        creditScheduler.creditsGranted(packetData.getHeader().getCreditResponse());
+        logger.debug("Server granted us {} credits for {}, now available: {} credits", packetData.getHeader().getCreditResponse(), packetData, creditScheduler.available());
         next.handle(packetData);
     }
 }
@@ -15,6 +15,7 @@
  */
 package com.hierynomus.smbj.connection.packet;
 
+import com.hierynomus.mssmb2.SMB2MessageCommandCode;
 import com.hierynomus.mssmb2.SMB2MessageConverter;
 import com.hierynomus.mssmb2.SMB2Packet;
 import com.hierynomus.mssmb2.SMB2PacketData;
@@ -39,6 +40,10 @@ import org.slf4j.LoggerFactory;
  * If the command that is received is not a valid command, or if the server returned a command that did not match
  * the command of the request, the client SHOULD&lt;155&gt; fail the application request with an implementation-specific
  * error that indicates an invalid network response was received.
+ * <p>
+ * The received packet data wraps a pooled receive buffer, which the transport releases as soon as this handler has
+ * delivered the response. Responses whose raw bytes are still needed afterwards (for the preauth integrity hash of
+ * SMB 3.1.1) are therefore first copied out of the receive buffer.
  */
 public class SMB2ProcessResponsePacketHandler extends SMB2PacketHandler {
     private static final Logger logger = LoggerFactory.getLogger(SMB2ProcessResponsePacketHandler.class);
@@ -56,6 +61,9 @@ public class SMB2ProcessResponsePacketHandler extends SMB2PacketHandler {
 
         SMB2Packet packet = null;
         try {
+            if (isRetainedAfterDelivery(packetData.getHeader().getMessage())) {
+                packetData = packetData.copy();
+            }
             packet = smb2Converter.readPacket(request.getPacket(), packetData);
         } catch (Buffer.BufferException e) {
             logger.error("Failed to deserialize SMB2 Packet Data of {}", packetData);
@@ -65,4 +73,8 @@ public class SMB2ProcessResponsePacketHandler extends SMB2PacketHandler {
 
         outstandingRequests.receivedResponseFor(packet.getHeader().getMessageId()).getPromise().deliver(packet);
     }
+
+    private static boolean isRetainedAfterDelivery(SMB2MessageCommandCode command) {
+        return command == SMB2MessageCommandCode.SMB2_NEGOTIATE || command == SMB2MessageCommandCode.SMB2_SESSION_SETUP;
+    }
 }
@@ -18,6 +18,7 @@ package com.hierynomus.smbj.connection.packet;
 import com.hierynomus.mssmb2.DeadLetterPacketData;
 import com.hierynomus.mssmb2.SMB2PacketData;
 import com.hierynomus.protocol.transport.TransportException;
+import com.hierynomus.smbj.connection.Connection;
 import com.hierynomus.smbj.connection.SessionTable;
 import com.hierynomus.smbj.connection.Signatory;
 import com.hierynomus.smbj.session.Session;
@@ -66,10 +67,12 @@ import static com.hierynomus.mssmb2.SMB2MessageFlag.SMB2_FLAGS_SIGNED;
  */
 public class SMB2SignatureVerificationPacketHandler extends SMB2PacketHandler {
     private static final Logger logger = LoggerFactory.getLogger(SMB2SignatureVerificationPacketHandler.class);
+    private Connection connection;
     private SessionTable sessionTable;
     private Signatory signatory;
 
-    public SMB2SignatureVerificationPacketHandler(SessionTable sessionTable, Signatory signatory) {
+    public SMB2SignatureVerificationPacketHandler(Connection connection, SessionTable sessionTable, Signatory signatory) {
+        this.connection = connection;
         this.sessionTable = sessionTable;
         this.signatory = signatory;
     }
@@ -103,7 +106,7 @@ public class SMB2SignatureVerificationPacketHandler extends SMB2PacketHandler {
                 return;
             }
 
-            if (signatory.verify(packetData, session.getSigningKey(packetData.getHeader(), false))) {
+            if (signatory.verify(packetData, session.getSigningKey(connection, packetData.getHeader(), false))) {
                 logger.debug("Signature for packet {} verified.", packetData);
                 next.handle(packetData);
                 return;
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.connection.packet;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hierynomus.msxca.CompressionException;
+import com.hierynomus.mssmb2.SMB2DecryptedPacketData;
+import com.hierynomus.mssmb2.SMB2PacketData;
+import com.hierynomus.mssmb2.SMB2PacketHeader;
+import com.hierynomus.mssmb2.SMB3CompressedPacketData;
+import com.hierynomus.protocol.commons.buffer.Buffer;
+import com.hierynomus.protocol.transport.TransportException;
+import com.hierynomus.smb.SMBPacketData;
+import com.hierynomus.smbj.common.SMBRuntimeException;
+import com.hierynomus.smbj.connection.PacketCompressor;
+
+/**
+ * 3.2.5.1.10 Decompressing the Message
+ * <p>
+ * This section is applicable for only the SMB 3.1.1 dialect.
+ * <p>
+ * The client MUST decompress the message as specified in 3.1.4.4. If the CompressionAlgorithm of the message (or of
+ * any of its chained payloads) is not in Connection.CompressionIds, or if the decompression fails, the client MUST
+ * disconnect the connection. If the decompressed message does not start with an SMB2 header, the client MUST
+ * disconnect the connection as well.
+ * <p>
+ * The decompressed message is processed further as a normal (or decrypted) SMB2 message, including signature
+ * verification.
+ */
+public class SMB3DecompressingPacketHandler extends AbstractIncomingPacketHandler {
+    private static final Logger logger = LoggerFactory.getLogger(SMB3DecompressingPacketHandler.class);
+    private PacketCompressor compressor;
+
+    public SMB3DecompressingPacketHandler(PacketCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    @Override
+    protected boolean canHandle(SMBPacketData<?> packetData) {
+        return packetData instanceof SMB3CompressedPacketData;
+    }
+
+    @Override
+    protected void doHandle(SMBPacketData<?> packetData) throws TransportException {
+        SMB3CompressedPacketData data = (SMB3CompressedPacketData) packetData;
+        logger.debug("Decompressing packet {}", data);
+
+        byte[] decompressed;
+        try {
+            decompressed = compressor.decompress(data);
+        } catch (CompressionException e) {
+            logger.error("Could not decompress packet {}, disconnecting the transport: {}", packetData, e.getMessage());
+            throw new TransportException("Could not decompress packet " + packetData, e);
+        }
+
+        if (!SMB2PacketHeader.isPacketHeader(Arrays.copyOf(decompressed, 4))) {
+            logger.error("Decompressed packet {} does not contain an SMB2 packet, disconnecting the transport", packetData);
+            throw new TransportException("Could not determine the compressed packet contents, disconnecting");
+        }
+
+        try {
+            next.handle(data.isDecrypted() ? new SMB2DecryptedPacketData(decompressed) : new SMB2PacketData(decompressed));
+        } catch (Buffer.BufferException e) {
+            throw new SMBRuntimeException("Could not load SMB2 Packet", e);
+        }
+    }
+}
@@ -15,6 +15,8 @@
  */
 package com.hierynomus.smbj.io;
 
+import java.nio.ByteBuffer;
+
 public class ArrayByteChunkProvider extends ByteChunkProvider {
 
     private final byte[] data;
@@ -55,6 +57,15 @@ public class ArrayByteChunkProvider extends ByteChunkProvider {
         return write;
     }
 
+    @Override
+    protected ByteBuffer nextSlice(int maxLength) {
+        int length = Math.min(maxLength, remaining);
+        ByteBuffer slice = ByteBuffer.wrap(data, bufferOffset, length);
+        bufferOffset += length;
+        remaining -= length;
+        return slice;
+    }
+
     @Override
     public int bytesLeft() {
         return remaining;
@@ -15,10 +15,13 @@
  */
 package com.hierynomus.smbj.io;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
 
-public class ByteBufferByteChunkProvider extends CachingByteChunkProvider {
+/**
+ * Provides the remaining bytes of a {@link ByteBuffer}. The data is not copied up front, so the buffer should not be
+ * modified until it has been written.
+ */
+public class ByteBufferByteChunkProvider extends ByteChunkProvider {
     private final ByteBuffer buffer;
 
     public ByteBufferByteChunkProvider(ByteBuffer buffer) {
@@ -33,18 +36,33 @@ public class ByteBufferByteChunkProvider extends CachingByteChunkProvider {
     }
 
     @Override
-    int prepareChunk(byte[] chunk, int bytesNeeded) throws IOException {
-        int bytesToRead = Math.min(chunk.length, Math.min(bytesNeeded, buffer.remaining()));
-        if (bytesToRead == 0) {
-            return -1;
-        }
+    public void prepareWrite(int maxBytesToPrepare) {
+        // Everything in memory already, nothing to prepare
+    }
 
+    @Override
+    protected int getChunk(byte[] chunk) {
+        int bytesToRead = Math.min(chunk.length, buffer.remaining());
         buffer.get(chunk, 0, bytesToRead);
         return bytesToRead;
     }
 
+    @Override
+    protected ByteBuffer nextSlice(int maxLength) {
+        ByteBuffer slice = buffer.slice();
+        int length = Math.min(maxLength, buffer.remaining());
+        ((java.nio.Buffer) slice).limit(length); // Java8/9 compatibility
+        ((java.nio.Buffer) buffer).position(buffer.position() + length);
+        return slice;
+    }
+
+    @Override
+    public int bytesLeft() {
+        return buffer.remaining();
+    }
+
     @Override
     public boolean isAvailable() {
-        return super.isAvailable() || buffer.hasRemaining();
+        return buffer.hasRemaining();
     }
 }
@@ -21,6 +21,7 @@ import com.hierynomus.smbj.common.SMBRuntimeException;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 public abstract class ByteChunkProvider implements Closeable {
     protected static final int CHUNK_SIZE = 64 * 1024;
@@ -61,6 +62,32 @@ public abstract class ByteChunkProvider implements Closeable {
         }
     }
 
+    /**
+     * Write up to {@code nrChunks} chunks of data as the payload of the buffer. If this provider holds its data in
+     * memory and the buffer has {@link Buffer#isPayloadSegmentsEnabled() payload segments enabled}, the data is added
+     * as a payload segment without copying it, else this is the same as {@link #writeChunks(Buffer, int)}.
+     */
+    public void writePayload(Buffer<?> buffer, int nrChunks) {
+        ByteBuffer slice = buffer.isPayloadSegmentsEnabled() ? nextSlice(nrChunks * chunkSize) : null;
+        if (slice == null) {
+            writeChunks(buffer, nrChunks);
+            return;
+        }
+        buffer.putPayloadSegment(slice);
+        offset += slice.remaining();
+        lastWriteSize = slice.remaining();
+    }
+
+    /**
+     * Take the next (at most {@code maxLength}) bytes of data without copying them. Only providers which already hold
+     * their data in memory implement this.
+     *
+     * @return a buffer over the next bytes, or {@code null} if this provider does not support slicing.
+     */
+    protected ByteBuffer nextSlice(int maxLength) {
+        return null;
+    }
+
     public void writeChunk(Buffer<?> buffer) {
         lastWriteSize = 0;
         byte[] chunk = new byte[chunkSize];
@@ -74,6 +101,43 @@ public abstract class ByteChunkProvider implements Closeable {
         }
     }
 
+    /**
+     * Take the next (at most {@code maxLength}) bytes of data, for a write that may have to be sent again. A provider
+     * which holds its data in memory returns a slice of it without copying, so that data should not be modified until
+     * the write completed; the data of any other provider is read into a new buffer.
+     */
+    public ByteBuffer takeSlice(int maxLength) {
+        int length = Math.min(maxLength, bytesLeft());
+        ByteBuffer slice = nextSlice(length);
+        int read;
+        if (slice != null) {
+            read = slice.remaining();
+        } else {
+            byte[] bytes = new byte[length];
+            byte[] chunk = new byte[Math.min(chunkSize, length)];
+            read = 0;
+            try {
+                while (read < length) {
+                    if (length - read < chunk.length) {
+                        chunk = new byte[length - read];
+                    }
+                    int size = getChunk(chunk);
+                    if (size <= 0) {
+                        break;
+                    }
+                    System.arraycopy(chunk, 0, bytes, read, size);
+                    read += size;
+                }
+            } catch (IOException e) {
+                throw new SMBRuntimeException(e);
+            }
+            slice = ByteBuffer.wrap(bytes, 0, read);
+        }
+        offset += read;
+        lastWriteSize = read;
+        return slice;
+    }
+
     public int getChunkSize() {
         return chunkSize;
     }
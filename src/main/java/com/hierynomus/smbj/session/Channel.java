@@ -0,0 +1,78 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.session;
+
+import javax.crypto.SecretKey;
+
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.connection.PacketCompressor;
+import com.hierynomus.smbj.connection.PacketEncryptor;
+import com.hierynomus.smbj.connection.Signatory;
+
+/**
+ * [MS-SMB2] 3.2.1.8 Per Channel
+ * <p>
+ * A connection that is bound to a session. Requests sent on a channel are signed with its own signing key, and
+ * compressed and encrypted by its connection.
+ */
+public class Channel {
+    private final Connection connection;
+    private final SecretKey signingKey;
+    private final Signatory signatory;
+    private final PacketEncryptor encryptor;
+    private final PacketCompressor compressor;
+
+    /**
+     * @param signingKey The Channel.SigningKey, or {@code null} for the channel on which the session was established
+     *                   which uses the Session.SigningKey
+     */
+    public Channel(Connection connection, SecretKey signingKey, Signatory signatory, PacketEncryptor encryptor, PacketCompressor compressor) {
+        this.connection = connection;
+        this.signingKey = signingKey;
+        this.signatory = signatory;
+        this.encryptor = encryptor;
+        this.compressor = compressor;
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    SecretKey getSigningKey() {
+        return signingKey;
+    }
+
+    Signatory getSignatory() {
+        return signatory;
+    }
+
+    PacketEncryptor getEncryptor() {
+        return encryptor;
+    }
+
+    PacketCompressor getCompressor() {
+        return compressor;
+    }
+
+    public boolean isConnected() {
+        return connection.isConnected();
+    }
+
+    @Override
+    public String toString() {
+        return "Channel{" + connection.getRemoteHostname() + ":" + connection.getConnectionContext().getServer().getPort() + "}";
+    }
+}
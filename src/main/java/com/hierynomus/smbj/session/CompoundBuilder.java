@@ -0,0 +1,73 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.session;
+
+import com.hierynomus.mssmb2.SMB2CompoundRequest;
+import com.hierynomus.mssmb2.SMB2Packet;
+import com.hierynomus.protocol.transport.TransportException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Builds a chain of requests that is sent to the server in a single round trip ([MS-SMB2] 3.2.4.1.4).
+ * <p>
+ * A related request operates on the file opened by the previous request in the chain, e.g. a QUERY_INFO and a CLOSE
+ * following a CREATE, and should use {@link SMB2CompoundRequest#RELATED_FILE_ID} as its file id. If a request in a
+ * related chain fails, the server fails the remaining related requests with the same status.
+ */
+public class CompoundBuilder {
+    private final Session session;
+    private final List<SMB2Packet> requests = new ArrayList<>();
+
+    CompoundBuilder(Session session) {
+        this.session = session;
+    }
+
+    /**
+     * Add an unrelated request to the chain.
+     */
+    public CompoundBuilder add(SMB2Packet request) {
+        requests.add(request);
+        return this;
+    }
+
+    /**
+     * Add a request that is related to the previous request in the chain.
+     */
+    public CompoundBuilder addRelated(SMB2Packet request) {
+        if (requests.isEmpty()) {
+            throw new IllegalStateException("A related request needs a preceding request in the chain");
+        }
+        SMB2CompoundRequest.related(request);
+        requests.add(request);
+        return this;
+    }
+
+    /**
+     * Send the chain.
+     *
+     * @return a Future per request, in the order they were added, to be used to retrieve its response packet
+     * @throws TransportException When a transport level error occurred
+     */
+    public List<Future<SMB2Packet>> send() throws TransportException {
+        if (requests.isEmpty()) {
+            throw new IllegalStateException("Cannot send an empty compound request");
+        }
+        return session.sendCompound(requests);
+    }
+}
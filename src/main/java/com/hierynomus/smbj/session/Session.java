@@ -21,6 +21,9 @@ import com.hierynomus.mssmb2.messages.SMB2CreateRequest;
 import com.hierynomus.mssmb2.messages.SMB2Logoff;
 import com.hierynomus.mssmb2.messages.SMB2TreeConnectRequest;
 import com.hierynomus.mssmb2.messages.SMB2TreeConnectResponse;
+import com.hierynomus.mssmb2.multichannel.NetworkInterfaceInfo;
+import com.hierynomus.protocol.commons.buffer.Buffer;
+import com.hierynomus.protocol.commons.concurrent.AFuture;
 import com.hierynomus.protocol.commons.concurrent.Futures;
 import com.hierynomus.protocol.transport.TransportException;
 import com.hierynomus.smbj.SmbConfig;
@@ -28,6 +31,7 @@ import com.hierynomus.smbj.auth.AuthenticationContext;
 import com.hierynomus.smbj.common.SMBRuntimeException;
 import com.hierynomus.smbj.common.SmbPath;
 import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.connection.PacketCompressor;
 import com.hierynomus.smbj.connection.PacketEncryptor;
 import com.hierynomus.smbj.connection.Signatory;
 import com.hierynomus.smbj.event.SMBEventBus;
@@ -42,10 +46,22 @@ import org.slf4j.LoggerFactory;
 
 import javax.crypto.SecretKey;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static java.lang.String.format;
@@ -61,23 +77,24 @@ public class Session implements AutoCloseable {
     private final SmbConfig config;
     private SMBEventBus bus;
     private final PathResolver pathResolver;
-    private Signatory signatory;
-    private PacketEncryptor encryptor;
+    private final Channel primaryChannel;
+    // The channels bound to this session next to the one it was established on
+    private final List<Channel> channels = new CopyOnWriteArrayList<>();
+    private final AtomicInteger nextChannel = new AtomicInteger();
     private TreeConnectTable treeConnectTable = new TreeConnectTable();
     private Map<String, Session> nestedSessionsByHost = new HashMap<>();
     private ReentrantReadWriteLock nestedSessionsRwLock = new ReentrantReadWriteLock();
     private AuthenticationContext userCredentials;
     private SessionContext sessionContext;
 
-    public Session(Connection connection, SmbConfig config, AuthenticationContext userCredentials, SMBEventBus bus, PathResolver pathResolver, Signatory signatory, PacketEncryptor encryptor) {
+    public Session(Connection connection, SmbConfig config, AuthenticationContext userCredentials, SMBEventBus bus, PathResolver pathResolver, Signatory signatory, PacketEncryptor encryptor, PacketCompressor compressor) {
         this.connection = connection;
         this.config = config;
         this.userCredentials = userCredentials;
         this.bus = bus;
         this.pathResolver = pathResolver;
-        this.signatory = signatory;
         this.sessionContext = new SessionContext();
-        this.encryptor = encryptor;
+        this.primaryChannel = new Channel(connection, null, signatory, encryptor, compressor);
         if (bus != null) {
             bus.subscribe(this);
         }
@@ -258,6 +275,7 @@ public class Session implements AutoCloseable {
                 throw new SMBApiException(response.getHeader(), "Could not logoff session <<" + sessionId + ">>");
             }
         } finally {
+            closeChannels();
             bus.publish(new SessionLoggedOff(sessionId));
         }
     }
@@ -284,23 +302,237 @@ public class Session implements AutoCloseable {
     }
 
     /**
-     * send a packet.  The packet will be signed or not depending on the session's flags.
+     * Discover the network interfaces of the server using FSCTL_QUERY_NETWORK_INTERFACE_INFO and bind additional
+     * channels to this session, until it has {@link SmbConfig#getMaxChannels()} channels. At most one channel is
+     * bound per interface of the server, preferring the fastest interfaces. Addresses that cannot be bound are
+     * skipped.
+     *
+     * @return the channels that were bound
+     */
+    public List<Channel> bindChannels() {
+        List<Channel> bound = new ArrayList<>();
+        int wanted = config.getMaxChannels() - 1 - channels.size();
+        if (wanted <= 0) {
+            return bound;
+        }
+        int port = connection.getConnectionContext().getServer().getPort();
+        for (InetAddress address : channelAddresses(queryNetworkInterfaces())) {
+            if (bound.size() >= wanted) {
+                break;
+            }
+            try {
+                bound.add(bindChannel(address.getHostAddress(), port));
+            } catch (IOException | SMBRuntimeException e) {
+                logger.warn("Could not bind a channel to {} for session {}: {}", address, sessionId, e.getMessage());
+            }
+        }
+        return bound;
+    }
+
+    /**
+     * [MS-SMB2] 3.2.4.20.10 Application Requests Querying Server's Network Interfaces
+     *
+     * @return the network interfaces of the server
+     */
+    public List<NetworkInterfaceInfo> queryNetworkInterfaces() {
+        Share ipc = connectShare("IPC$");
+        byte[] output = ipc.ioctl(NetworkInterfaceInfo.FSCTL_QUERY_NETWORK_INTERFACE_INFO, true, new byte[0]);
+        try {
+            return NetworkInterfaceInfo.readAll(output);
+        } catch (Buffer.BufferException e) {
+            throw new SMBRuntimeException(e);
+        }
+    }
+
+    /**
+     * Bind this session to a new connection to the server at {@code address}, which is used as an additional channel
+     * for READ and WRITE requests.
+     *
+     * @return the new channel
+     * @throws IOException If the connection could not be established
+     */
+    public Channel bindChannel(String address, int port) throws IOException {
+        Channel channel = connection.bindChannel(this, address, port);
+        channels.add(channel);
+        logger.info("Bound {} to session {}, which now has {} channels", channel, sessionId, channels.size() + 1);
+        return channel;
+    }
+
+    /**
+     * @return the channels of this session, starting with the one the session was established on.
+     */
+    public List<Channel> getChannels() {
+        List<Channel> all = new ArrayList<>(channels.size() + 1);
+        all.add(primaryChannel);
+        all.addAll(channels);
+        return Collections.unmodifiableList(all);
+    }
+
+    private List<InetAddress> channelAddresses(List<NetworkInterfaceInfo> interfaces) {
+        InetAddress primaryAddress = null;
+        try {
+            primaryAddress = InetAddress.getByName(connection.getRemoteHostname());
+        } catch (UnknownHostException e) {
+            logger.debug("Could not resolve {}: {}", connection.getRemoteHostname(), e.getMessage());
+        }
+        Set<Long> usedInterfaces = new HashSet<>();
+        Set<String> boundAddresses = new HashSet<>();
+        for (Channel channel : channels) {
+            boundAddresses.add(channel.getConnection().getRemoteHostname());
+        }
+        for (NetworkInterfaceInfo info : interfaces) {
+            if (info.getAddress().equals(primaryAddress) || boundAddresses.contains(info.getAddress().getHostAddress())) {
+                usedInterfaces.add(info.getIfIndex());
+            }
+        }
+
+        List<NetworkInterfaceInfo> candidates = new ArrayList<>(interfaces);
+        final boolean preferIpv6 = primaryAddress != null && primaryAddress.getAddress().length == 16;
+        Collections.sort(candidates, new Comparator<NetworkInterfaceInfo>() {
+            @Override
+            public int compare(NetworkInterfaceInfo o1, NetworkInterfaceInfo o2) {
+                int speed = Long.compare(o2.getLinkSpeed(), o1.getLinkSpeed());
+                if (speed != 0) {
+                    return speed;
+                }
+                // Prefer the address family of the primary connection
+                return Boolean.compare(isIpv6(o1) != preferIpv6, isIpv6(o2) != preferIpv6);
+            }
+        });
+        List<InetAddress> addresses = new ArrayList<>();
+        for (NetworkInterfaceInfo info : candidates) {
+            if (usedInterfaces.add(info.getIfIndex())) {
+                addresses.add(info.getAddress());
+            }
+        }
+        return addresses;
+    }
+
+    private static boolean isIpv6(NetworkInterfaceInfo info) {
+        return info.getAddress().getAddress().length == 16;
+    }
+
+    private void closeChannels() {
+        for (Channel channel : channels) {
+            try {
+                channel.getConnection().close(true);
+            } catch (IOException e) {
+                logger.debug("{} while closing {} of session {}: {}", e.getClass().getSimpleName(), channel, sessionId, e.getMessage());
+            }
+        }
+        channels.clear();
+    }
+
+    /**
+     * send a packet.  The packet will be signed or not depending on the session's flags. Large WRITE requests are
+     * compressed if compression was negotiated, after signing and before encrypting them.
+     * <p>
+     * If channels are bound to the session, READ requests are sent on the next connected channel in turn, all other
+     * requests on the channel the session was established on. If the channel of a READ request drops before its
+     * response is received, the request is sent again on another channel when the response is waited for. WRITE
+     * requests are not spread: sending one consumes its payload, and replaying it on another channel would need the
+     * channel sequence and the SMB2_FLAGS_REPLAY_OPERATION flag, so it could not fail over.
      *
      * @param packet SMBPacket to send
      * @return a Future to be used to retrieve the response packet
      * @throws TransportException
      */
     public <T extends SMB2Packet> Future<T> send(SMB2Packet packet) throws TransportException {
-        SecretKey signingKey = getSigningKey(packet.getHeader(), true);
+        if (channels.isEmpty()) {
+            return send(primaryChannel, packet);
+        }
+        Channel channel = selectChannel(packet);
+        Future<T> future = send(channel, packet);
+        if (packet.getHeader().getMessage() == SMB2MessageCommandCode.SMB2_READ) {
+            return new FailoverFuture<>(packet, channel, future);
+        }
+        return future;
+    }
+
+    /**
+     * send a packet on the channel of this session that is bound to {@code connection}, for instance to cancel a
+     * request that was sent on it.
+     */
+    public <T extends SMB2Packet> Future<T> send(Connection connection, SMB2Packet packet) throws TransportException {
+        return send(channelFor(connection), packet);
+    }
+
+    private <T extends SMB2Packet> Future<T> send(Channel channel, SMB2Packet packet) throws TransportException {
+        SecretKey signingKey = getSigningKey(channel.getConnection(), packet.getHeader(), true);
         if (sessionContext.isSigningRequired() && signingKey == null) {
             throw new TransportException("Message signing is required, but no signing key is negotiated");
         }
 
         if (shouldEncryptData()) {
-            return connection.send(encryptor.encrypt(packet, sessionContext.getEncryptionKey()));
+            return channel.getConnection().send(channel.getEncryptor().encrypt(channel.getCompressor().compress(packet), sessionContext.getEncryptionKey(), sessionContext.getEncryptionNonceGenerator()));
         }
 
-        return connection.send(signatory.sign(packet, signingKey));
+        return channel.getConnection().send(channel.getCompressor().compress(channel.getSignatory().sign(packet, signingKey)));
+    }
+
+    private Channel selectChannel(SMB2Packet packet) {
+        if (packet.getHeader().getMessage() != SMB2MessageCommandCode.SMB2_READ) {
+            return primaryChannel;
+        }
+        List<Channel> all = getChannels();
+        for (int i = 0; i < all.size(); i++) {
+            Channel channel = all.get((nextChannel.getAndIncrement() & Integer.MAX_VALUE) % all.size());
+            if (channel.isConnected()) {
+                return channel;
+            }
+            if (channels.remove(channel)) {
+                logger.info("{} of session {} was disconnected, {} channels left", channel, sessionId, channels.size() + 1);
+            }
+        }
+        return primaryChannel;
+    }
+
+    private Channel channelFor(Connection connection) {
+        for (Channel channel : channels) {
+            if (channel.getConnection() == connection) {
+                return channel;
+            }
+        }
+        return primaryChannel;
+    }
+
+    /**
+     * Start building a chain of requests that is sent in a single round trip.
+     *
+     * @return a new {@link CompoundBuilder} for this session
+     */
+    public CompoundBuilder compound() {
+        return new CompoundBuilder(this);
+    }
+
+    /**
+     * send the requests as a single compounded request. Each request is signed separately, or the whole chain is
+     * encrypted, depending on the session's flags.
+     * <p>
+     * Compounds are always sent on the channel the session was established on, also when they contain READ
+     * requests, as the responses of related requests depend on each other and cannot fail over one by one.
+     *
+     * @param requests The requests to chain, related requests should already be marked as such
+     * @return a Future per request to be used to retrieve its response packet
+     * @throws TransportException
+     */
+    public List<Future<SMB2Packet>> sendCompound(List<SMB2Packet> requests) throws TransportException {
+        SecretKey signingKey = getSigningKey(requests.get(0).getHeader(), true);
+        if (sessionContext.isSigningRequired() && signingKey == null) {
+            throw new TransportException("Message signing is required, but no signing key is negotiated");
+        }
+
+        boolean encrypt = shouldEncryptData();
+        List<SMB2Packet> chain = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            SMB2Packet chained = SMB2CompoundRequest.chain(requests.get(i), i == requests.size() - 1);
+            chain.add(encrypt ? chained : primaryChannel.getSignatory().sign(chained, signingKey));
+        }
+        SMB2CompoundRequest compound = new SMB2CompoundRequest(chain);
+        if (encrypt) {
+            return connection.sendCompound(primaryChannel.getEncryptor().encrypt(compound, sessionContext.getEncryptionKey(), sessionContext.getEncryptionNonceGenerator()));
+        }
+        return connection.sendCompound(compound);
     }
 
     public <T extends SMB2Packet> T processSendResponse(SMB2CreateRequest packet) throws TransportException {
@@ -325,7 +557,16 @@ public class Session implements AutoCloseable {
      * @return
      */
     public SecretKey getSigningKey(SMB2PacketHeader header, boolean signing) {
-        if (connection.getNegotiatedProtocol().getDialect().isSmb3x()) {
+        return getSigningKey(connection, header, signing);
+    }
+
+    /**
+     * @param connection The connection the message is sent or received on
+     * @param signing If true, check for signing mode, else get for verification mode
+     * @see #getSigningKey(SMB2PacketHeader, boolean)
+     */
+    public SecretKey getSigningKey(Connection connection, SMB2PacketHeader header, boolean signing) {
+        if (this.connection.getNegotiatedProtocol().getDialect().isSmb3x()) {
             if (header.getMessage() == SMB2MessageCommandCode.SMB2_SESSION_SETUP) {
                 if (signing) {
                     return sessionContext.getSigningKey();
@@ -334,7 +575,8 @@ public class Session implements AutoCloseable {
                     return sessionContext.getSigningKey();
                 }
             }
-            return sessionContext.getSigningKey(); // TODO channel.getSigningKey()
+            SecretKey channelSigningKey = channelFor(connection).getSigningKey();
+            return channelSigningKey != null ? channelSigningKey : sessionContext.getSigningKey();
         }
 
         return sessionContext.getSessionKey();
@@ -364,4 +606,79 @@ public class Session implements AutoCloseable {
     public AuthenticationContext getAuthenticationContext() {
         return userCredentials;
     }
+
+    /**
+     * The response to a READ request, which is sent again on another channel if its channel dropped.
+     */
+    private class FailoverFuture<T extends SMB2Packet> extends AFuture<T> {
+        private final SMB2Packet packet;
+        private volatile Channel channel;
+        private volatile Future<T> future;
+
+        FailoverFuture(SMB2Packet packet, Channel channel, Future<T> future) {
+            this.packet = packet;
+            this.channel = channel;
+            this.future = future;
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (ExecutionException e) {
+                    if (!failover()) {
+                        throw e;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (true) {
+                try {
+                    return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (ExecutionException e) {
+                    if (!failover()) {
+                        throw e;
+                    }
+                }
+            }
+        }
+
+        private synchronized boolean failover() {
+            if (channel.isConnected()) {
+                return false;
+            }
+            Channel next = selectChannel(packet);
+            if (next == channel || !next.isConnected()) {
+                return false;
+            }
+            logger.info("{} of session {} dropped, sending {} again on {}", channel, sessionId, packet.getHeader().getMessage(), next);
+            try {
+                future = send(next, packet);
+            } catch (TransportException e) {
+                return false;
+            }
+            channel = next;
+            return true;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return future.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return future.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return future.isDone();
+        }
+    }
 }
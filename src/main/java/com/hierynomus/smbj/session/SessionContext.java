@@ -16,6 +16,7 @@
 package com.hierynomus.smbj.session;
 
 import com.hierynomus.mssmb2.messages.SMB2SessionSetup;
+import com.hierynomus.smbj.connection.NonceGenerator;
 
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
@@ -30,12 +31,16 @@ public class SessionContext {
     private boolean encryptData; // SMB3.x
 
     private SecretKey sessionKey;
+    // SMB 3.1.1 The untruncated GSS key, from which the AES-256 encryption and decryption keys are derived
+    private SecretKey fullSessionKey;
 
     private SecretKey signingKey;
     // SMB 3.x
     private SecretKey decryptionKey;
     private SecretKey encryptionKey;
     private SecretKey applicationKey;
+    // The encryption key is shared by all channels, and so must be the nonces used with it
+    private final NonceGenerator encryptionNonceGenerator = new NonceGenerator();
 
     // SMB 3.1.1
     byte[] preauthIntegrityHashValue;
@@ -84,6 +89,17 @@ public class SessionContext {
         return sessionKey;
     }
 
+    public void setFullSessionKey(SecretKeySpec fullSessionKey) {
+        this.fullSessionKey = fullSessionKey;
+    }
+
+    /**
+     * @return The full session key, or the session key if it was not set.
+     */
+    public SecretKey getFullSessionKey() {
+        return fullSessionKey != null ? fullSessionKey : sessionKey;
+    }
+
     public SecretKey getSigningKey() {
         return signingKey;
     }
@@ -100,6 +116,10 @@ public class SessionContext {
         return applicationKey;
     }
 
+    public NonceGenerator getEncryptionNonceGenerator() {
+        return encryptionNonceGenerator;
+    }
+
     public void setEncryptionKey(SecretKey encryptionKey) {
         this.encryptionKey = encryptionKey;
     }
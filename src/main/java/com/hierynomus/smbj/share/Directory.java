@@ -29,24 +29,25 @@ import com.hierynomus.mssmb2.messages.SMB2ChangeNotifyResponse;
 import com.hierynomus.mssmb2.messages.SMB2QueryDirectoryRequest;
 import com.hierynomus.mssmb2.messages.SMB2QueryDirectoryResponse;
 import com.hierynomus.smbj.common.SmbPath;
+import com.hierynomus.smbj.connection.LeaseEntry;
 
 import java.util.*;
 import java.util.concurrent.Future;
 
 public class Directory extends DiskEntry implements Iterable<FileIdBothDirectoryInformation> {
-    private final com.hierynomus.smbj.connection.LeaseEntry leaseEntry; // nullable
+    private final LeaseEntry leaseEntry; // nullable
 
     Directory(SMB2FileId fileId, DiskShare diskShare, SmbPath fileName) {
         this(fileId, diskShare, fileName, null);
     }
 
-    Directory(SMB2FileId fileId, DiskShare diskShare, SmbPath fileName, com.hierynomus.smbj.connection.LeaseEntry leaseEntry) {
+    Directory(SMB2FileId fileId, DiskShare diskShare, SmbPath fileName, LeaseEntry leaseEntry) {
         super(fileId, diskShare, fileName);
         this.leaseEntry = leaseEntry;
     }
 
     /** The directory lease granted on this open, or {@code null} if none. */
-    public com.hierynomus.smbj.connection.LeaseEntry getLeaseEntry() {
+    public LeaseEntry getLeaseEntry() {
         return leaseEntry;
     }
 
@@ -75,8 +76,18 @@ public class Directory extends DiskEntry implements Iterable<FileIdBothDirectory
      * @see #iterator(Class, String)
      */
     public <F extends FileDirectoryQueryableInformation> List<F> list(Class<F> informationClass, String searchPattern) {
+        return list(informationClass, searchPattern, share.getTransactBufferSize());
+    }
+
+    /**
+     * Calls {@link #iterator(Class, String, int) iterator(informationClass, searchPattern, outputBufferSize)} and
+     * collects the contents of the returned iterator in a list.
+     *
+     * @see #iterator(Class, String, int)
+     */
+    public <F extends FileDirectoryQueryableInformation> List<F> list(Class<F> informationClass, String searchPattern, int outputBufferSize) {
         List<F> fileList = new ArrayList<>();
-        Iterator<F> iterator = iterator(informationClass, searchPattern);
+        Iterator<F> iterator = iterator(informationClass, searchPattern, outputBufferSize);
         while (iterator.hasNext()) {
             fileList.add(iterator.next());
         }
@@ -119,9 +130,26 @@ public class Directory extends DiskEntry implements Iterable<FileIdBothDirectory
      * The "*" (asterisk) character matches an entire file name. A null or empty specification criterion also selects
      * all file names. For example, "*.abc" or ".abc" match any file with an extension of "abc". "*.*", "*", or empty
      * string("") match all files in a directory.
+     * <p>
+     * The contents are retrieved in batches of at most the transact buffer size. The next batch is requested while the
+     * current one is being iterated over.
      */
     public <F extends FileDirectoryQueryableInformation> Iterator<F> iterator(Class<F> informationClass, String searchPattern) {
-        return new DirectoryIterator<>(informationClass, searchPattern);
+        return iterator(informationClass, searchPattern, share.getTransactBufferSize());
+    }
+
+    /**
+     * Returns an iterator of the contents of this directory, which are retrieved in batches of at most
+     * {@code outputBufferSize} bytes. A larger size than the transact buffer size reduces the number of round trips
+     * for huge directories, it is limited to the maximum transact size negotiated with the server.
+     *
+     * @see #iterator(Class, String)
+     */
+    public <F extends FileDirectoryQueryableInformation> Iterator<F> iterator(Class<F> informationClass, String searchPattern, int outputBufferSize) {
+        if (outputBufferSize < 1) {
+            throw new IllegalArgumentException("Output buffer size should be at least 1 byte");
+        }
+        return new DirectoryIterator<>(informationClass, searchPattern, outputBufferSize);
     }
 
     /***
@@ -149,14 +177,17 @@ public class Directory extends DiskEntry implements Iterable<FileIdBothDirectory
 
     private class DirectoryIterator<F extends FileDirectoryQueryableInformation> implements Iterator<F> {
         private final FileInformation.Decoder<F> decoder;
+        private final int outputBufferSize;
         private Iterator<F> currentIterator;
         private byte[] currentBuffer;
+        private Future<SMB2QueryDirectoryResponse> nextResponse;
         private F next;
         private String searchPattern;
 
-        DirectoryIterator(Class<F> informationClass, String searchPattern) {
+        DirectoryIterator(Class<F> informationClass, String searchPattern, int outputBufferSize) {
             decoder = FileInformationFactory.getDecoder(informationClass);
             this.searchPattern = searchPattern;
+            this.outputBufferSize = outputBufferSize;
             queryDirectory(true);
             this.next = prepareNext();
         }
@@ -190,18 +221,19 @@ public class Directory extends DiskEntry implements Iterable<FileIdBothDirectory
 
         private void queryDirectory(boolean firstQuery) {
             DiskShare share = Directory.this.share;
+            FileInformationClass informationClass = decoder.getInformationClass();
 
             // Query Directory Request
-            EnumSet<SMB2QueryDirectoryRequest.SMB2QueryDirectoryFlags> flags;
+            Future<SMB2QueryDirectoryResponse> future;
             if (firstQuery) {
-                flags = EnumSet.of(SMB2QueryDirectoryRequest.SMB2QueryDirectoryFlags.SMB2_RESTART_SCANS);
+                future = share.queryDirectoryAsync(fileId, EnumSet.of(SMB2QueryDirectoryRequest.SMB2QueryDirectoryFlags.SMB2_RESTART_SCANS),
+                    informationClass, searchPattern, outputBufferSize);
             } else {
-                flags = EnumSet.noneOf(SMB2QueryDirectoryRequest.SMB2QueryDirectoryFlags.class);
+                future = nextResponse;
             }
+            nextResponse = null;
 
-            FileInformationClass informationClass = decoder.getInformationClass();
-
-            SMB2QueryDirectoryResponse qdResp = share.queryDirectory(fileId, flags, informationClass, searchPattern);
+            SMB2QueryDirectoryResponse qdResp = share.receiveQueryDirectory(future, fileId);
 
             long status = qdResp.getHeader().getStatusCode();
             byte[] buffer = qdResp.getOutputBuffer();
@@ -216,6 +248,9 @@ public class Directory extends DiskEntry implements Iterable<FileIdBothDirectory
             } else {
                 currentBuffer = buffer;
                 currentIterator = FileInformationFactory.createFileInformationIterator(currentBuffer, decoder);
+                // Have the server retrieve the next batch while this one is being iterated over
+                nextResponse = share.queryDirectoryAsync(fileId, EnumSet.noneOf(SMB2QueryDirectoryRequest.SMB2QueryDirectoryFlags.class),
+                    informationClass, searchPattern, outputBufferSize);
             }
         }
 
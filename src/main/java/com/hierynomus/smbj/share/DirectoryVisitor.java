@@ -0,0 +1,44 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import com.hierynomus.msfscc.fileinformation.FileIdBothDirectoryInformation;
+import com.hierynomus.mssmb2.SMBApiException;
+
+/**
+ * Receives the entries found by {@link DiskShare#walk(String, int, int, DirectoryVisitor)}. The visitor is called
+ * from the thread that started the walk.
+ */
+public interface DirectoryVisitor {
+    /**
+     * Called for every entry of a listed directory, except for "." and "..".
+     *
+     * @param path the path of the entry relative to the start directory of the walk, with '\' as separator
+     * @param entry the directory information of the entry
+     * @return {@code true} to list the entry if it is a directory within the depth limit, {@code false} to prune it.
+     * Ignored for files.
+     */
+    boolean visit(String path, FileIdBothDirectoryInformation entry);
+
+    /**
+     * Called when a directory below the start directory of the walk could not be opened or listed, e.g. because
+     * access was denied. Throw the exception to abort the walk, return to continue with the next directory.
+     *
+     * @param path the path of the directory relative to the start directory of the walk
+     * @param e    the failure
+     */
+    void visitFailed(String path, SMBApiException e);
+}
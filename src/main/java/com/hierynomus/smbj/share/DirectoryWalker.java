@@ -0,0 +1,252 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.msfscc.fileinformation.FileIdBothDirectoryInformation;
+import com.hierynomus.msfscc.fileinformation.FileInformation;
+import com.hierynomus.msfscc.fileinformation.FileInformationFactory;
+import com.hierynomus.mssmb2.SMB2CompoundRequest;
+import com.hierynomus.mssmb2.SMB2FileId;
+import com.hierynomus.mssmb2.SMB2Packet;
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.mssmb2.messages.SMB2QueryDirectoryRequest.SMB2QueryDirectoryFlags;
+import com.hierynomus.mssmb2.messages.SMB2QueryDirectoryResponse;
+import com.hierynomus.protocol.commons.EnumWithValue;
+import com.hierynomus.smbj.common.SmbPath;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import static com.hierynomus.msdtyp.AccessMask.*;
+import static com.hierynomus.msfscc.FileAttributes.FILE_ATTRIBUTE_DIRECTORY;
+import static com.hierynomus.msfscc.FileAttributes.FILE_ATTRIBUTE_REPARSE_POINT;
+import static com.hierynomus.mssmb2.SMB2CreateDisposition.FILE_OPEN;
+import static com.hierynomus.mssmb2.SMB2CreateOptions.FILE_DIRECTORY_FILE;
+import static com.hierynomus.mssmb2.SMB2ShareAccess.ALL;
+import static java.util.EnumSet.of;
+
+/**
+ * Walks a directory tree of a {@link DiskShare} with up to {@code parallelism} directories being listed at the same
+ * time, all from the calling thread.
+ * <p>
+ * Every directory is opened with a compound of a CREATE and two related QUERY_DIRECTORY requests, so a directory that
+ * fits in a single QUERY_DIRECTORY response is listed in one round trip. Larger directories are continued with one
+ * QUERY_DIRECTORY at a time, while the other directories are being listed. Handles are closed without waiting for the
+ * CLOSE response. The responses are processed in the order the directories were opened.
+ * <p>
+ * The compounds do not go through the path resolver of the share, so if the start directory is behind a DFS link or a
+ * symbolic link, it is resolved by opening it as a {@link Directory} and the walk continues on the resolved share.
+ */
+class DirectoryWalker {
+    private static final Logger logger = LoggerFactory.getLogger(DirectoryWalker.class);
+
+    private DiskShare share;
+    private String start;
+    private boolean resolved; // whether the start directory was opened through the path resolver
+    private final int maxDepth;
+    private final int parallelism;
+    private final DirectoryVisitor visitor;
+    private final FileInformation.Decoder<FileIdBothDirectoryInformation> decoder =
+        FileInformationFactory.getDecoder(FileIdBothDirectoryInformation.class);
+    private final Deque<Listing> pending = new ArrayDeque<>();
+    private final Deque<Listing> inFlight = new ArrayDeque<>();
+
+    DirectoryWalker(DiskShare share, String start, int maxDepth, int parallelism, DirectoryVisitor visitor) {
+        this.share = share;
+        this.start = start == null ? "" : start;
+        this.maxDepth = maxDepth;
+        this.parallelism = parallelism;
+        this.visitor = visitor;
+    }
+
+    void walk() {
+        pending.add(new Listing("", 0));
+        try {
+            while (!pending.isEmpty() || !inFlight.isEmpty()) {
+                while (inFlight.size() < parallelism && !pending.isEmpty()) {
+                    // Depth first, which keeps the number of pending directories small
+                    Listing listing = pending.pollLast();
+                    open(listing);
+                    inFlight.add(listing);
+                }
+                Listing listing = inFlight.poll();
+                boolean complete;
+                try {
+                    complete = process(listing);
+                } catch (RuntimeException e) {
+                    closeSilently(listing);
+                    throw e;
+                }
+                if (!complete) {
+                    inFlight.add(listing);
+                }
+            }
+        } finally {
+            for (Listing listing : inFlight) {
+                closeSilently(listing);
+            }
+            inFlight.clear();
+            pending.clear();
+        }
+    }
+
+    private void open(Listing listing) {
+        SMB2Packet[] queries = new SMB2Packet[]{
+            share.newQueryDirectoryRequest(SMB2CompoundRequest.RELATED_FILE_ID,
+                EnumSet.of(SMB2QueryDirectoryFlags.SMB2_RESTART_SCANS), decoder.getInformationClass(), null),
+            share.newQueryDirectoryRequest(SMB2CompoundRequest.RELATED_FILE_ID,
+                EnumSet.noneOf(SMB2QueryDirectoryFlags.class), decoder.getInformationClass(), null)
+        };
+        List<Future<SMB2Packet>> futures = share.sendCreateRelated(listing.target,
+            of(FILE_LIST_DIRECTORY, FILE_READ_ATTRIBUTES, FILE_READ_EA), null, ALL, FILE_OPEN, of(FILE_DIRECTORY_FILE), queries);
+        listing.create = futures.get(0);
+        listing.queries.addAll(futures.subList(1, futures.size()));
+    }
+
+    /**
+     * Process the outstanding responses of the listing.
+     *
+     * @return whether the listing is complete, if not a next QUERY_DIRECTORY has been sent
+     */
+    private boolean process(Listing listing) {
+        try {
+            if (listing.fileId == null) {
+                listing.fileId = share.receiveCreate(listing.create, listing.target).getFileId();
+            }
+            while (!listing.queries.isEmpty()) {
+                SMB2QueryDirectoryResponse response = share.receiveQueryDirectory(listing.queries.poll(), listing.target);
+                if (!visitEntries(listing, response)) {
+                    // The remaining QUERY_DIRECTORY of the compound is answered with STATUS_NO_MORE_FILES
+                    listing.queries.clear();
+                    close(listing);
+                    return true;
+                }
+            }
+        } catch (SMBApiException e) {
+            listing.queries.clear();
+            if (listing.fileId != null) {
+                close(listing);
+            }
+            if (listing.depth == 0 && listing.fileId == null && !resolved && needsResolving(e)) {
+                resolveStart();
+                pending.add(new Listing("", 0));
+                return true;
+            }
+            if (listing.depth == 0) {
+                throw e;
+            }
+            visitor.visitFailed(listing.path, e);
+            return true;
+        }
+        listing.queries.add(share.queryDirectoryAsync(listing.fileId, EnumSet.noneOf(SMB2QueryDirectoryFlags.class),
+            decoder.getInformationClass(), null));
+        return false;
+    }
+
+    private boolean needsResolving(SMBApiException e) {
+        return e.getStatus() == NtStatus.STATUS_PATH_NOT_COVERED || e.getStatus() == NtStatus.STATUS_STOPPED_ON_SYMLINK;
+    }
+
+    /**
+     * Open the start directory through the path resolver of the share, and continue on the share and path it resolved
+     * to.
+     */
+    private void resolveStart() {
+        logger.debug("Resolving start directory {} of the walk", start);
+        try (Directory directory = share.openDirectory(start, of(FILE_LIST_DIRECTORY, FILE_READ_ATTRIBUTES), null, ALL, FILE_OPEN, null)) {
+            share = directory.getDiskShare();
+            start = directory.getPath();
+        }
+        resolved = true;
+    }
+
+    /**
+     * @return whether the directory may have more entries
+     */
+    private boolean visitEntries(Listing listing, SMB2QueryDirectoryResponse response) {
+        long status = response.getHeader().getStatusCode();
+        byte[] buffer = response.getOutputBuffer();
+        // Like the DirectoryIterator, stop on a repeated response as the macOS SMB server does not always send
+        // STATUS_NO_MORE_FILES
+        if (status == NtStatus.STATUS_NO_MORE_FILES.getValue() || status == NtStatus.STATUS_NO_SUCH_FILE.getValue()
+            || (listing.lastBuffer != null && Arrays.equals(listing.lastBuffer, buffer))) {
+            return false;
+        }
+        listing.lastBuffer = buffer;
+        Iterator<FileIdBothDirectoryInformation> entries = FileInformationFactory.createFileInformationIterator(buffer, decoder);
+        while (entries.hasNext()) {
+            FileIdBothDirectoryInformation entry = entries.next();
+            String name = entry.getFileName();
+            if (".".equals(name) || "..".equals(name)) {
+                continue;
+            }
+            String path = listing.path.isEmpty() ? name : listing.path + "\\" + name;
+            boolean descend = visitor.visit(path, entry);
+            long attributes = entry.getFileAttributes();
+            if (descend && listing.depth + 1 < maxDepth
+                && EnumWithValue.EnumUtils.isSet(attributes, FILE_ATTRIBUTE_DIRECTORY)
+                && !EnumWithValue.EnumUtils.isSet(attributes, FILE_ATTRIBUTE_REPARSE_POINT)) {
+                pending.add(new Listing(path, listing.depth + 1));
+            }
+        }
+        return true;
+    }
+
+    private void close(Listing listing) {
+        listing.closed = true;
+        share.closeFileIdNoWait(listing.fileId);
+    }
+
+    private void closeSilently(Listing listing) {
+        if (listing.closed) {
+            return;
+        }
+        try {
+            if (listing.fileId == null) {
+                listing.fileId = share.receiveCreate(listing.create, listing.target).getFileId();
+            }
+            close(listing);
+        } catch (RuntimeException e) {
+            logger.debug("Could not close directory {} of aborted walk", listing.target, e);
+        }
+    }
+
+    private class Listing {
+        private final String path;
+        private final int depth;
+        private final SmbPath target;
+        private final Deque<Future<? extends SMB2Packet>> queries = new ArrayDeque<>();
+        private Future<? extends SMB2Packet> create;
+        private SMB2FileId fileId;
+        private byte[] lastBuffer;
+        private boolean closed;
+
+        Listing(String path, int depth) {
+            this.path = path;
+            this.depth = depth;
+            String full = start.isEmpty() ? path : path.isEmpty() ? start : start + "\\" + path;
+            this.target = new SmbPath(share.getSmbPath(), full);
+        }
+    }
+}
@@ -86,6 +86,7 @@ public abstract class DiskEntry extends Open<DiskShare> {
     }
 
     public <F extends FileSettableInformation> void setFileInformation(F information) {
+        share.invalidateMetadata(name.getPath());
         share.setFileInformation(fileId, information);
     }
 
@@ -130,6 +131,7 @@ public abstract class DiskEntry extends Open<DiskShare> {
     public void rename(String newName, boolean replaceIfExist, long rootDirectory) throws SMBApiException {
         FileRenameInformation renameInfo = new FileRenameInformation(replaceIfExist, rootDirectory, newName);
         this.setFileInformation(renameInfo);
+        share.invalidateMetadata(newName);
     }
 
     /**
@@ -228,6 +230,7 @@ public abstract class DiskEntry extends Open<DiskShare> {
     }
 
     public void deleteOnClose() {
+        share.invalidateMetadata(name.getPath());
         share.deleteOnClose(fileId);
     }
 
@@ -24,10 +24,14 @@ import com.hierynomus.msfscc.fileinformation.*;
 import com.hierynomus.mssmb2.*;
 import com.hierynomus.mssmb2.messages.SMB2CreateResponse;
 import com.hierynomus.mssmb2.messages.SMB2QueryInfoRequest;
+import com.hierynomus.mssmb2.messages.SMB2QueryInfoResponse;
 import com.hierynomus.mssmb2.messages.SMB2SetInfoRequest;
 import com.hierynomus.mssmb2.messages.create.SMB2CreateContext;
+import com.hierynomus.mssmb2.messages.create.SMB2DurableHandleRequestV2;
+import com.hierynomus.mssmb2.messages.create.SMB2DurableHandleResponseV2;
 import com.hierynomus.mssmb2.messages.create.SMB2LeaseCreateContext;
 import com.hierynomus.mssmb2.messages.create.SMB2LeaseResponseContext;
+import com.hierynomus.smbj.SmbConfig;
 import com.hierynomus.smbj.connection.ConnectionContext;
 import com.hierynomus.smbj.connection.LeaseEntry;
 import com.hierynomus.smbj.connection.LeaseManager;
@@ -41,9 +45,12 @@ import com.hierynomus.smbj.paths.PathResolveException;
 import com.hierynomus.smbj.paths.PathResolver;
 import com.hierynomus.smbj.session.Session;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Set;
+import java.util.UUID;
 
 import static com.hierynomus.msdtyp.AccessMask.*;
 import static com.hierynomus.mserref.NtStatus.*;
@@ -59,17 +66,22 @@ import static java.util.EnumSet.noneOf;
 import static java.util.EnumSet.of;
 
 public class DiskShare extends Share {
+    private static final int DEFAULT_WALK_PARALLELISM = 16;
     private final PathResolver resolver;
+    private final MetadataCache metadataCache; // nullable
 
     public DiskShare(SmbPath smbPath, TreeConnect treeConnect, PathResolver pathResolver) {
         super(smbPath, treeConnect);
         this.resolver = pathResolver;
+        SmbConfig config = treeConnect.getConfig();
+        this.metadataCache = config.getMetadataCacheSize() > 0
+            ? new MetadataCache(config.getMetadataCacheSize(), config.getMetadataCacheTtl()) : null;
     }
 
     public DiskEntry open(String path, Set<AccessMask> accessMask, Set<FileAttributes> attributes, Set<SMB2ShareAccess> shareAccesses, SMB2CreateDisposition createDisposition, Set<SMB2CreateOptions> createOptions) {
         SmbPath pathAndFile = new SmbPath(smbPath, path);
         SMB2CreateResponseContext response = resolveAndCreateFile(pathAndFile, null, accessMask, attributes, shareAccesses, createDisposition, createOptions,
-            SMB2OplockLevel.SMB2_OPLOCK_LEVEL_NONE, java.util.Collections.<SMB2CreateContext>emptyList());
+            SMB2OplockLevel.SMB2_OPLOCK_LEVEL_NONE, Collections.<SMB2CreateContext>emptyList());
         return getDiskEntry(response);
     }
 
@@ -113,6 +125,9 @@ public class DiskShare extends Share {
                                                            final Set<FileAttributes> fileAttributes, final Set<SMB2ShareAccess> shareAccess,
                                                            final SMB2CreateDisposition createDisposition, final Set<SMB2CreateOptions> createOptions,
                                                            final SMB2OplockLevel oplockLevel, final List<SMB2CreateContext> createContexts) {
+        if (createDisposition != FILE_OPEN) {
+            invalidateMetadata(path.getPath());
+        }
         try {
             SMB2CreateResponseContext target = resolver.resolve(session, path, new PathResolver.ResolveAction<SMB2CreateResponseContext>() {
                 @Override
@@ -141,6 +156,84 @@ public class DiskShare extends Share {
         return this;
     }
 
+    /**
+     * Open the path, send the related requests for it and close it again, in a single round trip instead of three.
+     *
+     * @return the responses, starting with the (successful) CREATE response and ending with the CLOSE response, or
+     * {@code null} if the path needs to be resolved further (e.g. it is a symlink), in which case the caller should
+     * fall back to opening the path.
+     */
+    private List<SMB2Packet> openRelatedAndClose(String path, final Set<AccessMask> accessMask,
+                                                 final Set<FileAttributes> attributes, final Set<SMB2ShareAccess> shareAccesses,
+                                                 final SMB2CreateDisposition createDisposition, final Set<SMB2CreateOptions> createOptions,
+                                                 final RelatedRequests relatedRequests) {
+        final SmbPath pathAndFile = new SmbPath(smbPath, path);
+        if (createDisposition != FILE_OPEN) {
+            invalidateMetadata(pathAndFile.getPath());
+        }
+        try {
+            return resolver.resolve(session, pathAndFile, new PathResolver.ResolveAction<List<SMB2Packet>>() {
+                @Override
+                public List<SMB2Packet> apply(SmbPath target) {
+                    DiskShare resolvedShare = rerouteIfNeeded(pathAndFile, target);
+                    List<SMB2Packet> responses = resolvedShare.createRelatedAndClose(target, accessMask, attributes,
+                        shareAccesses, createDisposition, createOptions, relatedRequests.create(resolvedShare));
+                    SMB2PacketHeader createHeader = responses.get(0).getHeader();
+                    if (createHeader.getStatusCode() == STATUS_SUCCESS.getValue()) {
+                        return responses;
+                    } else if (resolvedShare.getCreateStatusHandler().isSuccess(createHeader.getStatusCode())) {
+                        return null;
+                    }
+                    throw new SMBApiException(createHeader, "Create failed for " + target);
+                }
+            });
+        } catch (PathResolveException pre) {
+            throw new SMBApiException(pre.getStatus().getValue(), SMB2MessageCommandCode.SMB2_CREATE,
+                "Cannot resolve path " + pathAndFile, pre);
+        }
+    }
+
+    private static <T extends SMB2Packet> T checkRelatedResponse(SMB2Packet response, String name, String path) {
+        if (response.getHeader().getStatusCode() != STATUS_SUCCESS.getValue()) {
+            throw new SMBApiException(response.getHeader(), name + " failed for " + path);
+        }
+        @SuppressWarnings("unchecked")
+        T typed = (T) response;
+        return typed;
+    }
+
+    /**
+     * Creates the requests to send related to a CREATE on the (resolved) share.
+     */
+    private interface RelatedRequests {
+        SMB2Packet[] create(DiskShare share);
+    }
+
+    private static final RelatedRequests NO_RELATED_REQUESTS = new RelatedRequests() {
+        @Override
+        public SMB2Packet[] create(DiskShare share) {
+            return new SMB2Packet[0];
+        }
+    };
+
+    private static RelatedRequests setInfo(final FileSettableInformation information) {
+        return new RelatedRequests() {
+            @Override
+            public SMB2Packet[] create(DiskShare share) {
+                FileInformation.Encoder<FileSettableInformation> encoder = FileInformationFactory.getEncoder(information);
+                return new SMB2Packet[]{share.newSetInfoRequest(SMB2CompoundRequest.RELATED_FILE_ID,
+                    SMB2SetInfoRequest.SMB2InfoType.SMB2_0_INFO_FILE, null, encoder.getInformationClass(),
+                    encode(encoder, information))};
+            }
+        };
+    }
+
+    private static <F extends FileSettableInformation> byte[] encode(FileInformation.Encoder<F> encoder, F information) {
+        SMBBuffer buffer = new SMBBuffer();
+        encoder.write(information, buffer);
+        return buffer.getCompactData();
+    }
+
     protected DiskEntry getDiskEntry(SMB2CreateResponseContext responseContext) {
         SMB2CreateResponse response = responseContext.resp;
         if (response.getFileAttributes().contains(FILE_ATTRIBUTE_DIRECTORY)) {
@@ -207,7 +300,7 @@ public class DiskShare extends Share {
         SMB2CreateResponseContext rc;
         try {
             rc = resolveAndCreateFile(full, null, accessMask, attributes, shareAccesses, createDisposition, createOptions,
-                SMB2OplockLevel.SMB2_OPLOCK_LEVEL_LEASE, java.util.Collections.singletonList(leaseCtx));
+                SMB2OplockLevel.SMB2_OPLOCK_LEVEL_LEASE, Collections.singletonList(leaseCtx));
         } catch (RuntimeException e) {
             if (!reuse) {
                 lm.unregister(leaseKey);
@@ -276,6 +369,15 @@ public class DiskShare extends Share {
         EnumSet<FileAttributes> actualAttributes = attributes != null ? EnumSet.copyOf(attributes) : EnumSet.noneOf(FileAttributes.class);
         actualAttributes.remove(FILE_ATTRIBUTE_DIRECTORY);
 
+        SmbConfig config = getTreeConnect().getConfig();
+        boolean durable = config.isDurableHandlesEnabled() && getDialect().isSmb3x();
+        if (config.isFileLeasingEnabled() && getDialect().isSmb3x() && getConnectionContext().supportsFileLeasing()) {
+            return openFileWithLease(path, accessMask, actualAttributes, shareAccesses, createDisposition, actualCreateOptions, durable);
+        }
+        if (durable) {
+            return openDurableFile(path, accessMask, actualAttributes, shareAccesses, createDisposition, actualCreateOptions);
+        }
+
         return (File) open(
             path,
             accessMask,
@@ -286,6 +388,183 @@ public class DiskShare extends Share {
         );
     }
 
+    /**
+     * Open a file requesting an SMB3 read/write/handle lease (V2 RqLs). All handles to the same path share the lease
+     * key, and with it one {@link LeaseEntry} and its {@link LeasedFileCache}; the entry is registered <b>before</b>
+     * the CREATE is sent and unregistered when the last handle is closed. If {@code durable}, a durable handle is
+     * requested as well.
+     * <p>
+     * If the path resolves (DFS) to a share on another connection, the breaks of the granted lease arrive on that
+     * connection, so the entry is moved to its {@link LeaseManager}.
+     */
+    private File openFileWithLease(String path, Set<AccessMask> accessMask, Set<FileAttributes> attributes,
+                                   Set<SMB2ShareAccess> shareAccesses, SMB2CreateDisposition createDisposition,
+                                   Set<SMB2CreateOptions> createOptions, boolean durable) {
+        LeaseManager lm = session.getConnection().getLeaseManager();
+        SmbPath full = new SmbPath(smbPath, path);
+        String rel = full.getPath() == null ? "" : full.getPath();
+
+        LeaseKey leaseKey = lm.leaseKeyForPath(rel);
+        SmbPath parent = full.getParent();
+        LeaseKey parentKey = parent != null ? lm.leaseKeyForExistingPath(parent.getPath() == null ? "" : parent.getPath()) : null;
+
+        long requestedState = SMB2LeaseState.readWriteHandle();
+        SMB2CreateContext leaseCtx = SMB2LeaseCreateContext.v2(leaseKey, requestedState, parentKey).toCreateContext();
+        List<SMB2CreateContext> createContexts = new ArrayList<>(2);
+        createContexts.add(leaseCtx);
+        SMB2DurableHandleRequestV2 durableRequest = durable ? durableHandleRequest() : null;
+        if (durableRequest != null) {
+            createContexts.add(durableRequest.toCreateContext());
+        }
+
+        LeaseEntry entry = fileLeaseEntry(lm, leaseKey, parentKey, requestedState, rel); // *** register BEFORE send ***
+
+        SMB2CreateResponseContext rc;
+        try {
+            rc = resolveAndCreateFile(full, null, accessMask, attributes, shareAccesses, createDisposition, createOptions,
+                SMB2OplockLevel.SMB2_OPLOCK_LEVEL_LEASE, createContexts);
+        } catch (RuntimeException e) {
+            release(lm, entry, null);
+            throw e;
+        }
+
+        LeaseManager resolvedLm = rc.share.session.getConnection().getLeaseManager();
+        if (resolvedLm != lm) {
+            release(lm, entry, null);
+            entry = rc.share.fileLeaseEntry(resolvedLm, leaseKey, parentKey, requestedState, rel);
+            lm = resolvedLm;
+        }
+        LeasedFileCache cache = entry.getFileCache();
+
+        SMB2CreateResponse resp = rc.resp;
+        SMB2LeaseResponseContext lease;
+        try {
+            lease = resp.getLeaseResponseContext();
+        } catch (Buffer.BufferException be) {
+            throw new SMBRuntimeException("Failed to parse lease response context", be);
+        }
+        File file;
+        if (resp.getOplockLevel() == SMB2OplockLevel.SMB2_OPLOCK_LEVEL_LEASE && lease != null) {
+            entry.setFileId(resp.getFileId());
+            entry.setGrantedState(lease.getLeaseState());
+            entry.setEpoch(lease.getEpoch());
+            entry.setGranted(true);
+            entry.setOwner(rc.share.session, rc.share.getTreeConnect().getTreeId(), rc.share.getTreeConnect().getNegotiatedProtocol().getDialect());
+            cache.setLeaseState(lease.getLeaseState());
+            cache.setEndOfFile(resp.getEndOfFile());
+            file = new File(resp.getFileId(), rc.share, rc.target, entry);
+            cache.attach(file, isReadWriteAccess(accessMask));
+        } else {
+            release(lm, entry, null); // server granted no lease
+            entry = null;
+            file = new File(resp.getFileId(), rc.share, rc.target);
+        }
+        if (durableRequest != null) {
+            trackDurable(rc, durableRequest, accessMask, attributes, shareAccesses, createOptions, entry);
+        }
+        return file;
+    }
+
+    /**
+     * The lease entry, with its file cache, of the lease key on the lease manager; registered if it is not yet.
+     */
+    private LeaseEntry fileLeaseEntry(LeaseManager lm, LeaseKey leaseKey, LeaseKey parentKey, long requestedState, String rel) {
+        synchronized (lm) {
+            LeaseEntry entry = lm.lookup(leaseKey);
+            if (entry == null) {
+                entry = new LeaseEntry(leaseKey, parentKey, requestedState, rel);
+                int pageSize = Math.min(LeasedFileCache.MAX_PAGE_SIZE, Math.min(getReadBufferSize(), getWriteBufferSize()));
+                entry.setFileCache(new LeasedFileCache(pageSize, Math.max(1, getTreeConnect().getConfig().getFileCacheSize() / pageSize)));
+                lm.register(entry);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Whether a handle opened with the access mask can cache writes: it loads the partially written pages and writes
+     * back the data cached for the file.
+     */
+    private static boolean isReadWriteAccess(Set<AccessMask> accessMask) {
+        if (accessMask == null) {
+            return false;
+        }
+        if (accessMask.contains(GENERIC_ALL) || accessMask.contains(MAXIMUM_ALLOWED)) {
+            return true;
+        }
+        return (accessMask.contains(FILE_READ_DATA) || accessMask.contains(GENERIC_READ))
+            && (accessMask.contains(FILE_WRITE_DATA) || accessMask.contains(GENERIC_WRITE));
+    }
+
+    /**
+     * Open a file requesting a durable handle. Without a handle lease the server only grants this as a persistent
+     * handle on a continuously available share.
+     */
+    private File openDurableFile(String path, Set<AccessMask> accessMask, Set<FileAttributes> attributes,
+                                 Set<SMB2ShareAccess> shareAccesses, SMB2CreateDisposition createDisposition,
+                                 Set<SMB2CreateOptions> createOptions) {
+        SMB2DurableHandleRequestV2 durableRequest = durableHandleRequest();
+        SMB2CreateResponseContext rc = resolveAndCreateFile(new SmbPath(smbPath, path), null, accessMask, attributes,
+            shareAccesses, createDisposition, createOptions, SMB2OplockLevel.SMB2_OPLOCK_LEVEL_NONE,
+            Collections.singletonList(durableRequest.toCreateContext()));
+        trackDurable(rc, durableRequest, accessMask, attributes, shareAccesses, createOptions, null);
+        return new File(rc.resp.getFileId(), rc.share, rc.target);
+    }
+
+    /**
+     * A DH2Q context with a new CreateGuid, asking for a persistent handle on a continuously available share.
+     */
+    private SMB2DurableHandleRequestV2 durableHandleRequest() {
+        return new SMB2DurableHandleRequestV2(getTreeConnect().getConfig().getDurableHandleTimeout(),
+            getTreeConnect().isCAShare(), UUID.randomUUID());
+    }
+
+    /**
+     * Keep the open on its share to reclaim it after a reconnect, if the server granted the durable handle.
+     */
+    private static void trackDurable(SMB2CreateResponseContext rc, SMB2DurableHandleRequestV2 request,
+                                     Set<AccessMask> accessMask, Set<FileAttributes> attributes,
+                                     Set<SMB2ShareAccess> shareAccesses, Set<SMB2CreateOptions> createOptions,
+                                     LeaseEntry entry) {
+        SMB2DurableHandleResponseV2 granted;
+        try {
+            granted = rc.resp.getDurableHandleResponseContext();
+        } catch (Buffer.BufferException be) {
+            throw new SMBRuntimeException("Failed to parse durable handle response context", be);
+        }
+        if (granted != null) {
+            rc.share.durable(new DurableOpen(rc.resp.getFileId(), request.getCreateGuid(), granted.isPersistent(),
+                rc.target, accessMask, attributes, shareAccesses, createOptions, entry));
+        }
+    }
+
+    @Override
+    protected void reconnected() {
+        invalidateMetadata("");
+    }
+
+    /**
+     * Detach a closed handle from its lease, dropping the lease entry once no handle uses it anymore.
+     */
+    static void release(LeaseManager lm, LeaseEntry entry, File file) {
+        synchronized (lm) {
+            if (entry.getFileCache().detach(file)) {
+                lm.unregister(entry.getLeaseKey());
+            }
+        }
+    }
+
+    /**
+     * Drop the cached file information of the given path, of everything below it and of its parent directory.
+     *
+     * @see com.hierynomus.smbj.SmbConfig.Builder#withMetadataCache(int, long, java.util.concurrent.TimeUnit)
+     */
+    void invalidateMetadata(String path) {
+        if (metadataCache != null) {
+            metadataCache.invalidate(path);
+        }
+    }
+
     private static final StatusHandler FILE_EXISTS_STATUS_HANDLER = new StatusHandler() {
         @Override
         public boolean isSuccess(long statusCode) {
@@ -321,8 +600,13 @@ public class DiskShare extends Share {
     }
 
     private boolean exists(String path, EnumSet<SMB2CreateOptions> createOptions, StatusHandler statusHandler) throws SMBApiException {
-        try (DiskEntry ignored = open(path, of(FILE_READ_ATTRIBUTES), of(FILE_ATTRIBUTE_NORMAL), ALL, FILE_OPEN, createOptions)) {
-            return true;
+        try {
+            if (openRelatedAndClose(path, of(FILE_READ_ATTRIBUTES), of(FILE_ATTRIBUTE_NORMAL), ALL, FILE_OPEN, createOptions, NO_RELATED_REQUESTS) != null) {
+                return true;
+            }
+            try (DiskEntry ignored = open(path, of(FILE_READ_ATTRIBUTES), of(FILE_ATTRIBUTE_NORMAL), ALL, FILE_OPEN, createOptions)) {
+                return true;
+            }
         } catch (SMBApiException sae) {
             if (statusHandler.isSuccess(sae.getStatusCode())) {
                 return false;
@@ -442,10 +726,49 @@ public class DiskShare extends Share {
         }
     }
 
+    /**
+     * Equivalent to calling {@link #walk(String, int, int, DirectoryVisitor) walk(path, Integer.MAX_VALUE, 16, visitor)}.
+     *
+     * @see #walk(String, int, int, DirectoryVisitor)
+     */
+    public void walk(String path, DirectoryVisitor visitor) throws SMBApiException {
+        walk(path, Integer.MAX_VALUE, DEFAULT_WALK_PARALLELISM, visitor);
+    }
+
+    /**
+     * Walks the directory tree below the given path and passes every entry to the visitor, from the calling thread.
+     * <p>
+     * Up to {@code parallelism} directories are listed at the same time. Each directory is opened and listed with a
+     * single compound request, so a walk takes about one round trip per {@code parallelism} directories instead of
+     * three round trips per directory. Entries are visited per directory, but the order of the directories is not
+     * defined. Directories that are reparse points (e.g. symbolic links or DFS links) are visited but not descended
+     * into.
+     *
+     * @param path        the directory to start the walk from
+     * @param maxDepth    the maximum depth of the visited entries, 1 only visits the entries of the start directory
+     * @param parallelism the maximum number of directories that are listed at the same time
+     * @param visitor     receives the entries, decides which directories to descend into and handles failures to
+     *                    list a directory below the start directory
+     * @throws SMBApiException if the start directory could not be listed
+     */
+    public void walk(String path, int maxDepth, int parallelism, DirectoryVisitor visitor) throws SMBApiException {
+        if (maxDepth < 1) {
+            throw new IllegalArgumentException("Max depth should be at least 1");
+        }
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism should be at least 1 directory");
+        }
+        new DirectoryWalker(this, path, maxDepth, parallelism, visitor).walk();
+    }
+
     /**
      * Create a directory in the given path.
      */
     public void mkdir(String path) throws SMBApiException {
+        if (openRelatedAndClose(path, of(FILE_LIST_DIRECTORY, FILE_ADD_SUBDIRECTORY), of(FILE_ATTRIBUTE_DIRECTORY), ALL,
+            FILE_CREATE, of(FILE_DIRECTORY_FILE), NO_RELATED_REQUESTS) != null) {
+            return;
+        }
         Directory fileHandle = openDirectory(
             path,
             of(FILE_LIST_DIRECTORY, FILE_ADD_SUBDIRECTORY),
@@ -467,8 +790,48 @@ public class DiskShare extends Share {
      * Get information about the given path.
      **/
     public <F extends FileQueryableInformation> F getFileInformation(String path, Class<F> informationClass) throws SMBApiException {
-        try (DiskEntry e = open(path, of(FILE_READ_ATTRIBUTES, FILE_READ_EA), null, ALL, FILE_OPEN, null)) {
-            return e.getFileInformation(informationClass);
+        if (metadataCache == null) {
+            return queryFileInformation(path, informationClass);
+        }
+        String key = new SmbPath(smbPath, path).getPath();
+        F cached = metadataCache.get(key, informationClass);
+        if (cached != null) {
+            return cached;
+        }
+        // Take the parent's lease and its generation before querying, so that a racing break invalidates the entry.
+        LeaseEntry parentLease = null;
+        if (getConnectionContext().supportsDirectoryLeasing()) {
+            SmbPath parent = new SmbPath(smbPath, path).getParent();
+            if (parent != null) {
+                parentLease = MetadataCache.leaseOf(session.getConnection().getLeaseManager()
+                    .getByPath(parent.getPath() == null ? "" : parent.getPath()));
+            }
+        }
+        int generation = parentLease != null ? parentLease.getCacheGeneration() : 0;
+        F information = queryFileInformation(path, informationClass);
+        metadataCache.put(key, informationClass, information, parentLease, generation);
+        return information;
+    }
+
+    private <F extends FileQueryableInformation> F queryFileInformation(String path, Class<F> informationClass) {
+        final FileInformation.Decoder<F> decoder = FileInformationFactory.getDecoder(informationClass);
+        List<SMB2Packet> responses = openRelatedAndClose(path, of(FILE_READ_ATTRIBUTES, FILE_READ_EA), null, ALL, FILE_OPEN, null, new RelatedRequests() {
+            @Override
+            public SMB2Packet[] create(DiskShare share) {
+                return new SMB2Packet[]{share.newQueryInfoRequest(SMB2CompoundRequest.RELATED_FILE_ID,
+                    SMB2QueryInfoRequest.SMB2QueryInfoType.SMB2_0_INFO_FILE, null, decoder.getInformationClass(), null)};
+            }
+        });
+        if (responses == null) {
+            try (DiskEntry e = open(path, of(FILE_READ_ATTRIBUTES, FILE_READ_EA), null, ALL, FILE_OPEN, null)) {
+                return e.getFileInformation(informationClass);
+            }
+        }
+        SMB2QueryInfoResponse response = checkRelatedResponse(responses.get(1), "QueryInfo", path);
+        try {
+            return decoder.read(new Buffer.PlainBuffer(response.getOutputBuffer(), Endian.LE));
+        } catch (Buffer.BufferException e) {
+            throw new SMBRuntimeException(e);
         }
     }
 
@@ -498,16 +861,14 @@ public class DiskShare extends Share {
     }
 
     public <F extends FileSettableInformation> void setFileInformation(SMB2FileId fileId, F information) {
-        SMBBuffer buffer = new SMBBuffer();
         FileInformation.Encoder<F> encoder = FileInformationFactory.getEncoder(information);
-        encoder.write(information, buffer);
 
         setInfo(
             fileId,
             SMB2SetInfoRequest.SMB2InfoType.SMB2_0_INFO_FILE,
             null,
             encoder.getInformationClass(),
-            buffer.getCompactData()
+            encode(encoder, information)
         );
     }
 
@@ -515,9 +876,15 @@ public class DiskShare extends Share {
      * Get information for a given path
      **/
     public <F extends FileSettableInformation> void setFileInformation(String path, F information) throws SMBApiException {
-        try (DiskEntry e = open(path, of(FILE_WRITE_ATTRIBUTES, FILE_WRITE_EA), null, ALL, FILE_OPEN, null)) {
-            e.setFileInformation(information);
+        invalidateMetadata(new SmbPath(smbPath, path).getPath());
+        List<SMB2Packet> responses = openRelatedAndClose(path, of(FILE_WRITE_ATTRIBUTES, FILE_WRITE_EA), null, ALL, FILE_OPEN, null, setInfo(information));
+        if (responses == null) {
+            try (DiskEntry e = open(path, of(FILE_WRITE_ATTRIBUTES, FILE_WRITE_EA), null, ALL, FILE_OPEN, null)) {
+                e.setFileInformation(information);
+            }
+            return;
         }
+        checkRelatedResponse(responses.get(1), "SetInfo", path);
     }
 
     /**
@@ -596,16 +963,7 @@ public class DiskShare extends Share {
                 }
                 rmdir(path, false);
             } else {
-                try (DiskEntry e = open(
-                    path,
-                    of(DELETE),
-                    of(FILE_ATTRIBUTE_DIRECTORY),
-                    of(FILE_SHARE_DELETE, FILE_SHARE_WRITE, FILE_SHARE_READ),
-                    FILE_OPEN,
-                    of(FILE_DIRECTORY_FILE)
-                )) {
-                    e.deleteOnClose();
-                }
+                deleteOnClose(path, of(FILE_ATTRIBUTE_DIRECTORY), of(FILE_DIRECTORY_FILE));
             }
         } catch (SMBApiException sae) {
             if (ALREADY_DELETED_STATUS_HANDLER.isSuccess(sae.getStatusCode())) {
@@ -619,15 +977,8 @@ public class DiskShare extends Share {
      * Remove the file at the given path
      */
     public void rm(String path) throws SMBApiException {
-        try (DiskEntry e = open(
-            path,
-            of(DELETE),
-            of(FILE_ATTRIBUTE_NORMAL),
-            of(FILE_SHARE_DELETE, FILE_SHARE_WRITE, FILE_SHARE_READ),
-            FILE_OPEN,
-            of(FILE_NON_DIRECTORY_FILE)
-        )) {
-            e.deleteOnClose();
+        try {
+            deleteOnClose(path, of(FILE_ATTRIBUTE_NORMAL), of(FILE_NON_DIRECTORY_FILE));
         } catch (SMBApiException sae) {
             if (ALREADY_DELETED_STATUS_HANDLER.isSuccess(sae.getStatusCode())) {
                 return;
@@ -636,6 +987,20 @@ public class DiskShare extends Share {
         }
     }
 
+    private void deleteOnClose(String path, Set<FileAttributes> attributes, Set<SMB2CreateOptions> createOptions) {
+        invalidateMetadata(new SmbPath(smbPath, path).getPath());
+        Set<SMB2ShareAccess> shareAccesses = of(FILE_SHARE_DELETE, FILE_SHARE_WRITE, FILE_SHARE_READ);
+        List<SMB2Packet> responses = openRelatedAndClose(path, of(DELETE), attributes, shareAccesses, FILE_OPEN, createOptions,
+            setInfo(new FileDispositionInformation(true)));
+        if (responses == null) {
+            try (DiskEntry e = open(path, of(DELETE), attributes, shareAccesses, FILE_OPEN, createOptions)) {
+                e.deleteOnClose();
+            }
+            return;
+        }
+        checkRelatedResponse(responses.get(1), "SetInfo", path);
+    }
+
     public void deleteOnClose(SMB2FileId fileId) {
         setFileInformation(fileId, new FileDispositionInformation(true));
     }
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import com.hierynomus.msdtyp.AccessMask;
+import com.hierynomus.msfscc.FileAttributes;
+import com.hierynomus.mssmb2.SMB2CreateOptions;
+import com.hierynomus.mssmb2.SMB2FileId;
+import com.hierynomus.mssmb2.SMB2OplockLevel;
+import com.hierynomus.mssmb2.SMB2ShareAccess;
+import com.hierynomus.mssmb2.messages.create.SMB2CreateContext;
+import com.hierynomus.mssmb2.messages.create.SMB2DurableHandleReconnectV2;
+import com.hierynomus.mssmb2.messages.create.SMB2LeaseCreateContext;
+import com.hierynomus.smbj.common.SmbPath;
+import com.hierynomus.smbj.connection.LeaseEntry;
+
+/**
+ * An open that the server granted a durable handle, with what is needed to reclaim it on a new connection
+ * ([MS-SMB2] 3.2.4.4 Re-establishing a Durable Open).
+ */
+class DurableOpen {
+    private final SMB2FileId fileId;
+    private final UUID createGuid;
+    private final boolean persistent;
+    private final SmbPath path;
+    private final Set<AccessMask> accessMask;
+    private final Set<FileAttributes> attributes;
+    private final Set<SMB2ShareAccess> shareAccess;
+    private final Set<SMB2CreateOptions> createOptions;
+    private final LeaseEntry leaseEntry;
+
+    DurableOpen(SMB2FileId fileId, UUID createGuid, boolean persistent, SmbPath path, Set<AccessMask> accessMask,
+                Set<FileAttributes> attributes, Set<SMB2ShareAccess> shareAccess, Set<SMB2CreateOptions> createOptions,
+                LeaseEntry leaseEntry) {
+        this.fileId = fileId;
+        this.createGuid = createGuid;
+        this.persistent = persistent;
+        this.path = path;
+        this.accessMask = accessMask;
+        this.attributes = attributes;
+        this.shareAccess = shareAccess;
+        this.createOptions = createOptions;
+        this.leaseEntry = leaseEntry;
+    }
+
+    SMB2FileId getFileId() {
+        return fileId;
+    }
+
+    SmbPath getPath() {
+        return path;
+    }
+
+    Set<AccessMask> getAccessMask() {
+        return accessMask;
+    }
+
+    Set<FileAttributes> getAttributes() {
+        return attributes;
+    }
+
+    Set<SMB2ShareAccess> getShareAccess() {
+        return shareAccess;
+    }
+
+    Set<SMB2CreateOptions> getCreateOptions() {
+        return createOptions;
+    }
+
+    LeaseEntry getLeaseEntry() {
+        return leaseEntry;
+    }
+
+    SMB2OplockLevel getOplockLevel() {
+        return leaseEntry != null ? SMB2OplockLevel.SMB2_OPLOCK_LEVEL_LEASE : SMB2OplockLevel.SMB2_OPLOCK_LEVEL_NONE;
+    }
+
+    /**
+     * The DH2C context, and the lease context with the same lease key if the open holds a lease.
+     */
+    List<SMB2CreateContext> reconnectContexts() {
+        List<SMB2CreateContext> contexts = new ArrayList<>(2);
+        contexts.add(new SMB2DurableHandleReconnectV2(fileId, createGuid, persistent).toCreateContext());
+        if (leaseEntry != null) {
+            contexts.add(SMB2LeaseCreateContext.v2(leaseEntry.getLeaseKey(), leaseEntry.getGrantedState(),
+                leaseEntry.getParentLeaseKey()).toCreateContext());
+        }
+        return contexts;
+    }
+}
@@ -30,6 +30,7 @@ import com.hierynomus.smb.SMBBuffer;
 import com.hierynomus.smbj.ProgressListener;
 import com.hierynomus.smbj.common.SMBRuntimeException;
 import com.hierynomus.smbj.common.SmbPath;
+import com.hierynomus.smbj.connection.LeaseEntry;
 import com.hierynomus.smbj.io.ArrayByteChunkProvider;
 import com.hierynomus.smbj.io.ByteBufferByteChunkProvider;
 import com.hierynomus.smbj.io.ByteChunkProvider;
@@ -46,10 +47,61 @@ import java.util.concurrent.Future;
 public class File extends DiskEntry {
 
     private final SMB2Writer writer;
+    private final SMB2Reader reader;
+    private final LeaseEntry leaseEntry; // nullable
+    private final LeasedFileCache cache; // nullable
 
     File(SMB2FileId fileId, DiskShare diskShare, SmbPath fileName) {
+        this(fileId, diskShare, fileName, null);
+    }
+
+    File(SMB2FileId fileId, DiskShare diskShare, SmbPath fileName, LeaseEntry leaseEntry) {
         super(fileId, diskShare, fileName);
         this.writer = new SMB2Writer(diskShare, fileId, fileName.toUncPath());
+        this.reader = new SMB2Reader(diskShare, fileId, fileName.toUncPath());
+        this.leaseEntry = leaseEntry;
+        this.cache = leaseEntry != null ? leaseEntry.getFileCache() : null;
+    }
+
+    /** The file lease granted on this open, or {@code null} if none. */
+    public LeaseEntry getLeaseEntry() {
+        return leaseEntry;
+    }
+
+    /**
+     * Write the data that is buffered under a write-caching file lease to the server, and then flush the file.
+     *
+     * @see com.hierynomus.smbj.SmbConfig.Builder#withFileLeasingEnabled(boolean)
+     */
+    @Override
+    public void flush() {
+        flushCache();
+        super.flush();
+    }
+
+    /**
+     * Write the data that is buffered under a write-caching file lease to the server.
+     */
+    private void flushCache() {
+        if (cache != null) {
+            cache.flush();
+        }
+    }
+
+    /**
+     * The data of this file is about to change, so its cached file information is no longer valid.
+     */
+    private void modified() {
+        share.invalidateMetadata(name.getPath());
+    }
+
+    /**
+     * Write back and drop the cached data before an operation that bypasses the cache.
+     */
+    private void invalidateCache() {
+        if (cache != null) {
+            cache.flushAndInvalidate();
+        }
     }
 
     /**
@@ -60,7 +112,7 @@ public class File extends DiskEntry {
      * @return the actual number of bytes that was written to the file
      */
     public long write(byte[] buffer, long fileOffset) {
-        return writer.write(buffer, fileOffset);
+        return write(buffer, fileOffset, 0, buffer.length);
     }
 
     /**
@@ -73,6 +125,18 @@ public class File extends DiskEntry {
      * @return the actual number of bytes that was written to the file
      */
     public long write(byte[] buffer, long fileOffset, int offset, int length) {
+        modified();
+        if (cache != null && length <= share.getWriteBufferSize()) {
+            if (cache.write(this, buffer, fileOffset, offset, length)) {
+                return length;
+            } else if (cache.isReadCaching()) {
+                cache.flush();
+                long bytesWritten = writer.write(buffer, fileOffset, offset, length);
+                cache.written(buffer, fileOffset, offset, (int) bytesWritten);
+                return bytesWritten;
+            }
+        }
+        invalidateCache();
         return writer.write(buffer, fileOffset, offset, length);
     }
 
@@ -84,6 +148,8 @@ public class File extends DiskEntry {
      * @return the actual number of bytes that was written to the file
      */
     public long write(ByteChunkProvider provider) {
+        modified();
+        invalidateCache();
         return writer.write(provider);
     }
 
@@ -96,6 +162,8 @@ public class File extends DiskEntry {
      * @return the actual number of bytes that was written to the file
      */
     public long write(ByteChunkProvider provider, ProgressListener progressListener) {
+        modified();
+        invalidateCache();
         return writer.write(provider, progressListener);
     }
 
@@ -108,6 +176,8 @@ public class File extends DiskEntry {
      * @return A Future containing the total number of bytes written to the remote.
      */
     public Future<Long> writeAsync(byte[] buffer, long fileOffset, int offset, int length) {
+        modified();
+        invalidateCache();
         return writer.writeAsync(buffer, fileOffset, offset, length);
     }
 
@@ -119,6 +189,8 @@ public class File extends DiskEntry {
      * @return A future containing the total number of bytes written to the remote.
      */
     public Future<Long> writeAsync(ByteChunkProvider provider) {
+        modified();
+        invalidateCache();
         return writer.writeAsync(provider);
     }
 
@@ -135,9 +207,24 @@ public class File extends DiskEntry {
     }
 
     public OutputStream getOutputStream(ProgressListener listener, boolean append) {
+        modified();
+        invalidateCache();
         return writer.getOutputStream(listener, append ? getFileInformation(FileStandardInformation.class).getEndOfFile() : 0l);
     }
 
+    /**
+     * @param listener    an optional callback that will be invoked when data has been written to the file
+     * @param append      whether to write at the end of the file instead of the start
+     * @param writeBehind the number of WRITE requests that may be outstanding while the stream accepts more data
+     * @return an {@link OutputStream} that writes to this file
+     * @see com.hierynomus.smbj.SmbConfig.Builder#withWriteBehind(int)
+     */
+    public OutputStream getOutputStream(ProgressListener listener, boolean append, int writeBehind) {
+        modified();
+        invalidateCache();
+        return writer.getOutputStream(listener, append ? getFileInformation(FileStandardInformation.class).getEndOfFile() : 0l, writeBehind);
+    }
+
     /**
      * Read data from this file starting at position fileOffset into the given buffer.
      *
@@ -151,6 +238,10 @@ public class File extends DiskEntry {
 
     /**
      * Read data from this file starting at position fileOffset into the given buffer.
+     * <p>
+     * If length is larger than the read buffer size, the range is read with multiple READ requests that are
+     * outstanding at the same time (see {@link com.hierynomus.smbj.SmbConfig#getMaxOutstandingReads()}), and the
+     * whole range is read unless the end of the file is reached.
      *
      * @param buffer     the buffer to write into
      * @param fileOffset The offset, in bytes, into the file from which the data should be read
@@ -159,6 +250,16 @@ public class File extends DiskEntry {
      * @return the actual number of bytes that were read; or -1 if the end of the file was reached
      */
     public int read(byte[] buffer, long fileOffset, int offset, int length) {
+        if (cache != null && length <= share.getReadBufferSize()) {
+            int bytesRead = cache.read(this, buffer, fileOffset, offset, length);
+            if (bytesRead != LeasedFileCache.NOT_CACHED) {
+                return bytesRead;
+            }
+        }
+        flushCache();
+        if (length > share.getReadBufferSize()) {
+            return (int) reader.read(ByteBuffer.wrap(buffer, offset, length), fileOffset);
+        }
         SMB2ReadResponse response = share.read(fileId, fileOffset, length);
         if (response.getHeader().getStatusCode() == NtStatus.STATUS_END_OF_FILE.getValue()) {
             return -1;
@@ -196,6 +297,13 @@ public class File extends DiskEntry {
      * @return the actual number of bytes that was written to the file
      */
     public long write(ByteBuffer buffer, long fileOffset) {
+        if (cache != null && buffer.hasArray()) {
+            long bytesWritten = write(buffer.array(), fileOffset, buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            ((java.nio.Buffer) buffer).position(buffer.position() + (int) bytesWritten);
+            return bytesWritten;
+        }
+        modified();
+        invalidateCache();
         ByteChunkProvider provider = new ByteBufferByteChunkProvider(buffer, fileOffset);
         return write(provider);
     }
@@ -203,6 +311,10 @@ public class File extends DiskEntry {
 
     /**
      * Read data from this file starting at position fileOffset into the given {@link ByteBuffer}.
+     * <p>
+     * If the buffer has more remaining bytes than the read buffer size, it is filled with multiple READ requests that
+     * are outstanding at the same time (see {@link com.hierynomus.smbj.SmbConfig#getMaxOutstandingReads()}), until it
+     * is full or the end of the file is reached.
      *
      * @param buffer     the {@link ByteBuffer} to write into
      * @param fileOffset The offset, in bytes, into the file from which the data should be read
@@ -210,6 +322,19 @@ public class File extends DiskEntry {
      */
     public long read(ByteBuffer buffer, long fileOffset) {
         int remaining = buffer.remaining();
+        if (cache != null && buffer.hasArray() && remaining <= share.getReadBufferSize()) {
+            int bytesRead = cache.read(this, buffer.array(), fileOffset, buffer.arrayOffset() + buffer.position(), remaining);
+            if (bytesRead > 0) {
+                ((java.nio.Buffer) buffer).position(buffer.position() + bytesRead);
+            }
+            if (bytesRead != LeasedFileCache.NOT_CACHED) {
+                return bytesRead;
+            }
+        }
+        flushCache();
+        if (remaining > share.getReadBufferSize()) {
+            return reader.read(buffer, fileOffset);
+        }
 
         SMB2ReadResponse response = share.read(fileId, fileOffset, remaining);
         if (response.getHeader().getStatusCode() == NtStatus.STATUS_END_OF_FILE.getValue()) {
@@ -234,7 +359,7 @@ public class File extends DiskEntry {
             throw new SMBRuntimeException("Remote copy is only possible between files on the same server");
         }
 
-        long fileSize = getFileInformation(FileStandardInformation.class).getEndOfFile();
+        long fileSize = getLength();
         remoteCopyTo(0, destination, 0, fileSize);
     }
 
@@ -249,6 +374,8 @@ public class File extends DiskEntry {
             throw new SMBRuntimeException("Remote copy is only possible between files on the same server");
         }
 
+        flushCache();
+        destination.invalidateCache();
         remoteFileCopy(this, offset, destination, destinationOffset, length);
     }
 
@@ -391,6 +518,7 @@ public class File extends DiskEntry {
      * @throws SMBApiException if an error occurs.
      */
     public long getLength() throws SMBApiException {
+        flushCache();
         return getFileInformation(FileStandardInformation.class).getEndOfFile();
     }
 
@@ -400,6 +528,7 @@ public class File extends DiskEntry {
      * @throws SMBApiException
      */
     public void setLength(long endOfFile) throws SMBApiException {
+        invalidateCache();
         FileEndOfFileInformation endOfFileInfo = new FileEndOfFileInformation(endOfFile);
         this.setFileInformation(endOfFileInfo);
     }
@@ -409,7 +538,51 @@ public class File extends DiskEntry {
     }
 
     public InputStream getInputStream(ProgressListener listener) {
-        return new FileInputStream(this, share.getReadBufferSize(), share.getReadTimeout(), listener);
+        return getInputStream(listener, share.getReadAhead());
+    }
+
+    /**
+     * @param listener  an optional callback that will be invoked when data has been read from the file
+     * @param readAhead the number of READ requests kept outstanding ahead of the data that was read, or
+     *                  {@link com.hierynomus.smbj.SmbConfig#READ_AHEAD_AUTO} to size it to the connection
+     * @return an {@link InputStream} that reads this file from the start
+     * @see com.hierynomus.smbj.SmbConfig.Builder#withReadAhead(int)
+     */
+    public InputStream getInputStream(ProgressListener listener, int readAhead) {
+        if (readAhead < 0) {
+            throw new IllegalArgumentException("Read ahead should be READ_AHEAD_AUTO or at least 1 request");
+        }
+        flushCache();
+        return new FileInputStream(this, share.getReadBufferSize(), share.getReadTimeout(), listener, readAhead);
+    }
+
+    /**
+     * Close this file, first writing the data that is buffered under a write-caching file lease to the server.
+     */
+    @Override
+    public void close() {
+        try {
+            flushCache();
+        } finally {
+            releaseLease();
+            super.close();
+        }
+    }
+
+    @Override
+    public void closeNoWait() {
+        try {
+            flushCache();
+        } finally {
+            releaseLease();
+            super.closeNoWait();
+        }
+    }
+
+    private void releaseLease() {
+        if (leaseEntry != null) {
+            DiskShare.release(share.getTreeConnect().getSession().getConnection().getLeaseManager(), leaseEntry, this);
+        }
     }
 
     @Override
@@ -21,33 +21,65 @@ import com.hierynomus.mssmb2.messages.SMB2ReadResponse;
 import com.hierynomus.protocol.commons.concurrent.Futures;
 import com.hierynomus.protocol.transport.TransportException;
 import com.hierynomus.smbj.ProgressListener;
+import com.hierynomus.smbj.SmbConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Reads a file sequentially, keeping a window of READ requests outstanding ahead of the data that is consumed.
+ * <p>
+ * The window is either a fixed number of requests, or with {@link SmbConfig#READ_AHEAD_AUTO} it starts at 2 and
+ * doubles every time the reader has to wait for data, until the outstanding requests cover the bandwidth-delay
+ * product of the connection or {@link #MAX_AUTO_READ_AHEAD_BYTES} are outstanding.
+ */
 class FileInputStream extends InputStream {
+    static final int MAX_AUTO_READ_AHEAD_BYTES = 32 * 1024 * 1024;
 
     private final long readTimeout;
     private File file;
+    // The file offset of the first byte after buf
     private long offset = 0;
     private int curr = 0;
     private byte[] buf;
     private ProgressListener progressListener;
     private boolean isClosed;
-    private Future<SMB2ReadResponse> nextResponse;
+    // The outstanding READ requests, in order of their contiguous file ranges
+    private final Deque<PendingRead> pending = new ArrayDeque<>();
+    // The file offset of the next READ request that is sent
+    private long nextRequestOffset = 0;
+    // After a short read the end of the file is likely reached, so only one request is sent to find out
+    private boolean shortRead;
 
     private static final Logger logger = LoggerFactory.getLogger(FileInputStream.class);
     private int bufferSize;
+    private final boolean autoReadAhead;
+    private final int maxReadAhead;
+    private int readAhead;
 
     FileInputStream(File file, int bufferSize, long readTimeout, ProgressListener progressListener) {
+        this(file, bufferSize, readTimeout, progressListener, 1);
+    }
+
+    FileInputStream(File file, int bufferSize, long readTimeout, ProgressListener progressListener, int readAhead) {
         this.file = file;
         this.bufferSize = bufferSize;
         this.progressListener = progressListener;
         this.readTimeout = readTimeout;
+        this.autoReadAhead = readAhead == SmbConfig.READ_AHEAD_AUTO;
+        if (autoReadAhead) {
+            this.maxReadAhead = Math.max(2, MAX_AUTO_READ_AHEAD_BYTES / bufferSize);
+            this.readAhead = 2;
+        } else {
+            this.maxReadAhead = readAhead;
+            this.readAhead = readAhead;
+        }
     }
 
     @Override
@@ -87,6 +119,7 @@ class FileInputStream extends InputStream {
         isClosed = true;
         file = null;
         buf = null;
+        pending.clear();
     }
 
     @Override
@@ -96,35 +129,50 @@ class FileInputStream extends InputStream {
 
     @Override
     public long skip(long n) {
-        if (buf == null) {
-            offset += n;
-        } else if (curr + n < buf.length) {
+        if (buf != null && curr + n < buf.length) {
             curr += n;
-        } else {
-            offset += (curr + n) - buf.length;
-            buf = null;
-            nextResponse = null;
+            return n;
+        }
+        offset += n - (buf == null ? 0 : buf.length - curr);
+        buf = null;
+        curr = 0;
+        // Discard the prefetched ranges that end before the new offset, the first remaining one contains it
+        while (!pending.isEmpty() && pending.peek().offset + pending.peek().length <= offset) {
+            pending.poll();
+        }
+        if (pending.isEmpty()) {
+            nextRequestOffset = offset;
         }
         return n;
     }
 
     private void loadBuffer() throws IOException {
-        if (isClosed) {
-            return;
+        while (!isClosed && (buf == null || curr >= buf.length)) {
+            loadNextResponse();
         }
+    }
 
-        if (nextResponse == null) {
-            nextResponse = sendRequest();
-        }
+    private void loadNextResponse() throws IOException {
+        sendRequests();
+        PendingRead head = pending.poll();
+        boolean waited = !head.future.isDone();
 
-        SMB2ReadResponse res = Futures.get(nextResponse, readTimeout, TimeUnit.MILLISECONDS, TransportException.Wrapper);
+        SMB2ReadResponse res = Futures.get(head.future, readTimeout, TimeUnit.MILLISECONDS, TransportException.Wrapper);
         if (res.getHeader().getStatusCode() == NtStatus.STATUS_SUCCESS.getValue()) {
             buf = res.getData();
-            curr = 0;
-            offset += res.getDataLength();
+            // The stream may have skipped into the range of this response, or past its data if it is short
+            long position = offset;
+            curr = (int) Math.min(position - head.offset, buf.length);
+            offset = Math.max(head.offset + buf.length, position);
             if (progressListener != null) {
                 progressListener.onProgressChanged(res.getDataLength(), offset);
             }
+            shortRead = res.getDataLength() < head.length;
+            if (shortRead) {
+                // The prefetched ranges after a short read are not contiguous
+                pending.clear();
+                nextRequestOffset = offset;
+            }
         }
 
         // According to MS-SMB2 2.2.20 and 3.3.5.12 the server should terminate the last SMB2 READ Response with STATUS_END_OF_FILE,
@@ -133,6 +181,7 @@ class FileInputStream extends InputStream {
         if (res.getHeader().getStatusCode() == NtStatus.STATUS_END_OF_FILE.getValue() || res.getDataLength() == 0) {
             logger.debug("EOF, {} bytes read", offset);
             isClosed = true;
+            pending.clear();
             return;
         }
 
@@ -140,10 +189,30 @@ class FileInputStream extends InputStream {
             throw new SMBApiException(res.getHeader(), "Read failed for " + this);
         }
 
-        nextResponse = sendRequest();
+        if (waited && autoReadAhead && readAhead < maxReadAhead) {
+            readAhead = Math.min(maxReadAhead, readAhead * 2);
+            logger.debug("Waited for data of {}, reading ahead {} requests", file, readAhead);
+        }
+        sendRequests();
+    }
+
+    private void sendRequests() {
+        int window = shortRead ? 1 : readAhead;
+        while (pending.size() < window) {
+            pending.add(new PendingRead(nextRequestOffset, bufferSize, file.readAsync(nextRequestOffset, bufferSize)));
+            nextRequestOffset += bufferSize;
+        }
     }
 
-    private Future<SMB2ReadResponse> sendRequest() {
-        return file.readAsync(offset, bufferSize);
+    private static class PendingRead {
+        private final long offset;
+        private final int length;
+        private final Future<SMB2ReadResponse> future;
+
+        PendingRead(long offset, int length, Future<SMB2ReadResponse> future) {
+            this.offset = offset;
+            this.length = length;
+            this.future = future;
+        }
     }
 }
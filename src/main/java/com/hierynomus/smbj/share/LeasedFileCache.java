@@ -0,0 +1,417 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.mssmb2.SMB2LeaseState;
+import com.hierynomus.mssmb2.messages.SMB2ReadResponse;
+import com.hierynomus.smbj.common.SMBRuntimeException;
+import com.hierynomus.smbj.io.ArrayByteChunkProvider;
+
+/**
+ * Data cache of one leased file, shared by all {@link File} handles opened with the same lease key. The file is cached
+ * in fixed-size pages, of which at most {@code maxPages} are kept in least-recently-used order.
+ *
+ * <p>While the lease grants READ_CACHING, reads are served from the pages, loading a missing page with a single READ.
+ * The end of file on the server is known from the open and moved by the writes, so pages past it are not read at all.
+ * While it also grants WRITE_CACHING, writes only update the pages and mark them dirty; the dirty ranges are written
+ * to the server on {@link #flush()}, on eviction, when a handle is closed and when the lease is broken. A break first
+ * writes the dirty data and then drops the pages, so that the acknowledgment never releases a lease while the server
+ * still misses data.
+ *
+ * <p>All methods synchronize on the cache, so a break waits for a read or write that is in progress.
+ */
+public class LeasedFileCache {
+    private static final Logger logger = LoggerFactory.getLogger(LeasedFileCache.class);
+
+    static final int MAX_PAGE_SIZE = 64 * 1024;
+    /**
+     * Returned by {@link #read(File, byte[], long, int, int)} when the lease does not grant READ_CACHING.
+     */
+    static final int NOT_CACHED = -2;
+
+    private final int pageSize;
+    private final int maxPages;
+    private final LinkedHashMap<Long, Page> pages = new LinkedHashMap<>(16, 0.75f, true);
+    // Handles to the same file are equal, so these are kept by identity
+    private final List<File> handles = new ArrayList<>();
+    private final List<File> writableHandles = new ArrayList<>(); // the handles opened with write access
+    private long leaseState;
+    private long endOfFile = -1; // as seen through the cache, -1 if not known
+    private long serverEndOfFile = -1; // without the dirty data, -1 if not known
+    private File writer; // the handle that last wrote to a dirty page, used to write it back
+    private SMBRuntimeException failure; // write-back of a break that failed, thrown to the next caller
+
+    LeasedFileCache(int pageSize, int maxPages) {
+        this.pageSize = pageSize;
+        this.maxPages = maxPages;
+    }
+
+    int getPageSize() {
+        return pageSize;
+    }
+
+    synchronized void setLeaseState(long leaseState) {
+        this.leaseState = leaseState;
+    }
+
+    /**
+     * The end of file the server returned for an open. The dirty pages may already extend the file beyond it.
+     */
+    synchronized void setEndOfFile(long endOfFile) {
+        this.serverEndOfFile = endOfFile;
+        this.endOfFile = Math.max(endOfFile, this.endOfFile >= 0 ? this.endOfFile : cachedEnd());
+    }
+
+    synchronized boolean isReadCaching() {
+        return SMB2LeaseState.isRead(leaseState);
+    }
+
+    synchronized boolean isWriteCaching() {
+        return SMB2LeaseState.isRead(leaseState) && SMB2LeaseState.isWrite(leaseState);
+    }
+
+    /**
+     * @param writable whether the handle was opened with read and write access, only those handles cache writes and
+     *                 write back the dirty data. Partially written pages are loaded through the handle that writes.
+     */
+    synchronized void attach(File file, boolean writable) {
+        handles.add(file);
+        if (writable) {
+            writableHandles.add(file);
+        }
+    }
+
+    private boolean isWritable(File file) {
+        for (File handle : writableHandles) {
+            if (handle == file) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Detach a handle that is about to be closed. The caller should have flushed the cache first; if dirty data was
+     * written since and no other handle with write access is left, it is written back through this handle first.
+     *
+     * @return {@code true} if this was the last handle using the cache
+     */
+    synchronized boolean detach(File file) {
+        remove(writableHandles, file);
+        if (file != null && writer == file) {
+            if (!writableHandles.isEmpty()) {
+                writer = writableHandles.get(0);
+            } else {
+                try {
+                    writeBack();
+                } catch (SMBRuntimeException e) {
+                    logger.warn("Could not write back cached data when closing {}", file, e);
+                    failure = e;
+                    dropDirty();
+                }
+                writer = null;
+            }
+        }
+        remove(handles, file);
+        if (handles.isEmpty()) {
+            pages.clear();
+            return true;
+        }
+        return false;
+    }
+
+    private static void remove(List<File> files, File file) {
+        for (Iterator<File> it = files.iterator(); it.hasNext(); ) {
+            if (it.next() == file) {
+                it.remove();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Read from the cached pages, loading missing pages through {@code file}. The lease state is checked under the
+     * same lock, so a break cannot slip in between.
+     *
+     * @return the number of bytes read; -1 if the end of the file was reached; or {@link #NOT_CACHED} if the lease
+     * does not grant READ_CACHING, in which case the caller should read from the server
+     */
+    synchronized int read(File file, byte[] buffer, long fileOffset, int offset, int length) {
+        throwFailure();
+        if (!SMB2LeaseState.isRead(leaseState)) {
+            return NOT_CACHED;
+        }
+        int total = 0;
+        while (total < length) {
+            long position = fileOffset + total;
+            Page page = page(file, position / pageSize, false);
+            int inPage = (int) (position - page.start);
+            if (inPage >= page.length) {
+                break;
+            }
+            int n = Math.min(length - total, page.length - inPage);
+            System.arraycopy(page.data, inPage, buffer, offset + total, n);
+            total += n;
+            if (page.length < pageSize) {
+                break;
+            }
+        }
+        return total == 0 && length > 0 ? -1 : total;
+    }
+
+    /**
+     * Write into the cached pages, marking the written ranges dirty. Parts of pages that are not overwritten are
+     * loaded through {@code file} first. The lease state is checked under the same lock, so a break cannot slip in
+     * between.
+     *
+     * @return {@code false} if the lease does not grant WRITE_CACHING or the handle does not cache writes, in which
+     * case nothing was written and the caller should write to the server
+     */
+    synchronized boolean write(File file, byte[] buffer, long fileOffset, int offset, int length) {
+        throwFailure();
+        if (!isWriteCaching() || !isWritable(file)) {
+            return false;
+        }
+        int total = 0;
+        while (total < length) {
+            long position = fileOffset + total;
+            int inPage = (int) (position % pageSize);
+            int n = Math.min(length - total, pageSize - inPage);
+            Page page = page(file, position / pageSize, inPage == 0 && n == pageSize);
+            copy(buffer, offset + total, page, inPage, n);
+            page.markDirty(inPage, inPage + n);
+            total += n;
+        }
+        writer = file;
+        extend(fileOffset + length);
+        return true;
+    }
+
+    /**
+     * Data was written to the server by a handle that is not caching writes; update the pages that are cached.
+     */
+    synchronized void written(byte[] buffer, long fileOffset, int offset, int length) {
+        int total = 0;
+        while (total < length) {
+            long position = fileOffset + total;
+            int inPage = (int) (position % pageSize);
+            int n = Math.min(length - total, pageSize - inPage);
+            Page page = pages.get(position / pageSize);
+            if (page != null) {
+                copy(buffer, offset + total, page, inPage, n);
+            }
+            total += n;
+        }
+        serverWritten(fileOffset + length);
+        extend(fileOffset + length);
+    }
+
+    private static void copy(byte[] buffer, int offset, Page page, int inPage, int n) {
+        System.arraycopy(buffer, offset, page.data, inPage, n);
+        page.length = Math.max(page.length, inPage + n);
+    }
+
+    /**
+     * The file may have grown past the end of the page that held the previous end of file.
+     */
+    private void extend(long end) {
+        if (endOfFile >= 0) {
+            endOfFile = Math.max(endOfFile, end);
+        }
+        for (Page page : pages.values()) {
+            if (page.length < pageSize && page.start + page.length < end) {
+                page.length = (int) Math.min(pageSize, end - page.start);
+            }
+        }
+    }
+
+    /**
+     * Write all dirty ranges to the server, in file order.
+     */
+    public synchronized void flush() {
+        throwFailure();
+        writeBack();
+    }
+
+    /**
+     * Drop all pages, writing the dirty ranges to the server first.
+     */
+    synchronized void flushAndInvalidate() {
+        flush();
+        pages.clear();
+        endOfFile = -1;
+        serverEndOfFile = -1;
+    }
+
+    /**
+     * The lease was broken to {@code newLeaseState}: write back the dirty data if WRITE_CACHING is lost, and drop the
+     * pages if READ_CACHING is lost. Runs before the break is acknowledged. If the write-back fails the dirty data is
+     * dropped and the failure is thrown from the next read, write or flush.
+     */
+    public synchronized void onBreak(long newLeaseState) {
+        if (!SMB2LeaseState.isWrite(newLeaseState)) {
+            try {
+                writeBack();
+            } catch (SMBRuntimeException e) {
+                logger.warn("Could not write back cached data on lease break", e);
+                failure = e;
+                pages.clear();
+            }
+        }
+        if (!SMB2LeaseState.isRead(newLeaseState)) {
+            pages.clear();
+            endOfFile = -1;
+            serverEndOfFile = -1;
+        }
+        leaseState = newLeaseState;
+    }
+
+    synchronized int size() {
+        return pages.size();
+    }
+
+    private void throwFailure() {
+        SMBRuntimeException e = failure;
+        if (e != null) {
+            failure = null;
+            throw e;
+        }
+    }
+
+    private Page page(File file, long index, boolean overwrite) {
+        Page page = pages.get(index);
+        if (page != null) {
+            return page;
+        }
+        page = new Page(index * pageSize, new byte[pageSize]);
+        if (!overwrite && (serverEndOfFile < 0 || page.start < serverEndOfFile)) {
+            SMB2ReadResponse response = file.share.read(file.fileId, page.start, pageSize);
+            if (response.getHeader().getStatusCode() != NtStatus.STATUS_END_OF_FILE.getValue()) {
+                byte[] data = response.getData();
+                page.length = Math.min(pageSize, data.length);
+                System.arraycopy(data, 0, page.data, 0, page.length);
+            }
+        }
+        // The server does not know about the dirty pages that extended the file, up to them it reads as zeros.
+        long end = endOfFile >= 0 ? endOfFile : cachedEnd();
+        if (end > page.start + page.length) {
+            page.length = (int) Math.min(pageSize, end - page.start);
+        }
+        pages.put(index, page);
+        evict();
+        return page;
+    }
+
+    private void serverWritten(long end) {
+        if (serverEndOfFile >= 0) {
+            serverEndOfFile = Math.max(serverEndOfFile, end);
+        }
+    }
+
+    private long cachedEnd() {
+        long end = 0;
+        for (Page page : pages.values()) {
+            end = Math.max(end, page.start + page.length);
+        }
+        return end;
+    }
+
+    private void evict() {
+        Iterator<Page> it = pages.values().iterator();
+        while (pages.size() > maxPages && it.hasNext()) {
+            Page eldest = it.next();
+            writeBack(eldest);
+            it.remove();
+        }
+    }
+
+    private void writeBack() {
+        List<Page> dirty = new ArrayList<>();
+        for (Page page : pages.values()) {
+            if (page.isDirty()) {
+                dirty.add(page);
+            }
+        }
+        Collections.sort(dirty);
+        for (Page page : dirty) {
+            writeBack(page);
+        }
+    }
+
+    private void dropDirty() {
+        Iterator<Page> it = pages.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isDirty()) {
+                it.remove();
+            }
+        }
+    }
+
+    private void writeBack(Page page) {
+        if (!page.isDirty()) {
+            return;
+        }
+        File file = writer != null ? writer : (writableHandles.isEmpty() ? null : writableHandles.get(0));
+        if (file == null) {
+            throw new SMBRuntimeException("No handle with write access left to write back the cached data");
+        }
+        ArrayByteChunkProvider provider = new ArrayByteChunkProvider(page.data, page.dirtyFrom,
+            page.dirtyTo - page.dirtyFrom, page.start + page.dirtyFrom);
+        while (provider.isAvailable()) {
+            file.share.write(file.fileId, provider);
+        }
+        serverWritten(page.start + page.dirtyTo);
+        page.dirtyFrom = -1;
+        page.dirtyTo = -1;
+    }
+
+    private static class Page implements Comparable<Page> {
+        private final long start;
+        private final byte[] data;
+        private int length;
+        private int dirtyFrom = -1;
+        private int dirtyTo = -1;
+
+        Page(long start, byte[] data) {
+            this.start = start;
+            this.data = data;
+        }
+
+        boolean isDirty() {
+            return dirtyFrom >= 0;
+        }
+
+        void markDirty(int from, int to) {
+            dirtyFrom = isDirty() ? Math.min(dirtyFrom, from) : from;
+            dirtyTo = Math.max(dirtyTo, to);
+        }
+
+        @Override
+        public int compareTo(Page o) {
+            return Long.compare(start, o.start);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Objects;
+
+import com.hierynomus.msfscc.fileinformation.FileQueryableInformation;
+import com.hierynomus.mssmb2.SMB2LeaseState;
+import com.hierynomus.smbj.connection.LeaseEntry;
+
+/**
+ * Size-bounded cache of the file information that {@link DiskShare#getFileInformation(String, Class)} queried, keyed
+ * by path and information class, and kept in least-recently-used order.
+ *
+ * <p>An entry that was queried while a read/handle lease on its parent directory was held is served until that lease
+ * is broken. Any other entry is served until its time to live expires. {@link DiskShare} drops the
+ * entries of a path (and of everything below it) when it writes, renames or deletes it.
+ */
+class MetadataCache {
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    MetadataCache(int maxEntries, long ttlNanos) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlNanos;
+    }
+
+    /**
+     * @return the cached information, or {@code null} if it was not cached or is no longer valid
+     */
+    synchronized <F extends FileQueryableInformation> F get(String path, Class<F> informationClass) {
+        Key key = new Key(path, informationClass);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (!entry.isValid()) {
+            entries.remove(key);
+            return null;
+        }
+        return informationClass.cast(entry.information);
+    }
+
+    /**
+     * Cache information that was queried while {@code parentLease} was held. The lease state and generation must be
+     * taken from {@link #leaseOf(LeaseEntry)} <b>before</b> the query was sent, so that a break that races the
+     * response invalidates the entry.
+     */
+    synchronized void put(String path, Class<? extends FileQueryableInformation> informationClass,
+                          FileQueryableInformation information, LeaseEntry parentLease, int generation) {
+        if (parentLease == null && ttlNanos <= 0) {
+            return;
+        }
+        entries.put(new Key(path, informationClass), new Entry(information, parentLease, generation, System.nanoTime() + ttlNanos));
+        Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() > maxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * The lease that protects entries under a directory, or {@code null} if no usable read/handle lease is held.
+     */
+    static LeaseEntry leaseOf(LeaseEntry directoryLease) {
+        if (directoryLease != null && directoryLease.isGranted() && !directoryLease.isBroken()
+            && SMB2LeaseState.isReadHandle(directoryLease.getGrantedState())) {
+            return directoryLease;
+        }
+        return null;
+    }
+
+    /**
+     * Drop the entries of {@code path}, of all paths below it and of its parent directory, whose timestamps change
+     * along with its entries.
+     */
+    synchronized void invalidate(String path) {
+        String normalized = normalize(path);
+        String prefix = normalized + "\\";
+        int slash = normalized.lastIndexOf('\\');
+        String parent = slash < 0 ? "" : normalized.substring(0, slash);
+        Iterator<Key> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            String p = it.next().path;
+            if (normalized.isEmpty() || p.equals(normalized) || p.startsWith(prefix) || p.equals(parent)) {
+                it.remove();
+            }
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    static String normalize(String path) {
+        return path == null ? "" : path.replace('/', '\\').toLowerCase(Locale.ROOT);
+    }
+
+    private static final class Entry {
+        private final FileQueryableInformation information;
+        private final LeaseEntry parentLease;
+        private final int generation;
+        private final long expiresAt;
+
+        Entry(FileQueryableInformation information, LeaseEntry parentLease, int generation, long expiresAt) {
+            this.information = information;
+            this.parentLease = parentLease;
+            this.generation = generation;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isValid() {
+            if (parentLease != null) {
+                return leaseOf(parentLease) != null && parentLease.getCacheGeneration() == generation;
+            }
+            return System.nanoTime() - expiresAt < 0;
+        }
+    }
+
+    private static final class Key {
+        private final String path;
+        private final Class<?> informationClass;
+
+        Key(String path, Class<?> informationClass) {
+            this.path = normalize(path);
+            this.informationClass = informationClass;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return path.equals(k.path) && informationClass == k.informationClass;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, informationClass);
+        }
+    }
+}
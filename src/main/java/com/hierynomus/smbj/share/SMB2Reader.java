@@ -0,0 +1,143 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.mssmb2.SMB2FileId;
+import com.hierynomus.mssmb2.messages.SMB2ReadResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.Future;
+
+import static com.hierynomus.mssmb2.SMB2Packet.SINGLE_CREDIT_PAYLOAD_SIZE;
+
+/**
+ * Reads a range of a file that does not fit in a single READ request. The range is split into READ requests of at most
+ * the read buffer size, of which up to {@link com.hierynomus.smbj.SmbConfig#getMaxOutstandingReads()} are
+ * outstanding at any time, as far as the credits granted by the server allow. The data of every response is copied
+ * straight to its place in the destination buffer. A response that is short without reaching the end of the file,
+ * e.g. because its request was assigned fewer credits, is followed by a READ for the rest of its range.
+ */
+class SMB2Reader {
+    private static final Logger logger = LoggerFactory.getLogger(SMB2Reader.class);
+
+    private final Share share;
+    private final SMB2FileId fileId;
+    private final String entryName;
+
+    SMB2Reader(Share share, SMB2FileId fileId, String entryName) {
+        this.share = share;
+        this.fileId = fileId;
+        this.entryName = entryName;
+    }
+
+    /**
+     * Read data from the file starting at position fileOffset into the remaining bytes of the buffer, until it is
+     * full or the end of the file is reached. The position of the buffer is advanced by the number of bytes read.
+     *
+     * @param buffer     the {@link ByteBuffer} to write into
+     * @param fileOffset The offset, in bytes, into the file from which the data should be read
+     * @return the actual number of bytes that were read; or -1 if the end of the file was reached
+     */
+    long read(ByteBuffer buffer, long fileOffset) {
+        int start = buffer.position();
+        int length = buffer.remaining();
+        int chunkSize = share.getReadBufferSize();
+        int maxOutstanding = share.getMaxOutstandingReads();
+        logger.debug("Reading {} bytes from {} at offset {} with up to {} outstanding requests", length, entryName, fileOffset, maxOutstanding);
+
+        Queue<PendingRead> outstanding = new ArrayDeque<>();
+        Queue<PendingRead> remainders = new ArrayDeque<>(); // the rest of the ranges of short responses
+        int requested = 0;
+        int end = length; // lowered to where the end of the file is reached
+        while (true) {
+            while (outstanding.size() < maxOutstanding) {
+                PendingRead next = remainders.peek();
+                if (next == null && requested < end) {
+                    next = new PendingRead(requested, Math.min(chunkSize, end - requested));
+                }
+                if (next == null || (!outstanding.isEmpty() && !hasCreditsFor(next.length))) {
+                    break;
+                }
+                if (next == remainders.peek()) {
+                    remainders.remove();
+                } else {
+                    requested += next.length;
+                }
+                next.future = share.readAsync(fileId, fileOffset + next.offset, next.length);
+                outstanding.add(next);
+            }
+            PendingRead pending = outstanding.poll();
+            if (pending == null) {
+                break;
+            }
+            SMB2ReadResponse response = share.receiveRead(fileId, pending.future);
+            if (pending.offset >= end) {
+                // Past the end of the file
+                continue;
+            }
+            int bytesRead = 0;
+            if (response.getHeader().getStatusCode() != NtStatus.STATUS_END_OF_FILE.getValue()) {
+                byte[] data = response.getData();
+                bytesRead = Math.min(pending.length, data.length);
+                ByteBuffer target = buffer.duplicate();
+                ((java.nio.Buffer) target).position(start + pending.offset); // Java8/9 compatibility
+                target.put(data, 0, bytesRead);
+            }
+            if (bytesRead == 0) {
+                end = pending.offset;
+                dropPastEnd(remainders, end);
+            } else if (bytesRead < pending.length && pending.offset + bytesRead < end) {
+                int offset = pending.offset + bytesRead;
+                remainders.add(new PendingRead(offset, Math.min(pending.offset + pending.length, end) - offset));
+            }
+        }
+
+        ((java.nio.Buffer) buffer).position(start + end); // Java8/9 compatibility
+        if (end == 0 && length > 0) {
+            return -1;
+        }
+        return end;
+    }
+
+    private boolean hasCreditsFor(int length) {
+        return share.getAvailableCredits() >= (length - 1) / SINGLE_CREDIT_PAYLOAD_SIZE + 1;
+    }
+
+    private static void dropPastEnd(Queue<PendingRead> reads, int end) {
+        for (Iterator<PendingRead> it = reads.iterator(); it.hasNext(); ) {
+            if (it.next().offset >= end) {
+                it.remove();
+            }
+        }
+    }
+
+    private static class PendingRead {
+        private final int offset;
+        private final int length;
+        private Future<SMB2ReadResponse> future;
+
+        PendingRead(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -110,6 +110,8 @@ public class SMB2Writer {
 
     /***
      * Write the data Async in buffer to this file at position fileOffset.
+     * <p>
+     * The data is sent straight from the buffer, so it should not be modified until the returned future is done.
      *
      * @param buffer     the data to write
      * @param fileOffset The offset, in bytes, into the file to which the data
@@ -168,6 +170,24 @@ public class SMB2Writer {
     }
 
     public OutputStream getOutputStream(ProgressListener listener, long offset) {
-        return new FileOutputStream(this, share.getWriteBufferSize(), offset, listener);
+        return getOutputStream(listener, offset, share.getWriteBehind());
+    }
+
+    /**
+     * @param listener     an optional callback that will be invoked when data has been written
+     * @param offset       the offset at which writing starts
+     * @param writeBehind  the number of WRITE requests that may be outstanding while the stream accepts more data,
+     *                     1 waits for every WRITE before accepting more data
+     * @return an {@link OutputStream} that writes to the entry
+     * @see com.hierynomus.smbj.SmbConfig.Builder#withWriteBehind(int)
+     */
+    public OutputStream getOutputStream(ProgressListener listener, long offset, int writeBehind) {
+        if (writeBehind < 1) {
+            throw new IllegalArgumentException("Write behind should be at least 1 request");
+        }
+        if (writeBehind == 1) {
+            return new FileOutputStream(this, share.getWriteBufferSize(), offset, listener);
+        }
+        return new WriteBehindFileOutputStream(this, share.getWriteBufferSize(), offset, listener, writeBehind, share.getWriteTimeout());
     }
 }
@@ -23,26 +23,46 @@ import com.hierynomus.msfscc.FileInformationClass;
 import com.hierynomus.msfscc.FileSystemInformationClass;
 import com.hierynomus.mssmb2.*;
 import com.hierynomus.mssmb2.messages.*;
+import com.hierynomus.mssmb2.messages.create.SMB2CreateContext;
+import com.hierynomus.mssmb2.messages.create.SMB2LeaseResponseContext;
 import com.hierynomus.mssmb2.messages.submodule.SMB2LockElement;
+import com.hierynomus.protocol.commons.buffer.Buffer;
+import com.hierynomus.protocol.commons.concurrent.AFuture;
 import com.hierynomus.protocol.commons.concurrent.Futures;
 import com.hierynomus.protocol.transport.TransportException;
 import com.hierynomus.smbj.SmbConfig;
 import com.hierynomus.smbj.common.SMBRuntimeException;
 import com.hierynomus.smbj.common.SmbPath;
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.connection.LeaseEntry;
 import com.hierynomus.smbj.connection.NegotiatedProtocol;
 import com.hierynomus.smbj.io.ArrayByteChunkProvider;
+import com.hierynomus.smbj.io.ByteBufferByteChunkProvider;
 import com.hierynomus.smbj.io.ByteChunkProvider;
 import com.hierynomus.smbj.io.EmptyByteChunkProvider;
+import com.hierynomus.smbj.session.CompoundBuilder;
 import com.hierynomus.smbj.session.Session;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Share implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(Share.class);
     private static final SMB2FileId ROOT_ID = new SMB2FileId(
             new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
                          (byte) 0xFF },
@@ -80,18 +100,24 @@ public class Share implements AutoCloseable {
     };
 
     protected final SmbPath smbPath;
-    protected final TreeConnect treeConnect;
-    private final long treeId;
-    protected Session session;
+    protected volatile TreeConnect treeConnect;
+    private volatile long treeId;
+    protected volatile Session session;
     private final SMB2Dialect dialect;
     private final int readBufferSize;
+    private final int maxOutstandingReads;
+    private final int readAhead;
     private final long readTimeout;
     private final int writeBufferSize;
     private final long writeTimeout;
+    private final int writeBehind;
     private final int transactBufferSize;
+    private final int maxTransactSize;
     private final long transactTimeout;
-    private final long sessionId;
+    private volatile long sessionId;
     private final AtomicBoolean disconnected = new AtomicBoolean(false);
+    private final Map<SMB2FileId, DurableOpen> durableOpens = new ConcurrentHashMap<>();
+    private final Object reconnectLock = new Object();
 
     Share(SmbPath smbPath, TreeConnect treeConnect) {
         this.smbPath = smbPath;
@@ -101,10 +127,14 @@ public class Share implements AutoCloseable {
         dialect = negotiatedProtocol.getDialect();
         SmbConfig config = treeConnect.getConfig();
         readBufferSize = Math.min(config.getReadBufferSize(), negotiatedProtocol.getMaxReadSize());
+        maxOutstandingReads = config.getMaxOutstandingReads();
+        readAhead = config.getReadAhead();
         readTimeout = config.getReadTimeout();
         writeBufferSize = Math.min(config.getWriteBufferSize(), negotiatedProtocol.getMaxWriteSize());
         writeTimeout = config.getWriteTimeout();
+        writeBehind = config.getWriteBehind();
         transactBufferSize = Math.min(config.getTransactBufferSize(), negotiatedProtocol.getMaxTransactSize());
+        maxTransactSize = negotiatedProtocol.getMaxTransactSize();
         transactTimeout = config.getTransactTimeout();
         sessionId = session.getSessionId();
         treeId = treeConnect.getTreeId();
@@ -113,12 +143,17 @@ public class Share implements AutoCloseable {
     @Override
     public void close() throws IOException {
         if (!disconnected.getAndSet(true)) {
+            durableOpens.clear();
             treeConnect.close();
         }
     }
 
+    /**
+     * @return whether the share is open and its connection is alive, or it holds durable handles and reconnects when it
+     * is used
+     */
     public boolean isConnected() {
-        return !disconnected.get();
+        return !disconnected.get() && (session.getConnection().isConnected() || !durableOpens.isEmpty());
     }
 
     public SmbPath getSmbPath() {
@@ -133,10 +168,37 @@ public class Share implements AutoCloseable {
         return readBufferSize;
     }
 
+    int getMaxOutstandingReads() {
+        return maxOutstandingReads;
+    }
+
+    /**
+     * @return the credits granted by the server on the connection of this share that are not yet used
+     */
+    int getAvailableCredits() {
+        return session.getConnection().getAvailableCredits();
+    }
+
+    int getReadAhead() {
+        return readAhead;
+    }
+
     long getReadTimeout() {
         return readTimeout;
     }
 
+    long getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    int getWriteBehind() {
+        return writeBehind;
+    }
+
+    int getTransactBufferSize() {
+        return transactBufferSize;
+    }
+
     int getWriteBufferSize() {
         return writeBufferSize;
     }
@@ -153,13 +215,13 @@ public class Share implements AutoCloseable {
             SMB2CreateDisposition createDisposition, Set<SMB2CreateOptions> createOptions) {
         return createFile(path, impersonationLevel, accessMask, fileAttributes, shareAccess, createDisposition,
                 createOptions, SMB2OplockLevel.SMB2_OPLOCK_LEVEL_NONE,
-                java.util.Collections.<com.hierynomus.mssmb2.messages.create.SMB2CreateContext>emptyList());
+                Collections.<SMB2CreateContext>emptyList());
     }
 
     SMB2CreateResponse createFile(SmbPath path, SMB2ImpersonationLevel impersonationLevel, Set<AccessMask> accessMask,
             Set<FileAttributes> fileAttributes, Set<SMB2ShareAccess> shareAccess,
             SMB2CreateDisposition createDisposition, Set<SMB2CreateOptions> createOptions,
-            SMB2OplockLevel oplockLevel, List<com.hierynomus.mssmb2.messages.create.SMB2CreateContext> createContexts) {
+            SMB2OplockLevel oplockLevel, List<SMB2CreateContext> createContexts) {
         SMB2CreateRequest cr = new SMB2CreateRequest(dialect, sessionId, treeId, impersonationLevel, accessMask,
                 fileAttributes, shareAccess, createDisposition, createOptions, path, oplockLevel, createContexts);
         SMB2CreateResponse resp = sendReceive(cr, "Create", path, getCreateStatusHandler(), transactTimeout);
@@ -177,55 +239,322 @@ public class Share implements AutoCloseable {
 
     void closeFileId(SMB2FileId fileId) throws SMBApiException {
         SMB2Close closeReq = new SMB2Close(dialect, sessionId, treeId, fileId);
-        sendReceive(closeReq, "Close", fileId, SUCCESS_OR_CLOSED, transactTimeout);
+        try {
+            sendReceive(closeReq, "Close", fileId, SUCCESS_OR_CLOSED, transactTimeout);
+        } finally {
+            durableOpens.remove(fileId);
+        }
     }
 
     Future<SMB2Close> closeFileIdNoWait(SMB2FileId fileId) throws SMBApiException {
         SMB2Close closeReq = new SMB2Close(dialect, sessionId, treeId, fileId);
-        return send(closeReq);
+        try {
+            return send(closeReq);
+        } finally {
+            durableOpens.remove(fileId);
+        }
+    }
+
+    /**
+     * Keep the state of an open that was granted a durable handle, to reclaim it if the connection is lost.
+     */
+    void durable(DurableOpen open) {
+        durableOpens.put(open.getFileId(), open);
+    }
+
+    boolean isDurable(SMB2FileId fileId) {
+        return durableOpens.containsKey(fileId);
+    }
+
+    /**
+     * [MS-SMB2] 3.2.4.4 Re-establishing a Durable Open
+     * <p>
+     * {@code lost} dropped while this share holds durable handles: connect to the server again, set up a new session
+     * that replaces the lost one, connect the tree again and reclaim the durable handles. The {@link SMB2FileId}s of
+     * the reclaimed opens are updated in place, so the {@link Open}s holding them keep working. Handles that cannot be
+     * reclaimed are forgotten, requests for them fail.
+     *
+     * @return {@code true} if the share is connected again, also when another thread already reconnected it
+     */
+    boolean reconnect(Connection lost) {
+        synchronized (reconnectLock) {
+            Session previous = session;
+            if (previous.getConnection() != lost) {
+                return true;
+            }
+            if (durableOpens.isEmpty() || disconnected.get()) {
+                return false;
+            }
+            logger.info("Connection to {} lost, reconnecting {} to reclaim {} durable handles", lost.getRemoteHostname(), smbPath, durableOpens.size());
+            try {
+                Connection connection = lost.getClient().connect(lost.getRemoteHostname(), lost.getConnectionContext().getServer().getPort());
+                Session reestablished = connection.reestablish(previous);
+                rebind(reestablished.connectShare(smbPath.getShareName()).getTreeConnect());
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Could not reconnect {}: {}", smbPath, e.getMessage());
+                return false;
+            }
+            for (DurableOpen open : new ArrayList<>(durableOpens.values())) {
+                reclaim(open);
+            }
+            reconnected();
+            return true;
+        }
+    }
+
+    private void rebind(TreeConnect reconnected) {
+        session = reconnected.getSession();
+        sessionId = session.getSessionId();
+        treeId = reconnected.getTreeId();
+        treeConnect = reconnected;
+    }
+
+    private void reclaim(DurableOpen open) {
+        try {
+            SMB2CreateResponse resp = createFile(open.getPath(), null, open.getAccessMask(), open.getAttributes(),
+                    open.getShareAccess(), SMB2CreateDisposition.FILE_OPEN, open.getCreateOptions(), open.getOplockLevel(),
+                    open.reconnectContexts());
+            open.getFileId().reclaimed(resp.getFileId());
+            LeaseEntry entry = open.getLeaseEntry();
+            if (entry != null) {
+                SMB2LeaseResponseContext lease = resp.getLeaseResponseContext();
+                entry.setOwner(session, treeId, dialect);
+                session.getConnection().getLeaseManager().reclaimed(entry, lease != null ? lease.getLeaseState() : 0L,
+                        lease != null ? lease.getEpoch() : 0);
+            }
+            logger.debug("Reclaimed durable handle for {}", open.getPath());
+        } catch (SMBRuntimeException | Buffer.BufferException e) {
+            logger.warn("Could not reclaim durable handle for {}: {}", open.getPath(), e.getMessage());
+            durableOpens.remove(open.getFileId());
+        }
+    }
+
+    /**
+     * Called after the share reconnected and reclaimed its durable handles; anything cached for the lost session
+     * should be dropped.
+     */
+    protected void reconnected() {
     }
 
     public SMB2QueryInfoResponse queryInfo(SMB2FileId fileId, SMB2QueryInfoRequest.SMB2QueryInfoType infoType,
             Set<SecurityInformation> securityInfo, FileInformationClass fileInformationClass,
             FileSystemInformationClass fileSystemInformationClass) {
-        SMB2QueryInfoRequest qreq = new SMB2QueryInfoRequest(dialect, sessionId, treeId, fileId, infoType,
-                fileInformationClass, fileSystemInformationClass, null, securityInfo);
+        SMB2QueryInfoRequest qreq = newQueryInfoRequest(fileId, infoType, securityInfo, fileInformationClass,
+                fileSystemInformationClass);
         return sendReceive(qreq, "QueryInfo", fileId, StatusHandler.SUCCESS, transactTimeout);
     }
 
+    SMB2QueryInfoRequest newQueryInfoRequest(SMB2FileId fileId, SMB2QueryInfoRequest.SMB2QueryInfoType infoType,
+            Set<SecurityInformation> securityInfo, FileInformationClass fileInformationClass,
+            FileSystemInformationClass fileSystemInformationClass) {
+        return new SMB2QueryInfoRequest(dialect, sessionId, treeId, fileId, infoType, fileInformationClass,
+                fileSystemInformationClass, null, securityInfo);
+    }
+
     void setInfo(SMB2FileId fileId, SMB2SetInfoRequest.SMB2InfoType infoType, Set<SecurityInformation> securityInfo,
             FileInformationClass fileInformationClass, byte[] buffer) {
-        SMB2SetInfoRequest qreq = new SMB2SetInfoRequest(dialect, sessionId, treeId, infoType, fileId,
-                fileInformationClass, securityInfo, buffer);
+        SMB2SetInfoRequest qreq = newSetInfoRequest(fileId, infoType, securityInfo, fileInformationClass, buffer);
         sendReceive(qreq, "SetInfo", fileId, StatusHandler.SUCCESS, transactTimeout);
     }
 
-    SMB2QueryDirectoryResponse queryDirectory(SMB2FileId fileId,
+    SMB2SetInfoRequest newSetInfoRequest(SMB2FileId fileId, SMB2SetInfoRequest.SMB2InfoType infoType,
+            Set<SecurityInformation> securityInfo, FileInformationClass fileInformationClass, byte[] buffer) {
+        return new SMB2SetInfoRequest(dialect, sessionId, treeId, infoType, fileId, fileInformationClass,
+                securityInfo, buffer);
+    }
+
+    /**
+     * Start building a chain of requests on this share that is sent in a single round trip.
+     *
+     * @see Session#compound()
+     */
+    public CompoundBuilder compound() {
+        if (!isConnected()) {
+            throw new SMBRuntimeException(getClass().getSimpleName() + " has already been closed");
+        }
+        return session.compound();
+    }
+
+    /**
+     * Open the path, send the related requests for the opened file and close it again, all in a single round trip.
+     * The related requests should use {@link SMB2CompoundRequest#RELATED_FILE_ID} as their file id.
+     *
+     * @return the responses, starting with the CREATE response and ending with the CLOSE response. The status of the
+     * responses is not checked.
+     */
+    List<SMB2Packet> createRelatedAndClose(SmbPath path, Set<AccessMask> accessMask,
+            Set<FileAttributes> fileAttributes, Set<SMB2ShareAccess> shareAccess,
+            SMB2CreateDisposition createDisposition, Set<SMB2CreateOptions> createOptions, SMB2Packet... related) {
+        SMB2Packet[] relatedAndClose = Arrays.copyOf(related, related.length + 1);
+        relatedAndClose[related.length] = new SMB2Close(dialect, sessionId, treeId, SMB2CompoundRequest.RELATED_FILE_ID);
+        List<Future<SMB2Packet>> futures = sendCreateRelated(path, accessMask, fileAttributes, shareAccess,
+                createDisposition, createOptions, relatedAndClose);
+        List<SMB2Packet> responses = new ArrayList<>(futures.size());
+        for (Future<SMB2Packet> future : futures) {
+            responses.add(receive(future, transactTimeout));
+        }
+        return responses;
+    }
+
+    /**
+     * Send a CREATE for the path followed by the related requests for the opened file in a single round trip, without
+     * waiting for the responses. The related requests should use {@link SMB2CompoundRequest#RELATED_FILE_ID} as their
+     * file id.
+     *
+     * @return a Future per request, starting with the CREATE
+     */
+    List<Future<SMB2Packet>> sendCreateRelated(SmbPath path, Set<AccessMask> accessMask,
+            Set<FileAttributes> fileAttributes, Set<SMB2ShareAccess> shareAccess,
+            SMB2CreateDisposition createDisposition, Set<SMB2CreateOptions> createOptions, SMB2Packet... related) {
+        CompoundBuilder compound = compound();
+        compound.add(new SMB2CreateRequest(dialect, sessionId, treeId, null, accessMask, fileAttributes, shareAccess,
+                createDisposition, createOptions, path, SMB2OplockLevel.SMB2_OPLOCK_LEVEL_NONE,
+                Collections.<SMB2CreateContext>emptyList()));
+        for (SMB2Packet request : related) {
+            compound.addRelated(request);
+        }
+        try {
+            return compound.send();
+        } catch (TransportException e) {
+            throw new SMBRuntimeException(e);
+        }
+    }
+
+    Future<SMB2QueryDirectoryResponse> queryDirectoryAsync(SMB2FileId fileId,
             Set<SMB2QueryDirectoryRequest.SMB2QueryDirectoryFlags> flags, FileInformationClass informationClass,
             String searchPattern) {
-        SMB2QueryDirectoryRequest qdr = new SMB2QueryDirectoryRequest(dialect, sessionId, treeId, fileId,
-                informationClass, flags, 0, searchPattern, transactBufferSize);
+        return queryDirectoryAsync(fileId, flags, informationClass, searchPattern, transactBufferSize);
+    }
+
+    /**
+     * @param outputBufferSize the maximum size of the returned entries, limited to the negotiated maximum transact
+     *                         size
+     */
+    Future<SMB2QueryDirectoryResponse> queryDirectoryAsync(SMB2FileId fileId,
+            Set<SMB2QueryDirectoryRequest.SMB2QueryDirectoryFlags> flags, FileInformationClass informationClass,
+            String searchPattern, int outputBufferSize) {
+        return send(newQueryDirectoryRequest(fileId, flags, informationClass, searchPattern, outputBufferSize));
+    }
+
+    SMB2QueryDirectoryRequest newQueryDirectoryRequest(SMB2FileId fileId,
+            Set<SMB2QueryDirectoryRequest.SMB2QueryDirectoryFlags> flags, FileInformationClass informationClass,
+            String searchPattern) {
+        return newQueryDirectoryRequest(fileId, flags, informationClass, searchPattern, transactBufferSize);
+    }
+
+    SMB2QueryDirectoryRequest newQueryDirectoryRequest(SMB2FileId fileId,
+            Set<SMB2QueryDirectoryRequest.SMB2QueryDirectoryFlags> flags, FileInformationClass informationClass,
+            String searchPattern, int outputBufferSize) {
+        return new SMB2QueryDirectoryRequest(dialect, sessionId, treeId, fileId, informationClass, flags, 0,
+                searchPattern, Math.min(outputBufferSize, maxTransactSize));
+    }
+
+    /**
+     * Wait for the response of a QUERY_DIRECTORY that was sent on its own or as part of a compound.
+     */
+    SMB2QueryDirectoryResponse receiveQueryDirectory(Future<? extends SMB2Packet> future, Object target) {
+        SMB2Packet resp = receive(future, transactTimeout);
+        if (!SUCCESS_OR_NO_MORE_FILES_OR_NO_SUCH_FILE.isSuccess(resp.getHeader().getStatusCode())) {
+            throw new SMBApiException(resp.getHeader(), "Query directory failed for " + target);
+        }
+        return (SMB2QueryDirectoryResponse) resp;
+    }
 
-        return sendReceive(qdr, "Query directory", fileId, SUCCESS_OR_NO_MORE_FILES_OR_NO_SUCH_FILE, transactTimeout);
+    /**
+     * Wait for the response of a CREATE that was sent as part of a compound.
+     */
+    SMB2CreateResponse receiveCreate(Future<? extends SMB2Packet> future, Object target) {
+        SMB2Packet resp = receive(future, transactTimeout);
+        if (resp.getHeader().getStatusCode() != NtStatus.STATUS_SUCCESS.getValue()) {
+            throw new SMBApiException(resp.getHeader(), "Create failed for " + target);
+        }
+        return (SMB2CreateResponse) resp;
     }
 
     SMB2WriteResponse write(SMB2FileId fileId, ByteChunkProvider provider) {
         return receive(writeAsync(fileId, provider), "Write", fileId, StatusHandler.SUCCESS, writeTimeout);
     }
 
-    Future<SMB2WriteResponse> writeAsync(SMB2FileId fileId, ByteChunkProvider provider) {
+    Future<SMB2WriteResponse> writeAsync(final SMB2FileId fileId, ByteChunkProvider provider) {
         provider.prepareWrite(writeBufferSize);
+        if (isDurable(fileId)) {
+            // Keep hold of the data, the write is sent again if the connection drops before it completes. Data in memory
+            // is not copied, but sliced again for every send.
+            final long fileOffset = provider.getOffset();
+            final ByteBuffer data = provider.takeSlice(writeBufferSize);
+            return new ReplayFuture<>(new Replay<SMB2WriteResponse>() {
+                @Override
+                public Future<SMB2WriteResponse> send() {
+                    return sendWrite(fileId, data, fileOffset);
+                }
+            });
+        }
         SMB2WriteRequest wreq = new SMB2WriteRequest(dialect, fileId, sessionId, treeId, provider, writeBufferSize);
         return send(wreq);
     }
 
+    /**
+     * Write all of the data, in as many WRITE requests as needed when they are assigned fewer credits than the data
+     * requires.
+     *
+     * @return the response of the last WRITE, with the number of bytes written by all of them, or the first response
+     * that failed
+     */
+    private Future<SMB2WriteResponse> sendWrite(SMB2FileId fileId, ByteBuffer data, long fileOffset) {
+        List<Future<SMB2WriteResponse>> futures = new ArrayList<>();
+        int sent = 0;
+        do {
+            ByteBuffer remaining = data.duplicate();
+            ((java.nio.Buffer) remaining).position(data.position() + sent); // Java8/9 compatibility
+            SMB2WriteRequest wreq = new SMB2WriteRequest(dialect, fileId, sessionId, treeId,
+                    new ByteBufferByteChunkProvider(remaining, fileOffset + sent), writeBufferSize);
+            futures.add(this.<SMB2WriteResponse>send(wreq));
+            sent += wreq.getPayloadSize(); // the credits are assigned once it is sent
+        } while (sent < data.remaining());
+        if (futures.size() == 1) {
+            return futures.get(0);
+        }
+        return Futures.transform(Futures.sequence(futures), new AFuture.Function<List<SMB2WriteResponse>, SMB2WriteResponse>() {
+            @Override
+            public SMB2WriteResponse apply(List<SMB2WriteResponse> responses) {
+                int bytesWritten = 0;
+                for (SMB2WriteResponse response : responses) {
+                    if (response.getHeader().getStatusCode() != NtStatus.STATUS_SUCCESS.getValue()) {
+                        return response;
+                    }
+                    bytesWritten += response.getBytesWritten();
+                }
+                SMB2WriteResponse last = responses.get(responses.size() - 1);
+                last.setBytesWritten(bytesWritten);
+                return last;
+            }
+        });
+    }
+
     SMB2ReadResponse read(SMB2FileId fileId, long offset, int length) {
         return receive(readAsync(fileId, offset, length), "Read", fileId, SUCCESS_OR_EOF, readTimeout);
     }
 
-    Future<SMB2ReadResponse> readAsync(SMB2FileId fileId, long offset, int length) {
+    SMB2ReadResponse receiveRead(SMB2FileId fileId, Future<SMB2ReadResponse> future) {
+        return receive(future, "Read", fileId, SUCCESS_OR_EOF, readTimeout);
+    }
+
+    Future<SMB2ReadResponse> readAsync(final SMB2FileId fileId, final long offset, final int length) {
+        if (isDurable(fileId)) {
+            return new ReplayFuture<>(new Replay<SMB2ReadResponse>() {
+                @Override
+                public Future<SMB2ReadResponse> send() {
+                    return sendRead(fileId, offset, length);
+                }
+            });
+        }
+        return sendRead(fileId, offset, length);
+    }
+
+    private Future<SMB2ReadResponse> sendRead(SMB2FileId fileId, long offset, int length) {
         SMB2ReadRequest rreq = new SMB2ReadRequest(dialect, fileId, sessionId, treeId, offset,
                 Math.min(length, readBufferSize));
+        rreq.setRequestCompressed(session.getConnection().getConnectionContext().supportsCompression());
         return send(rreq);
     }
 
@@ -369,9 +698,19 @@ public class Share implements AutoCloseable {
     }
 
     private <T extends SMB2Packet> Future<T> send(SMB2Packet request) {
-        if (!isConnected()) {
+        if (disconnected.get()) {
             throw new SMBRuntimeException(getClass().getSimpleName() + " has already been closed");
         }
+        if (!durableOpens.isEmpty()) {
+            Connection connection = session.getConnection();
+            if (!connection.isConnected()) {
+                reconnect(connection);
+            }
+            // The request may have been built for the session and tree that were lost.
+            TreeConnect current = treeConnect;
+            request.getHeader().setSessionId(current.getSession().getSessionId());
+            request.getHeader().setTreeId(current.getTreeId());
+        }
 
         try {
             return session.send(request);
@@ -439,4 +778,86 @@ public class Share implements AutoCloseable {
         }
         return true;
     }
+
+    private interface Replay<T extends SMB2Packet> {
+        Future<T> send();
+    }
+
+    /**
+     * The response to a READ or WRITE on a durable handle, which is sent again once the share reconnected if the
+     * connection it was sent on dropped.
+     */
+    private class ReplayFuture<T extends SMB2Packet> extends AFuture<T> {
+        private final Replay<T> replay;
+        private volatile Future<T> future;
+        private volatile Connection connection;
+
+        ReplayFuture(Replay<T> replay) {
+            this.replay = replay;
+            this.connection = session.getConnection();
+            try {
+                this.future = replay.send();
+            } catch (SMBRuntimeException e) {
+                if (!replay()) {
+                    throw e;
+                }
+            }
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (ExecutionException e) {
+                    if (!replay()) {
+                        throw e;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (true) {
+                try {
+                    return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (ExecutionException e) {
+                    if (!replay()) {
+                        throw e;
+                    }
+                }
+            }
+        }
+
+        private synchronized boolean replay() {
+            if (connection.isConnected() || !reconnect(connection)) {
+                return false;
+            }
+            logger.info("Sending a request again after reconnecting {}", smbPath);
+            try {
+                future = replay.send();
+            } catch (SMBRuntimeException e) {
+                return false;
+            }
+            connection = session.getConnection();
+            return true;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return future.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return future.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return future.isDone();
+        }
+    }
 }
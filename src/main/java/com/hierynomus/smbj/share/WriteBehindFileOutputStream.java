@@ -0,0 +1,203 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import com.hierynomus.protocol.commons.concurrent.Futures;
+import com.hierynomus.protocol.transport.TransportException;
+import com.hierynomus.smbj.ProgressListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link OutputStream} that writes to a file behind the caller: every full buffer is sent as an asynchronous WRITE
+ * and filling the next buffer continues while up to {@code maxOutstandingWrites} WRITEs are outstanding. The payload
+ * of a WRITE is sent straight from its buffer, so buffers are only reused once their WRITE completed.
+ * <p>
+ * The first failed WRITE is thrown from the next {@link #write}, {@link #flush()} or {@link #close()}. A
+ * {@link #flush()} waits for all outstanding WRITEs.
+ */
+class WriteBehindFileOutputStream extends OutputStream {
+    private static final Logger logger = LoggerFactory.getLogger(WriteBehindFileOutputStream.class);
+
+    private SMB2Writer writer;
+    private final ProgressListener progressListener;
+    private final int bufferSize;
+    private final int maxOutstandingWrites;
+    private final long writeTimeout;
+    private final Deque<PendingWrite> outstanding = new ArrayDeque<>();
+    private final Deque<byte[]> freeBuffers = new ArrayDeque<>();
+    private byte[] buffer;
+    private int count;
+    private long offset;
+    private long bytesWritten;
+    private IOException failure;
+    private boolean isClosed = false;
+
+    WriteBehindFileOutputStream(SMB2Writer writer, int bufferSize, long offset, ProgressListener progressListener, int maxOutstandingWrites, long writeTimeout) {
+        this.writer = writer;
+        this.bufferSize = bufferSize;
+        this.offset = offset;
+        this.progressListener = progressListener;
+        this.maxOutstandingWrites = maxOutstandingWrites;
+        this.writeTimeout = writeTimeout;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        verifyWritable();
+        if (buffer == null) {
+            buffer = nextBuffer();
+        }
+        buffer[count++] = (byte) b;
+        if (count == bufferSize) {
+            sendBuffer();
+        }
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        verifyWritable();
+        while (len > 0) {
+            if (buffer == null) {
+                buffer = nextBuffer();
+            }
+            int n = Math.min(len, bufferSize - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == bufferSize) {
+                sendBuffer();
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        verifyWritable();
+        if (count > 0) {
+            sendBuffer();
+        }
+        while (!outstanding.isEmpty()) {
+            complete(outstanding.poll());
+        }
+        throwFailure();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (isClosed) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            isClosed = true;
+            writer = null;
+            buffer = null;
+            freeBuffers.clear();
+            outstanding.clear();
+            logger.debug("EOF, {} bytes written", bytesWritten);
+        }
+    }
+
+    private void verifyWritable() throws IOException {
+        if (isClosed) {
+            throw new IOException("Stream is closed");
+        }
+        // Pick up WRITEs that completed meanwhile, so that a failure surfaces as soon as possible
+        while (!outstanding.isEmpty() && outstanding.peek().future.isDone()) {
+            complete(outstanding.poll());
+        }
+        throwFailure();
+    }
+
+    private void throwFailure() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private byte[] nextBuffer() throws IOException {
+        if (!freeBuffers.isEmpty()) {
+            return freeBuffers.poll();
+        }
+        if (outstanding.size() < maxOutstandingWrites) {
+            return new byte[bufferSize];
+        }
+        PendingWrite oldest = outstanding.poll();
+        complete(oldest);
+        throwFailure();
+        return freeBuffers.poll();
+    }
+
+    private void sendBuffer() throws IOException {
+        logger.trace("Sending WRITE of {} bytes at offset {}, {} WRITEs outstanding", count, offset, outstanding.size());
+        try {
+            outstanding.add(new PendingWrite(buffer, offset, count, writer.writeAsync(buffer, offset, 0, count)));
+        } catch (RuntimeException e) {
+            throw new IOException("Write failed at offset " + offset, e);
+        }
+        offset += count;
+        buffer = null;
+        count = 0;
+    }
+
+    private void complete(PendingWrite write) {
+        try {
+            if (writeTimeout > 0) {
+                Futures.get(write.future, writeTimeout, TimeUnit.MILLISECONDS, TransportException.Wrapper);
+            } else {
+                Futures.get(write.future, TransportException.Wrapper);
+            }
+            bytesWritten += write.length;
+            if (progressListener != null) {
+                progressListener.onProgressChanged(write.length, write.fileOffset + write.length);
+            }
+        } catch (TransportException | RuntimeException e) {
+            if (failure == null) {
+                failure = new IOException("Write behind failed", e);
+            }
+        }
+        freeBuffers.add(write.buffer);
+    }
+
+    private static class PendingWrite {
+        private final byte[] buffer;
+        private final long fileOffset;
+        private final int length;
+        private final Future<Long> future;
+
+        PendingWrite(byte[] buffer, long fileOffset, int length, Future<Long> future) {
+            this.buffer = buffer;
+            this.fileOffset = fileOffset;
+            this.length = length;
+            this.future = future;
+        }
+    }
+}
@@ -74,7 +74,19 @@ public abstract class PacketReader<D extends PacketData<?>> implements Runnable
     private void readPacket() throws TransportException {
         D packet = doRead();
         logger.debug("Received packet {}", packet);
-        handler.handle(packet);
+        try {
+            handler.handle(packet);
+        } finally {
+            packetHandled(packet);
+        }
+    }
+
+    /**
+     * Called once the packet has been handled by the receiver, so that any resources held by it can be released.
+     *
+     * @param packet the packet returned by {@link #doRead()}
+     */
+    protected void packetHandled(D packet) {
     }
 
     /**
@@ -18,11 +18,10 @@ package com.hierynomus.smbj.transport.tcp.async;
 import com.hierynomus.protocol.Packet;
 import com.hierynomus.protocol.PacketData;
 import com.hierynomus.protocol.commons.buffer.Buffer;
-import com.hierynomus.protocol.commons.buffer.Buffer.BufferException;
+import com.hierynomus.protocol.commons.buffer.BufferPool;
 import com.hierynomus.protocol.transport.PacketHandlers;
 import com.hierynomus.protocol.transport.TransportException;
 import com.hierynomus.protocol.transport.TransportLayer;
-import com.hierynomus.smbj.common.SMBRuntimeException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,16 +33,27 @@ import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Queue;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A transport layer over Direct TCP/IP that uses asynchronous I/O.
+ * <p>
+ * Packets are written without copying them: the Direct TCP header is framed in a separate buffer in front of the
+ * serialized packet. All packets which queue up while a write is in progress are sent in a single gathering write
+ * of at most {@link #setWriteBatching(int, long, TimeUnit) maxBatchSize} packets. Optionally the first write of a
+ * batch can be delayed for a short time, to allow more packets to join it.
  */
 public class AsyncDirectTcpTransport<D extends PacketData<?>, P extends Packet<?>> implements TransportLayer<P> {
     private static final int DEFAULT_CONNECT_TIMEOUT = 5000;
     private static final int DIRECT_HEADER_SIZE = 4;
+    public static final int DEFAULT_MAX_WRITE_BATCH_SIZE = 64;
+    // Stay well below the IOV_MAX of the operating system, each packet takes two buffers
+    public static final int MAX_WRITE_BATCH_SIZE = 512;
 
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
     private final PacketHandlers<D, P> handlers;
@@ -52,38 +62,79 @@ public class AsyncDirectTcpTransport<D extends PacketData<?>, P extends Packet<?
     private final AtomicBoolean connected;
     private int soTimeout = 0;
 
-    // AsynchronousSocketChannel doesn't support concurrent writes, so queue pending writes for later
+    // AsynchronousSocketChannel doesn't support concurrent writes, so queue pending writes for later.
+    // Guarded by this, holds the header, the data buffer and the payload segments of every packet.
     private final Queue<ByteBuffer> writeQueue;
     private AtomicBoolean writingNow;
+    private ByteBuffer[] writeBatch;
+    private int writeBatchLength;
+    private int maxWriteBatchSize = DEFAULT_MAX_WRITE_BATCH_SIZE;
+    private long maxWriteBatchDelayNanos = 0;
+    private ScheduledFuture<?> scheduledWrite;
 
     public AsyncDirectTcpTransport(int soTimeout, PacketHandlers<D, P> handlers, AsynchronousChannelGroup group)
         throws IOException {
+        this(soTimeout, handlers, group, new BufferPool());
+    }
+
+    public AsyncDirectTcpTransport(int soTimeout, PacketHandlers<D, P> handlers, AsynchronousChannelGroup group,
+                                   BufferPool bufferPool) throws IOException {
         this.soTimeout = soTimeout;
         this.handlers = handlers;
         this.socketChannel = AsynchronousSocketChannel.open(group);
         this.packetReader = new AsyncPacketReader<>(this.socketChannel, handlers.getPacketFactory(),
-            handlers.getReceiver());
-        this.writeQueue = new LinkedBlockingQueue<>();
+            handlers.getReceiver(), bufferPool);
+        this.writeQueue = new ArrayDeque<>();
+        this.writeBatch = new ByteBuffer[2 * maxWriteBatchSize];
         this.connected = new AtomicBoolean(false);
         this.writingNow = new AtomicBoolean(false);
     }
 
     @Override
     public void write(P packet) throws TransportException {
-        ByteBuffer bufferToSend = prepareBufferToSend(packet); // Serialize first, as it might throw
+        Buffer<?> packetData = handlers.getSerializer().writeGathering(packet); // Serialize first, as it might throw
         logger.trace("Sending packet << {} >>", packet);
-        writeOrEnqueue(bufferToSend);
+        writeOrEnqueue(packetData);
     }
 
-    private void writeOrEnqueue(ByteBuffer buffer) {
+    private void writeOrEnqueue(Buffer<?> packetData) {
         synchronized (this) {
-            writeQueue.add(buffer);
-            if (!writingNow.getAndSet(true)) {
+            writeQueue.add(directTcpHeader(packetData.available() + packetData.getPayloadSegmentsSize()));
+            writeQueue.add(ByteBuffer.wrap(packetData.array(), packetData.rpos(), packetData.available()));
+            writeQueue.addAll(packetData.getPayloadSegments());
+            if (scheduledWrite != null && writeQueue.size() >= 2 * maxWriteBatchSize) {
+                // Batch is full, no need to wait any longer
+                scheduledWrite.cancel(false);
+                scheduledWrite = null;
                 startAsyncWrite();
+            } else if (!writingNow.getAndSet(true)) {
+                if (maxWriteBatchDelayNanos > 0 && maxWriteBatchSize > 1) {
+                    scheduleAsyncWrite();
+                } else {
+                    startAsyncWrite();
+                }
             }
         }
     }
 
+    /**
+     * Configure the batching of writes.
+     *
+     * @param maxBatchSize The maximum number of packets sent in a single gathering write.
+     * @param maxDelay     The maximum time a packet is held back when no write is in progress, to wait for other
+     *                     packets to join its batch. 0 sends it immediately.
+     */
+    public synchronized void setWriteBatching(int maxBatchSize, long maxDelay, TimeUnit unit) {
+        if (maxBatchSize < 1 || maxBatchSize > MAX_WRITE_BATCH_SIZE) {
+            throw new IllegalArgumentException("Write batch size should be between 1 and " + MAX_WRITE_BATCH_SIZE);
+        }
+        if (maxDelay < 0) {
+            throw new IllegalArgumentException("Write batch delay should be either 0 (no delay) or a positive value");
+        }
+        this.maxWriteBatchSize = maxBatchSize;
+        this.maxWriteBatchDelayNanos = unit.toNanos(maxDelay);
+    }
+
     @Override
     public void connect(InetSocketAddress remoteAddress) throws IOException {
         String remoteHostname = remoteAddress.getHostString();
@@ -104,6 +155,12 @@ public class AsyncDirectTcpTransport<D extends PacketData<?>, P extends Packet<?
     public void disconnect() throws IOException {
         // Mark disconnected first
         connected.set(false);
+        synchronized (this) {
+            if (scheduledWrite != null) {
+                scheduledWrite.cancel(false);
+                scheduledWrite = null;
+            }
+        }
         socketChannel.close();
     }
 
@@ -116,15 +173,41 @@ public class AsyncDirectTcpTransport<D extends PacketData<?>, P extends Packet<?
         this.soTimeout = soTimeout;
     }
 
+    private void scheduleAsyncWrite() {
+        scheduledWrite = WriteScheduler.INSTANCE.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (AsyncDirectTcpTransport.this) {
+                    if (scheduledWrite == null) {
+                        return; // Already written as the batch filled up
+                    }
+                    scheduledWrite = null;
+                    if (isConnected()) {
+                        startAsyncWrite();
+                    } else {
+                        writingNow.set(false);
+                    }
+                }
+            }
+        }, maxWriteBatchDelayNanos, TimeUnit.NANOSECONDS);
+    }
+
     private void startAsyncWrite() {
         if (!isConnected()) {
             throw new IllegalStateException("Transport is not connected");
         }
-        ByteBuffer toSend = writeQueue.peek();
-        socketChannel.write(toSend, soTimeout, TimeUnit.MILLISECONDS, null, new CompletionHandler<Integer, Object>() {
+        if (writeBatch.length != 2 * maxWriteBatchSize) {
+            writeBatch = new ByteBuffer[2 * maxWriteBatchSize];
+        }
+        writeBatchLength = 0;
+        Iterator<ByteBuffer> it = writeQueue.iterator();
+        while (writeBatchLength < writeBatch.length && it.hasNext()) {
+            writeBatch[writeBatchLength++] = it.next();
+        }
+        socketChannel.write(writeBatch, 0, writeBatchLength, soTimeout, TimeUnit.MILLISECONDS, null, new CompletionHandler<Long, Object>() {
 
             @Override
-            public void completed(Integer result, Object attachment) {
+            public void completed(Long result, Object attachment) {
                 logger.trace("Written {} bytes to async transport", result);
                 startNextWriteIfWaiting();
             }
@@ -144,12 +227,14 @@ public class AsyncDirectTcpTransport<D extends PacketData<?>, P extends Packet<?
 
             private void startNextWriteIfWaiting() {
                 synchronized (AsyncDirectTcpTransport.this) {
+                    Arrays.fill(writeBatch, 0, writeBatchLength, null);
                     ByteBuffer head = writeQueue.peek();
-                    if (head != null && head.hasRemaining()) {
-                        startAsyncWrite();
-                    } else if (head != null) {
+                    while (head != null && !head.hasRemaining()) {
                         writeQueue.remove();
-                        startNextWriteIfWaiting();
+                        head = writeQueue.peek();
+                    }
+                    if (head != null) {
+                        startAsyncWrite();
                     } else {
                         writingNow.set(false);
                     }
@@ -158,20 +243,22 @@ public class AsyncDirectTcpTransport<D extends PacketData<?>, P extends Packet<?
         });
     }
 
-    private ByteBuffer prepareBufferToSend(P packet) {
-        Buffer<?> packetData = handlers.getSerializer().write(packet);
-        int dataSize = packetData.available();
-        ByteBuffer toSend = ByteBuffer.allocate(dataSize + DIRECT_HEADER_SIZE);
-        toSend.order(ByteOrder.BIG_ENDIAN);
-        toSend.putInt(packetData.available()); // also writes the initial 0 byte
-        toSend.put(packetData.array(), packetData.rpos(), packetData.available());
-        ((java.nio.Buffer) toSend).flip(); // Java8/9 compatibility
-        try {
-            packetData.skip(dataSize);
-        } catch (BufferException e) {
-            throw SMBRuntimeException.Wrapper.wrap(e); // should never happen
-        }
-        return toSend;
+    private static ByteBuffer directTcpHeader(int dataSize) {
+        ByteBuffer header = ByteBuffer.allocate(DIRECT_HEADER_SIZE);
+        header.order(ByteOrder.BIG_ENDIAN);
+        header.putInt(dataSize); // also writes the initial 0 byte
+        ((java.nio.Buffer) header).flip(); // Java8/9 compatibility
+        return header;
     }
 
+    private static class WriteScheduler {
+        private static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "smbj-async-write-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
 }
@@ -26,6 +26,7 @@ import com.hierynomus.smbj.transport.TransportLayerFactory;
 import java.io.IOException;
 import java.nio.channels.AsynchronousChannelGroup;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class AsyncDirectTcpTransportFactory<D extends PacketData<?>, P extends Packet<?>> implements TransportLayerFactory<D, P> {
     private static final AsynchronousChannelGroup DEFAULT_CHANNEL_GROUP = null;  // use system default
@@ -34,7 +35,9 @@ public class AsyncDirectTcpTransportFactory<D extends PacketData<?>, P extends P
     @Override
     public TransportLayer<P> createTransportLayer(PacketHandlers<D, P> handlers, SmbConfig config) {
         try {
-            return new AsyncDirectTcpTransport<>(config.getSoTimeout(), handlers, group);
+            AsyncDirectTcpTransport<D, P> transport = new AsyncDirectTcpTransport<>(config.getSoTimeout(), handlers, group, config.getBufferPool());
+            transport.setWriteBatching(config.getMaxWriteBatchSize(), config.getMaxWriteBatchDelay(), TimeUnit.NANOSECONDS);
+            return transport;
         } catch (IOException e) {
             throw new SMBRuntimeException(e);
         }
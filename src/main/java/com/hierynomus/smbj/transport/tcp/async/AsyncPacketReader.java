@@ -25,6 +25,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.hierynomus.protocol.PacketData;
 import com.hierynomus.protocol.commons.buffer.Buffer.BufferException;
+import com.hierynomus.protocol.commons.buffer.BufferPool;
 import com.hierynomus.protocol.transport.PacketFactory;
 import com.hierynomus.protocol.transport.PacketReceiver;
 
@@ -35,6 +36,7 @@ public class AsyncPacketReader<D extends PacketData<?>> {
     private static final Logger logger = LoggerFactory.getLogger(AsyncPacketReader.class);
 
     private final PacketFactory<D> packetFactory;
+    private final BufferPool bufferPool;
     private PacketReceiver<D> handler;
     private final AsynchronousSocketChannel channel;
     private String remoteHost;
@@ -44,15 +46,21 @@ public class AsyncPacketReader<D extends PacketData<?>> {
 
     public AsyncPacketReader(AsynchronousSocketChannel channel, PacketFactory<D> packetFactory,
                              PacketReceiver<D> handler) {
+        this(channel, packetFactory, handler, new BufferPool());
+    }
+
+    public AsyncPacketReader(AsynchronousSocketChannel channel, PacketFactory<D> packetFactory,
+                             PacketReceiver<D> handler, BufferPool bufferPool) {
         this.channel = channel;
         this.packetFactory = packetFactory;
         this.handler = handler;
+        this.bufferPool = bufferPool;
     }
 
     public void start(String remoteHost, int soTimeout) {
         this.remoteHost = remoteHost;
         this.soTimeout = soTimeout;
-        initiateNextRead(new PacketBufferReader());
+        initiateNextRead(new PacketBufferReader(bufferPool));
     }
 
     public void stop() {
@@ -91,7 +99,11 @@ public class AsyncPacketReader<D extends PacketData<?>> {
                 private void processPackets(PacketBufferReader reader) {
                     for (byte[] packetBytes = reader.readNext(); packetBytes != null; packetBytes = reader
                         .readNext()) {
-                        readAndHandlePacket(packetBytes);
+                        try {
+                            readAndHandlePacket(packetBytes, reader.getPacketLength());
+                        } finally {
+                            reader.release(packetBytes);
+                        }
                     }
                 }
 
@@ -104,9 +116,9 @@ public class AsyncPacketReader<D extends PacketData<?>> {
             });
     }
 
-    private void readAndHandlePacket(byte[] packetBytes) {
+    private void readAndHandlePacket(byte[] packetBytes, int packetLength) {
         try {
-            D packet = packetFactory.read(packetBytes);
+            D packet = packetFactory.read(packetBytes, packetLength);
             logger.trace("Received packet << {} >>", packet);
             handler.handle(packet);
         } catch (BufferException | IOException e) {
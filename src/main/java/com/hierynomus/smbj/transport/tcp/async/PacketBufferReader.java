@@ -15,39 +15,54 @@
  */
 package com.hierynomus.smbj.transport.tcp.async;
 
-import com.hierynomus.protocol.Packet;
+import com.hierynomus.protocol.commons.buffer.BufferPool;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
+/**
+ * Reassembles Direct TCP packets out of the data read from a channel into {@link #getBuffer()}.
+ * <p>
+ * The packet bytes are assembled in arrays acquired from the {@link BufferPool}, these are larger than the packet
+ * itself, so use {@link #getPacketLength()} for the length of the packet returned by {@link #readNext()}. Once the
+ * packet has been handled, it should be given back through {@link #release(byte[])}.
+ */
 public class PacketBufferReader {
     private static final int NO_PACKET_LENGTH = -1;
     private static final int HEADER_SIZE = 4;
     private static final int READ_BUFFER_CAPACITY = 9000; // Size of a Jumbo frame
 
+    private final BufferPool bufferPool;
     private final ByteBuffer readBuffer;
     private byte[] currentPacketBytes;
     private int currentPacketLength = NO_PACKET_LENGTH;
     private int currentPacketOffset = 0;
+    private int packetLength = NO_PACKET_LENGTH;
 
-    public <P extends Packet<?>> PacketBufferReader() {
-        this.readBuffer = ByteBuffer.allocate(READ_BUFFER_CAPACITY);
-        this.readBuffer.order(ByteOrder.BIG_ENDIAN);
+    public PacketBufferReader() {
+        this(new BufferPool());
     }
 
+    public PacketBufferReader(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        this.readBuffer = bufferPool.allocateReadBuffer(READ_BUFFER_CAPACITY);
+    }
 
+    /**
+     * @return the pooled array containing the next complete packet, or {@code null} if more data needs to be read.
+     */
     public byte[] readNext() {
         ((java.nio.Buffer) readBuffer).flip(); // prepare to process received data (cast is to avoid Java 8/9 compatibility issues)
         byte[] bytes = null;
         if (isAwaitingHeader() && isHeaderAvailable()) {
             currentPacketLength = readPacketHeader();
-            currentPacketBytes = new byte[currentPacketLength];
+            currentPacketBytes = bufferPool.acquire(currentPacketLength);
             bytes = readPacketBody();
         } else if (!isAwaitingHeader()) {
             bytes = readPacketBody();
         }
         readBuffer.compact(); // prepare to receive more data
         if (bytes != null) {
+            packetLength = currentPacketLength;
             currentPacketBytes = null;
             currentPacketOffset = 0;
             currentPacketLength = NO_PACKET_LENGTH;
@@ -55,6 +70,20 @@ public class PacketBufferReader {
         return bytes;
     }
 
+    /**
+     * @return the length of the packet last returned by {@link #readNext()}.
+     */
+    public int getPacketLength() {
+        return packetLength;
+    }
+
+    /**
+     * Give the packet bytes returned by {@link #readNext()} back to the pool, after the packet has been handled.
+     */
+    public void release(byte[] packetBytes) {
+        bufferPool.release(packetBytes);
+    }
+
     private int readPacketHeader() {
         return readBuffer.getInt() & 0xffffff;
     }
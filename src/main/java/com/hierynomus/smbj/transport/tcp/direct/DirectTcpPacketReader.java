@@ -17,7 +17,7 @@ package com.hierynomus.smbj.transport.tcp.direct;
 
 import com.hierynomus.protocol.PacketData;
 import com.hierynomus.protocol.commons.buffer.Buffer;
-import com.hierynomus.protocol.commons.buffer.Endian;
+import com.hierynomus.protocol.commons.buffer.BufferPool;
 import com.hierynomus.protocol.transport.PacketFactory;
 import com.hierynomus.protocol.transport.PacketReceiver;
 import com.hierynomus.protocol.transport.TransportException;
@@ -30,16 +30,24 @@ import java.io.InputStream;
 public class DirectTcpPacketReader<D extends PacketData<?>> extends PacketReader<D> {
 
     private final PacketFactory<D> packetFactory;
+    private final BufferPool bufferPool;
+    private final byte[] tcpHeader = new byte[4];
+    private byte[] packetBuffer;
 
     public DirectTcpPacketReader(String host, InputStream in, PacketFactory<D> packetFactory, PacketReceiver<D> handler) {
+        this(host, in, packetFactory, handler, new BufferPool());
+    }
+
+    public DirectTcpPacketReader(String host, InputStream in, PacketFactory<D> packetFactory, PacketReceiver<D> handler, BufferPool bufferPool) {
         super(host, in, handler);
         this.packetFactory = packetFactory;
+        this.bufferPool = bufferPool;
     }
 
     private D readPacket(int packetLength) throws IOException, Buffer.BufferException {
-        byte[] buf = new byte[packetLength];
-        readFully(buf);
-        return packetFactory.read(buf);
+        packetBuffer = bufferPool.acquire(packetLength);
+        readFully(packetBuffer, packetLength);
+        return packetFactory.read(packetBuffer, packetLength);
     }
 
     @Override
@@ -48,23 +56,32 @@ public class DirectTcpPacketReader<D extends PacketData<?>> extends PacketReader
             int packetLength = readTcpHeader();
             return readPacket(packetLength);
         } catch (TransportException e) {
+            releasePacketBuffer();
             throw e;
         } catch (IOException | Buffer.BufferException e) {
+            releasePacketBuffer();
             throw new TransportException(e);
         }
     }
 
-    private int readTcpHeader() throws IOException, Buffer.BufferException {
-        byte[] tcpHeader = new byte[4];
-        readFully(tcpHeader);
-        Buffer.PlainBuffer plainBuffer = new Buffer.PlainBuffer(tcpHeader, Endian.BE);
-        plainBuffer.readByte();
-        int packetLength = plainBuffer.readUInt24();
-        return packetLength;
+    @Override
+    protected void packetHandled(D packet) {
+        releasePacketBuffer();
+    }
+
+    private void releasePacketBuffer() {
+        bufferPool.release(packetBuffer);
+        packetBuffer = null;
+    }
+
+    private int readTcpHeader() throws IOException {
+        readFully(tcpHeader, tcpHeader.length);
+        // First byte is always 0, followed by the 24-bit big endian packet length
+        return (tcpHeader[1] & 0xFF) << 16 | (tcpHeader[2] & 0xFF) << 8 | (tcpHeader[3] & 0xFF);
     }
 
-    private void readFully(byte[] buffer) throws IOException {
-        int toRead = buffer.length;
+    private void readFully(byte[] buffer, int length) throws IOException {
+        int toRead = length;
         int offset = 0;
         while (toRead > 0) {
             int bytesRead = in.read(buffer, offset, toRead);
@@ -21,6 +21,7 @@ import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.net.SocketFactory;
@@ -31,6 +32,7 @@ import org.slf4j.LoggerFactory;
 import com.hierynomus.protocol.Packet;
 import com.hierynomus.protocol.PacketData;
 import com.hierynomus.protocol.commons.buffer.Buffer;
+import com.hierynomus.protocol.commons.buffer.BufferPool;
 import com.hierynomus.protocol.commons.socket.ProxySocketFactory;
 import com.hierynomus.protocol.transport.PacketHandlers;
 import com.hierynomus.protocol.transport.TransportException;
@@ -48,6 +50,7 @@ public class DirectTcpTransport<D extends PacketData<?>, P extends Packet<?>> im
 
     private SocketFactory socketFactory = new ProxySocketFactory();
     private int soTimeout;
+    private final BufferPool bufferPool;
 
     private Socket socket;
     private BufferedOutputStream output;
@@ -56,9 +59,14 @@ public class DirectTcpTransport<D extends PacketData<?>, P extends Packet<?>> im
     private static final int INITIAL_BUFFER_SIZE = 9000;
 
     public DirectTcpTransport(SocketFactory socketFactory, int soTimeout, PacketHandlers<D, P> handlers) {
+        this(socketFactory, soTimeout, handlers, new BufferPool());
+    }
+
+    public DirectTcpTransport(SocketFactory socketFactory, int soTimeout, PacketHandlers<D, P> handlers, BufferPool bufferPool) {
         this.soTimeout = soTimeout;
         this.socketFactory = socketFactory;
         this.handlers = handlers;
+        this.bufferPool = bufferPool;
     }
 
     @Override
@@ -77,9 +85,10 @@ public class DirectTcpTransport<D extends PacketData<?>, P extends Packet<?>> im
             }
 
             logger.debug("Writing packet {}", packet);
-            Buffer<?> packetData = handlers.getSerializer().write(packet);
-            writeDirectTcpPacketHeader(packetData.available());
+            Buffer<?> packetData = handlers.getSerializer().writeGathering(packet);
+            writeDirectTcpPacketHeader(packetData.available() + packetData.getPayloadSegmentsSize());
             writePacketData(packetData);
+            writePayloadSegments(packetData);
             output.flush();
             logger.trace("Packet {} sent, lock released.", packet);
         } catch (IOException ioe) {
@@ -99,7 +108,7 @@ public class DirectTcpTransport<D extends PacketData<?>, P extends Packet<?>> im
     private void initWithSocket(String remoteHostname) throws IOException {
         this.socket.setSoTimeout(soTimeout);
         this.output = new BufferedOutputStream(this.socket.getOutputStream(), INITIAL_BUFFER_SIZE);
-        packetReaderThread = new DirectTcpPacketReader<>(remoteHostname, socket.getInputStream(), handlers.getPacketFactory(), handlers.getReceiver());
+        packetReaderThread = new DirectTcpPacketReader<>(remoteHostname, socket.getInputStream(), handlers.getPacketFactory(), handlers.getReceiver(), bufferPool);
         packetReaderThread.start();
     }
 
@@ -159,6 +168,22 @@ public class DirectTcpTransport<D extends PacketData<?>, P extends Packet<?>> im
         output.write(packetData.array(), packetData.rpos(), packetData.available());
     }
 
+    private void writePayloadSegments(Buffer<?> packetData) throws IOException {
+        for (ByteBuffer segment : packetData.getPayloadSegments()) {
+            if (segment.hasArray()) {
+                // Larger than the buffer of the output stream, so written straight to the socket
+                output.write(segment.array(), segment.arrayOffset() + segment.position(), segment.remaining());
+            } else {
+                byte[] chunk = new byte[Math.min(segment.remaining(), INITIAL_BUFFER_SIZE)];
+                while (segment.hasRemaining()) {
+                    int length = Math.min(chunk.length, segment.remaining());
+                    segment.get(chunk, 0, length);
+                    output.write(chunk, 0, length);
+                }
+            }
+        }
+    }
+
     private void writeDirectTcpPacketHeader(int size) throws IOException {
         output.write(0);
         output.write((byte) (size >> 16));
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.transport.tcp.nio;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hierynomus.protocol.commons.concurrent.Promise;
+import com.hierynomus.protocol.transport.TransportException;
+
+/**
+ * A single selector thread which multiplexes the I/O of many {@link NioSelectorTransport transports}.
+ * <p>
+ * All channel registrations and interest changes are executed on the event loop thread, other threads
+ * submit them through {@link #execute(Runnable)}.
+ * <p>
+ * Once a handler with a read timeout is registered, the selector wakes up every
+ * {@value #READ_TIMEOUT_CHECK_INTERVAL_MS} ms to let the handlers check whether they received data in time.
+ */
+class NioEventLoop implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(NioEventLoop.class);
+    static final long READ_TIMEOUT_CHECK_INTERVAL_MS = 100;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean stopped = new AtomicBoolean(false);
+    private final Thread thread;
+    // Only accessed on the event loop thread
+    private boolean readTimeouts;
+    private long nextReadTimeoutCheck;
+
+    NioEventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        logger.debug("Starting NIO event loop on thread: {}", thread.getName());
+        thread.start();
+    }
+
+    /**
+     * Register the channel with this event loop for the given interest set.
+     *
+     * @return the {@link SelectionKey} once the registration has been done on the event loop thread.
+     */
+    SelectionKey register(final SelectableChannel channel, final int ops, final Handler handler) throws TransportException {
+        if (inEventLoop()) {
+            try {
+                readTimeouts |= handler.hasReadTimeout();
+                return channel.register(selector, ops, handler);
+            } catch (ClosedChannelException e) {
+                throw new TransportException(e);
+            }
+        }
+        final Promise<SelectionKey, TransportException> promise = new Promise<>("register-" + channel, TransportException.Wrapper);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    readTimeouts |= handler.hasReadTimeout();
+                    promise.deliver(channel.register(selector, ops, handler));
+                } catch (ClosedChannelException e) {
+                    promise.deliverError(e);
+                }
+            }
+        });
+        return promise.retrieve();
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    int registeredChannels() {
+        return selector.keys().size();
+    }
+
+    void stop() {
+        if (stopped.getAndSet(true)) {
+            return;
+        }
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (!stopped.get()) {
+            try {
+                if (readTimeouts) {
+                    selector.select(READ_TIMEOUT_CHECK_INTERVAL_MS);
+                } else {
+                    selector.select();
+                }
+                runTasks();
+                processSelectedKeys();
+                checkReadTimeouts();
+            } catch (IOException e) {
+                logger.error("I/O error in NIO event loop {}, continuing", thread.getName(), e);
+            } catch (RuntimeException e) {
+                logger.error("Unexpected error in NIO event loop {}, continuing", thread.getName(), e);
+            }
+        }
+        closeSelector();
+        logger.info("{} stopped.", thread);
+    }
+
+    private void runTasks() {
+        for (Runnable task = tasks.poll(); task != null; task = tasks.poll()) {
+            task.run();
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            Handler handler = (Handler) key.attachment();
+            try {
+                if (key.isValid() && key.isReadable()) {
+                    handler.onReadable();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    handler.onWritable();
+                }
+            } catch (CancelledKeyException e) {
+                logger.trace("Key for {} cancelled while processing", handler);
+            }
+        }
+    }
+
+    private void checkReadTimeouts() {
+        long now = System.nanoTime();
+        if (!readTimeouts || now - nextReadTimeoutCheck < 0) {
+            return;
+        }
+        nextReadTimeoutCheck = now + TimeUnit.MILLISECONDS.toNanos(READ_TIMEOUT_CHECK_INTERVAL_MS);
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid()) {
+                ((Handler) key.attachment()).checkReadTimeout(now);
+            }
+        }
+    }
+
+    private void closeSelector() {
+        for (SelectionKey key : selector.keys()) {
+            ((Handler) key.attachment()).onEventLoopStopped();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.debug("{} while closing selector: {}", e.getClass().getSimpleName(), e.getMessage());
+        }
+    }
+
+    /**
+     * Callbacks invoked on the event loop thread for a registered channel.
+     */
+    interface Handler {
+        void onReadable();
+
+        void onWritable();
+
+        void onEventLoopStopped();
+
+        /**
+         * @return whether {@link #checkReadTimeout(long)} should be called for this handler
+         */
+        boolean hasReadTimeout();
+
+        /**
+         * Called about every {@value #READ_TIMEOUT_CHECK_INTERVAL_MS} ms with the current {@link System#nanoTime()},
+         * once a handler with a read timeout is registered.
+         */
+        void checkReadTimeout(long nanoTime);
+    }
+}
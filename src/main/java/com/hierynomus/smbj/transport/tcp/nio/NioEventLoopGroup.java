@@ -0,0 +1,87 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.transport.tcp.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.hierynomus.smbj.common.SMBRuntimeException;
+
+/**
+ * A fixed pool of {@link NioEventLoop selector threads}. Transports are assigned to the event loops in a
+ * round-robin fashion, so that a few threads can serve thousands of connections.
+ */
+public class NioEventLoopGroup implements Closeable {
+    private static final AtomicInteger GROUP_COUNTER = new AtomicInteger();
+
+    private final NioEventLoop[] eventLoops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Create a group with one event loop per two available processors (with a minimum of one).
+     */
+    public NioEventLoopGroup() {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    public NioEventLoopGroup(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Number of event loop threads must be greater than zero");
+        }
+        int groupId = GROUP_COUNTER.incrementAndGet();
+        this.eventLoops = new NioEventLoop[threads];
+        try {
+            for (int i = 0; i < threads; i++) {
+                eventLoops[i] = new NioEventLoop("smbj-nio-" + groupId + "-" + i);
+            }
+        } catch (IOException e) {
+            throw new SMBRuntimeException(e); // unable to open selectors?
+        }
+        for (NioEventLoop eventLoop : eventLoops) {
+            eventLoop.start();
+        }
+    }
+
+    NioEventLoop next() {
+        return eventLoops[Math.abs(next.getAndIncrement() % eventLoops.length)];
+    }
+
+    public int getThreadCount() {
+        return eventLoops.length;
+    }
+
+    /**
+     * @return The number of channels currently registered across all event loops.
+     */
+    public int getRegisteredChannels() {
+        int count = 0;
+        for (NioEventLoop eventLoop : eventLoops) {
+            count += eventLoop.registeredChannels();
+        }
+        return count;
+    }
+
+    /**
+     * Stop all event loops. Any transport still registered is notified and disconnected.
+     */
+    @Override
+    public void close() {
+        for (NioEventLoop eventLoop : eventLoops) {
+            eventLoop.stop();
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.transport.tcp.nio;
+
+import static java.lang.String.format;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hierynomus.protocol.Packet;
+import com.hierynomus.protocol.PacketData;
+import com.hierynomus.protocol.commons.buffer.Buffer;
+import com.hierynomus.protocol.commons.buffer.BufferPool;
+import com.hierynomus.protocol.commons.socket.ProxySocketFactory;
+import com.hierynomus.protocol.transport.PacketHandlers;
+import com.hierynomus.protocol.transport.TransportException;
+import com.hierynomus.protocol.transport.TransportLayer;
+import com.hierynomus.smbj.transport.tcp.async.PacketBufferReader;
+
+/**
+ * A transport layer over Direct TCP/IP that is driven by a shared {@link NioEventLoopGroup}.
+ * <p>
+ * Contrary to the {@link com.hierynomus.smbj.transport.tcp.direct.DirectTcpTransport} this transport does not
+ * start a dedicated reader thread. The socket is registered with one of the selector threads of the group, which
+ * reassembles the Direct TCP frames and dispatches the received packets to the
+ * {@link com.hierynomus.protocol.transport.PacketReceiver}.
+ * <p>
+ * The receiver runs on the selector thread, which is shared by all transports of the event loop, so it must not
+ * block. A connection hands lease breaks to its own executor, but by default decrypts, decompresses and verifies
+ * received packets and completes the response futures on the calling thread; configure
+ * {@link com.hierynomus.smbj.SmbConfig.Builder#withPacketWorkerThreads(int) packet workers} to move the first off the
+ * selector thread, and do not block in callbacks on the response futures.
+ * <p>
+ * The channel is a plain {@link SocketChannel}, so the connection cannot go through a proxy or a custom
+ * {@link javax.net.SocketFactory}. It is connected within the given connect timeout, and closed if no data is received
+ * for the given read timeout, like the socket of the other transports with the configured SO_TIMEOUT.
+ */
+public class NioSelectorTransport<D extends PacketData<?>, P extends Packet<?>> implements TransportLayer<P>, NioEventLoop.Handler {
+    private static final int DIRECT_HEADER_SIZE = 4;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final PacketHandlers<D, P> handlers;
+    private final NioEventLoopGroup group;
+    private final AtomicBoolean connected = new AtomicBoolean(false);
+    private final PacketBufferReader packetBufferReader;
+    private final int connectTimeout;
+    private final int soTimeout;
+    private final long soTimeoutNanos;
+
+    // Guarded by itself, only the head of the queue can be partially written.
+    private final Queue<ByteBuffer> writeQueue = new ArrayDeque<>();
+
+    private String remoteHostname;
+    private SocketChannel channel;
+    private NioEventLoop eventLoop;
+    private SelectionKey selectionKey;
+    private volatile long lastRead; // System.nanoTime() of the last read, or of the connect
+
+    public NioSelectorTransport(PacketHandlers<D, P> handlers, NioEventLoopGroup group) {
+        this(handlers, group, new BufferPool());
+    }
+
+    public NioSelectorTransport(PacketHandlers<D, P> handlers, NioEventLoopGroup group, BufferPool bufferPool) {
+        this(handlers, group, bufferPool, ProxySocketFactory.DEFAULT_CONNECT_TIMEOUT, 0);
+    }
+
+    /**
+     * @param connectTimeout The connect timeout in milliseconds, 0 waits indefinitely
+     * @param soTimeout      The time in milliseconds after which the connection is closed if no data was received,
+     *                       0 for no timeout
+     */
+    public NioSelectorTransport(PacketHandlers<D, P> handlers, NioEventLoopGroup group, BufferPool bufferPool, int connectTimeout, int soTimeout) {
+        this.handlers = handlers;
+        this.group = group;
+        this.packetBufferReader = new PacketBufferReader(bufferPool);
+        this.connectTimeout = connectTimeout;
+        this.soTimeout = soTimeout;
+        this.soTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(soTimeout);
+    }
+
+    @Override
+    public void connect(InetSocketAddress remoteAddress) throws IOException {
+        if (isConnected()) {
+            throw new IllegalStateException(format("This transport is already connected to %s", remoteHostname));
+        }
+        this.remoteHostname = remoteAddress.getHostString();
+        SocketChannel socketChannel = SocketChannel.open();
+        try {
+            socketChannel.socket().connect(remoteAddress, connectTimeout);
+            socketChannel.configureBlocking(false);
+            this.channel = socketChannel;
+            this.eventLoop = group.next();
+            this.lastRead = System.nanoTime();
+            connected.set(true);
+            this.selectionKey = eventLoop.register(socketChannel, SelectionKey.OP_READ, this);
+        } catch (IOException e) {
+            connected.set(false);
+            socketChannel.close();
+            throw TransportException.Wrapper.wrap(e);
+        }
+        logger.debug("Connected to {}, registered with NIO event loop", remoteHostname);
+    }
+
+    @Override
+    public void write(P packet) throws TransportException {
+        if (!isConnected()) {
+            throw new TransportException(format("Cannot write %s as transport is disconnected", packet));
+        }
+        ByteBuffer[] buffersToSend = prepareBuffersToSend(packet);
+        logger.trace("Sending packet << {} >>", packet);
+        try {
+            synchronized (writeQueue) {
+                boolean wasEmpty = writeQueue.isEmpty();
+                if (wasEmpty) {
+                    // Fast path, try to write directly from the calling thread.
+                    channel.write(buffersToSend);
+                }
+                for (ByteBuffer buffer : buffersToSend) {
+                    if (buffer.hasRemaining()) {
+                        writeQueue.add(buffer);
+                    }
+                }
+                if (wasEmpty && !writeQueue.isEmpty()) {
+                    eventLoop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            setInterest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        }
+                    });
+                }
+            }
+        } catch (IOException e) {
+            TransportException te = TransportException.Wrapper.wrap(e);
+            fail(te);
+            throw te;
+        }
+    }
+
+    @Override
+    public void onReadable() {
+        try {
+            int bytesRead = channel.read(packetBufferReader.getBuffer());
+            if (bytesRead < 0) {
+                fail(new TransportException(new EOFException("Connection closed by server")));
+                return;
+            }
+            lastRead = System.nanoTime();
+            logger.trace("Received {} bytes from {}", bytesRead, remoteHostname);
+            for (byte[] packetBytes = packetBufferReader.readNext(); packetBytes != null; packetBytes = packetBufferReader.readNext()) {
+                try {
+                    D packet = handlers.getPacketFactory().read(packetBytes, packetBufferReader.getPacketLength());
+                    logger.trace("Received packet << {} >>", packet);
+                    handlers.getReceiver().handle(packet);
+                } finally {
+                    packetBufferReader.release(packetBytes);
+                }
+            }
+        } catch (IOException | Buffer.BufferException | RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void onWritable() {
+        try {
+            synchronized (writeQueue) {
+                for (ByteBuffer head = writeQueue.peek(); head != null; head = writeQueue.peek()) {
+                    channel.write(head);
+                    if (head.hasRemaining()) {
+                        return; // Socket buffer full, wait for the next OP_WRITE.
+                    }
+                    writeQueue.remove();
+                }
+                setInterest(SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void onEventLoopStopped() {
+        fail(new TransportException("NIO event loop for " + remoteHostname + " was stopped"));
+    }
+
+    @Override
+    public boolean hasReadTimeout() {
+        return soTimeout > 0;
+    }
+
+    @Override
+    public void checkReadTimeout(long nanoTime) {
+        if (soTimeout > 0 && nanoTime - lastRead >= soTimeoutNanos) {
+            fail(new TransportException(new SocketTimeoutException(format("No data received from %s for %d ms", remoteHostname, soTimeout))));
+        }
+    }
+
+    private void setInterest(int ops) {
+        if (selectionKey != null && selectionKey.isValid()) {
+            selectionKey.interestOps(ops);
+        }
+    }
+
+    private void fail(Throwable t) {
+        if (!connected.getAndSet(false)) {
+            return;
+        }
+        logger.info("{} on channel to {}, closing channel: {}", t.getClass().getSimpleName(), remoteHostname, t.getMessage());
+        closeChannelQuietly();
+        handlers.getReceiver().handleError(t);
+    }
+
+    @Override
+    public void disconnect() throws IOException {
+        if (!connected.getAndSet(false)) {
+            return;
+        }
+        if (selectionKey != null) {
+            selectionKey.cancel();
+        }
+        channel.close();
+        synchronized (writeQueue) {
+            writeQueue.clear();
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected.get();
+    }
+
+    private void closeChannelQuietly() {
+        try {
+            if (selectionKey != null) {
+                selectionKey.cancel();
+            }
+            channel.close();
+        } catch (IOException e) {
+            logger.debug("{} while closing channel to {} on failure: {}", e.getClass().getSimpleName(), remoteHostname, e.getMessage());
+        }
+    }
+
+    private ByteBuffer[] prepareBuffersToSend(P packet) {
+        Buffer<?> packetData = handlers.getSerializer().writeGathering(packet);
+        List<ByteBuffer> payloadSegments = packetData.getPayloadSegments();
+        ByteBuffer[] toSend = new ByteBuffer[2 + payloadSegments.size()];
+        ByteBuffer header = ByteBuffer.allocate(DIRECT_HEADER_SIZE);
+        header.order(ByteOrder.BIG_ENDIAN);
+        header.putInt(packetData.available() + packetData.getPayloadSegmentsSize()); // also writes the initial 0 byte
+        ((java.nio.Buffer) header).flip(); // Java8/9 compatibility
+        toSend[0] = header;
+        toSend[1] = ByteBuffer.wrap(packetData.array(), packetData.rpos(), packetData.available());
+        for (int i = 0; i < payloadSegments.size(); i++) {
+            toSend[2 + i] = payloadSegments.get(i);
+        }
+        return toSend;
+    }
+}
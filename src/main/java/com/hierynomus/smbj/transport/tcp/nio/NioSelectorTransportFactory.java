@@ -0,0 +1,77 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.transport.tcp.nio;
+
+import java.net.Proxy;
+
+import javax.net.SocketFactory;
+
+import com.hierynomus.protocol.Packet;
+import com.hierynomus.protocol.PacketData;
+import com.hierynomus.protocol.commons.socket.ProxySocketFactory;
+import com.hierynomus.protocol.transport.PacketHandlers;
+import com.hierynomus.protocol.transport.TransportLayer;
+import com.hierynomus.smbj.SmbConfig;
+import com.hierynomus.smbj.transport.TransportLayerFactory;
+
+/**
+ * Creates {@link NioSelectorTransport NIO transports} which all share the selector threads of a single
+ * {@link NioEventLoopGroup}.
+ * <p>
+ * The transports connect within the connect timeout of the configured {@link ProxySocketFactory} and use the
+ * configured SO_TIMEOUT as their read timeout. They cannot connect through a proxy or a custom
+ * {@link SocketFactory}; such a configuration is rejected.
+ */
+public class NioSelectorTransportFactory<D extends PacketData<?>, P extends Packet<?>> implements TransportLayerFactory<D, P> {
+    private final NioEventLoopGroup group;
+
+    /**
+     * Use the lazily created, JVM-wide default event loop group.
+     */
+    public NioSelectorTransportFactory() {
+        this(DefaultGroupHolder.INSTANCE);
+    }
+
+    /**
+     * Use a new event loop group with the given number of selector threads.
+     */
+    public NioSelectorTransportFactory(int threads) {
+        this(new NioEventLoopGroup(threads));
+    }
+
+    public NioSelectorTransportFactory(NioEventLoopGroup group) {
+        this.group = group;
+    }
+
+    @Override
+    public TransportLayer<P> createTransportLayer(PacketHandlers<D, P> handlers, SmbConfig config) {
+        SocketFactory socketFactory = config.getSocketFactory();
+        if (socketFactory.getClass() != ProxySocketFactory.class || ((ProxySocketFactory) socketFactory).getProxy().type() != Proxy.Type.DIRECT) {
+            throw new IllegalArgumentException("The NIO transport connects without a SocketFactory, it cannot use " + socketFactory
+                + ", configure a plain ProxySocketFactory or use another transport");
+        }
+        int connectTimeout = ((ProxySocketFactory) socketFactory).getConnectTimeout();
+        return new NioSelectorTransport<>(handlers, group, config.getBufferPool(), connectTimeout, config.getSoTimeout());
+    }
+
+    public NioEventLoopGroup getEventLoopGroup() {
+        return group;
+    }
+
+    private static class DefaultGroupHolder {
+        private static final NioEventLoopGroup INSTANCE = new NioEventLoopGroup();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.mssmb2.messages.create
+
+import com.hierynomus.mssmb2.SMB2FileId
+import com.hierynomus.protocol.commons.ByteArrayUtils
+import spock.lang.Specification
+
+class SMB2DurableHandleContextSpec extends Specification {
+    static final UUID GUID = UUID.fromString("00112233-4455-6677-8899-aabbccddeeff")
+
+    static String hex(byte[] b) { ByteArrayUtils.toHex(b) }
+
+    def "DH2Q request emits the exact 32-byte data blob"() {
+        when:
+        def ctx = new SMB2DurableHandleRequestV2(60000, false, GUID).toCreateContext()
+
+        then:
+        new String(ctx.name, "US-ASCII") == "DH2Q"
+        hex(ctx.data) ==
+            "60ea0000" +                          // Timeout = 60000
+            "00000000" +                          // Flags
+            "0000000000000000" +                  // Reserved
+            "33221100554477668899aabbccddeeff"    // CreateGuid
+    }
+
+    def "DH2Q request sets the persistent flag"() {
+        expect:
+        hex(new SMB2DurableHandleRequestV2(0, true, GUID).toBytes()).substring(8, 16) == "02000000"
+    }
+
+    def "DH2C reconnect emits the exact 36-byte data blob"() {
+        given:
+        def fileId = new SMB2FileId(ByteArrayUtils.parseHex("0102030405060708"), ByteArrayUtils.parseHex("1112131415161718"))
+
+        when:
+        def ctx = new SMB2DurableHandleReconnectV2(fileId, GUID, true).toCreateContext()
+
+        then:
+        new String(ctx.name, "US-ASCII") == "DH2C"
+        hex(ctx.data) ==
+            "0102030405060708" + "1112131415161718" + // FileId
+            "33221100554477668899aabbccddeeff" +      // CreateGuid
+            "02000000"                                // Flags = PERSISTENT
+    }
+
+    def "DH2Q response exposes the granted timeout and flags"() {
+        when:
+        def resp = SMB2DurableHandleResponseV2.from(new SMB2CreateContext(SMB2DurableHandleRequestV2.NAME, ByteArrayUtils.parseHex("30750000" + "02000000")))
+
+        then:
+        resp.timeout == 30000
+        resp.persistent
+    }
+
+    def "a malformed DH2Q response is rejected"() {
+        when:
+        SMB2DurableHandleResponseV2.read(new byte[4])
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.mssmb2.messages.negotiate
+
+import com.hierynomus.mssmb2.SMB2SigningAlgorithm
+import com.hierynomus.protocol.commons.ByteArrayUtils
+import com.hierynomus.smb.SMBBuffer
+import spock.lang.Specification
+
+class SMB2SigningCapabilitiesSpec extends Specification {
+
+  def "should write the signing algorithms in order of preference"() {
+    given:
+    def buffer = new SMBBuffer()
+
+    when:
+    def size = new SMB2SigningCapabilities([SMB2SigningAlgorithm.AES_GMAC, SMB2SigningAlgorithm.AES_CMAC]).write(buffer)
+
+    then:
+    size == 14
+    ByteArrayUtils.toHex(buffer.getCompactData()) ==
+      "0800" + "0600" + "00000000" + // ContextType, DataLength, Reserved
+      "0200" +                       // SigningAlgorithmCount
+      "0200" + "0100"                // AES-GMAC, AES-CMAC
+  }
+
+  def "should read the signing algorithm selected by the server"() {
+    given:
+    def buffer = new SMBBuffer(ByteArrayUtils.parseHex("0800" + "0400" + "00000000" + "0100" + "0200"))
+
+    when:
+    def context = SMB2NegotiateContext.factory(buffer)
+
+    then:
+    context instanceof SMB2SigningCapabilities
+    context.negotiateContextType == SMB2NegotiateContextType.SMB2_SIGNING_CAPABILITIES
+    (context as SMB2SigningCapabilities).signingAlgorithms == [SMB2SigningAlgorithm.AES_GMAC]
+  }
+}
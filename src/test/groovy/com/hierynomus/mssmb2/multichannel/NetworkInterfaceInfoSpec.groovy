@@ -0,0 +1,72 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.mssmb2.multichannel
+
+import com.hierynomus.smb.SMBBuffer
+import spock.lang.Specification
+
+import static com.hierynomus.mssmb2.multichannel.NetworkInterfaceInfo.Capability.RDMA_CAPABLE
+import static com.hierynomus.mssmb2.multichannel.NetworkInterfaceInfo.Capability.RSS_CAPABLE
+
+class NetworkInterfaceInfoSpec extends Specification {
+
+  def "should read the chain of interfaces that was written"() {
+    given:
+    def buffer = new SMBBuffer()
+    new NetworkInterfaceInfo(3, EnumSet.of(RSS_CAPABLE), 10000000000L, InetAddress.getByName("192.168.1.10")).write(buffer, false)
+    new NetworkInterfaceInfo(4, EnumSet.of(RSS_CAPABLE, RDMA_CAPABLE), 1000000000L, InetAddress.getByName("fe80::1")).write(buffer, true)
+
+    when:
+    def interfaces = NetworkInterfaceInfo.readAll(buffer.getCompactData())
+
+    then:
+    buffer.getCompactData().length == 2 * NetworkInterfaceInfo.STRUCTURE_SIZE
+    interfaces.size() == 2
+    interfaces[0].ifIndex == 3
+    interfaces[0].capabilities == EnumSet.of(RSS_CAPABLE)
+    interfaces[0].linkSpeed == 10000000000L
+    interfaces[0].address == InetAddress.getByName("192.168.1.10")
+    interfaces[1].ifIndex == 4
+    interfaces[1].capabilities == EnumSet.of(RSS_CAPABLE, RDMA_CAPABLE)
+    interfaces[1].linkSpeed == 1000000000L
+    interfaces[1].address == InetAddress.getByName("fe80::1")
+  }
+
+  def "should skip interfaces with an unknown address family"() {
+    given:
+    def buffer = new SMBBuffer()
+    new NetworkInterfaceInfo(1, EnumSet.noneOf(NetworkInterfaceInfo.Capability), 100, InetAddress.getByName("10.0.0.1")).write(buffer, false)
+    new NetworkInterfaceInfo(2, EnumSet.noneOf(NetworkInterfaceInfo.Capability), 100, InetAddress.getByName("10.0.0.2")).write(buffer, true)
+    def bytes = buffer.getCompactData()
+    bytes[24] = 0x1E // Family of the first interface, AF_NETBIOS
+
+    when:
+    def interfaces = NetworkInterfaceInfo.readAll(bytes)
+
+    then:
+    interfaces*.ifIndex == [2L]
+  }
+
+  def "should stop at the last interface"() {
+    given:
+    def buffer = new SMBBuffer()
+    new NetworkInterfaceInfo(1, EnumSet.noneOf(NetworkInterfaceInfo.Capability), 100, InetAddress.getByName("10.0.0.1")).write(buffer, true)
+    new NetworkInterfaceInfo(2, EnumSet.noneOf(NetworkInterfaceInfo.Capability), 100, InetAddress.getByName("10.0.0.2")).write(buffer, true)
+
+    expect:
+    NetworkInterfaceInfo.readAll(buffer.getCompactData())*.ifIndex == [1L]
+  }
+}
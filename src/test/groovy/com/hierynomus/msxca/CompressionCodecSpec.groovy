@@ -0,0 +1,149 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.msxca
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class CompressionCodecSpec extends Specification {
+
+  def "LZ77 compresses the [MS-XCA] example #name"() {
+    given:
+    def input = text.getBytes("US-ASCII")
+    def out = new byte[input.length + 64]
+
+    when:
+    def length = new Lz77Codec().compress(input, 0, input.length, out, 0, out.length)
+
+    then:
+    Arrays.copyOf(out, length) == expected as byte[]
+
+    where:
+    name       | text                         | expected
+    "alphabet" | "abcdefghijklmnopqrstuvwxyz" | [0x3f, 0x00, 0x00, 0x00] + ("abcdefghijklmnopqrstuvwxyz".bytes as List)
+    "abc x100" | "abc" * 100                  | [0xff, 0xff, 0xff, 0x1f, 0x61, 0x62, 0x63, 0x17, 0x00, 0x0f, 0xff, 0x26, 0x01]
+  }
+
+  def "LZNT1 compresses repeating data into a single compressed chunk"() {
+    given:
+    def input = ("abc" * 4).getBytes("US-ASCII")
+    def out = new byte[64]
+
+    when:
+    def length = new Lznt1Codec().compress(input, 0, input.length, out, 0, out.length)
+
+    then:
+    Arrays.copyOf(out, length) == [0x05, 0xb0, 0x08, 0x61, 0x62, 0x63, 0x06, 0x20] as byte[]
+  }
+
+  @Unroll
+  def "#codec.class.simpleName round trips #name"() {
+    given:
+    def out = new byte[input.length + input.length / 8 + 1024 as int]
+    def offsetInput = new byte[input.length + 7]
+    System.arraycopy(input, 0, offsetInput, 7, input.length)
+
+    when:
+    def length = codec.compress(offsetInput, 7, input.length, out, 3, out.length - 3)
+    def decompressed = new byte[input.length + 5]
+    codec.decompress(out, 3, length, decompressed, 5, input.length)
+
+    then:
+    length >= 0
+    Arrays.copyOfRange(decompressed, 5, decompressed.length) == input
+
+    where:
+    [codec, name, input] << [[new Lz77Codec(), new Lznt1Codec(), new Lz77HuffmanCodec()], testData()].combinations().collect { [it[0]] + it[1] }
+  }
+
+  def "#codec.class.simpleName compresses text to less than half its size"() {
+    given:
+    def input = logLines(200000)
+    def out = new byte[input.length]
+
+    expect:
+    codec.compress(input, 0, input.length, out, 0, out.length) < input.length / 2
+
+    where:
+    codec << [new Lz77Codec(), new Lznt1Codec(), new Lz77HuffmanCodec()]
+  }
+
+  def "#codec.class.simpleName signals that random data does not fit"() {
+    given:
+    def input = new byte[10000]
+    new Random(1).nextBytes(input)
+    def out = new byte[input.length]
+
+    expect:
+    codec.compress(input, 0, input.length, out, 0, input.length - 1) == -1
+
+    where:
+    codec << [new Lz77Codec(), new Lz77HuffmanCodec()]
+  }
+
+  def "#codec.class.simpleName rejects truncated or oversized input"() {
+    given:
+    def input = logLines(20000)
+    def out = new byte[input.length]
+    def length = codec.compress(input, 0, input.length, out, 0, out.length)
+
+    when:
+    codec.decompress(out, 0, length.intdiv(2), new byte[input.length], 0, input.length)
+
+    then:
+    thrown(CompressionException)
+
+    when:
+    codec.decompress(out, 0, length, new byte[input.length + 10], 0, input.length + 10)
+
+    then:
+    thrown(CompressionException)
+
+    where:
+    codec << [new Lz77Codec(), new Lznt1Codec(), new Lz77HuffmanCodec()]
+  }
+
+  private static List<List<Object>> testData() {
+    def random = new byte[150000]
+    new Random(42).nextBytes(random)
+    def runs = new byte[300000]
+    for (int i = 200000; i < runs.length; i++) {
+      runs[i] = (byte) (i / 1000)
+    }
+    return [
+      ["empty input", new byte[0]],
+      ["a single byte", [42] as byte[]],
+      ["a short string", "Hello, World!".bytes],
+      ["log lines", logLines(300000)],
+      ["random data", random],
+      ["long runs", runs],
+      ["a repeated pattern", ("0123456789" * 20000).bytes],
+    ]
+  }
+
+  private static byte[] logLines(int size) {
+    def random = new Random(7)
+    def levels = ["INFO", "DEBUG", "WARN", "ERROR"]
+    def sb = new StringBuilder()
+    int i = 0
+    while (sb.length() < size) {
+      sb.append(String.format("2024-01-%02d 12:%02d:%02d.%03d %-5s [worker-%d] c.h.smbj.Connection - request %d took %d ms%n",
+        1 + i % 28, i % 60, (i * 7) % 60, random.nextInt(1000), levels[random.nextInt(4)], random.nextInt(16), i, random.nextInt(500)))
+      i++
+    }
+    return sb.substring(0, size).getBytes("US-ASCII")
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.protocol.commons.buffer
+
+import spock.lang.Specification
+
+class BufferPoolSpec extends Specification {
+
+  def "should hand out power of two sized arrays"() {
+    given:
+    def pool = new BufferPool()
+
+    expect:
+    pool.acquire(1).length == 1024
+    pool.acquire(1024).length == 1024
+    pool.acquire(1025).length == 2048
+    pool.acquire(0xFFFFFF).length == 1 << 24
+  }
+
+  def "should reuse released arrays of the same size class"() {
+    given:
+    def pool = new BufferPool()
+    def bytes = pool.acquire(5000)
+
+    when:
+    pool.release(bytes)
+
+    then:
+    pool.acquire(6000).is(bytes)
+    pool.getAllocations() == 1
+    pool.getReuses() == 1
+  }
+
+  def "should not pool arrays larger than the maximum pooled size"() {
+    given:
+    def pool = new BufferPool(4096, 4, false)
+
+    when:
+    def bytes = pool.acquire(5000)
+    pool.release(bytes)
+
+    then:
+    bytes.length == 5000
+    !pool.acquire(5000).is(bytes)
+  }
+
+  def "should drop arrays which are not from a size class"() {
+    given:
+    def pool = new BufferPool()
+
+    when:
+    pool.release(new byte[3000])
+
+    then:
+    pool.acquire(3000).length == 4096
+    pool.getReuses() == 0
+  }
+
+  def "should retain a bounded number of arrays per size class"() {
+    given:
+    def pool = new BufferPool(1 << 20, 2, false)
+    def arrays = (1..3).collect { pool.acquire(2048) }
+
+    when:
+    arrays.each { pool.release(it) }
+    (1..3).each { pool.acquire(2048) }
+
+    then:
+    pool.getReuses() == 2
+    pool.getAllocations() == 4
+  }
+
+  def "should not pool anything when disabled"() {
+    given:
+    def pool = new BufferPool(0, 0, false)
+    def bytes = pool.acquire(100)
+
+    when:
+    pool.release(bytes)
+
+    then:
+    bytes.length == 100
+    !pool.acquire(100).is(bytes)
+  }
+
+  def "should allocate direct read buffers if configured"() {
+    expect:
+    new BufferPool(1 << 20, 4, true).allocateReadBuffer(9000).isDirect()
+    !new BufferPool().allocateReadBuffer(9000).isDirect()
+  }
+}
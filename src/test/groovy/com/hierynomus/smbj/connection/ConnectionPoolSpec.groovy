@@ -0,0 +1,299 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.connection
+
+import com.hierynomus.mssmb2.messages.SMB2Echo
+import com.hierynomus.protocol.transport.TransportException
+import com.hierynomus.protocol.transport.TransportLayer
+import com.hierynomus.smbj.SMBClient
+import com.hierynomus.smbj.SmbConfig
+import com.hierynomus.smbj.testing.PacketProcessor.DefaultPacketProcessor
+import com.hierynomus.smbj.testing.StubAuthenticator
+import com.hierynomus.smbj.testing.StubTransportLayerFactory
+import com.hierynomus.smbj.transport.TransportLayerFactory
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class ConnectionPoolSpec extends Specification {
+  def messageId = 1000L
+  def slowPort = 4450
+  def handshakes = new AtomicInteger()
+  def slowStarted = new CountDownLatch(1)
+  def slowRelease = new CountDownLatch(1)
+  def slowFails = false
+
+  private SMBClient slowClient() {
+    def factory = { handlers, cfg ->
+      def stub = new StubTransportLayerFactory(new DefaultPacketProcessor().wrap({ req -> null })).createTransportLayer(handlers, cfg)
+      [
+        connect    : { InetSocketAddress address ->
+          if (address.port == slowPort) {
+            handshakes.incrementAndGet()
+            slowStarted.countDown()
+            slowRelease.await()
+            if (slowFails) {
+              throw new TransportException("Connection refused")
+            }
+          }
+          stub.connect(address)
+        },
+        disconnect : { stub.disconnect() },
+        isConnected: { stub.isConnected() },
+        write      : { packet -> stub.write(packet) }
+      ] as TransportLayer
+    } as TransportLayerFactory
+    def config = SmbConfig.builder()
+      .withDfsEnabled(false)
+      .withTransportLayerFactory(factory)
+      .withAuthenticators(new StubAuthenticator.Factory())
+      .build()
+    new SMBClient(config)
+  }
+
+  private Thread connectInBackground(SMBClient client, List results) {
+    Thread.start {
+      try {
+        results << client.connect("127.0.0.1", slowPort)
+      } catch (IOException e) {
+        results << e
+      }
+    }
+  }
+
+  private SMBClient client(int maxConnections, long idleTimeout = 0) {
+    def config = SmbConfig.builder()
+      .withDfsEnabled(false)
+      .withMaxConnectionsPerHost(maxConnections)
+      .withConnectionIdleTimeout(idleTimeout, TimeUnit.MILLISECONDS)
+      .withTransportLayerFactory(new StubTransportLayerFactory(new DefaultPacketProcessor().wrap({ req -> null })))
+      .withAuthenticators(new StubAuthenticator.Factory())
+      .build()
+    new SMBClient(config)
+  }
+
+  private void busy(Connection connection) {
+    connection.outstandingRequests.registerOutstanding(new Request(new SMB2Echo(), messageId++))
+  }
+
+  def "should share a single connection per host by default"() {
+    given:
+    def client = client(1)
+
+    when:
+    def first = client.connect("127.0.0.1")
+    busy(first)
+    def second = client.connect("127.0.0.1")
+
+    then:
+    second.is(first)
+    client.connectionPool.connectionCount == 1
+    client.connectionPool.connectionsOpened == 1
+    client.connectionPool.connectionsReused == 1
+
+    cleanup:
+    client.close()
+  }
+
+  def "should open another connection while all connections to the host are busy"() {
+    given:
+    def client = client(2)
+
+    when:
+    def first = client.connect("127.0.0.1")
+    def idle = client.connect("127.0.0.1")
+
+    then:
+    idle.is(first)
+
+    when:
+    busy(first)
+    def second = client.connect("127.0.0.1")
+
+    then:
+    !second.is(first)
+    client.connectionPool.getConnectionCount("127.0.0.1", SMBClient.DEFAULT_PORT) == 2
+    client.connectionPool.getConnectionCount("127.0.0.1", 4450) == 0
+
+    cleanup:
+    client.close()
+  }
+
+  def "should share the least loaded connection once the maximum is reached"() {
+    given:
+    def client = client(2)
+    def first = client.connect("127.0.0.1")
+    busy(first)
+    def second = client.connect("127.0.0.1")
+
+    when:
+    busy(first)
+    busy(second)
+    def third = client.connect("127.0.0.1")
+
+    then:
+    third.is(second)
+    first.load == 2
+    second.load == 1
+    client.connectionPool.connectionCount == 2
+    client.connectionPool.connectionsOpened == 2
+
+    cleanup:
+    client.close()
+  }
+
+  def "should close a connection released by its last user without an idle timeout"() {
+    given:
+    def client = client(1)
+    def connection = client.connect("127.0.0.1")
+
+    when:
+    connection.close()
+
+    then:
+    !connection.connected
+    client.connectionPool.connectionCount == 0
+    client.connectionPool.idleConnectionCount == 0
+  }
+
+  def "should reuse an idle connection and evict it after the idle timeout"() {
+    given:
+    def client = client(1, TimeUnit.MINUTES.toMillis(1))
+    def connection = client.connect("127.0.0.1")
+
+    when:
+    connection.close()
+
+    then:
+    connection.connected
+    client.connectionPool.idleConnectionCount == 1
+
+    when:
+    def reused = client.connect("127.0.0.1")
+
+    then:
+    reused.is(connection)
+    client.connectionPool.idleConnectionCount == 0
+    client.connectionPool.connectionsReused == 1
+
+    when:
+    reused.close()
+    client.connectionPool.evictIdle(System.currentTimeMillis())
+
+    then:
+    connection.connected
+    client.connectionPool.connectionsEvicted == 0
+
+    when:
+    client.connectionPool.evictIdle(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1))
+
+    then:
+    !connection.connected
+    client.connectionPool.connectionsEvicted == 1
+    client.connectionPool.connectionCount == 0
+    client.serverList.lookup("127.0.0.1") == null
+
+    cleanup:
+    client.close()
+  }
+
+  def "should connect to another host while a handshake is in flight"() {
+    given:
+    def client = slowClient()
+    def results = [].asSynchronized()
+    def slow = connectInBackground(client, results)
+    slowStarted.await(5, TimeUnit.SECONDS)
+
+    when:
+    def fast = client.connect("127.0.0.1")
+
+    then:
+    fast.connected
+    results.isEmpty()
+
+    when:
+    slowRelease.countDown()
+    slow.join(5000)
+
+    then:
+    results.size() == 1
+    results[0].connected
+
+    cleanup:
+    slowRelease.countDown()
+    client.close()
+  }
+
+  def "should share an in-flight handshake between concurrent callers"() {
+    given:
+    def client = slowClient()
+    def results = [].asSynchronized()
+
+    when:
+    def first = connectInBackground(client, results)
+    slowStarted.await(5, TimeUnit.SECONDS)
+    def second = connectInBackground(client, results)
+    Thread.sleep(100)
+    slowRelease.countDown()
+    first.join(5000)
+    second.join(5000)
+
+    then:
+    handshakes.get() == 1
+    results.size() == 2
+    results[0].is(results[1])
+    client.connectionPool.connectionsOpened == 1
+    client.connectionPool.connectionsReused == 1
+
+    cleanup:
+    client.close()
+  }
+
+  def "should fail all callers waiting for a failed handshake and retry on the next connect"() {
+    given:
+    def client = slowClient()
+    def results = [].asSynchronized()
+    slowFails = true
+
+    when:
+    def first = connectInBackground(client, results)
+    slowStarted.await(5, TimeUnit.SECONDS)
+    def second = connectInBackground(client, results)
+    Thread.sleep(100)
+    slowRelease.countDown()
+    first.join(5000)
+    second.join(5000)
+
+    then:
+    handshakes.get() == 1
+    results.size() == 2
+    results.every { it instanceof TransportException }
+    client.connectionPool.connectionCount == 0
+
+    when:
+    slowFails = false
+    def connection = client.connect("127.0.0.1", slowPort)
+
+    then:
+    connection.connected
+    handshakes.get() == 2
+
+    cleanup:
+    client.close()
+  }
+}
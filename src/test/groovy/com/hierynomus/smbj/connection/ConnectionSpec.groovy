@@ -86,6 +86,24 @@ class ConnectionSpec extends Specification {
     listener.events[1] == new ConnectionClosed("localhost", 445)
   }
 
+  def "should handle responses when packet workers are enabled"() {
+    given:
+    def listener = new EventPersister()
+    bus.subscribe(listener)
+    config = SmbConfig.builder(config).withPacketWorkerThreads(2).build()
+    client = new SMBClient(config, bus)
+    def connect = client.connect("localhost")
+    def session = connect.authenticate(new AuthenticationContext("foo", "bar".toCharArray(), null))
+
+    when:
+    connect.close()
+
+    then:
+    listener.events.size() == 2
+    listener.events[0] == new SessionLoggedOff(session.sessionId)
+    listener.events[1] == new ConnectionClosed("localhost", 445)
+  }
+
   def "should handle STATUS_NOT_SUPPORTED on dialect negotiation"() {
     given:
     config = smbConfig({ req ->
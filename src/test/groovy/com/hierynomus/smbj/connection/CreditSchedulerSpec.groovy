@@ -0,0 +1,234 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.connection
+
+import com.hierynomus.mssmb2.SMB2Dialect
+import com.hierynomus.mssmb2.SMB2FileId
+import com.hierynomus.mssmb2.SMB2Packet
+import com.hierynomus.mssmb2.messages.SMB2Echo
+import com.hierynomus.mssmb2.messages.SMB2ReadRequest
+import com.hierynomus.mssmb2.messages.SMB2WriteRequest
+import com.hierynomus.protocol.transport.TransportException
+import com.hierynomus.smb.SMBBuffer
+import com.hierynomus.smbj.io.ArrayByteChunkProvider
+import spock.lang.Specification
+
+import java.util.concurrent.Executor
+
+class CreditSchedulerSpec extends Specification {
+  SequenceWindow window
+  OutstandingRequests outstanding
+  List<SMB2Packet> sent
+  List<Runnable> releaseTasks
+  boolean runReleaseTasks
+  CreditScheduler scheduler
+
+  def setup() {
+    window = new SequenceWindow()
+    outstanding = new OutstandingRequests()
+    sent = []
+    releaseTasks = []
+    runReleaseTasks = true
+    def releaseExecutor = { Runnable r -> runReleaseTasks ? r.run() : releaseTasks << r } as Executor
+    scheduler = new CreditScheduler(window, outstanding, { SMB2Packet p -> sent << p } as CreditScheduler.Sender, releaseExecutor)
+  }
+
+  def "should send right away when credits are available and top up the window"() {
+    given:
+    def echo = new SMB2Echo(SMB2Dialect.SMB_2_1)
+
+    when:
+    def request = scheduler.send(echo, 1)
+
+    then:
+    sent == [echo]
+    echo.header.messageId == 0
+    echo.header.creditRequest == SequenceWindow.PREFERRED_MINIMUM_CREDITS
+    outstanding.getRequestByMessageId(0).is(request)
+  }
+
+  def "should queue without blocking when the window is depleted and send in order once credits are granted"() {
+    given:
+    scheduler.send(new SMB2Echo(SMB2Dialect.SMB_2_1), 1)
+    def first = new SMB2Echo(SMB2Dialect.SMB_2_1)
+    def second = new SMB2Echo(SMB2Dialect.SMB_2_1)
+
+    when:
+    scheduler.send(first, 1)
+    scheduler.send(second, 1)
+
+    then:
+    sent.size() == 1
+    first.header.messageId == 1
+    second.header.messageId == 2
+    outstanding.isOutstanding(1)
+    outstanding.isOutstanding(2)
+    scheduler.queuedCredits == 2
+
+    when:
+    scheduler.creditsGranted(1)
+
+    then:
+    sent*.header*.messageId == [0, 1]
+
+    when:
+    scheduler.creditsGranted(1)
+
+    then:
+    sent*.header*.messageId == [0, 1, 2]
+    scheduler.queuedCredits == 0
+  }
+
+  def "should fail instead of queueing when no request is in flight to grant credits"() {
+    given:
+    scheduler.send(new SMB2Echo(SMB2Dialect.SMB_2_1), 1)
+    outstanding.receivedResponseFor(0)
+
+    when:
+    scheduler.send(new SMB2Echo(SMB2Dialect.SMB_2_1), 1)
+
+    then:
+    thrown(TransportException)
+    sent.size() == 1
+    outstanding.size() == 0
+    scheduler.queuedCredits == 0
+
+    when:
+    scheduler.creditsGranted(1)
+    def echo = new SMB2Echo(SMB2Dialect.SMB_2_1)
+    scheduler.send(echo, 1)
+
+    then:
+    sent.size() == 2
+    sent[1].is(echo)
+    echo.header.messageId == 1
+  }
+
+  def "should split multi-credit requests to fit the available credits"() {
+    given:
+    window.creditsGranted(9)
+    def read = new SMB2ReadRequest(SMB2Dialect.SMB_3_0, new SMB2FileId(), 1, 1, 0, 16 * 65536)
+
+    when:
+    scheduler.send(read, 16)
+
+    then:
+    read.creditsAssigned == 9
+    sent == [read]
+  }
+
+  def "should charge a single credit when the window is depleted"() {
+    given:
+    scheduler.send(new SMB2Echo(SMB2Dialect.SMB_2_1), 1)
+    def read = new SMB2ReadRequest(SMB2Dialect.SMB_3_0, new SMB2FileId(), 1, 1, 0, 16 * 65536)
+
+    when:
+    scheduler.send(read, 16)
+
+    then:
+    read.creditsAssigned == 1
+    sent.size() == 1
+  }
+
+  def "should consume the payload of a queued write when it is queued"() {
+    given:
+    scheduler.send(new SMB2Echo(SMB2Dialect.SMB_2_1), 1)
+    def data = new byte[100]
+    new Random().nextBytes(data)
+    def provider = new ArrayByteChunkProvider(data, 0)
+    def write = new SMB2WriteRequest(SMB2Dialect.SMB_3_0, new SMB2FileId(), 1, 1, provider, 65536)
+
+    when:
+    scheduler.send(write, 1)
+
+    then:
+    !provider.isAvailable()
+    sent.size() == 1
+
+    when:
+    scheduler.creditsGranted(1)
+    def buffer = new SMBBuffer()
+    sent[1].write(buffer)
+
+    then:
+    sent[1].header.messageId == 1
+    buffer.available() == 64 + 48 + 100
+    Arrays.copyOfRange(buffer.array(), 64 + 48, 64 + 48 + 100) == data
+  }
+
+  def "should ask for more credits while requests are queued"() {
+    given:
+    scheduler.send(new SMB2Echo(SMB2Dialect.SMB_2_1), 1)
+    def queued = (1..100).collect { new SMB2Echo(SMB2Dialect.SMB_2_1) }
+
+    when:
+    queued.each { scheduler.send(it, 1) }
+
+    then:
+    scheduler.creditTarget > SequenceWindow.PREFERRED_MINIMUM_CREDITS
+    queued.last().header.creditRequest > SequenceWindow.PREFERRED_MINIMUM_CREDITS
+
+    when:
+    scheduler.creditsGranted(100)
+    100.times { scheduler.creditsGranted(0) }
+
+    then:
+    sent.size() == 101
+    scheduler.creditTarget == SequenceWindow.PREFERRED_MINIMUM_CREDITS
+  }
+
+  def "should serialize a queued packet outside of the lock"() {
+    given:
+    scheduler.send(new SMB2Echo(SMB2Dialect.SMB_2_1), 1)
+    def lockedWhileWriting = []
+    def echo = new SMB2Echo(SMB2Dialect.SMB_2_1) {
+      @Override
+      protected void writeTo(SMBBuffer buffer) {
+        lockedWhileWriting << Thread.holdsLock(scheduler)
+        super.writeTo(buffer)
+      }
+    }
+
+    when:
+    scheduler.send(echo, 1)
+
+    then:
+    lockedWhileWriting == [false]
+  }
+
+  def "should send released packets on the release executor instead of the thread granting the credits"() {
+    given:
+    runReleaseTasks = false
+    scheduler.send(new SMB2Echo(SMB2Dialect.SMB_2_1), 1)
+    scheduler.send(new SMB2Echo(SMB2Dialect.SMB_2_1), 1)
+    scheduler.send(new SMB2Echo(SMB2Dialect.SMB_2_1), 1)
+
+    when:
+    scheduler.creditsGranted(1)
+    scheduler.creditsGranted(1)
+
+    then:
+    sent.size() == 1
+    releaseTasks.size() == 1
+
+    when:
+    releaseTasks.remove(0).run()
+
+    then:
+    sent*.header*.messageId == [0, 1, 2]
+    scheduler.queuedCredits == 0
+  }
+}
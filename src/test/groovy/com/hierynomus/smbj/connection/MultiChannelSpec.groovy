@@ -0,0 +1,271 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.connection
+
+import com.hierynomus.msdtyp.AccessMask
+import com.hierynomus.msdtyp.FileTime
+import com.hierynomus.mserref.NtStatus
+import com.hierynomus.msfscc.FileAttributes
+import com.hierynomus.mssmb2.SMB2CreateDisposition
+import com.hierynomus.mssmb2.SMB2Dialect
+import com.hierynomus.mssmb2.SMB2FileId
+import com.hierynomus.mssmb2.SMB2GlobalCapability
+import com.hierynomus.mssmb2.SMB2MessageCommandCode
+import com.hierynomus.mssmb2.SMB2ShareAccess
+import com.hierynomus.mssmb2.messages.SMB2CreateRequest
+import com.hierynomus.mssmb2.messages.SMB2CreateResponse
+import com.hierynomus.mssmb2.messages.SMB2IoctlRequest
+import com.hierynomus.mssmb2.messages.SMB2IoctlResponse
+import com.hierynomus.mssmb2.messages.SMB2NegotiateRequest
+import com.hierynomus.mssmb2.messages.SMB2NegotiateResponse
+import com.hierynomus.mssmb2.messages.SMB2ReadRequest
+import com.hierynomus.mssmb2.messages.SMB2ReadResponse
+import com.hierynomus.mssmb2.messages.SMB2SessionSetup
+import com.hierynomus.mssmb2.messages.SMB2WriteRequest
+import com.hierynomus.mssmb2.messages.SMB2WriteResponse
+import com.hierynomus.mssmb2.multichannel.NetworkInterfaceInfo
+import com.hierynomus.protocol.transport.TransportException
+import com.hierynomus.smb.SMBBuffer
+import com.hierynomus.smbj.SMBClient
+import com.hierynomus.smbj.SmbConfig
+import com.hierynomus.smbj.auth.AuthenticationContext
+import com.hierynomus.smbj.share.DiskShare
+import com.hierynomus.smbj.testing.PacketProcessor.DefaultPacketProcessor
+import com.hierynomus.smbj.testing.StubAuthenticator
+import com.hierynomus.smbj.testing.StubTransportLayerFactory
+import com.hierynomus.smbj.transport.TransportLayerFactory
+import spock.lang.Specification
+
+class MultiChannelSpec extends Specification {
+  def fileData = new byte[4096]
+  def transports = []
+  def receivers = []
+  def reads = []
+  def writes = []
+  def bindingRequests = []
+  def dropOnRead = -1
+
+  def setup() {
+    new Random(42).nextBytes(fileData)
+  }
+
+  private SMBClient client(int maxChannels) {
+    def factory = { handlers, cfg ->
+      int index = transports.size()
+      receivers << handlers.receiver
+      def transport = new StubTransportLayerFactory(new DefaultPacketProcessor().wrap({ req -> respond(index, req) })).createTransportLayer(handlers, cfg)
+      transports << transport
+      transport
+    } as TransportLayerFactory
+    def config = SmbConfig.builder()
+      .withReadBufferSize(1024)
+      .withDfsEnabled(false)
+      .withMultiChannel(maxChannels)
+      .withTransportLayerFactory(factory)
+      .withAuthenticators(new StubAuthenticator.Factory())
+      .build()
+    new SMBClient(config)
+  }
+
+  def respond(int index, req) {
+    def signed = req instanceof PacketSignatory.SignedPacketWrapper
+    req = req.packet
+    if (req instanceof SMB2NegotiateRequest) {
+      def resp = new SMB2NegotiateResponse()
+      resp.header.statusCode = NtStatus.STATUS_SUCCESS.value
+      resp.dialect = SMB2Dialect.SMB_3_0_2
+      resp.capabilities = EnumSet.of(SMB2GlobalCapability.SMB2_GLOBAL_CAP_MULTI_CHANNEL)
+      resp.systemTime = FileTime.now()
+      resp.serverGuid = UUID.fromString("00112233-4455-6677-8899-aabbccddeeff")
+      return resp
+    }
+    if (req instanceof SMB2SessionSetup && req.isBinding()) {
+      bindingRequests << [index: index, signed: signed, sessionId: req.header.sessionId]
+      return null
+    }
+    if (req instanceof SMB2IoctlRequest && req.controlCode == NetworkInterfaceInfo.FSCTL_QUERY_NETWORK_INTERFACE_INFO) {
+      def buffer = new SMBBuffer()
+      new NetworkInterfaceInfo(1, EnumSet.noneOf(NetworkInterfaceInfo.Capability), 1000, InetAddress.getByName("127.0.0.1")).write(buffer, false)
+      new NetworkInterfaceInfo(2, EnumSet.noneOf(NetworkInterfaceInfo.Capability), 1000, InetAddress.getByName("127.0.0.2")).write(buffer, false)
+      new NetworkInterfaceInfo(3, EnumSet.noneOf(NetworkInterfaceInfo.Capability), 1000, InetAddress.getByName("127.0.0.3")).write(buffer, true)
+      def resp = new SMB2IoctlResponse()
+      resp.header.statusCode = NtStatus.STATUS_SUCCESS.value
+      resp.outputBuffer = buffer.compactData
+      return resp
+    }
+    if (req instanceof SMB2CreateRequest) {
+      def resp = new SMB2CreateResponse()
+      resp.header.statusCode = NtStatus.STATUS_SUCCESS.value
+      resp.fileAttributes = EnumSet.of(FileAttributes.FILE_ATTRIBUTE_NORMAL)
+      resp.fileId = new SMB2FileId(new byte[0], new byte[0])
+      return resp
+    }
+    if (req instanceof SMB2ReadRequest) {
+      if (index == dropOnRead) {
+        dropOnRead = -1
+        receivers[index].handleError(new TransportException("Connection reset"))
+      } else {
+        reads << index
+      }
+      return read(req)
+    }
+    if (req instanceof SMB2WriteRequest) {
+      writes << index
+      def resp = new SMB2WriteResponse()
+      resp.header.statusCode = NtStatus.STATUS_SUCCESS.value
+      resp.bytesWritten = req.payloadSize
+      return resp
+    }
+    null
+  }
+
+  def read(SMB2ReadRequest req) {
+    def offset = req.offset as int
+    def length = Math.min(req.payloadSize, fileData.length - offset)
+    def resp = new SMB2ReadResponse()
+    if (length <= 0) {
+      resp.header.statusCode = NtStatus.STATUS_END_OF_FILE.value
+    } else {
+      resp.header.statusCode = NtStatus.STATUS_SUCCESS.value
+      resp.data = Arrays.copyOfRange(fileData, offset, offset + length)
+      resp.dataLength = length
+    }
+    resp
+  }
+
+  def openFile(session) {
+    def share = session.connectShare("share") as DiskShare
+    share.openFile("file", EnumSet.of(AccessMask.GENERIC_READ), EnumSet.of(FileAttributes.FILE_ATTRIBUTE_NORMAL),
+      SMB2ShareAccess.ALL, SMB2CreateDisposition.FILE_OPEN, null)
+  }
+
+  def readAll(file) {
+    def out = new ByteArrayOutputStream()
+    def buffer = new byte[1024]
+    long offset = 0
+    int n
+    while ((n = file.read(buffer, offset)) != -1) {
+      out.write(buffer, 0, n)
+      offset += n
+    }
+    out.toByteArray()
+  }
+
+  def "should bind a channel per server interface with signed binding session setups"() {
+    given:
+    def connection = client(3).connect("127.0.0.1")
+
+    when:
+    def session = connection.authenticate(new AuthenticationContext("foo", "bar".toCharArray(), null))
+
+    then:
+    session.channels.size() == 3
+    session.channels*.connection*.remoteHostname == ["127.0.0.1", "127.0.0.2", "127.0.0.3"]
+    bindingRequests*.index == [1, 2]
+    bindingRequests.every { it.signed && it.sessionId == session.sessionId }
+    session.channels[1].connection.sessionTable.find(session.sessionId) == session
+
+    cleanup:
+    connection.close()
+  }
+
+  def "should not bind channels if multichannel is not enabled"() {
+    given:
+    def connection = client(1).connect("127.0.0.1")
+
+    when:
+    def session = connection.authenticate(new AuthenticationContext("foo", "bar".toCharArray(), null))
+
+    then:
+    session.channels.size() == 1
+    transports.size() == 1
+
+    cleanup:
+    connection.close()
+  }
+
+  def "should spread reads over the channels"() {
+    given:
+    def connection = client(3).connect("127.0.0.1")
+    def session = connection.authenticate(new AuthenticationContext("foo", "bar".toCharArray(), null))
+    def file = openFile(session)
+
+    when:
+    def data = readAll(file)
+
+    then:
+    data == fileData
+    reads.take(3) as Set == [0, 1, 2] as Set
+
+    cleanup:
+    connection.close()
+  }
+
+  def "should read on the remaining channels if a channel drops"() {
+    given:
+    def connection = client(3).connect("127.0.0.1")
+    def session = connection.authenticate(new AuthenticationContext("foo", "bar".toCharArray(), null))
+    def file = openFile(session)
+    dropOnRead = 1
+
+    when:
+    def data = readAll(file)
+
+    then:
+    data == fileData
+    !transports[1].connected
+    session.channels.size() == 2
+    !reads.contains(1)
+
+    cleanup:
+    connection.close()
+  }
+
+  def "should send writes on the primary channel"() {
+    given:
+    def connection = client(3).connect("127.0.0.1")
+    def session = connection.authenticate(new AuthenticationContext("foo", "bar".toCharArray(), null))
+    def file = openFile(session)
+
+    when:
+    4.times { file.write(new byte[512], it * 512) }
+
+    then:
+    session.channels.size() == 3
+    writes == [0, 0, 0, 0]
+
+    cleanup:
+    connection.close()
+  }
+
+  def "should log off the session only on the primary connection"() {
+    given:
+    def connection = client(3).connect("127.0.0.1")
+    def session = connection.authenticate(new AuthenticationContext("foo", "bar".toCharArray(), null))
+
+    when:
+    session.logoff()
+
+    then:
+    transports[0].connected
+    !transports[1].connected
+    !transports[2].connected
+    session.channels.size() == 1
+
+    cleanup:
+    connection.close()
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.connection
+
+import com.hierynomus.mssmb2.messages.SMB2Echo
+import com.hierynomus.smbj.common.SMBRuntimeException
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+class OutstandingRequestsSpec extends Specification {
+
+  def "should find registered request by message id and cancel id until a response is received"() {
+    given:
+    def requests = new OutstandingRequests()
+    def request = new Request(new SMB2Echo(), 42)
+
+    when:
+    requests.registerOutstanding(request)
+
+    then:
+    requests.isOutstanding(42)
+    requests.size() == 1
+    requests.getRequestByMessageId(42).is(request)
+    requests.getRequestByCancelId(request.getCancelId()).is(request)
+    !requests.isOutstanding(43)
+
+    when:
+    def completed = requests.receivedResponseFor(42)
+
+    then:
+    completed.is(request)
+    !requests.isOutstanding(42)
+    requests.size() == 0
+    requests.getRequestByMessageId(42) == null
+  }
+
+  def "should keep requests whose slot is still taken"() {
+    given:
+    def requests = new OutstandingRequests(4)
+    def old = new Request(new SMB2Echo(), 1)
+    def newer = new Request(new SMB2Echo(), 5)
+    requests.registerOutstanding(old)
+
+    when:
+    requests.registerOutstanding(newer)
+
+    then:
+    requests.getRequestByMessageId(1).is(old)
+    requests.getRequestByMessageId(5).is(newer)
+    requests.receivedResponseFor(5).is(newer)
+    requests.receivedResponseFor(1).is(old)
+    !requests.isOutstanding(1)
+    !requests.isOutstanding(5)
+  }
+
+  def "should fail when receiving a response for an unknown message id"() {
+    given:
+    def requests = new OutstandingRequests()
+    requests.registerOutstanding(new Request(new SMB2Echo(), 1))
+    requests.receivedResponseFor(1)
+
+    when:
+    requests.receivedResponseFor(1)
+
+    then:
+    def ex = thrown(SMBRuntimeException)
+    ex.message == "Unable to find outstanding request for messageId 1"
+  }
+
+  def "should deliver error to all outstanding requests"() {
+    given:
+    def requests = new OutstandingRequests(2)
+    def all = (0..4).collect { new Request(new SMB2Echo(), it) }
+    all.each { requests.registerOutstanding(it) }
+    def error = new SMBRuntimeException("boom")
+
+    when:
+    requests.handleError(error)
+
+    then:
+    all.every { it.promise.inError() }
+    (0..4).every { !requests.isOutstanding(it) }
+  }
+
+  def "should not lose requests when registered and completed concurrently"() {
+    given:
+    def requests = new OutstandingRequests(16)
+    def ids = new AtomicLong()
+    def completed = new AtomicInteger()
+    def threads = 8
+    def perThread = 10000
+    def done = new CountDownLatch(threads)
+
+    when:
+    threads.times {
+      Thread.start {
+        try {
+          perThread.times {
+            def id = ids.getAndIncrement()
+            def request = new Request(new SMB2Echo(), id)
+            requests.registerOutstanding(request)
+            if (requests.getRequestByMessageId(id).is(request) && requests.receivedResponseFor(id).is(request)) {
+              completed.incrementAndGet()
+            }
+          }
+        } finally {
+          done.countDown()
+        }
+      }
+    }
+
+    then:
+    done.await(30, TimeUnit.SECONDS)
+    completed.get() == threads * perThread
+    (0..<threads * perThread).every { !requests.isOutstanding(it) }
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.connection
+
+import com.hierynomus.msxca.CompressionException
+import com.hierynomus.mssmb2.SMB2CompressionTransformHeader
+import com.hierynomus.mssmb2.SMB2Dialect
+import com.hierynomus.mssmb2.SMB2FileId
+import com.hierynomus.mssmb2.SMB2Packet
+import com.hierynomus.mssmb2.SMB3CompressedPacketData
+import com.hierynomus.mssmb2.SMB3CompressionAlgorithm
+import com.hierynomus.mssmb2.messages.SMB2Echo
+import com.hierynomus.mssmb2.messages.SMB2WriteRequest
+import com.hierynomus.smb.SMBBuffer
+import com.hierynomus.smbj.SmbConfig
+import com.hierynomus.smbj.io.ArrayByteChunkProvider
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import static com.hierynomus.mssmb2.SMB3CompressionAlgorithm.LZ77
+import static com.hierynomus.mssmb2.SMB3CompressionAlgorithm.LZ77_HUFFMAN
+import static com.hierynomus.mssmb2.SMB3CompressionAlgorithm.LZNT1
+import static com.hierynomus.mssmb2.SMB3CompressionAlgorithm.PATTERN_V1
+
+class PacketCompressorSpec extends Specification {
+  static final int MAX_MESSAGE_SIZE = 1 << 20
+
+  static byte[] text(int size) {
+    def line = "2016-10-17 12:00:00 INFO com.hierynomus.smbj.connection.Connection - Successfully connected to server\n".bytes
+    def data = new byte[size]
+    for (int i = 0; i < size; i++) {
+      data[i] = line[i % line.length]
+    }
+    data
+  }
+
+  static byte[] random(int size) {
+    def data = new byte[size]
+    new Random(42).nextBytes(data)
+    data
+  }
+
+  static PacketCompressor compressor(Set<SMB3CompressionAlgorithm> negotiated, boolean chained, SMB3CompressionAlgorithm... preferred) {
+    def config = SmbConfig.builder().withDialects(SMB2Dialect.SMB_3_1_1).withCompression(4096, preferred).build()
+    def compressor = new PacketCompressor(config)
+    compressor.init(negotiated, chained, MAX_MESSAGE_SIZE)
+    compressor
+  }
+
+  static SMB2Packet write(byte[] data) {
+    new SMB2WriteRequest(SMB2Dialect.SMB_3_1_1, new SMB2FileId(), 1L, 1L, new ArrayByteChunkProvider(data, 0), 65536)
+  }
+
+  static byte[] serialize(SMB2Packet packet) {
+    def buffer = new SMBBuffer()
+    packet.write(buffer)
+    Arrays.copyOf(buffer.array(), buffer.wpos())
+  }
+
+  static boolean isCompressed(byte[] bytes) {
+    bytes[0] == (byte) 0xFC && bytes[1] == (byte) 'S' && bytes[2] == (byte) 'M' && bytes[3] == (byte) 'B'
+  }
+
+  @Unroll
+  def "should round trip a #algorithm compressed WRITE (chained: #chained)"() {
+    given:
+    def compressor = compressor(EnumSet.of(algorithm, PATTERN_V1), chained, algorithm)
+    def plain = write(text(32768))
+    // Writing a WRITE request consumes its data, so serialize an identical one to compare with
+    def expected = serialize(write(text(32768)))
+
+    when:
+    def wrapped = compressor.compress(plain)
+    def bytes = serialize(wrapped)
+
+    then:
+    wrapped != plain
+    isCompressed(bytes)
+    bytes.length < expected.length / 2
+    compressor.decompress(new SMB3CompressedPacketData(bytes)) == expected
+
+    where:
+    [algorithm, chained] << [[LZNT1, LZ77, LZ77_HUFFMAN], [false, true]].combinations()
+  }
+
+  def "should send leading and trailing runs as Pattern_V1 payloads when chained"() {
+    given:
+    def compressor = compressor(EnumSet.of(LZ77, PATTERN_V1), true, LZ77)
+    def data = new byte[16384]
+    System.arraycopy(random(4096), 0, data, 8192, 4096)
+    def expected = serialize(write(data))
+
+    when:
+    def bytes = serialize(compressor.compress(write(data)))
+    def packetData = new SMB3CompressedPacketData(bytes)
+
+    then:
+    packetData.header.chained
+    packetData.header.compressionAlgorithm == SMB3CompressionAlgorithm.NONE
+    // The first Pattern_V1 payload header directly follows the uncompressed SMB2 header and WRITE structure
+    (bytes[SMB2CompressionTransformHeader.STRUCTURE_SIZE + 112] & 0xFF) == PATTERN_V1.value
+    bytes.length < 4096 + 200
+    compressor.decompress(packetData) == expected
+  }
+
+  def "should not compress WRITE requests below the threshold or other requests"() {
+    given:
+    def compressor = compressor(EnumSet.of(LZ77), false, LZ77)
+
+    expect:
+    compressor.compress(packet).is(packet)
+
+    where:
+    packet << [write(text(4095)), new SMB2Echo(SMB2Dialect.SMB_3_1_1)]
+  }
+
+  def "should not compress if no preferred algorithm was negotiated"() {
+    given:
+    def compressor = compressor(EnumSet.of(LZNT1), false, LZ77)
+    def packet = write(text(32768))
+
+    expect:
+    compressor.compress(packet).is(packet)
+  }
+
+  @Unroll
+  def "should send incompressible data uncompressed (chained: #chained)"() {
+    given:
+    def compressor = compressor(EnumSet.of(LZ77), chained, LZ77)
+    expect:
+    serialize(compressor.compress(write(random(32768)))) == serialize(write(random(32768)))
+
+    where:
+    chained << [false, true]
+  }
+
+  def "should refuse a message compressed with an algorithm that was not negotiated"() {
+    given:
+    def bytes = serialize(compressor(EnumSet.of(LZNT1), false, LZNT1).compress(write(text(32768))))
+
+    when:
+    compressor(EnumSet.of(LZ77), false, LZ77).decompress(new SMB3CompressedPacketData(bytes))
+
+    then:
+    thrown(CompressionException)
+  }
+
+  def "should refuse a message that decompresses beyond the maximum message size"() {
+    given:
+    def compressor = compressor(EnumSet.of(LZ77), false, LZ77)
+    def bytes = serialize(compressor.compress(write(text(32768))))
+    compressor.init(EnumSet.of(LZ77), false, 16384)
+
+    when:
+    compressor.decompress(new SMB3CompressedPacketData(bytes))
+
+    then:
+    thrown(CompressionException)
+  }
+}
@@ -24,6 +24,7 @@ import com.hierynomus.smbj.SmbConfig
 import com.hierynomus.smbj.session.SessionContext
 import spock.lang.Specification
 
+import javax.crypto.Mac
 import javax.crypto.spec.SecretKeySpec
 
 import static com.hierynomus.smbj.connection.SMBSessionBuilder.*
@@ -123,4 +124,74 @@ class SMBSessionBuilderSpec extends Specification {
     context.getEncryptionKey() == null
     context.getDecryptionKey() == null
   }
+
+  def "should derive 256 bit encryption and decryption keys for AES-256 ciphers on Smb311"() {
+    given:
+    def preauthHash = new byte[64]
+    Arrays.fill(preauthHash, (byte) 0x5a)
+    def connectionContext = Mock(ConnectionContext)
+    connectionContext.supportsEncryption() >> true
+    connectionContext.getCipherId() >> SMB3EncryptionCipher.AES_256_GCM
+    def connection = Mock(Connection)
+    connection.getConnectionContext() >> connectionContext
+    def response = Mock(SMB2SessionSetup)
+    response.getSessionFlags() >> Collections.emptySet()
+    def context = new SessionContext()
+    context.setSessionKey(new SecretKeySpec(sessionKey, HMAC_SHA256_ALGORITHM))
+    context.setPreauthIntegrityHashValue(preauthHash)
+
+    when:
+    new SMBSessionBuilder(connection, config, null).deriveKeys(response, SMB2Dialect.SMB_3_1_1, context)
+
+    then:
+    context.getEncryptionKey().encoded == kdf(sessionKey, KDF_ENC_LABEL_SMB311, preauthHash, 256)
+    context.getDecryptionKey().encoded == kdf(sessionKey, KDF_DEC_LABEL_SMB311, preauthHash, 256)
+    context.getApplicationKey().encoded == kdf(sessionKey, KDF_APP_LABEL_SMB311, preauthHash, 128)
+  }
+
+  def "should derive the AES-256 keys from the full 32 byte session key and the others from the truncated one on Smb311"() {
+    given:
+    def fullSessionKey = ByteArrayUtils.parseHex("09921d4431b171b977370bf8910900f9c1c0ffee8badf00ddeadbeef01234567")
+    def truncatedKey = Arrays.copyOf(fullSessionKey, 16)
+    def preauthHash = new byte[64]
+    Arrays.fill(preauthHash, (byte) 0x5a)
+    def connectionContext = Mock(ConnectionContext)
+    connectionContext.supportsEncryption() >> true
+    connectionContext.getCipherId() >> cipher
+    def connection = Mock(Connection)
+    connection.getConnectionContext() >> connectionContext
+    def response = Mock(SMB2SessionSetup)
+    response.getSessionFlags() >> Collections.emptySet()
+    def context = new SessionContext()
+    context.setSessionKey(new SecretKeySpec(truncatedKey, HMAC_SHA256_ALGORITHM))
+    context.setFullSessionKey(new SecretKeySpec(fullSessionKey, HMAC_SHA256_ALGORITHM))
+    context.setPreauthIntegrityHashValue(preauthHash)
+
+    when:
+    new SMBSessionBuilder(connection, config, null).deriveKeys(response, SMB2Dialect.SMB_3_1_1, context)
+
+    then:
+    context.getEncryptionKey().encoded == kdf(encDecKey ? fullSessionKey : truncatedKey, KDF_ENC_LABEL_SMB311, preauthHash, cipher.keyLength * 8)
+    context.getDecryptionKey().encoded == kdf(encDecKey ? fullSessionKey : truncatedKey, KDF_DEC_LABEL_SMB311, preauthHash, cipher.keyLength * 8)
+    context.getSigningKey().encoded == kdf(truncatedKey, KDF_SIGN_LABEL_SMB311, preauthHash, 128)
+    context.getApplicationKey().encoded == kdf(truncatedKey, KDF_APP_LABEL_SMB311, preauthHash, 128)
+
+    where:
+    cipher                            | encDecKey
+    SMB3EncryptionCipher.AES_256_GCM  | true
+    SMB3EncryptionCipher.AES_256_CCM  | true
+    SMB3EncryptionCipher.AES_128_GCM  | false
+  }
+
+  // SP800-108 counter mode with HMAC-SHA256, a single round covers both 128 and 256 bit keys
+  private static byte[] kdf(byte[] key, byte[] label, byte[] context, int bits) {
+    def mac = Mac.getInstance("HmacSHA256")
+    mac.init(new SecretKeySpec(key, "HmacSHA256"))
+    mac.update([0, 0, 0, 1] as byte[])
+    mac.update(label)
+    mac.update((byte) 0)
+    mac.update(context)
+    mac.update([0, 0, (byte) (bits >> 8), (byte) bits] as byte[])
+    return Arrays.copyOf(mac.doFinal(), (int) (bits / 8))
+  }
 }
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.connection.packet
+
+import com.hierynomus.mssmb2.SMB2PacketData
+import com.hierynomus.protocol.commons.buffer.BufferPool
+import com.hierynomus.protocol.transport.PacketFactory
+import com.hierynomus.protocol.transport.PacketReceiver
+import com.hierynomus.protocol.transport.TransportException
+import com.hierynomus.smb.SMBBuffer
+import com.hierynomus.smb.SMBPacketData
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class OffloadingPacketHandlerSpec extends Specification {
+  static final long SIGNED = 0x08
+
+  List<Runnable> tasks = []
+  Executor executor = { Runnable r -> tasks << r } as Executor
+  PacketReceiver errorReceiver = Mock(PacketReceiver)
+  List<SMBPacketData> delivered = Collections.synchronizedList([])
+  PacketFactory<SMBPacketData<?>> factory = new PacketFactory<SMBPacketData<?>>() {
+    SMBPacketData<?> read(byte[] data) { new SMB2PacketData(data) }
+    SMBPacketData<?> read(byte[] data, int length) { new SMB2PacketData(data, length) }
+    boolean canHandle(byte[] data) { true }
+  }
+
+  OffloadingPacketHandler handler(Executor executor, IncomingPacketHandler workerHandler = null) {
+    def offloading = new OffloadingPacketHandler(executor, factory, new BufferPool(), errorReceiver)
+    def workerChain = workerHandler == null ? [new SMB2CompoundedPacketHandler()] : [new SMB2CompoundedPacketHandler(), workerHandler]
+    offloading.setWorkerChain(workerChain as IncomingPacketHandler[])
+    offloading.setNext(new IncomingPacketHandler() {
+      void handle(SMBPacketData<?> packetData) { delivered << packetData }
+      IncomingPacketHandler setNext(IncomingPacketHandler next) { this }
+    })
+    return offloading
+  }
+
+  static byte[] message(long messageId, long flags, int nextCommand = 0, int body = 0) {
+    def b = new SMBBuffer()
+    b.putRawBytes([0xfe, 0x53, 0x4d, 0x42] as byte[])
+    b.putUInt16(64); b.putUInt16(0); b.putUInt32(0)
+    b.putUInt16(0x08); b.putUInt16(1); b.putUInt32(flags | 0x01); b.putUInt32(nextCommand)
+    b.putLong(messageId)
+    b.putUInt32(0); b.putUInt32(0)
+    b.putLong(0)
+    b.putRawBytes(new byte[16])
+    b.putRawBytes([body, body, body, body, body, body, body, body] as byte[])
+    return b.getCompactData()
+  }
+
+  static SMB2PacketData packet(long messageId, long flags) {
+    new SMB2PacketData(message(messageId, flags))
+  }
+
+  List<Long> deliveredIds() {
+    delivered.collect { it.header.messageId }
+  }
+
+  def "should deliver packets in receive order when the workers complete out of order"() {
+    given:
+    def offloading = handler(executor)
+
+    when:
+    offloading.handle(packet(1, SIGNED))
+    offloading.handle(packet(2, SIGNED))
+    offloading.handle(packet(3, SIGNED))
+
+    then:
+    tasks.size() == 3
+    delivered.isEmpty()
+
+    when:
+    tasks[2].run()
+    tasks[1].run()
+
+    then:
+    delivered.isEmpty()
+
+    when:
+    tasks[0].run()
+
+    then:
+    deliveredIds() == [1L, 2L, 3L]
+  }
+
+  def "should handle a packet that needs no work inline if nothing is queued"() {
+    given:
+    def offloading = handler(executor)
+
+    when:
+    offloading.handle(packet(1, 0))
+
+    then:
+    tasks.isEmpty()
+    deliveredIds() == [1L]
+  }
+
+  def "should queue a packet that needs no work behind a packet on the workers"() {
+    given:
+    def offloading = handler(executor)
+
+    when:
+    offloading.handle(packet(1, SIGNED))
+    offloading.handle(packet(2, 0))
+    tasks[1].run()
+
+    then:
+    delivered.isEmpty()
+
+    when:
+    tasks[0].run()
+
+    then:
+    deliveredIds() == [1L, 2L]
+  }
+
+  def "should split a compounded packet on the worker and deliver its messages in order"() {
+    given:
+    def offloading = handler(executor)
+    def first = message(4, 0, 72)
+    def second = message(5, 0)
+    byte[] compound = new byte[first.length + second.length]
+    System.arraycopy(first, 0, compound, 0, first.length)
+    System.arraycopy(second, 0, compound, first.length, second.length)
+
+    when:
+    offloading.handle(new SMB2PacketData(compound))
+    offloading.handle(packet(6, SIGNED))
+
+    then:
+    tasks.size() == 2
+
+    when:
+    tasks[1].run()
+    tasks[0].run()
+
+    then:
+    deliveredIds() == [4L, 5L, 6L]
+    delivered[0].dataBuffer.rpos() == 64
+  }
+
+  def "should copy a packet out of the receive buffer before handing it to a worker"() {
+    given:
+    def offloading = handler(executor)
+    byte[] receiveBuffer = new byte[256]
+    def bytes = message(1, SIGNED, 0, 0x42)
+    System.arraycopy(bytes, 0, receiveBuffer, 0, bytes.length)
+
+    when:
+    offloading.handle(new SMB2PacketData(receiveBuffer, bytes.length))
+    Arrays.fill(receiveBuffer, (byte) 0)
+    tasks[0].run()
+
+    then:
+    deliveredIds() == [1L]
+    delivered[0].dataBuffer.array()[64] == (byte) 0x42
+  }
+
+  def "should report a failing packet and deliver no further packets"() {
+    given:
+    def failing = new AbstractIncomingPacketHandler() {
+      protected boolean canHandle(SMBPacketData<?> packetData) { packetData.header.messageId == 2 }
+      protected void doHandle(SMBPacketData<?> packetData) { throw new TransportException("Cannot decrypt") }
+    }
+    def offloading = handler(executor, failing)
+
+    when:
+    offloading.handle(packet(1, SIGNED))
+    offloading.handle(packet(2, SIGNED))
+    offloading.handle(packet(3, SIGNED))
+    tasks.each { it.run() }
+    offloading.handle(packet(4, 0))
+
+    then:
+    deliveredIds() == [1L]
+    1 * errorReceiver.handleError({ it instanceof TransportException })
+  }
+
+  def "should keep receive order with concurrent workers"() {
+    given:
+    def pool = Executors.newFixedThreadPool(4)
+    def random = new Random(42)
+    def slow = new AbstractIncomingPacketHandler() {
+      protected boolean canHandle(SMBPacketData<?> packetData) { true }
+      protected void doHandle(SMBPacketData<?> packetData) {
+        Thread.sleep(0, random.nextInt(100000))
+        next.handle(packetData)
+      }
+    }
+    def offloading = handler(pool, slow)
+    def done = new CountDownLatch(1)
+    offloading.setNext(new IncomingPacketHandler() {
+      void handle(SMBPacketData<?> packetData) {
+        delivered << packetData
+        if (delivered.size() == 500) {
+          done.countDown()
+        }
+      }
+      IncomingPacketHandler setNext(IncomingPacketHandler next) { this }
+    })
+
+    when:
+    (1..500).each { offloading.handle(packet(it, it % 3 == 0 ? 0 : SIGNED)) }
+
+    then:
+    done.await(30, TimeUnit.SECONDS)
+    deliveredIds() == (1L..500L).toList()
+
+    cleanup:
+    pool.shutdown()
+  }
+}
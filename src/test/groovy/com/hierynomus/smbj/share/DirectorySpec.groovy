@@ -0,0 +1,149 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share
+
+import com.hierynomus.msdtyp.AccessMask
+import com.hierynomus.msdtyp.FileTime
+import com.hierynomus.mserref.NtStatus
+import com.hierynomus.msfscc.FileAttributes
+import com.hierynomus.msfscc.fileinformation.FileIdBothDirectoryInformation
+import com.hierynomus.mssmb2.*
+import com.hierynomus.mssmb2.messages.*
+import com.hierynomus.smbj.SMBClient
+import com.hierynomus.smbj.SmbConfig
+import com.hierynomus.smbj.auth.AuthenticationContext
+import com.hierynomus.smbj.connection.Connection
+import com.hierynomus.smbj.testing.DirectoryEntries
+import com.hierynomus.smbj.testing.PacketProcessor.DefaultPacketProcessor
+import com.hierynomus.smbj.testing.StubAuthenticator
+import com.hierynomus.smbj.testing.StubTransportLayerFactory
+import spock.lang.Specification
+
+class DirectorySpec extends Specification {
+  private static final int MAX_TRANSACT_SIZE = 65536
+
+  private List<String> entries = [".\\", "..\\"] + (1..10).collect { "file" + it }
+  private List<SMB2QueryDirectoryRequest> queries = []
+  private int next
+  private Connection connection
+  private Directory directory
+
+  def setup() {
+    def processor = new DefaultPacketProcessor().wrap({ SMB2Packet req ->
+      req = req.packet
+      if (req instanceof SMB2NegotiateRequest) {
+        def resp = new SMB2NegotiateResponse()
+        resp.header.statusCode = NtStatus.STATUS_SUCCESS.value
+        resp.dialect = SMB2Dialect.SMB_2_1
+        resp.systemTime = FileTime.now()
+        resp.serverGuid = UUID.randomUUID()
+        resp.maxTransactSize = MAX_TRANSACT_SIZE
+        return resp
+      }
+      if (req instanceof SMB2CreateRequest) {
+        def resp = new SMB2CreateResponse()
+        resp.header.statusCode = NtStatus.STATUS_SUCCESS.value
+        resp.fileId = new SMB2FileId(new byte[8], new byte[8])
+        resp.fileAttributes = EnumSet.of(FileAttributes.FILE_ATTRIBUTE_DIRECTORY)
+        return resp
+      }
+      if (req instanceof SMB2QueryDirectoryRequest) {
+        queries << req
+        return queryDirectory(req)
+      }
+      if (req instanceof SMB2Close) {
+        def resp = new SMB2Close()
+        resp.header.statusCode = NtStatus.STATUS_SUCCESS.value
+        return resp
+      }
+      null
+    })
+
+    def config = SmbConfig.builder()
+      .withDfsEnabled(false)
+      .withTransactBufferSize(4096)
+      .withTransportLayerFactory(new StubTransportLayerFactory(processor))
+      .withAuthenticators(new StubAuthenticator.Factory())
+      .build()
+    def client = new SMBClient(config)
+    connection = client.connect("127.0.0.1")
+    def session = connection.authenticate(new AuthenticationContext("username", "password".toCharArray(), "domain.com"))
+    def share = session.connectShare("share") as DiskShare
+    directory = share.openDirectory("dir", EnumSet.of(AccessMask.FILE_LIST_DIRECTORY), null, SMB2ShareAccess.ALL, SMB2CreateDisposition.FILE_OPEN, null)
+  }
+
+  def cleanup() {
+    connection.close()
+  }
+
+  def "should request the next batch before the current one has been iterated over"() {
+    when:
+    def iterator = directory.iterator(FileIdBothDirectoryInformation, null, 1024)
+
+    then:
+    queries.size() == 2
+    queries[0].@flags == EnumSet.of(SMB2QueryDirectoryRequest.SMB2QueryDirectoryFlags.SMB2_RESTART_SCANS)
+    queries[1].@flags.isEmpty()
+
+    when:
+    def names = iterator.collect { it.fileName }
+
+    then:
+    names == [".", ".."] + (1..10).collect { "file" + it }
+    // 4 batches of 3 entries and the STATUS_NO_MORE_FILES
+    queries.size() == 5
+  }
+
+  def "should use the transact buffer size as the default output buffer size"() {
+    when:
+    directory.list()
+
+    then:
+    queries*.maxPayloadSize.toSet() == [4096] as Set
+  }
+
+  def "should limit the output buffer size to the negotiated maximum transact size"() {
+    when:
+    def small = directory.list(FileIdBothDirectoryInformation, null, 2048)
+
+    then:
+    small.size() == 12
+    queries*.maxPayloadSize.toSet() == [2048] as Set
+
+    when:
+    queries.clear()
+    directory.list(FileIdBothDirectoryInformation, null, 4 * MAX_TRANSACT_SIZE)
+
+    then:
+    queries*.maxPayloadSize.toSet() == [MAX_TRANSACT_SIZE] as Set
+  }
+
+  private SMB2QueryDirectoryResponse queryDirectory(SMB2QueryDirectoryRequest req) {
+    if (req.@flags.contains(SMB2QueryDirectoryRequest.SMB2QueryDirectoryFlags.SMB2_RESTART_SCANS)) {
+      next = 0
+    }
+    def resp = new SMB2QueryDirectoryResponse()
+    if (next >= entries.size()) {
+      resp.header.statusCode = NtStatus.STATUS_NO_MORE_FILES.value
+      return resp
+    }
+    def batch = entries.subList(next, Math.min(entries.size(), next + 3))
+    next += batch.size()
+    resp.header.statusCode = NtStatus.STATUS_SUCCESS.value
+    resp.outputBuffer = DirectoryEntries.encode(batch)
+    resp
+  }
+}
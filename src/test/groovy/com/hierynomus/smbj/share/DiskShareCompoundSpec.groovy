@@ -0,0 +1,302 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share
+
+import com.hierynomus.msdtyp.FileTime
+import com.hierynomus.mserref.NtStatus
+import com.hierynomus.msfscc.FileAttributes
+import com.hierynomus.msfscc.FileInformationClass
+import com.hierynomus.msfscc.fileinformation.FileBasicInformation
+import com.hierynomus.mssmb2.*
+import com.hierynomus.mssmb2.messages.*
+import com.hierynomus.protocol.transport.PacketHandlers
+import com.hierynomus.protocol.transport.TransportLayer
+import com.hierynomus.smb.SMBBuffer
+import com.hierynomus.smbj.SMBClient
+import com.hierynomus.smbj.SmbConfig
+import com.hierynomus.smbj.auth.AuthenticationContext
+import com.hierynomus.smbj.connection.Connection
+import com.hierynomus.smbj.testing.PacketProcessor.DefaultPacketProcessor
+import com.hierynomus.smbj.testing.StubAuthenticator
+import com.hierynomus.smbj.testing.StubTransportLayerFactory
+import com.hierynomus.smbj.transport.TransportLayerFactory
+import spock.lang.Specification
+
+import javax.crypto.Mac
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.concurrent.TimeUnit
+
+class DiskShareCompoundSpec extends Specification {
+
+  private Connection connection
+  private List<SMB2Packet> received = []
+  private long createStatus = NtStatus.STATUS_SUCCESS.value
+  private boolean signedResponses
+
+  def cleanup() {
+    connection?.close()
+  }
+
+  def "getFileInformation sends CREATE, QUERY_INFO and CLOSE as one related chain"() {
+    given:
+    def share = connectShare()
+
+    when:
+    def info = share.getFileInformation("dir\\file.txt", FileBasicInformation)
+
+    then:
+    commands() == [SMB2MessageCommandCode.SMB2_CREATE, SMB2MessageCommandCode.SMB2_QUERY_INFO, SMB2MessageCommandCode.SMB2_CLOSE]
+    chained()
+    received[1].fileId == SMB2CompoundRequest.RELATED_FILE_ID
+    received[2].fileId == SMB2CompoundRequest.RELATED_FILE_ID
+    info.fileAttributes == FileAttributes.FILE_ATTRIBUTE_ARCHIVE.value
+  }
+
+  def "rm sends CREATE, SET_INFO (delete) and CLOSE as one related chain"() {
+    given:
+    def share = connectShare()
+
+    when:
+    share.rm("file.txt")
+
+    then:
+    commands() == [SMB2MessageCommandCode.SMB2_CREATE, SMB2MessageCommandCode.SMB2_SET_INFO, SMB2MessageCommandCode.SMB2_CLOSE]
+    chained()
+    received[1].fileInfoClass == FileInformationClass.FileDispositionInformation
+    received[1].@buffer == [1] as byte[]
+  }
+
+  def "mkdir and folderExists send CREATE and CLOSE as one related chain"() {
+    given:
+    def share = connectShare()
+
+    when:
+    share.mkdir("newdir")
+
+    then:
+    commands() == [SMB2MessageCommandCode.SMB2_CREATE, SMB2MessageCommandCode.SMB2_CLOSE]
+    chained()
+    received[0].createDisposition == SMB2CreateDisposition.FILE_CREATE
+
+    when:
+    received.clear()
+    def exists = share.folderExists("newdir")
+
+    then:
+    exists
+    commands() == [SMB2MessageCommandCode.SMB2_CREATE, SMB2MessageCommandCode.SMB2_CLOSE]
+    chained()
+  }
+
+  def "a failed CREATE fails the whole chain"() {
+    given:
+    createStatus = NtStatus.STATUS_OBJECT_NAME_NOT_FOUND.value
+    def share = connectShare()
+
+    expect:
+    !share.fileExists("missing.txt")
+    commands() == [SMB2MessageCommandCode.SMB2_CREATE, SMB2MessageCommandCode.SMB2_CLOSE]
+
+    when:
+    share.getFileInformation("missing.txt", FileBasicInformation)
+
+    then:
+    def e = thrown(SMBApiException)
+    e.status == NtStatus.STATUS_OBJECT_NAME_NOT_FOUND
+  }
+
+  def "every response in a signed compound is verified from its own header"() {
+    given:
+    signedResponses = true
+    def share = connectShare()
+
+    when:
+    def info = share.getFileInformation("dir\\file.txt", FileBasicInformation)
+
+    then:
+    commands() == [SMB2MessageCommandCode.SMB2_CREATE, SMB2MessageCommandCode.SMB2_QUERY_INFO, SMB2MessageCommandCode.SMB2_CLOSE]
+    info.fileAttributes == FileAttributes.FILE_ATTRIBUTE_ARCHIVE.value
+
+    when:
+    received.clear()
+    share.rm("file.txt")
+
+    then:
+    commands() == [SMB2MessageCommandCode.SMB2_CREATE, SMB2MessageCommandCode.SMB2_SET_INFO, SMB2MessageCommandCode.SMB2_CLOSE]
+  }
+
+  private List<SMB2MessageCommandCode> commands() {
+    received*.header*.message
+  }
+
+  private boolean chained() {
+    def last = received.size() - 1
+    (0..<last).every { received[it].header.nextCommandOffset > 0 && received[it].header.nextCommandOffset % 8 == 0 } &&
+      received[last].header.nextCommandOffset == 0 &&
+      !received[0].header.isFlagSet(SMB2MessageFlag.SMB2_FLAGS_RELATED_OPERATIONS) &&
+      (1..last).every { received[it].header.isFlagSet(SMB2MessageFlag.SMB2_FLAGS_RELATED_OPERATIONS) }
+  }
+
+  private DiskShare connectShare() {
+    def processor = new DefaultPacketProcessor().wrap({ SMB2Packet req ->
+      def packet = req.getPacket()
+      if (packet instanceof SMB2CreateRequest || packet instanceof SMB2QueryInfoRequest || packet instanceof SMB2SetInfoRequest || packet instanceof SMB2Close) {
+        received << packet
+      }
+      if (packet instanceof SMB2CreateRequest) {
+        def resp = new SMB2CreateResponse()
+        resp.header.statusCode = createStatus
+        resp.fileId = new SMB2FileId(new byte[8], new byte[8])
+        resp.fileAttributes = EnumSet.of(FileAttributes.FILE_ATTRIBUTE_ARCHIVE)
+        return resp
+      }
+      if (packet instanceof SMB2QueryInfoRequest) {
+        def resp = new SMB2QueryInfoResponse()
+        resp.header.statusCode = createStatus
+        def info = new SMBBuffer()
+        4.times { info.putUInt64(FileTime.now().windowsTimeStamp) }
+        info.putUInt32(FileAttributes.FILE_ATTRIBUTE_ARCHIVE.value)
+        info.putUInt32(0)
+        resp.outputBuffer = info.compactData
+        return resp
+      }
+      if (packet instanceof SMB2SetInfoRequest) {
+        def resp = new SMB2SetInfoResponse()
+        resp.header.statusCode = createStatus
+        return resp
+      }
+      if (packet instanceof SMB2Close) {
+        def resp = new SMB2Close()
+        resp.header.statusCode = createStatus
+        return resp
+      }
+      null
+    })
+
+    def transportLayerFactory = new StubTransportLayerFactory(processor)
+    if (signedResponses) {
+      transportLayerFactory = signingServer(transportLayerFactory, processor)
+    }
+    def config = SmbConfig.builder()
+      .withDfsEnabled(false)
+      .withTransportLayerFactory(transportLayerFactory)
+      .withAuthenticators(new StubAuthenticator.Factory())
+      .withTimeout(5, TimeUnit.SECONDS)
+      .build()
+    connection = new SMBClient(config).connect("127.0.0.1")
+    def session = connection.authenticate(new AuthenticationContext("user", "pass".toCharArray(), "domain"))
+    session.connectShare("share") as DiskShare
+  }
+
+  /**
+   * Answers a compounded request with a real compounded response, every message of which is signed with the session
+   * key like a server would (SMB 2.1, HMAC-SHA256). All other requests are left to the stub.
+   */
+  private TransportLayerFactory signingServer(TransportLayerFactory stubFactory, def processor) {
+    { PacketHandlers handlers, SmbConfig config ->
+      TransportLayer stub = stubFactory.createTransportLayer(handlers, config)
+      [
+        write      : { SMB2Packet packet ->
+          if (!(packet.getPacket() instanceof SMB2CompoundRequest)) {
+            stub.write(packet)
+            return
+          }
+          packet.write(new SMBBuffer())
+          def requests = (packet.getPacket() as SMB2CompoundRequest).requests*.getPacket()
+          def key = connection.sessionTable.find(requests[0].header.sessionId).sessionContext.sessionKey
+          handlers.receiver.handle(new SMB2PacketData(signedChain(requests, processor, key)))
+        },
+        connect    : { address -> stub.connect(address) },
+        disconnect : { stub.disconnect() },
+        isConnected: { stub.isConnected() }
+      ] as TransportLayer
+    } as TransportLayerFactory
+  }
+
+  private static byte[] signedChain(List<SMB2Packet> requests, def processor, def key) {
+    def chain = new ByteArrayOutputStream()
+    requests.eachWithIndex { SMB2Packet request, int i ->
+      SMB2Packet response = processor.process(request)
+      def b = new SMBBuffer()
+      b.putRawBytes([0xFE, 0x53, 0x4D, 0x42] as byte[]) // ProtocolId
+      b.putUInt16(64) // StructureSize
+      b.putUInt16(1) // CreditCharge
+      b.putUInt32(response.header.statusCode) // Status
+      b.putUInt16(request.header.message.value) // Command
+      b.putUInt16(1) // CreditResponse
+      long flags = SMB2MessageFlag.SMB2_FLAGS_SERVER_TO_REDIR.value | SMB2MessageFlag.SMB2_FLAGS_SIGNED.value
+      b.putUInt32(i > 0 ? flags | SMB2MessageFlag.SMB2_FLAGS_RELATED_OPERATIONS.value : flags) // Flags
+      b.putUInt32(0) // NextCommand, filled in below
+      b.putLong(request.header.messageId) // MessageId
+      b.putReserved4()
+      b.putUInt32(request.header.treeId) // TreeId
+      b.putLong(request.header.sessionId) // SessionId
+      b.putRawBytes(new byte[16]) // Signature
+      writeBody(b, response)
+      boolean last = i == requests.size() - 1
+      while (!last && b.wpos() % 8 != 0) {
+        b.putByte((byte) 0)
+      }
+      byte[] message = b.compactData
+      def fields = ByteBuffer.wrap(message).order(ByteOrder.LITTLE_ENDIAN)
+      fields.putInt(20, last ? 0 : message.length)
+      def mac = Mac.getInstance(key.algorithm)
+      mac.init(key)
+      System.arraycopy(mac.doFinal(message), 0, message, 48, 16)
+      chain.write(message)
+    }
+    chain.toByteArray()
+  }
+
+  private static void writeBody(SMBBuffer b, SMB2Packet response) {
+    switch (response) {
+      case SMB2CreateResponse:
+        b.putUInt16(89) // StructureSize
+        b.putByte((byte) 0) // OplockLevel
+        b.putByte((byte) 0) // Flags
+        b.putUInt32(1) // CreateAction (FILE_OPENED)
+        4.times { b.putUInt64(FileTime.now().windowsTimeStamp) }
+        b.putUInt64(0) // AllocationSize
+        b.putUInt64(0) // EndOfFile
+        b.putUInt32(FileAttributes.FILE_ATTRIBUTE_ARCHIVE.value) // FileAttributes
+        b.putReserved4()
+        b.putRawBytes(new byte[16]) // FileId
+        b.putUInt32(0) // CreateContextsOffset
+        b.putUInt32(0) // CreateContextsLength
+        break
+      case SMB2QueryInfoResponse:
+        byte[] output = response.outputBuffer
+        b.putUInt16(9) // StructureSize
+        b.putUInt16(64 + 8) // OutputBufferOffset, relative to this message's header
+        b.putUInt32(output.length) // OutputBufferLength
+        b.putRawBytes(output)
+        break
+      case SMB2SetInfoResponse:
+        b.putUInt16(2) // StructureSize
+        break
+      case SMB2Close:
+        b.putUInt16(60) // StructureSize
+        b.putUInt16(1) // Flags
+        b.putReserved4()
+        4.times { b.putUInt64(FileTime.now().windowsTimeStamp) }
+        b.putUInt64(0) // AllocationSize
+        b.putUInt64(0) // EndOfFile
+        b.putUInt32(FileAttributes.FILE_ATTRIBUTE_ARCHIVE.value) // FileAttributes
+        break
+    }
+  }
+}
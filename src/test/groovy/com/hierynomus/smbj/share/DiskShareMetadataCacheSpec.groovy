@@ -0,0 +1,251 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share
+
+import com.hierynomus.msdtyp.AccessMask
+import com.hierynomus.msdtyp.FileTime
+import com.hierynomus.mserref.NtStatus
+import com.hierynomus.msfscc.FileAttributes
+import com.hierynomus.msfscc.FileInformationClass
+import com.hierynomus.msfscc.fileinformation.FileBasicInformation
+import com.hierynomus.msfscc.fileinformation.FileStandardInformation
+import com.hierynomus.mssmb2.*
+import com.hierynomus.mssmb2.messages.*
+import com.hierynomus.mssmb2.messages.create.SMB2CreateContext
+import com.hierynomus.mssmb2.messages.create.SMB2LeaseCreateContext
+import com.hierynomus.smb.SMBBuffer
+import com.hierynomus.smbj.SMBClient
+import com.hierynomus.smbj.SmbConfig
+import com.hierynomus.smbj.auth.AuthenticationContext
+import com.hierynomus.smbj.connection.Connection
+import com.hierynomus.smbj.connection.LeaseManagerSpec
+import com.hierynomus.smbj.testing.PacketProcessor.DefaultPacketProcessor
+import com.hierynomus.smbj.testing.StubAuthenticator
+import com.hierynomus.smbj.testing.StubTransportLayerFactory
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+
+class DiskShareMetadataCacheSpec extends Specification {
+
+  private Connection connection
+  private int queries
+  private int attributes = FileAttributes.FILE_ATTRIBUTE_ARCHIVE.value as int
+
+  def cleanup() {
+    connection?.close()
+  }
+
+  def "file information is queried on every call without a metadata cache"() {
+    given:
+    def share = connectShare(SmbConfig.builder())
+
+    when:
+    share.getFileInformation("file.txt", FileBasicInformation)
+    share.getFileInformation("file.txt", FileBasicInformation)
+
+    then:
+    queries == 2
+  }
+
+  def "file information is served from the cache until its time to live expires"() {
+    given:
+    def share = connectShare(SmbConfig.builder().withMetadataCache(10, 50, TimeUnit.MILLISECONDS))
+
+    when:
+    share.getFileInformation("dir\\file.txt", FileBasicInformation)
+    attributes = FileAttributes.FILE_ATTRIBUTE_HIDDEN.value
+    def info = share.getFileInformation("DIR/file.txt", FileBasicInformation)
+
+    then:
+    queries == 1
+    info.fileAttributes == FileAttributes.FILE_ATTRIBUTE_ARCHIVE.value
+
+    when:
+    Thread.sleep(100)
+    info = share.getFileInformation("dir\\file.txt", FileBasicInformation)
+
+    then:
+    queries == 2
+    info.fileAttributes == FileAttributes.FILE_ATTRIBUTE_HIDDEN.value
+  }
+
+  def "entries are kept per information class and bounded in number"() {
+    given:
+    def share = connectShare(SmbConfig.builder().withMetadataCache(2, 1, TimeUnit.HOURS))
+
+    when:
+    share.getFileInformation("a", FileBasicInformation)
+    share.getFileInformation("b", FileBasicInformation)
+    share.getFileInformation("b", FileBasicInformation)
+
+    then:
+    queries == 2
+
+    when:
+    share.getFileInformation("c", FileBasicInformation)
+    share.getFileInformation("a", FileBasicInformation)
+
+    then:
+    queries == 4
+  }
+
+  def "writes, renames and deletes through the share drop the cached information"() {
+    given:
+    def share = connectShare(SmbConfig.builder().withMetadataCache(10, 1, TimeUnit.HOURS))
+    share.getFileInformation("dir", FileBasicInformation)
+    share.getFileInformation("dir\\a.txt", FileBasicInformation)
+    share.getFileInformation("dir\\b.txt", FileBasicInformation)
+    share.getFileInformation("dir\\c.txt", FileBasicInformation)
+    queries = 0
+
+    when: "a file is written"
+    share.openFile("dir\\a.txt", EnumSet.of(AccessMask.GENERIC_WRITE), null, SMB2ShareAccess.ALL, SMB2CreateDisposition.FILE_OPEN, null).withCloseable {
+      it.write([1, 2, 3] as byte[], 0)
+    }
+    share.getFileInformation("dir\\a.txt", FileBasicInformation)
+    share.getFileInformation("dir\\b.txt", FileBasicInformation)
+
+    then:
+    queries == 1
+
+    when: "a file is renamed"
+    share.openFile("dir\\b.txt", EnumSet.of(AccessMask.DELETE), null, SMB2ShareAccess.ALL, SMB2CreateDisposition.FILE_OPEN, null).withCloseable {
+      it.rename("dir\\d.txt")
+    }
+    share.getFileInformation("dir\\b.txt", FileBasicInformation)
+    share.getFileInformation("dir", FileBasicInformation)
+
+    then: "the file and its parent directory are queried again"
+    queries == 3
+
+    when: "the directory is deleted"
+    share.rmdir("dir", false)
+    share.getFileInformation("dir\\c.txt", FileBasicInformation)
+
+    then:
+    queries == 4
+  }
+
+  def "entries under a directory lease are served until the lease is broken"() {
+    given:
+    def share = connectShare(SmbConfig.builder().withDirectoryLeasingEnabled(true).withMetadataCache(10, 0, TimeUnit.MILLISECONDS), true)
+    def dir = share.openDirectory("dir", EnumSet.of(AccessMask.FILE_LIST_DIRECTORY), null, SMB2ShareAccess.ALL, SMB2CreateDisposition.FILE_OPEN, null)
+
+    when:
+    share.getFileInformation("dir\\file.txt", FileStandardInformation)
+    share.getFileInformation("dir\\file.txt", FileStandardInformation)
+    share.getFileInformation("other\\file.txt", FileStandardInformation)
+    share.getFileInformation("other\\file.txt", FileStandardInformation)
+
+    then: "only the entry under the lease is cached, as the time to live is 0"
+    queries == 3
+
+    when:
+    connection.getLeaseManager().onBreak(LeaseManagerSpec.notification(dir.getLeaseEntry().getLeaseKey(), 2, "00000000",
+      SMB2LeaseState.SMB2_LEASE_READ_CACHING.value))
+    share.getFileInformation("dir\\file.txt", FileStandardInformation)
+
+    then:
+    queries == 4
+  }
+
+  private DiskShare connectShare(SmbConfig.Builder builder, boolean leasing = false) {
+    def processor = new DefaultPacketProcessor().wrap({ SMB2Packet req ->
+      def packet = req.getPacket()
+      if (packet instanceof SMB2NegotiateRequest && leasing) {
+        def resp = new SMB2NegotiateResponse()
+        resp.header.statusCode = NtStatus.STATUS_SUCCESS.value
+        resp.dialect = SMB2Dialect.SMB_3_0
+        resp.systemTime = FileTime.now()
+        resp.serverGuid = UUID.randomUUID()
+        resp.capabilities = EnumSet.of(SMB2GlobalCapability.SMB2_GLOBAL_CAP_LEASING, SMB2GlobalCapability.SMB2_GLOBAL_CAP_DIRECTORY_LEASING)
+        return resp
+      }
+      if (packet instanceof SMB2CreateRequest) {
+        def resp = new SMB2CreateResponse()
+        resp.header.statusCode = NtStatus.STATUS_SUCCESS.value
+        resp.fileId = new SMB2FileId(new byte[8], new byte[8])
+        resp.fileAttributes = EnumSet.of(FileAttributes.FILE_ATTRIBUTE_ARCHIVE)
+        if (!packet.createContexts.isEmpty()) {
+          resp.fileAttributes = EnumSet.of(FileAttributes.FILE_ATTRIBUTE_DIRECTORY)
+          resp.oplockLevel = SMB2OplockLevel.SMB2_OPLOCK_LEVEL_LEASE
+          resp.createContexts = [leaseContext()]
+        }
+        return resp
+      }
+      if (packet instanceof SMB2QueryInfoRequest) {
+        queries++
+        def resp = new SMB2QueryInfoResponse()
+        resp.header.statusCode = NtStatus.STATUS_SUCCESS.value
+        def info = new SMBBuffer()
+        if (packet.@fileInformationClass == FileInformationClass.FileStandardInformation) {
+          info.putUInt64(0)
+          info.putUInt64(0)
+          info.putUInt32(1)
+          info.putByte((byte) 0)
+          info.putByte((byte) 0)
+          info.putUInt16(0)
+        } else {
+          4.times { info.putUInt64(FileTime.now().windowsTimeStamp) }
+          info.putUInt32(attributes)
+          info.putUInt32(0)
+        }
+        resp.outputBuffer = info.compactData
+        return resp
+      }
+      if (packet instanceof SMB2WriteRequest) {
+        packet.byteProvider.writeChunk(new ByteArrayOutputStream())
+        def resp = new SMB2WriteResponse()
+        resp.header.statusCode = NtStatus.STATUS_SUCCESS.value
+        resp.bytesWritten = 3
+        return resp
+      }
+      if (packet instanceof SMB2SetInfoRequest) {
+        def resp = new SMB2SetInfoResponse()
+        resp.header.statusCode = NtStatus.STATUS_SUCCESS.value
+        return resp
+      }
+      if (packet instanceof SMB2Close) {
+        def resp = new SMB2Close()
+        resp.header.statusCode = NtStatus.STATUS_SUCCESS.value
+        return resp
+      }
+      null
+    })
+
+    def config = builder
+      .withDfsEnabled(false)
+      .withTransportLayerFactory(new StubTransportLayerFactory(processor))
+      .withAuthenticators(new StubAuthenticator.Factory())
+      .build()
+    connection = new SMBClient(config).connect("127.0.0.1")
+    def session = connection.authenticate(new AuthenticationContext("user", "pass".toCharArray(), "domain"))
+    session.connectShare("share") as DiskShare
+  }
+
+  private static SMB2CreateContext leaseContext() {
+    def data = new SMBBuffer()
+    data.putRawBytes(LeaseKey.random().getBytes())
+    data.putUInt32(SMB2LeaseState.readHandle())
+    data.putUInt32(0)
+    data.putRawBytes(new byte[8])
+    data.putRawBytes(new byte[16])
+    data.putUInt16(1)
+    data.putUInt16(0)
+    new SMB2CreateContext(SMB2LeaseCreateContext.NAME, data.getCompactData())
+  }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share
+
+import com.hierynomus.mserref.NtStatus
+import com.hierynomus.msfscc.FileAttributes
+import com.hierynomus.msfscc.fileinformation.FileIdBothDirectoryInformation
+import com.hierynomus.mssmb2.*
+import com.hierynomus.mssmb2.messages.*
+import com.hierynomus.smbj.SMBClient
+import com.hierynomus.smbj.SmbConfig
+import com.hierynomus.smbj.auth.AuthenticationContext
+import com.hierynomus.smbj.connection.Connection
+import com.hierynomus.smbj.testing.DirectoryEntries
+import com.hierynomus.smbj.testing.PacketProcessor.DefaultPacketProcessor
+import com.hierynomus.smbj.testing.StubAuthenticator
+import com.hierynomus.smbj.testing.StubTransportLayerFactory
+import spock.lang.Specification
+
+class DiskShareWalkSpec extends Specification {
+  private static final int ENTRIES_PER_RESPONSE = 3
+
+  // directory -> entries, a trailing '\' marks a directory, a trailing '@' a directory that is a reparse point
+  private Map<String, List<String>> tree = [
+    ""     : ["a\\", "b\\", "f1", "f2", "link@"],
+    "a"    : ["a1\\", "fa"],
+    "a\\a1": ["deep"],
+    "b"    : (1..7).collect { "fb" + it },
+    "link" : ["hidden"]
+  ]
+  private Set<String> denied = []
+  private Map<String, String> symlinks = [:] // path -> relative target
+  private Map<String, Map> handles = [:]
+  private List<SMB2Packet> received = []
+  private int nextHandle
+  private long lastCreateStatus
+  private String lastCreated
+  private Connection connection
+
+  def cleanup() {
+    connection?.close()
+  }
+
+  def "should visit the whole tree with parallelism #parallelism"() {
+    given:
+    def share = connectShare()
+    def visited = []
+
+    when:
+    share.walk("", Integer.MAX_VALUE, parallelism, visitor(visited))
+
+    then:
+    visited as Set == ["a", "b", "f1", "f2", "link", "a\\a1", "a\\fa", "a\\a1\\deep"] + (1..7).collect { "b\\fb" + it } as Set
+    visited.size() == 15
+    handles.isEmpty()
+
+    where:
+    parallelism << [1, 4]
+  }
+
+  def "should list a small directory with a CREATE and two related QUERY_DIRECTORY requests"() {
+    given:
+    def share = connectShare()
+
+    when:
+    share.walk("a\\a1", 1, 4, visitor([]))
+
+    then:
+    received*.header*.message == [SMB2MessageCommandCode.SMB2_CREATE, SMB2MessageCommandCode.SMB2_QUERY_DIRECTORY,
+                                  SMB2MessageCommandCode.SMB2_QUERY_DIRECTORY, SMB2MessageCommandCode.SMB2_CLOSE]
+    received[1].header.isFlagSet(SMB2MessageFlag.SMB2_FLAGS_RELATED_OPERATIONS)
+    received[2].header.isFlagSet(SMB2MessageFlag.SMB2_FLAGS_RELATED_OPERATIONS)
+    !received[3].header.isFlagSet(SMB2MessageFlag.SMB2_FLAGS_RELATED_OPERATIONS)
+  }
+
+  def "should report paths relative to the start directory and honour the depth limit"() {
+    given:
+    def share = connectShare()
+    def visited = []
+
+    when:
+    share.walk("a", 1, 4, visitor(visited))
+
+    then:
+    visited as Set == ["a1", "fa"] as Set
+
+    when:
+    visited.clear()
+    share.walk("", 2, 4, visitor(visited))
+
+    then:
+    visited as Set == ["a", "b", "f1", "f2", "link", "a\\a1", "a\\fa"] + (1..7).collect { "b\\fb" + it } as Set
+    handles.isEmpty()
+  }
+
+  def "should not descend into pruned directories"() {
+    given:
+    def share = connectShare()
+    def visited = []
+
+    when:
+    share.walk("", Integer.MAX_VALUE, 4, visitor(visited, { it != "a" }))
+
+    then:
+    visited as Set == ["a", "b", "f1", "f2", "link"] + (1..7).collect { "b\\fb" + it } as Set
+  }
+
+  def "should pass a directory that cannot be listed to the visitor and continue"() {
+    given:
+    denied << "b"
+    def share = connectShare()
+    def visited = []
+    def failed = [:]
+
+    when:
+    share.walk("", Integer.MAX_VALUE, 4, visitor(visited, { true }, failed))
+
+    then:
+    failed.keySet() == ["b"] as Set
+    failed["b"].status == NtStatus.STATUS_ACCESS_DENIED
+    visited as Set == ["a", "b", "f1", "f2", "link", "a\\a1", "a\\fa", "a\\a1\\deep"] as Set
+    handles.isEmpty()
+  }
+
+  def "should throw when the start directory cannot be listed"() {
+    given:
+    denied << "b"
+    def share = connectShare()
+
+    when:
+    share.walk("b", visitor([]))
+
+    then:
+    def e = thrown(SMBApiException)
+    e.status == NtStatus.STATUS_ACCESS_DENIED
+  }
+
+  def "should resolve a start directory that is a symbolic link"() {
+    given:
+    symlinks["slink"] = "a"
+    def share = connectShare()
+    def visited = []
+
+    when:
+    share.walk("slink", visitor(visited))
+
+    then:
+    visited as Set == ["a1", "fa", "a1\\deep"] as Set
+    handles.isEmpty()
+  }
+
+  def "should close all open directories when the visitor aborts the walk"() {
+    given:
+    def share = connectShare()
+
+    when:
+    share.walk("", Integer.MAX_VALUE, 4, visitor([], { if (it == "a\\a1") throw new IllegalStateException("abort"); true }))
+
+    then:
+    thrown(IllegalStateException)
+    handles.isEmpty()
+  }
+
+  private static DirectoryVisitor visitor(List<String> visited, Closure<Boolean> descend = { true }, Map<String, SMBApiException> failed = null) {
+    new DirectoryVisitor() {
+      @Override
+      boolean visit(String path, FileIdBothDirectoryInformation entry) {
+        visited << path
+        descend(path)
+      }
+
+      @Override
+      void visitFailed(String path, SMBApiException e) {
+        if (failed == null) {
+          throw e
+        }
+        failed[path] = e
+      }
+    }
+  }
+
+  private DiskShare connectShare() {
+    def processor = new DefaultPacketProcessor().wrap({ SMB2Packet req ->
+      def packet = req.getPacket()
+      if (packet instanceof SMB2CreateRequest) {
+        received << packet
+        return create(packet)
+      }
+      if (packet instanceof SMB2QueryDirectoryRequest) {
+        received << packet
+        return queryDirectory(packet)
+      }
+      if (packet instanceof SMB2Close) {
+        received << packet
+        handles.remove(packet.fileId.toString())
+        def resp = new SMB2Close()
+        resp.header.statusCode = NtStatus.STATUS_SUCCESS.value
+        return resp
+      }
+      null
+    })
+
+    def config = SmbConfig.builder()
+      .withDfsEnabled(false)
+      .withTransportLayerFactory(new StubTransportLayerFactory(processor))
+      .withAuthenticators(new StubAuthenticator.Factory())
+      .build()
+    def client = new SMBClient(config)
+    connection = client.connect("127.0.0.1")
+    def session = connection.authenticate(new AuthenticationContext("username", "password".toCharArray(), "domain.com"))
+    session.connectShare("share") as DiskShare
+  }
+
+  private SMB2CreateResponse create(SMB2CreateRequest req) {
+    def path = req.@path.path ?: ""
+    def resp = new SMB2CreateResponse()
+    lastCreated = null
+    if (symlinks.containsKey(path)) {
+      lastCreateStatus = NtStatus.STATUS_STOPPED_ON_SYMLINK.value
+      resp.header.statusCode = lastCreateStatus
+      def symlink = new SMB2Error.SymbolicLinkError()
+      symlink['absolute'] = false
+      symlink['unparsedPathLength'] = 0
+      symlink['substituteName'] = symlinks[path]
+      symlink['printName'] = symlinks[path]
+      def error = new SMB2Error()
+      error.errorData.add(symlink)
+      resp.error = error
+      return resp
+    }
+    lastCreateStatus = denied.contains(path) ? NtStatus.STATUS_ACCESS_DENIED.value : NtStatus.STATUS_SUCCESS.value
+    resp.header.statusCode = lastCreateStatus
+    if (lastCreateStatus == NtStatus.STATUS_SUCCESS.value) {
+      def id = ++nextHandle
+      resp.fileId = new SMB2FileId([id, 0, 0, 0, 0, 0, 0, 0] as byte[], new byte[8])
+      resp.fileAttributes = EnumSet.of(FileAttributes.FILE_ATTRIBUTE_DIRECTORY)
+      lastCreated = resp.fileId.toString()
+      handles[lastCreated] = [path: path, next: 0]
+    }
+    resp
+  }
+
+  private SMB2QueryDirectoryResponse queryDirectory(SMB2QueryDirectoryRequest req) {
+    def resp = new SMB2QueryDirectoryResponse()
+    def related = req.header.isFlagSet(SMB2MessageFlag.SMB2_FLAGS_RELATED_OPERATIONS)
+    if (related && lastCreated == null) {
+      resp.header.statusCode = lastCreateStatus
+      return resp
+    }
+    def handle = handles[related ? lastCreated : req.@fileId.toString()]
+    def entries = [".\\", "..\\"] + tree[handle.path]
+    if (req.@flags.contains(SMB2QueryDirectoryRequest.SMB2QueryDirectoryFlags.SMB2_RESTART_SCANS)) {
+      handle.next = 0
+    }
+    if (handle.next >= entries.size()) {
+      resp.header.statusCode = NtStatus.STATUS_NO_MORE_FILES.value
+      return resp
+    }
+    def batch = entries.subList(handle.next, Math.min(entries.size(), handle.next + ENTRIES_PER_RESPONSE))
+    handle.next += batch.size()
+    resp.header.statusCode = NtStatus.STATUS_SUCCESS.value
+    resp.outputBuffer = DirectoryEntries.encode(batch)
+    resp
+  }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share
+
+import com.hierynomus.msdtyp.AccessMask
+import com.hierynomus.msdtyp.FileTime
+import com.hierynomus.mserref.NtStatus
+import com.hierynomus.msfscc.FileAttributes
+import com.hierynomus.mssmb2.*
+import com.hierynomus.mssmb2.messages.*
+import com.hierynomus.mssmb2.messages.create.SMB2CreateContext
+import com.hierynomus.mssmb2.messages.create.SMB2DurableHandleRequestV2
+import com.hierynomus.protocol.transport.TransportException
+import com.hierynomus.smb.SMBBuffer
+import com.hierynomus.smbj.SMBClient
+import com.hierynomus.smbj.SmbConfig
+import com.hierynomus.smbj.auth.AuthenticationContext
+import com.hierynomus.smbj.connection.Connection
+import com.hierynomus.smbj.testing.PacketProcessor
+import com.hierynomus.smbj.testing.PacketProcessor.DefaultPacketProcessor
+import com.hierynomus.smbj.testing.StubAuthenticator
+import com.hierynomus.smbj.testing.StubTransportLayerFactory
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+
+class DurableHandleSpec extends Specification {
+  private byte[] fileData = new byte[4096]
+  private List<String> requests = []
+  private List<byte[]> createContextData = []
+  private boolean grantDurable = true
+  private byte volatileHandle = 1
+  private Closure<Void> onRequest = {}
+  private int creditGrant // credits granted per response, 0 grants what was asked for
+  private Connection connection
+
+  def cleanup() {
+    connection?.close()
+  }
+
+  def "requests a durable handle and reclaims it after the connection is lost"() {
+    given:
+    def file = open(true)
+    def buffer = new byte[10]
+
+    when:
+    connection.handleError(new TransportException("Connection reset"))
+    file.read(buffer, 0)
+
+    then:
+    requests == ["CREATE DH2Q", "SESSION_SETUP previous=1", "CREATE DH2C", "READ@0 handle=2"]
+    // The DH2C reclaims the handle that was granted for the DH2Q, identified by its CreateGuid
+    Arrays.copyOfRange(createContextData[1], 0, 16) == fileId(1)
+    Arrays.copyOfRange(createContextData[1], 16, 32) == Arrays.copyOfRange(createContextData[0], 16, 32)
+    handle(file.fileId) == 2
+  }
+
+  def "replays a read that was in flight when the connection dropped"() {
+    given:
+    def file = open(true)
+    fileData[5] = 42
+    def buffer = new byte[10]
+    onRequest = { req ->
+      if (req instanceof SMB2ReadRequest) {
+        onRequest = {}
+        connection.handleError(new TransportException("Connection reset"))
+        throw new TransportException("Connection reset")
+      }
+    }
+
+    when:
+    def read = file.read(buffer, 0)
+
+    then:
+    read == 10
+    buffer[5] == 42 as byte
+    requests == ["CREATE DH2Q", "READ@0 handle=1", "SESSION_SETUP previous=1", "CREATE DH2C", "READ@0 handle=2"]
+  }
+
+  def "replays a write that was in flight when the connection dropped"() {
+    given:
+    def file = open(true)
+    onRequest = { req ->
+      if (req instanceof SMB2WriteRequest) {
+        onRequest = {}
+        connection.handleError(new TransportException("Connection reset"))
+        throw new TransportException("Connection reset")
+      }
+    }
+
+    when:
+    file.write([1, 2, 3] as byte[], 100)
+
+    then:
+    requests == ["CREATE DH2Q", "WRITE@100+3 handle=1", "SESSION_SETUP previous=1", "CREATE DH2C", "WRITE@100+3 handle=2"]
+    Arrays.copyOfRange(fileData, 100, 103) == [1, 2, 3] as byte[]
+  }
+
+  def "replays a write of part of the caller's buffer from that same part"() {
+    given:
+    def file = open(true)
+    onRequest = { req ->
+      if (req instanceof SMB2WriteRequest) {
+        onRequest = {}
+        connection.handleError(new TransportException("Connection reset"))
+        throw new TransportException("Connection reset")
+      }
+    }
+
+    when:
+    file.write([9, 9, 4, 5, 6, 9] as byte[], 100, 2, 3)
+
+    then:
+    requests == ["CREATE DH2Q", "WRITE@100+3 handle=1", "SESSION_SETUP previous=1", "CREATE DH2C", "WRITE@100+3 handle=2"]
+    Arrays.copyOfRange(fileData, 100, 103) == [4, 5, 6] as byte[]
+  }
+
+  def "writes all of the data when the write is assigned fewer credits than it needs"() {
+    given:
+    creditGrant = 1
+    fileData = new byte[200000]
+    def file = open(true)
+    def data = new byte[150000]
+    Arrays.fill(data, 7 as byte)
+
+    when:
+    def written = file.write(data, 1000)
+
+    then:
+    written == 150000
+    requests == ["CREATE DH2Q", "WRITE@1000+65536 handle=1", "WRITE@66536+65536 handle=1", "WRITE@132072+18928 handle=1"]
+    Arrays.copyOfRange(fileData, 1000, 151000) == data
+  }
+
+  def "a handle that was not granted as durable is not reclaimed"() {
+    given:
+    grantDurable = false
+    def file = open(true)
+
+    when:
+    connection.handleError(new TransportException("Connection reset"))
+
+    then:
+    !file.share.isConnected()
+    !file.share.reconnect(connection)
+    requests == ["CREATE DH2Q"]
+  }
+
+  def "does not request a durable handle unless enabled"() {
+    when:
+    open(false)
+
+    then:
+    requests == ["CREATE"]
+  }
+
+  private File open(boolean durableHandles) {
+    def handler = { req ->
+      req = req.packet
+      if (req instanceof SMB2NegotiateRequest)
+        return negotiateResponse()
+      if (req instanceof SMB2SessionSetup) {
+        if (req.@previousSessionId != 0) {
+          requests << "SESSION_SETUP previous=" + req.@previousSessionId
+        }
+        return null
+      }
+      if (req instanceof SMB2CreateRequest)
+        return createResponse(req)
+      if (req instanceof SMB2ReadRequest) {
+        requests << "READ@" + req.offset + " handle=" + handle(req.@fileId)
+        onRequest(req)
+        return read(req)
+      }
+      if (req instanceof SMB2WriteRequest) {
+        def response = write(req)
+        onRequest(req)
+        return response
+      }
+      if (req instanceof SMB2Close) {
+        def response = new SMB2Close()
+        response.header.statusCode = NtStatus.STATUS_SUCCESS.value
+        return response
+      }
+      null
+    }
+    // Not a closure coerced to the interface, so that the TransportException of a dropped connection is thrown as is
+    def processor = new DefaultPacketProcessor().wrap(new PacketProcessor() {
+      SMB2Packet process(SMB2Packet req) {
+        handler(req)
+      }
+    })
+    def responder = new PacketProcessor() {
+      SMB2Packet process(SMB2Packet req) {
+        def response = processor.process(req)
+        response?.header?.creditResponse = creditGrant
+        response
+      }
+    }
+
+    def config = SmbConfig.builder()
+      .withDurableHandlesEnabled(durableHandles)
+      .withDurableHandleTimeout(60, TimeUnit.SECONDS)
+      .withDfsEnabled(false)
+      .withTransportLayerFactory(new StubTransportLayerFactory(responder))
+      .withAuthenticators(new StubAuthenticator.Factory())
+      .build()
+    connection = new SMBClient(config).connect("127.0.0.1")
+    def session = connection.authenticate(new AuthenticationContext("username", "password".toCharArray(), "domain.com"))
+    def share = session.connectShare("share") as DiskShare
+    share.openFile("file", EnumSet.of(AccessMask.GENERIC_READ, AccessMask.GENERIC_WRITE), null, SMB2ShareAccess.ALL,
+      SMB2CreateDisposition.FILE_OPEN, null)
+  }
+
+  private static byte[] fileId(int handle) {
+    def buffer = new SMBBuffer()
+    new SMB2FileId(new byte[8], [handle, 0, 0, 0, 0, 0, 0, 0] as byte[]).write(buffer)
+    buffer.compactData
+  }
+
+  private static int handle(SMB2FileId fileId) {
+    def buffer = new SMBBuffer()
+    fileId.write(buffer)
+    buffer.compactData[8]
+  }
+
+  private SMB2NegotiateResponse negotiateResponse() {
+    def response = new SMB2NegotiateResponse()
+    response.header.statusCode = NtStatus.STATUS_SUCCESS.value
+    response.dialect = SMB2Dialect.SMB_3_0
+    response.systemTime = FileTime.now()
+    response.serverGuid = UUID.randomUUID()
+    response.capabilities = EnumSet.of(SMB2GlobalCapability.SMB2_GLOBAL_CAP_LARGE_MTU)
+    response.maxTransactSize = 1 << 20
+    response.maxReadSize = 1 << 20
+    response.maxWriteSize = 1 << 20
+    response
+  }
+
+  private SMB2CreateResponse createResponse(SMB2CreateRequest req) {
+    List<SMB2CreateContext> contexts = req.@createContexts
+    def names = contexts.collect { new String(it.name, "US-ASCII") }
+    requests << (["CREATE"] + names).join(" ")
+    createContextData.addAll(contexts.collect { it.data })
+
+    def response = new SMB2CreateResponse()
+    response.header.statusCode = NtStatus.STATUS_SUCCESS.value
+    response.fileAttributes = EnumSet.of(FileAttributes.FILE_ATTRIBUTE_NORMAL)
+    response.fileId = new SMB2FileId(new byte[8], [volatileHandle++, 0, 0, 0, 0, 0, 0, 0] as byte[])
+    if (names.contains("DH2Q") && grantDurable) {
+      def data = new SMBBuffer()
+      data.putUInt32(60000)
+      data.putUInt32(0)
+      response.createContexts = [new SMB2CreateContext(SMB2DurableHandleRequestV2.NAME, data.getCompactData())]
+    }
+    response
+  }
+
+  private SMB2ReadResponse read(SMB2ReadRequest req) {
+    def offset = req.offset as int
+    def length = Math.min(req.getPayloadSize(), fileData.length - offset)
+    def response = new SMB2ReadResponse()
+    response.header.statusCode = NtStatus.STATUS_SUCCESS.value
+    response.data = Arrays.copyOfRange(fileData, offset, offset + length)
+    response.dataLength = length
+    response
+  }
+
+  private SMB2WriteResponse write(SMB2WriteRequest req) {
+    def offset = req.byteProvider.offset as int
+    def data = new ByteArrayOutputStream()
+    req.byteProvider.writeChunk(data)
+    def bytes = data.toByteArray()
+    requests << "WRITE@" + offset + "+" + bytes.length + " handle=" + handle(req.@fileId)
+    System.arraycopy(bytes, 0, fileData, offset, bytes.length)
+    def response = new SMB2WriteResponse()
+    response.header.statusCode = NtStatus.STATUS_SUCCESS.value
+    response.bytesWritten = bytes.length
+    response
+  }
+}
@@ -0,0 +1,471 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share
+
+import com.hierynomus.msdtyp.AccessMask
+import com.hierynomus.msdtyp.FileTime
+import com.hierynomus.mserref.NtStatus
+import com.hierynomus.msfscc.FileAttributes
+import com.hierynomus.mssmb2.*
+import com.hierynomus.mssmb2.messages.*
+import com.hierynomus.mssmb2.messages.create.SMB2CreateContext
+import com.hierynomus.mssmb2.messages.create.SMB2LeaseCreateContext
+import com.hierynomus.smb.SMBBuffer
+import com.hierynomus.smbj.SMBClient
+import com.hierynomus.smbj.SmbConfig
+import com.hierynomus.smbj.auth.AuthenticationContext
+import com.hierynomus.smbj.connection.Connection
+import com.hierynomus.smbj.connection.LeaseManagerSpec
+import com.hierynomus.smbj.testing.PacketProcessor.DefaultPacketProcessor
+import com.hierynomus.smbj.testing.StubAuthenticator
+import com.hierynomus.smbj.testing.StubTransportLayerFactory
+import spock.lang.Specification
+
+class FileLeaseCacheSpec extends Specification {
+  static final long RWH = SMB2LeaseState.readWriteHandle()
+
+  private byte[] fileData
+  private List<String> requests = []
+  private List<Integer> writers = []
+  private int opens
+  private long grantedState = RWH
+  private Connection connection
+  private DiskShare share
+
+  def setup() {
+    fileData = new byte[12345]
+    new Random(42).nextBytes(fileData)
+  }
+
+  def cleanup() {
+    connection?.close()
+  }
+
+  def "repeated reads are served from the cache while a read-caching lease is held"() {
+    given:
+    def file = open(true)
+    def buffer = new byte[100]
+
+    when:
+    file.read(buffer, 0)
+    file.read(buffer, 50)
+    file.read(buffer, 950)
+
+    then:
+    requests == ["READ@0", "READ@1000"]
+    buffer == Arrays.copyOfRange(fileData, 950, 1050)
+  }
+
+  def "should read the entire file through the cache"() {
+    given:
+    def file = open(true)
+    def out = new ByteArrayOutputStream()
+    def buffer = new byte[64]
+    def fileOffset = 0L
+    def bytesRead
+
+    when:
+    while ((bytesRead = file.read(buffer, fileOffset)) != -1) {
+      out.write(buffer, 0, bytesRead)
+      fileOffset += bytesRead
+    }
+
+    then:
+    out.toByteArray() == fileData
+    requests.size() == 13
+  }
+
+  def "writes are buffered under a write-caching lease until the file is flushed"() {
+    given:
+    def file = open(true)
+
+    when:
+    file.write([1, 2, 3] as byte[], 10)
+    file.write([4, 5, 6] as byte[], 13)
+
+    then:
+    requests == ["READ@0"]
+    def buffer = new byte[6]
+    file.read(buffer, 10) == 6
+    buffer == [1, 2, 3, 4, 5, 6] as byte[]
+
+    when:
+    file.flush()
+
+    then:
+    requests == ["READ@0", "WRITE@10+6", "FLUSH"]
+    Arrays.copyOfRange(fileData, 10, 16) == [1, 2, 3, 4, 5, 6] as byte[]
+  }
+
+  def "sequential writes that are not page aligned neither write back nor read the pages past the end of the file"() {
+    given:
+    def file = open(true)
+    def data = new byte[500]
+    Arrays.fill(data, 9 as byte)
+
+    when:
+    4.times { file.write(data, 12000 + it * 500) }
+
+    then:
+    requests == ["READ@12000"]
+
+    when:
+    file.flush()
+
+    then:
+    requests == ["READ@12000", "WRITE@12000+1000", "WRITE@13000+1000", "FLUSH"]
+    fileData.length == 14000
+    Arrays.copyOfRange(fileData, 12000, 14000) == [9] * 2000 as byte[]
+  }
+
+  def "a page between the end of file on the server and the cached writes past it reads as zeros"() {
+    given:
+    def file = open(true)
+    def buffer = new byte[10]
+
+    when:
+    file.write([5] as byte[], 14999)
+    def read = file.read(buffer, 13500)
+
+    then:
+    requests == []
+    read == 10
+    buffer == new byte[10]
+  }
+
+  def "writes past the end of the file extend the cached file"() {
+    given:
+    def file = open(true)
+    def buffer = new byte[10]
+
+    when:
+    file.write([7, 7] as byte[], 12348)
+    file.read(buffer, 12340)
+
+    then:
+    file.read(buffer, 12340) == 10
+    buffer as List == (Arrays.copyOfRange(fileData, 12340, 12345) as List) + [0, 0, 0, 7, 7]
+
+    when:
+    file.close()
+
+    then:
+    requests == ["READ@12000", "WRITE@12348+2"]
+    fileData.length == 12350
+  }
+
+  def "a lease break writes back dirty data before it is acknowledged"() {
+    given:
+    def file = open(true)
+    file.write([1, 2, 3] as byte[], 10)
+
+    when: "the server breaks RWH -> RH"
+    connection.getLeaseManager().onBreak(breakTo(file, SMB2LeaseState.readHandle()))
+
+    then:
+    requests == ["READ@0", "WRITE@10+3", "ACK"]
+
+    when: "writes now go to the server, while reads are still cached"
+    file.write([4] as byte[], 13)
+    def buffer = new byte[4]
+    file.read(buffer, 10)
+
+    then:
+    requests == ["READ@0", "WRITE@10+3", "ACK", "WRITE@13+1"]
+  }
+
+  def "a lease break that removes read caching drops the cached pages"() {
+    given:
+    def file = open(true)
+    def buffer = new byte[10]
+    file.read(buffer, 0)
+
+    when:
+    connection.getLeaseManager().onBreak(breakTo(file, SMB2LeaseState.SMB2_LEASE_NONE.value))
+    fileData[0] = 99
+    file.read(buffer, 0)
+
+    then:
+    requests == ["READ@0", "ACK", "READ@0"]
+    buffer[0] == 99 as byte
+  }
+
+  def "evicts the least recently used page, writing it back when dirty"() {
+    given:
+    def file = open(true, 2000)
+    def buffer = new byte[10]
+
+    when:
+    file.write([1] as byte[], 0)
+    file.read(buffer, 1000)
+    file.read(buffer, 2000)
+
+    then:
+    requests == ["READ@0", "READ@1000", "READ@2000", "WRITE@0+1"]
+    fileData[0] == 1 as byte
+  }
+
+  def "closing the last handle writes back the data and releases the lease"() {
+    given:
+    def file = open(true)
+    def lm = connection.getLeaseManager()
+    def key = file.getLeaseEntry().getLeaseKey()
+    file.write([1] as byte[], 0)
+
+    when:
+    file.close()
+
+    then:
+    requests == ["READ@0", "WRITE@0+1"]
+    lm.lookup(key) == null
+  }
+
+  def "a handle without write access writes to the server instead of the cache"() {
+    given:
+    def file = open(true)
+    def reader = reopen(EnumSet.of(AccessMask.GENERIC_READ))
+    def buffer = new byte[10]
+    reader.read(buffer, 0)
+
+    when:
+    reader.write([1] as byte[], 0)
+
+    then:
+    requests == ["READ@0", "WRITE@0+1"]
+    file.read(buffer, 0) == 10
+    buffer[0] == 1 as byte
+  }
+
+  def "a handle without read access writes to the server instead of loading the page"() {
+    given:
+    open(true)
+    def writer = reopen(EnumSet.of(AccessMask.FILE_WRITE_DATA))
+
+    when:
+    writer.write([1] as byte[], 5)
+
+    then:
+    requests == ["WRITE@5+1"]
+    fileData[5] == 1 as byte
+  }
+
+  def "the cache does not take reads or writes once the lease no longer grants it"() {
+    given:
+    def file = open(true)
+    def cache = file.getLeaseEntry().getFileCache()
+
+    when:
+    cache.onBreak(SMB2LeaseState.readHandle())
+
+    then:
+    !cache.write(file, [1] as byte[], 0, 0, 1)
+
+    when:
+    cache.onBreak(0)
+
+    then:
+    cache.read(file, new byte[10], 0, 0, 10) == LeasedFileCache.NOT_CACHED
+    requests == []
+  }
+
+  def "closing the writer leaves the write-back to a handle with write access"() {
+    given:
+    def file = open(true)
+    def reader = reopen(EnumSet.of(AccessMask.GENERIC_READ))
+    def other = reopen(EnumSet.of(AccessMask.FILE_READ_DATA, AccessMask.FILE_WRITE_DATA))
+    def cache = file.getLeaseEntry().getFileCache()
+    file.write([1] as byte[], 0)
+
+    when: "the writer is detached without flushing, e.g. by a concurrent write"
+    cache.detach(file)
+
+    then:
+    requests == ["READ@0"]
+
+    when:
+    connection.getLeaseManager().onBreak(breakTo(reader, SMB2LeaseState.readHandle()))
+
+    then:
+    requests == ["READ@0", "WRITE@0+1", "ACK"]
+    writers == [handle(other)]
+  }
+
+  def "detaching the last handle with write access writes back its data first"() {
+    given:
+    def file = open(true)
+    def reader = reopen(EnumSet.of(AccessMask.GENERIC_READ))
+    def cache = file.getLeaseEntry().getFileCache()
+    file.write([1] as byte[], 0)
+
+    when:
+    cache.detach(file)
+
+    then:
+    requests == ["READ@0", "WRITE@0+1"]
+    writers == [handle(file)]
+  }
+
+  def "reads and writes go to the server without file leasing"() {
+    given:
+    def file = open(false)
+    def buffer = new byte[10]
+
+    when:
+    file.read(buffer, 0)
+    file.read(buffer, 0)
+    file.write([1] as byte[], 0)
+
+    then:
+    file.getLeaseEntry() == null
+    requests == ["READ@0", "READ@0", "WRITE@0+1"]
+  }
+
+  def "a file without a granted lease is not cached"() {
+    given:
+    grantedState = -1
+    def file = open(true)
+    def buffer = new byte[10]
+
+    when:
+    file.read(buffer, 0)
+    file.read(buffer, 0)
+
+    then:
+    file.getLeaseEntry() == null
+    requests == ["READ@0", "READ@0"]
+  }
+
+  private File open(boolean fileLeasing, int cacheSize = 4 * 1024 * 1024) {
+    def responder = new DefaultPacketProcessor().wrap({ req ->
+      req = req.packet
+      if (req instanceof SMB2NegotiateRequest)
+        return negotiateResponse()
+      if (req instanceof SMB2CreateRequest)
+        return createResponse()
+      if (req instanceof SMB2ReadRequest) {
+        requests << "READ@" + req.offset
+        return read(req)
+      }
+      if (req instanceof SMB2WriteRequest) {
+        return write(req)
+      }
+      if (req instanceof SMB2Flush) {
+        requests << "FLUSH"
+        def response = new SMB2Flush()
+        response.header.statusCode = NtStatus.STATUS_SUCCESS.value
+        return response
+      }
+      if (req instanceof SMB2Close) {
+        def response = new SMB2Close()
+        response.header.statusCode = NtStatus.STATUS_SUCCESS.value
+        return response
+      }
+      if (req instanceof SMB2LeaseBreakAcknowledgment) {
+        requests << "ACK"
+      }
+      null
+    })
+
+    def config = SmbConfig.builder()
+      .withReadBufferSize(1024)
+      .withWriteBufferSize(1000)
+      .withFileLeasingEnabled(fileLeasing)
+      .withFileCacheSize(cacheSize)
+      .withDfsEnabled(false)
+      .withTransportLayerFactory(new StubTransportLayerFactory(responder))
+      .withAuthenticators(new StubAuthenticator.Factory())
+      .build()
+    connection = new SMBClient(config).connect("127.0.0.1")
+    def session = connection.authenticate(new AuthenticationContext("username", "password".toCharArray(), "domain.com"))
+    share = session.connectShare("share") as DiskShare
+    share.openFile("file", EnumSet.of(AccessMask.GENERIC_READ, AccessMask.GENERIC_WRITE), null, SMB2ShareAccess.ALL,
+      SMB2CreateDisposition.FILE_OPEN, null)
+  }
+
+  private File reopen(Set<AccessMask> accessMask) {
+    share.openFile("file", accessMask, null, SMB2ShareAccess.ALL, SMB2CreateDisposition.FILE_OPEN, null)
+  }
+
+  private static int handle(File file) {
+    file.fileId.persistentHandle[0]
+  }
+
+  private static SMB2LeaseBreakNotification breakTo(File file, long newState) {
+    LeaseManagerSpec.notification(file.getLeaseEntry().getLeaseKey(), 2, "01000000", newState)
+  }
+
+  private SMB2NegotiateResponse negotiateResponse() {
+    def response = new SMB2NegotiateResponse()
+    response.header.statusCode = NtStatus.STATUS_SUCCESS.value
+    response.dialect = SMB2Dialect.SMB_3_0
+    response.systemTime = FileTime.now()
+    response.serverGuid = UUID.randomUUID()
+    response.capabilities = EnumSet.of(SMB2GlobalCapability.SMB2_GLOBAL_CAP_LEASING)
+    response
+  }
+
+  private SMB2CreateResponse createResponse() {
+    def response = new SMB2CreateResponse()
+    response.header.statusCode = NtStatus.STATUS_SUCCESS.value
+    response.fileAttributes = EnumSet.of(FileAttributes.FILE_ATTRIBUTE_NORMAL)
+    response.fileId = new SMB2FileId([opens++] * 8 as byte[], new byte[8])
+    response.endOfFile = fileData.length
+    if (grantedState >= 0) {
+      def data = new SMBBuffer()
+      data.putRawBytes(LeaseKey.random().getBytes())
+      data.putUInt32(grantedState)
+      data.putUInt32(0)
+      data.putRawBytes(new byte[8])
+      data.putRawBytes(new byte[16])
+      data.putUInt16(1)
+      data.putUInt16(0)
+      response.oplockLevel = SMB2OplockLevel.SMB2_OPLOCK_LEVEL_LEASE
+      response.createContexts = [new SMB2CreateContext(SMB2LeaseCreateContext.NAME, data.getCompactData())]
+    }
+    response
+  }
+
+  private SMB2ReadResponse read(SMB2ReadRequest req) {
+    def offset = req.offset as int
+    def length = Math.min(req.getPayloadSize(), fileData.length - offset)
+    def response = new SMB2ReadResponse()
+    if (length <= 0) {
+      response.header.statusCode = NtStatus.STATUS_END_OF_FILE.value
+    } else {
+      response.header.statusCode = NtStatus.STATUS_SUCCESS.value
+      response.data = Arrays.copyOfRange(fileData, offset, offset + length)
+      response.dataLength = length
+    }
+    response
+  }
+
+  private SMB2WriteResponse write(SMB2WriteRequest req) {
+    def offset = req.byteProvider.offset as int
+    def data = new ByteArrayOutputStream()
+    req.byteProvider.writeChunk(data)
+    def bytes = data.toByteArray()
+    requests << "WRITE@" + offset + "+" + bytes.length
+    writers << (req.fileId.persistentHandle[0] as int)
+    if (offset + bytes.length > fileData.length) {
+      fileData = Arrays.copyOf(fileData, offset + bytes.length)
+    }
+    System.arraycopy(bytes, 0, fileData, offset, bytes.length)
+    def response = new SMB2WriteResponse()
+    response.header.statusCode = NtStatus.STATUS_SUCCESS.value
+    response.bytesWritten = bytes.length
+    response
+  }
+}
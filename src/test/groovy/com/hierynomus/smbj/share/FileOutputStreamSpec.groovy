@@ -23,6 +23,7 @@ import com.hierynomus.mssmb2.messages.SMB2CreateRequest
 import com.hierynomus.mssmb2.messages.SMB2CreateResponse
 import com.hierynomus.mssmb2.messages.SMB2WriteRequest
 import com.hierynomus.mssmb2.messages.SMB2WriteResponse
+import com.hierynomus.smbj.ProgressListener
 import com.hierynomus.smbj.SMBClient
 import com.hierynomus.smbj.SmbConfig
 import com.hierynomus.smbj.auth.AuthenticationContext
@@ -36,9 +37,13 @@ class FileOutputStreamSpec extends Specification {
   private File file
   private Connection connection
   private ByteArrayOutputStream devNull
+  private List<Long> writeOffsets
+  private long failWritesFrom
 
   def setup() {
     devNull = new ByteArrayOutputStream()
+    writeOffsets = []
+    failWritesFrom = Long.MAX_VALUE
     def responder = new DefaultPacketProcessor().wrap({ req ->
       if (req.packet instanceof SMB2CreateRequest)
         return createResponse()
@@ -50,6 +55,7 @@ class FileOutputStreamSpec extends Specification {
 
     def config = SmbConfig.builder()
       .withReadBufferSize(1024)
+      .withWriteBufferSize(1000)
       .withDfsEnabled(false)
       .withTransportLayerFactory(new StubTransportLayerFactory(responder))
       .withAuthenticators(new StubAuthenticator.Factory())
@@ -101,6 +107,53 @@ class FileOutputStreamSpec extends Specification {
         stream.isClosed
   }
 
+  def "should write all data in order with several WRITEs outstanding"() {
+    given:
+    def data = new byte[12345]
+    new Random(42).nextBytes(data)
+    def progress = []
+    def stream = file.getOutputStream({ written, total -> progress << total } as ProgressListener, false, 4)
+
+    when:
+    stream.write(data, 0, 100)
+    stream.write(data[100])
+    stream.write(data, 101, data.length - 101)
+    stream.close()
+
+    then:
+    stream instanceof WriteBehindFileOutputStream
+    devNull.toByteArray() == data
+    writeOffsets == (0..12).collect { it * 1000L }
+    progress.last() == 12345L
+  }
+
+  def "should surface a failed WRITE on a later call"() {
+    given:
+    failWritesFrom = 2000
+    def stream = file.getOutputStream(null, false, 4)
+
+    when:
+    stream.write(new byte[5000])
+    stream.flush()
+
+    then:
+    thrown(IOException)
+
+    when:
+    stream.close()
+
+    then:
+    thrown(IOException)
+  }
+
+  def "should not accept a write behind of less than one request"() {
+    when:
+    file.getOutputStream(null, false, 0)
+
+    then:
+    thrown(IllegalArgumentException)
+  }
+
   SMB2Packet createResponse() {
     def response = new SMB2CreateResponse()
     response.header.statusCode = NtStatus.STATUS_SUCCESS.value
@@ -111,6 +164,12 @@ class FileOutputStreamSpec extends Specification {
 
   SMB2WriteResponse write(SMB2WriteRequest req) {
     def response = new SMB2WriteResponse()
+    writeOffsets << req.byteProvider.offset
+    if (req.byteProvider.offset >= failWritesFrom) {
+      response.header.statusCode = NtStatus.STATUS_DISK_FULL.value
+      req.byteProvider.writeChunk(new ByteArrayOutputStream())
+      return response
+    }
     response.header.statusCode = NtStatus.STATUS_SUCCESS.value
     response.bytesWritten = req.maxPayloadSize
     req.byteProvider.writeChunk(devNull)
@@ -35,6 +35,7 @@ import com.hierynomus.smbj.testing.StubAuthenticator
 import com.hierynomus.smbj.testing.StubTransportLayerFactory
 import spock.lang.Specification
 
+import java.nio.ByteBuffer
 import java.security.DigestOutputStream
 import java.security.MessageDigest
 
@@ -45,6 +46,8 @@ class FileReadSpec extends Specification {
   private File file
   private Connection connection
   private PacketProcessor responder
+  private List<Long> readOffsets = []
+  private Map<Long, Integer> shortReads = [:] // the number of bytes returned for a READ at an offset
 
   def setup() {
     fileData = randomData(42, 12345)
@@ -52,8 +55,16 @@ class FileReadSpec extends Specification {
       req = req.packet
       if (req instanceof SMB2CreateRequest)
         return createResponse()
-      if (req instanceof SMB2ReadRequest)
-        return read(req, fileData, false)
+      if (req instanceof SMB2ReadRequest) {
+        readOffsets << req.offset
+        def response = read(req, fileData, false)
+        def length = shortReads.remove(req.offset)
+        if (length != null) {
+          response.data = Arrays.copyOf(response.data, length)
+          response.dataLength = length
+        }
+        return response
+      }
 
       null
     })
@@ -173,6 +184,55 @@ class FileReadSpec extends Specification {
     ByteArrayUtils.printHex(digest.digest()) == ByteArrayUtils.printHex(expectedDigest)
   }
 
+  def "should read a range larger than the read buffer size in one call"() {
+    given:
+    def buffer = new byte[12000]
+
+    when:
+    def bytesRead = file.read(buffer, 100, 0, buffer.length)
+
+    then:
+    bytesRead == 12000
+    buffer == fileData[100..<12100] as byte[]
+  }
+
+  def "should read up to the end of the file into a large ByteBuffer"() {
+    given:
+    def buffer = ByteBuffer.allocate(20000)
+    buffer.position(7)
+
+    when:
+    def bytesRead = file.read(buffer, 345)
+
+    then:
+    bytesRead == 12000
+    buffer.position() == 12007
+    Arrays.copyOfRange(buffer.array(), 7, 12007) == fileData[345..-1] as byte[]
+    file.read(ByteBuffer.allocate(5000), 12345) == -1
+  }
+
+  def "should split a large read in READ requests of the read buffer size"() {
+    when:
+    file.read(ByteBuffer.allocate(12345), 0)
+
+    then:
+    readOffsets == (0..<13).collect { it * 1024L }
+  }
+
+  def "should read the rest of a range that came back short before the end of the file"() {
+    given:
+    shortReads[2048L] = 300
+    def buffer = new byte[5000]
+
+    when:
+    def bytesRead = file.read(buffer, 0, 0, buffer.length)
+
+    then:
+    bytesRead == 5000
+    buffer == fileData[0..<5000] as byte[]
+    readOffsets == [0L, 1024L, 2048L, 3072L, 4096L, 2348L]
+  }
+
   def "should skip bytes at start of inputstream"() {
     given:
     def out = new ByteArrayOutputStream()
@@ -211,6 +271,90 @@ class FileReadSpec extends Specification {
     out.toByteArray()[1..-1] == fileData[10001..-1]
   }
 
+  def "should read entire file contents via input stream with read ahead"() {
+    when:
+    def out = new ByteArrayOutputStream()
+    def input = file.getInputStream(null, readAhead)
+    def buffer = new byte[100]
+    def bytesRead
+    while ((bytesRead = input.read(buffer)) != -1) {
+      out.write(buffer, 0, bytesRead)
+    }
+
+    then:
+    out.toByteArray() == fileData
+    readOffsets.take(initialRequests) == (0..<initialRequests).collect { it * 1024L }
+    readOffsets.size() == readOffsets.unique(false).size()
+    readOffsets.last() == 12345L
+
+    where:
+    readAhead                 | initialRequests
+    1                         | 1
+    4                         | 4
+    SmbConfig.READ_AHEAD_AUTO | 2
+  }
+
+  def "should skip into data that was read ahead"() {
+    given:
+    def out = new ByteArrayOutputStream()
+    def buffer = new byte[256]
+    def input = file.getInputStream(null, 4)
+    def bytesRead
+
+    when:
+    out.write(input.read())
+    input.skip(2500)
+    while ((bytesRead = input.read(buffer)) != -1) {
+      out.write(buffer, 0, bytesRead)
+    }
+
+    then:
+    out.toByteArray()[0] == fileData[0]
+    out.toByteArray()[1..-1] == fileData[2501..-1]
+    readOffsets.size() == readOffsets.unique(false).size()
+  }
+
+  def "should skip into read ahead data that came back short"() {
+    given:
+    shortReads[2048L] = 100
+    def out = new ByteArrayOutputStream()
+    def buffer = new byte[256]
+    def input = file.getInputStream(null, 4)
+    def bytesRead
+
+    when:
+    out.write(input.read())
+    input.skip(2500)
+    while ((bytesRead = input.read(buffer)) != -1) {
+      out.write(buffer, 0, bytesRead)
+    }
+
+    then:
+    out.toByteArray()[0] == fileData[0]
+    out.toByteArray()[1..-1] == fileData[2501..-1]
+    readOffsets.contains(2501L)
+  }
+
+  def "should skip past data that was read ahead"() {
+    given:
+    def out = new ByteArrayOutputStream()
+    def buffer = new byte[256]
+    def input = file.getInputStream(null, 4)
+    def bytesRead
+
+    when:
+    out.write(input.read())
+    input.skip(10000)
+    while ((bytesRead = input.read(buffer)) != -1) {
+      out.write(buffer, 0, bytesRead)
+    }
+
+    then:
+    out.toByteArray()[0] == fileData[0]
+    out.toByteArray()[1..-1] == fileData[10001..-1]
+    readOffsets.contains(10001L)
+  }
+
   byte[] randomData(int seed, int length) {
     Random rng = new Random(seed)
     byte[] data = new byte[length]
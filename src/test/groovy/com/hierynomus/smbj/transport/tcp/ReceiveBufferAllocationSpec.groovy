@@ -0,0 +1,203 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.transport.tcp
+
+import com.hierynomus.protocol.PacketData
+import com.hierynomus.protocol.commons.buffer.Buffer
+import com.hierynomus.protocol.commons.buffer.BufferPool
+import com.hierynomus.protocol.commons.buffer.Endian
+import com.hierynomus.protocol.transport.PacketFactory
+import com.hierynomus.protocol.transport.PacketReceiver
+import com.hierynomus.smbj.transport.tcp.async.PacketBufferReader
+import com.hierynomus.smbj.transport.tcp.direct.DirectTcpPacketReader
+import spock.lang.Requires
+import spock.lang.Specification
+
+import java.lang.management.ManagementFactory
+
+/**
+ * Measures the bytes allocated per received packet by the packet readers, with and without a buffer pool.
+ */
+@Requires({ ReceiveBufferAllocationSpec.allocationMeasurementSupported() })
+class ReceiveBufferAllocationSpec extends Specification {
+  static final int PACKET_SIZE = 1024 * 1024
+  static final int PACKETS = 32
+
+  def "direct tcp reader should not allocate a new receive buffer per packet when pooled"() {
+    when:
+    def pooled = allocatedPerPacketByDirectReader(new BufferPool())
+    def unpooled = allocatedPerPacketByDirectReader(new BufferPool(0, 0, false))
+
+    then:
+    unpooled >= PACKET_SIZE
+    pooled < PACKET_SIZE / 16
+  }
+
+  def "packet buffer reader should not allocate a new receive buffer per packet when pooled"() {
+    when:
+    def pooled = allocatedPerPacketByBufferReader(new BufferPool())
+    def unpooled = allocatedPerPacketByBufferReader(new BufferPool(0, 0, false))
+
+    then:
+    unpooled >= PACKET_SIZE
+    pooled < PACKET_SIZE / 16
+  }
+
+  def "packet buffer reader should reassemble packets in pooled buffers"() {
+    given:
+    def pool = new BufferPool()
+    def reader = new PacketBufferReader(pool)
+    reader.getBuffer().put([0, 0, 0, 3, 1, 2, 3, 0, 0, 0, 2, 4, 5] as byte[])
+
+    when:
+    def first = reader.readNext()
+    def firstLength = reader.getPacketLength()
+    def firstBytes = Arrays.copyOf(first, firstLength)
+    reader.release(first)
+    def second = reader.readNext()
+
+    then:
+    firstBytes == [1, 2, 3] as byte[]
+    second.is(first)
+    reader.getPacketLength() == 2
+    Arrays.copyOf(second, 2) == [4, 5] as byte[]
+    reader.readNext() == null
+  }
+
+  private static long allocatedPerPacketByDirectReader(BufferPool pool) {
+    def received = 0
+    def receiver = new PacketReceiver<TestPacketData>() {
+      void handle(TestPacketData packet) { received++ }
+
+      void handleError(Throwable t) {}
+    }
+    def reader = new DirectTcpPacketReader<TestPacketData>("localhost", new FramedInputStream(PACKET_SIZE), new TestPacketFactory(), receiver, pool)
+    // Warm up, so the pool (and the JIT) are primed
+    readAndHandle(reader, receiver, 4)
+    long allocated = measureAllocation { readAndHandle(reader, receiver, PACKETS) }
+    assert received == PACKETS + 4
+    return allocated / PACKETS
+  }
+
+  private static void readAndHandle(DirectTcpPacketReader<TestPacketData> reader, PacketReceiver<TestPacketData> receiver, int packets) {
+    for (int i = 0; i < packets; i++) {
+      def packet = reader.doRead()
+      receiver.handle(packet)
+      reader.packetHandled(packet)
+    }
+  }
+
+  private static long allocatedPerPacketByBufferReader(BufferPool pool) {
+    def reader = new PacketBufferReader(pool)
+    def chunk = new byte[8192]
+    feedPackets(reader, chunk, 4)
+    long allocated = measureAllocation { feedPackets(reader, chunk, PACKETS) }
+    return allocated / PACKETS
+  }
+
+  private static void feedPackets(PacketBufferReader reader, byte[] chunk, int packets) {
+    for (int i = 0; i < packets; i++) {
+      reader.getBuffer().putInt(PACKET_SIZE)
+      int remaining = PACKET_SIZE
+      byte[] packet = null
+      while (packet == null) {
+        int length = Math.min(remaining, reader.getBuffer().remaining())
+        reader.getBuffer().put(chunk, 0, Math.min(length, chunk.length))
+        remaining -= Math.min(length, chunk.length)
+        packet = reader.readNext()
+      }
+      assert reader.getPacketLength() == PACKET_SIZE
+      reader.release(packet)
+    }
+  }
+
+  static boolean allocationMeasurementSupported() {
+    def bean = ManagementFactory.getThreadMXBean()
+    return bean instanceof com.sun.management.ThreadMXBean && bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()
+  }
+
+  private static long measureAllocation(Closure<?> work) {
+    def bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()
+    long threadId = Thread.currentThread().getId()
+    long before = bean.getThreadAllocatedBytes(threadId)
+    work.call()
+    return bean.getThreadAllocatedBytes(threadId) - before
+  }
+
+  static class TestPacketData implements PacketData<Buffer.PlainBuffer> {
+    private final Buffer.PlainBuffer buffer
+
+    TestPacketData(byte[] data, int length) {
+      this.buffer = new Buffer.PlainBuffer(data, length, Endian.BE)
+    }
+
+    @Override
+    Buffer.PlainBuffer getDataBuffer() {
+      return buffer
+    }
+  }
+
+  static class TestPacketFactory implements PacketFactory<TestPacketData> {
+    @Override
+    TestPacketData read(byte[] data) {
+      return new TestPacketData(data, data.length)
+    }
+
+    @Override
+    TestPacketData read(byte[] data, int length) {
+      return new TestPacketData(data, length)
+    }
+
+    @Override
+    boolean canHandle(byte[] data) {
+      return true
+    }
+  }
+
+  /**
+   * Endless stream of Direct TCP frames with a fixed packet size, which does not allocate while reading.
+   */
+  static class FramedInputStream extends InputStream {
+    private final int packetSize
+    private int position = -4
+
+    FramedInputStream(int packetSize) {
+      this.packetSize = packetSize
+    }
+
+    @Override
+    int read() {
+      throw new UnsupportedOperationException()
+    }
+
+    @Override
+    int read(byte[] b, int off, int len) {
+      int count = 0
+      while (count < len && position < 0) {
+        int shift = -8 * (position + 1)
+        b[off + count++] = (byte) ((packetSize >> shift) & 0xFF)
+        position++
+      }
+      int body = Math.min(len - count, packetSize - position)
+      position += body
+      count += body
+      if (position == packetSize) {
+        position = -4
+      }
+      return count
+    }
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.transport.tcp.async
+
+import com.hierynomus.protocol.Packet
+import com.hierynomus.protocol.PacketData
+import com.hierynomus.protocol.commons.buffer.Buffer
+import com.hierynomus.protocol.commons.buffer.Endian
+import com.hierynomus.protocol.transport.PacketFactory
+import com.hierynomus.protocol.transport.PacketHandlers
+import com.hierynomus.protocol.transport.PacketReceiver
+import com.hierynomus.protocol.transport.PacketSerializer
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class AsyncDirectTcpTransportWriteSpec extends Specification {
+
+  def "should frame every packet when concurrent writes are batched"() {
+    given:
+    def serverSocket = new ServerSocket(0)
+    def transport = new AsyncDirectTcpTransport<PacketData<?>, IntPacket>(0, handlers(), null)
+    transport.connect(new InetSocketAddress("localhost", serverSocket.localPort))
+    def socket = serverSocket.accept()
+    def threads = 8
+    def perThread = 200
+    def start = new CountDownLatch(1)
+
+    when:
+    def writers = (0..<threads).collect { t ->
+      Thread.start {
+        start.await()
+        (0..<perThread).each { i -> transport.write(new IntPacket(t * perThread + i)) }
+      }
+    }
+    start.countDown()
+    writers*.join()
+    def received = readPackets(socket, threads * perThread)
+
+    then:
+    received.sort() == (0..<threads * perThread).toList()
+
+    cleanup:
+    transport.disconnect()
+    socket.close()
+    serverSocket.close()
+  }
+
+  def "should write a delayed batch once it is full"() {
+    given:
+    def serverSocket = new ServerSocket(0)
+    def transport = new AsyncDirectTcpTransport<PacketData<?>, IntPacket>(0, handlers(), null)
+    transport.setWriteBatching(4, 1, TimeUnit.HOURS)
+    transport.connect(new InetSocketAddress("localhost", serverSocket.localPort))
+    def socket = serverSocket.accept()
+    socket.setSoTimeout(5000)
+
+    when:
+    (1..4).each { transport.write(new IntPacket(it)) }
+
+    then:
+    readPackets(socket, 4) == [1, 2, 3, 4]
+
+    cleanup:
+    transport.disconnect()
+    socket.close()
+    serverSocket.close()
+  }
+
+  def "should write a delayed batch after the delay"() {
+    given:
+    def serverSocket = new ServerSocket(0)
+    def transport = new AsyncDirectTcpTransport<PacketData<?>, IntPacket>(0, handlers(), null)
+    transport.setWriteBatching(64, 50, TimeUnit.MILLISECONDS)
+    transport.connect(new InetSocketAddress("localhost", serverSocket.localPort))
+    def socket = serverSocket.accept()
+    socket.setSoTimeout(5000)
+
+    when:
+    transport.write(new IntPacket(42))
+
+    then:
+    readPackets(socket, 1) == [42]
+
+    cleanup:
+    transport.disconnect()
+    socket.close()
+    serverSocket.close()
+  }
+
+  def "should send payload segments after the packet without copying them into the buffer"() {
+    given:
+    def serverSocket = new ServerSocket(0)
+    def transport = new AsyncDirectTcpTransport<PacketData<?>, IntPacket>(0, handlers(), null)
+    transport.connect(new InetSocketAddress("localhost", serverSocket.localPort))
+    def socket = serverSocket.accept()
+    socket.setSoTimeout(5000)
+    def payload = new byte[100000]
+    new Random().nextBytes(payload)
+
+    when:
+    transport.write(new IntPacket(7, ByteBuffer.wrap(payload)))
+    transport.write(new IntPacket(8, ByteBuffer.allocateDirect(3).put([1, 2, 3] as byte[]).flip() as ByteBuffer))
+    def input = new DataInputStream(socket.getInputStream())
+    def firstLength = input.readInt()
+    def firstValue = input.readInt()
+    def firstPayload = new byte[payload.length]
+    input.readFully(firstPayload)
+    def secondLength = input.readInt()
+    def secondValue = input.readInt()
+    def secondPayload = new byte[3]
+    input.readFully(secondPayload)
+
+    then:
+    firstLength == 4 + payload.length
+    firstValue == 7
+    firstPayload == payload
+    secondLength == 7
+    secondValue == 8
+    secondPayload == [1, 2, 3] as byte[]
+
+    cleanup:
+    transport.disconnect()
+    socket.close()
+    serverSocket.close()
+  }
+
+  private static List<Integer> readPackets(Socket socket, int count) {
+    def input = new DataInputStream(socket.getInputStream())
+    def values = []
+    count.times {
+      assert input.readInt() == 4 // Direct TCP header: zero byte + 24-bit length
+      values << input.readInt()
+    }
+    return values
+  }
+
+  private PacketHandlers<PacketData<?>, IntPacket> handlers() {
+    def serializer = new PacketSerializer<IntPacket, Buffer.PlainBuffer>() {
+      Buffer.PlainBuffer write(IntPacket packet) {
+        def buffer = new Buffer.PlainBuffer(Endian.BE)
+        packet.write(buffer)
+        return buffer
+      }
+
+      Buffer.PlainBuffer writeGathering(IntPacket packet) {
+        def buffer = new Buffer.PlainBuffer(Endian.BE)
+        buffer.enablePayloadSegments()
+        packet.write(buffer)
+        return buffer
+      }
+    }
+    def receiver = new PacketReceiver<PacketData<?>>() {
+      void handle(PacketData<?> packet) {}
+
+      void handleError(Throwable t) {}
+    }
+    return new PacketHandlers<PacketData<?>, IntPacket>(serializer, receiver, Mock(PacketFactory))
+  }
+
+  static class IntPacket implements Packet<Buffer.PlainBuffer> {
+    final int value
+    final ByteBuffer payload
+
+    IntPacket(int value, ByteBuffer payload = null) {
+      this.value = value
+      this.payload = payload
+    }
+
+    void write(Buffer.PlainBuffer buffer) {
+      buffer.putUInt32(value)
+      if (payload != null) {
+        buffer.putPayloadSegment(payload)
+      }
+    }
+
+    void read(Buffer.PlainBuffer buffer) {
+      throw new UnsupportedOperationException()
+    }
+  }
+}
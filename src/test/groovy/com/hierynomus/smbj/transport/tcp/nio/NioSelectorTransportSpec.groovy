@@ -0,0 +1,97 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.transport.tcp.nio
+
+import com.hierynomus.protocol.commons.socket.ProxySocketFactory
+import com.hierynomus.smbj.SMBClient
+import com.hierynomus.smbj.SmbConfig
+import com.hierynomus.smbj.server.StubSmbServer
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.TimeUnit
+
+class NioSelectorTransportSpec extends Specification {
+
+  @Shared
+  def factory = new NioSelectorTransportFactory(1)
+
+  @Shared
+  def config = SmbConfig.builder().withTransportLayerFactory(factory).build()
+
+  StubSmbServer server
+
+  def setup() {
+    server = new StubSmbServer()
+  }
+
+  def cleanup() {
+    server.shutdown()
+  }
+
+  def cleanupSpec() {
+    factory.eventLoopGroup.close()
+  }
+
+  def "client should connect to NioSelectorTransport"() {
+    given:
+    server.registerResponse("com/hierynomus/smbj/transport/tcp/async/nego-response.pcap")
+    server.start()
+    def client = new SMBClient(config)
+
+    when:
+    def connection = client.connect("localhost", server.port)
+
+    then:
+    noExceptionThrown()
+    connection.isConnected()
+    factory.eventLoopGroup.registeredChannels == 1
+
+    cleanup:
+    connection.close()
+  }
+
+  def "should close the connection when no data is received within the SO_TIMEOUT"() {
+    given:
+    server.registerResponse("com/hierynomus/smbj/transport/tcp/async/nego-response.pcap")
+    server.start()
+    def client = new SMBClient(SmbConfig.builder().withTransportLayerFactory(factory).withSoTimeout(300, TimeUnit.MILLISECONDS).build())
+    def connection = client.connect("localhost", server.port)
+
+    expect:
+    new PollingConditions(timeout: 5).eventually {
+      assert !connection.isConnected()
+    }
+
+    cleanup:
+    connection.close()
+  }
+
+  def "should reject a socket factory that connects through a proxy"() {
+    given:
+    def proxied = SmbConfig.builder()
+      .withTransportLayerFactory(factory)
+      .withSocketFactory(new ProxySocketFactory(new Proxy(Proxy.Type.SOCKS, InetSocketAddress.createUnresolved("proxy", 1080))))
+      .build()
+
+    when:
+    factory.createTransportLayer(null, proxied)
+
+    then:
+    thrown(IllegalArgumentException)
+  }
+}
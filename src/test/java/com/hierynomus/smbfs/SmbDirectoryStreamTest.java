@@ -15,17 +15,46 @@
  */
 package com.hierynomus.smbfs;
 
+import com.hierynomus.msfscc.fileinformation.FileIdBothDirectoryInformation;
+import com.hierynomus.smbj.common.SMBRuntimeException;
+import com.hierynomus.smbj.share.Directory;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
 
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
 
+@ExtendWith(MockitoExtension.class)
 class SmbDirectoryStreamTest {
 
+    private static final DirectoryStream.Filter<Path> ALL = entry -> true;
+
+    @Mock
+    private Directory directory;
+
+    private final Path dir = Paths.get("dir");
+
     @Test
     void throwsOnSecondIteratorCall() throws Exception {
-        try (SmbDirectoryStream stream = new SmbDirectoryStream(List.of())) {
+        Iterator<FileIdBothDirectoryInformation> entries = entries();
+        when(directory.iterator()).thenReturn(entries);
+        try (SmbDirectoryStream stream = new SmbDirectoryStream(directory, dir, ALL)) {
             stream.iterator();
 
             assertThrows(IllegalStateException.class, stream::iterator);
@@ -34,10 +63,74 @@ class SmbDirectoryStreamTest {
 
     @Test
     void throwsOnIteratorCallAfterClose() throws Exception {
-        SmbDirectoryStream stream = new SmbDirectoryStream(List.of());
+        SmbDirectoryStream stream = new SmbDirectoryStream(directory, dir, ALL);
 
         stream.close();
 
         assertThrows(IllegalStateException.class, stream::iterator);
     }
+
+    @Test
+    void streamsFilteredEntriesWithoutDotEntries() throws Exception {
+        Iterator<FileIdBothDirectoryInformation> entries = entries(".", "..", "a.txt", "b.log", "c.txt");
+        when(directory.iterator()).thenReturn(entries);
+        try (SmbDirectoryStream stream = new SmbDirectoryStream(directory, dir, entry -> entry.toString().endsWith(".txt"))) {
+            List<Path> paths = new ArrayList<>();
+            stream.iterator().forEachRemaining(paths::add);
+
+            assertEquals(List.of(dir.resolve("a.txt"), dir.resolve("c.txt")), paths);
+        }
+    }
+
+    @Test
+    void releasesHandleOnceAfterLastEntry() throws Exception {
+        Iterator<FileIdBothDirectoryInformation> entries = entries("a");
+        when(directory.iterator()).thenReturn(entries);
+        SmbDirectoryStream stream = new SmbDirectoryStream(directory, dir, ALL);
+        Iterator<Path> iterator = stream.iterator();
+
+        iterator.next();
+        assertFalse(iterator.hasNext());
+        stream.close();
+
+        verify(directory, times(1)).close();
+    }
+
+    @Test
+    void endsIterationWhenClosed() throws Exception {
+        @SuppressWarnings("unchecked")
+        Iterator<FileIdBothDirectoryInformation> entries = mock(Iterator.class);
+        when(directory.iterator()).thenReturn(entries);
+        SmbDirectoryStream stream = new SmbDirectoryStream(directory, dir, ALL);
+        Iterator<Path> iterator = stream.iterator();
+
+        stream.close();
+
+        assertFalse(iterator.hasNext());
+        verify(directory).close();
+        verifyNoInteractions(entries);
+    }
+
+    @Test
+    void wrapsListingFailures() throws Exception {
+        @SuppressWarnings("unchecked")
+        Iterator<FileIdBothDirectoryInformation> failing = mock(Iterator.class);
+        when(failing.hasNext()).thenThrow(new SMBRuntimeException("connection lost"));
+        when(directory.iterator()).thenReturn(failing);
+        try (SmbDirectoryStream stream = new SmbDirectoryStream(directory, dir, ALL)) {
+            Iterator<Path> iterator = stream.iterator();
+
+            assertThrows(DirectoryIteratorException.class, iterator::hasNext);
+        }
+    }
+
+    private static Iterator<FileIdBothDirectoryInformation> entries(String... names) {
+        List<FileIdBothDirectoryInformation> entries = new ArrayList<>();
+        for (String name : names) {
+            FileIdBothDirectoryInformation entry = mock(FileIdBothDirectoryInformation.class);
+            when(entry.getFileName()).thenReturn(name);
+            entries.add(entry);
+        }
+        return entries.iterator();
+    }
 }
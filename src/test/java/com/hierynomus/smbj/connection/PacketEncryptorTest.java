@@ -17,14 +17,32 @@ package com.hierynomus.smbj.connection;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
 
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.EnumSource;
 
+import com.hierynomus.mssmb2.SMB2Dialect;
+import com.hierynomus.mssmb2.SMB2MessageCommandCode;
+import com.hierynomus.mssmb2.SMB2Packet;
 import com.hierynomus.mssmb2.SMB2TransformHeader;
+import com.hierynomus.mssmb2.SMB3EncryptedPacketData;
 import com.hierynomus.mssmb2.SMB3EncryptionCipher;
 import com.hierynomus.security.bc.BCSecurityProvider;
+import com.hierynomus.security.jce.JceSecurityProvider;
+import com.hierynomus.smb.SMBBuffer;
+import com.hierynomus.smbj.common.SMBRuntimeException;
 
 public class PacketEncryptorTest {
     @Test
@@ -65,4 +83,145 @@ public class PacketEncryptorTest {
         pe.setCipher(cipher);
         assertEquals(cipher.getNonceLength(), pe.getNewNonce().length);
     }
+
+    @ParameterizedTest(name = "Encryptor with cipher {0} should decrypt what it encrypted, re-using its ciphers")
+    @EnumSource(value = SMB3EncryptionCipher.class)
+    public void shouldRoundTripWithReusedCiphers(SMB3EncryptionCipher cipher) throws Exception {
+        PacketEncryptor pe = new PacketEncryptor(new BCSecurityProvider());
+        pe.setCipher(cipher);
+        SecretKey key = key(cipher, 1);
+        SecretKey otherKey = key(cipher, 2);
+        for (int i = 0; i < 3; i++) {
+            byte[] payload = payload(1000 + i, i);
+            assertArrayEquals(plainText(payload), pe.decrypt(encrypted(pe, payload, key), key));
+            assertArrayEquals(plainText(payload), pe.decrypt(encrypted(pe, payload, otherKey), otherKey));
+        }
+    }
+
+    @Test
+    public void shouldEncryptPayloadSegmentsAfterExistingBufferContents() throws Exception {
+        PacketEncryptor pe = new PacketEncryptor(new BCSecurityProvider());
+        pe.setCipher(SMB3EncryptionCipher.AES_128_GCM);
+        SecretKey key = key(SMB3EncryptionCipher.AES_128_GCM, 1);
+        byte[] payload = payload(70000, 3);
+        SMBBuffer buffer = new SMBBuffer();
+        buffer.enablePayloadSegments();
+        buffer.putRawBytes(new byte[]{1, 2, 3});
+
+        pe.encrypt(segmentPacket(payload), key).write(buffer);
+
+        assertTrue(buffer.getPayloadSegments().isEmpty());
+        byte[] encrypted = Arrays.copyOfRange(buffer.array(), 3, buffer.wpos());
+        assertArrayEquals(plainText(payload), pe.decrypt(new SMB3EncryptedPacketData(encrypted), key));
+    }
+
+    @Test
+    public void shouldInteroperateBetweenProviders() throws Exception {
+        PacketEncryptor bc = new PacketEncryptor(new BCSecurityProvider());
+        bc.setCipher(SMB3EncryptionCipher.AES_256_GCM);
+        PacketEncryptor jce = new PacketEncryptor(new JceSecurityProvider());
+        jce.setCipher(SMB3EncryptionCipher.AES_256_GCM);
+        SecretKey key = key(SMB3EncryptionCipher.AES_256_GCM, 1);
+        byte[] payload = payload(5000, 4);
+        assertArrayEquals(plainText(payload), jce.decrypt(encrypted(bc, payload, key), key));
+        assertArrayEquals(plainText(payload), bc.decrypt(encrypted(jce, payload, key), key));
+        assertArrayEquals(plainText(payload), jce.decrypt(pooled(encrypted(bc, payload, key)), key));
+        assertArrayEquals(plainText(payload), bc.decrypt(pooled(encrypted(jce, payload, key)), key));
+    }
+
+    @ParameterizedTest(name = "Encryptor with cipher {0} should decrypt from a pooled receive buffer")
+    @EnumSource(value = SMB3EncryptionCipher.class)
+    public void shouldDecryptFromPooledReceiveBuffer(SMB3EncryptionCipher cipher) throws Exception {
+        PacketEncryptor pe = new PacketEncryptor(new BCSecurityProvider());
+        pe.setCipher(cipher);
+        SecretKey key = key(cipher, 1);
+        byte[] payload = payload(3000, 6);
+        SMB3EncryptedPacketData packetData = pooled(encrypted(pe, payload, key));
+
+        assertArrayEquals(plainText(payload), pe.decrypt(packetData, key));
+        assertEquals(0, packetData.getDataBuffer().available());
+    }
+
+    @Test
+    public void shouldNotReuseNoncesAcrossEncryptorsSharingAGenerator() throws Exception {
+        SecretKey key = key(SMB3EncryptionCipher.AES_128_GCM, 1);
+        NonceGenerator nonceGenerator = new NonceGenerator();
+        PacketEncryptor[] channels = new PacketEncryptor[2];
+        for (int i = 0; i < channels.length; i++) {
+            channels[i] = new PacketEncryptor(new BCSecurityProvider());
+            channels[i].setCipher(SMB3EncryptionCipher.AES_128_GCM);
+        }
+        Set<String> nonces = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            SMBBuffer buffer = new SMBBuffer();
+            channels[i % 2].encrypt(packet(payload(10, i)), key, nonceGenerator).write(buffer);
+            SMB3EncryptedPacketData packetData = new SMB3EncryptedPacketData(buffer.getCompactData());
+            assertTrue(nonces.add(Arrays.toString(packetData.getHeader().getNonce())));
+        }
+    }
+
+    @Test
+    public void shouldRejectTamperedCipherTextAndRecover() throws Exception {
+        PacketEncryptor pe = new PacketEncryptor(new BCSecurityProvider());
+        pe.setCipher(SMB3EncryptionCipher.AES_128_CCM);
+        SecretKey key = key(SMB3EncryptionCipher.AES_128_CCM, 1);
+        byte[] payload = payload(100, 5);
+        SMBBuffer buffer = new SMBBuffer();
+        pe.encrypt(packet(payload), key).write(buffer);
+        byte[] tampered = buffer.getCompactData();
+        tampered[tampered.length - 1] ^= 1;
+
+        assertThrows(SMBRuntimeException.class, () -> pe.decrypt(new SMB3EncryptedPacketData(tampered), key));
+        assertArrayEquals(plainText(payload), pe.decrypt(encrypted(pe, payload, key), key));
+    }
+
+    private static SecretKey key(SMB3EncryptionCipher cipher, int seed) {
+        byte[] key = new byte[cipher.getKeyLength()];
+        new Random(seed).nextBytes(key);
+        return new SecretKeySpec(key, cipher.getAlgorithmName());
+    }
+
+    private static byte[] payload(int size, int seed) {
+        byte[] payload = new byte[size];
+        new Random(seed).nextBytes(payload);
+        return payload;
+    }
+
+    private static SMB3EncryptedPacketData encrypted(PacketEncryptor pe, byte[] payload, SecretKey key) throws Exception {
+        SMBBuffer buffer = new SMBBuffer();
+        pe.encrypt(packet(payload), key).write(buffer);
+        return new SMB3EncryptedPacketData(buffer.getCompactData());
+    }
+
+    /**
+     * The packet in a larger array, like the transports receive it.
+     */
+    private static SMB3EncryptedPacketData pooled(SMB3EncryptedPacketData packetData) throws Exception {
+        byte[] bytes = packetData.getDataBuffer().array();
+        return new SMB3EncryptedPacketData(Arrays.copyOf(bytes, bytes.length + 100), bytes.length);
+    }
+
+    private static byte[] plainText(byte[] payload) {
+        SMBBuffer buffer = new SMBBuffer();
+        packet(payload).write(buffer);
+        return buffer.getCompactData();
+    }
+
+    private static SMB2Packet packet(final byte[] payload) {
+        return new SMB2Packet(49, SMB2Dialect.SMB_3_1_1, SMB2MessageCommandCode.SMB2_WRITE, 1L, 1L) {
+            @Override
+            protected void writeTo(SMBBuffer buffer) {
+                buffer.putRawBytes(payload);
+            }
+        };
+    }
+
+    private static SMB2Packet segmentPacket(final byte[] payload) {
+        return new SMB2Packet(49, SMB2Dialect.SMB_3_1_1, SMB2MessageCommandCode.SMB2_WRITE, 1L, 1L) {
+            @Override
+            protected void writeTo(SMBBuffer buffer) {
+                buffer.putPayloadSegment(ByteBuffer.wrap(payload));
+            }
+        };
+    }
 }
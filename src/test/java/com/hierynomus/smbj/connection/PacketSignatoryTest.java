@@ -15,16 +15,34 @@
  */
 package com.hierynomus.smbj.connection;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import org.junit.jupiter.api.Test;
 
+import com.hierynomus.mssmb2.SMB2Dialect;
+import com.hierynomus.mssmb2.SMB2FileId;
 import com.hierynomus.mssmb2.SMB2PacketData;
+import com.hierynomus.mssmb2.SMB2PacketHeader;
+import com.hierynomus.mssmb2.SMB2SigningAlgorithm;
+import com.hierynomus.mssmb2.messages.SMB2WriteRequest;
 import com.hierynomus.protocol.commons.ByteArrayUtils;
+import com.hierynomus.security.SecurityProvider;
 import com.hierynomus.security.bc.BCSecurityProvider;
+import com.hierynomus.security.jce.JceSecurityProvider;
+import com.hierynomus.smb.SMBBuffer;
+import com.hierynomus.smbj.io.ArrayByteChunkProvider;
 
 public class PacketSignatoryTest {
     private SecretKey signingKey = new SecretKeySpec(
@@ -58,4 +76,90 @@ public class PacketSignatoryTest {
         assertTrue(signatory.verify(packet, signingKey));
     }
 
+    @Test
+    public void shouldSignPayloadSegmentsLikeInlinedPayload() throws Exception {
+        byte[] data = new byte[100000];
+        new Random().nextBytes(data);
+
+        SMBBuffer inlined = new SMBBuffer();
+        signatory.sign(writeRequest(data), signingKey).write(inlined);
+        SMBBuffer gathering = new SMBBuffer();
+        gathering.enablePayloadSegments();
+        signatory.sign(writeRequest(data), signingKey).write(gathering);
+
+        assertEquals(0, inlined.getPayloadSegmentsSize());
+        assertEquals(data.length, gathering.getPayloadSegmentsSize());
+        assertEquals(inlined.available(), gathering.available() + data.length);
+        byte[] gathered = new byte[inlined.available()];
+        System.arraycopy(gathering.array(), gathering.rpos(), gathered, 0, gathering.available());
+        ByteBuffer segment = gathering.getPayloadSegments().get(0).duplicate();
+        segment.get(gathered, gathering.available(), data.length);
+        assertArrayEquals(inlined.getCompactData(), gathered);
+        assertTrue(signatory.verify(new SMB2PacketData(gathered), signingKey));
+    }
+
+    @Test
+    public void shouldBuildGmacNonceFromMessageIdAndRole() {
+        assertEquals("080706050403020100000000", ByteArrayUtils.toHex(PacketSignatory.gmacNonce(0x0102030405060708L, false, false)));
+        assertEquals("2a0000000000000001000000", ByteArrayUtils.toHex(PacketSignatory.gmacNonce(42, true, false)));
+        assertEquals("2a0000000000000002000000", ByteArrayUtils.toHex(PacketSignatory.gmacNonce(42, false, true)));
+    }
+
+    @Test
+    public void shouldSignWithGmacOnBouncyCastle() throws Exception {
+        shouldSignWithGmac(new BCSecurityProvider());
+    }
+
+    @Test
+    public void shouldSignWithGmacOnJce() throws Exception {
+        shouldSignWithGmac(new JceSecurityProvider());
+    }
+
+    private void shouldSignWithGmac(SecurityProvider securityProvider) throws Exception {
+        SecretKey gmacKey = new SecretKeySpec(signingKey.getEncoded(), SMB2SigningAlgorithm.AES_GMAC.getAlgorithmName());
+        byte[] data = new byte[100000];
+        new Random().nextBytes(data);
+
+        SMBBuffer buffer = new SMBBuffer();
+        new PacketSignatory(securityProvider).sign(writeRequest(data), gmacKey).write(buffer);
+        byte[] signed = buffer.getCompactData();
+
+        byte[] signature = Arrays.copyOfRange(signed, SMB2PacketHeader.SIGNATURE_OFFSET, SMB2PacketHeader.STRUCTURE_SIZE);
+        assertArrayEquals(gmac(gmacKey.getEncoded(), PacketSignatory.gmacNonce(1, false, false), withoutSignature(signed)), signature);
+    }
+
+    @Test
+    public void shouldVerifyGmacSignatureOfServerMessage() throws Exception {
+        SecretKey gmacKey = new SecretKeySpec(signingKey.getEncoded(), SMB2SigningAlgorithm.AES_GMAC.getAlgorithmName());
+        SMBBuffer buffer = new SMBBuffer();
+        writeRequest(new byte[4096]).write(buffer);
+        byte[] message = buffer.getCompactData();
+        byte[] signature = gmac(gmacKey.getEncoded(), PacketSignatory.gmacNonce(1, true, false), message);
+        System.arraycopy(signature, 0, message, SMB2PacketHeader.SIGNATURE_OFFSET, SMB2PacketHeader.SIGNATURE_SIZE);
+
+        assertTrue(signatory.verify(new SMB2PacketData(message), gmacKey));
+        message[message.length - 1] ^= 1;
+        assertFalse(signatory.verify(new SMB2PacketData(message), gmacKey));
+    }
+
+    private static byte[] withoutSignature(byte[] message) {
+        byte[] copy = message.clone();
+        Arrays.fill(copy, SMB2PacketHeader.SIGNATURE_OFFSET, SMB2PacketHeader.STRUCTURE_SIZE, (byte) 0);
+        return copy;
+    }
+
+    private static byte[] gmac(byte[] key, byte[] nonce, byte[] message) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(128, nonce));
+        cipher.updateAAD(message);
+        return cipher.doFinal();
+    }
+
+    private static SMB2WriteRequest writeRequest(byte[] data) {
+        SMB2WriteRequest request = new SMB2WriteRequest(SMB2Dialect.SMB_3_0, new SMB2FileId(new byte[16], new byte[16]),
+            1L, 1L, new ArrayByteChunkProvider(data, 0), 1024 * 1024);
+        request.setCreditsAssigned(2);
+        request.getHeader().setMessageId(1);
+        return request;
+    }
 }
@@ -16,13 +16,16 @@
 package com.hierynomus.smbj.connection;
 
 import com.hierynomus.mssmb2.SMB2Dialect;
+import com.hierynomus.mssmb2.SMB2SigningAlgorithm;
 import com.hierynomus.mssmb2.SMB2Packet;
 import com.hierynomus.mssmb2.SMB2PacketData;
+import com.hierynomus.mssmb2.SMB3EncryptionCipher;
 import com.hierynomus.mssmb2.messages.SMB2NegotiateRequest;
 import com.hierynomus.mssmb2.messages.SMB2NegotiateResponse;
 import com.hierynomus.mssmb2.messages.negotiate.SMB2EncryptionCapabilities;
 import com.hierynomus.mssmb2.messages.negotiate.SMB2NegotiateContext;
 import com.hierynomus.mssmb2.messages.negotiate.SMB2PreauthIntegrityCapabilities;
+import com.hierynomus.mssmb2.messages.negotiate.SMB2SigningCapabilities;
 import com.hierynomus.smb.SMBPacketData;
 import com.hierynomus.smbj.SMBClient;
 import com.hierynomus.smbj.SmbConfig;
@@ -36,6 +39,7 @@ import com.hierynomus.smbj.testing.StubTransportLayerFactory;
 import static org.junit.jupiter.api.Assertions.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.junit.jupiter.api.Test;
@@ -55,8 +59,12 @@ public class ProtocolNegotiatorTest {
 
     private List<SMB2NegotiateContext> buildNegotateContexts(SMB2Dialect dialect, boolean encryptData)
             throws Exception {
+        return buildNegotateContexts(SmbConfig.builder().withDialects(dialect).withEncryptData(encryptData));
+    }
+
+    private List<SMB2NegotiateContext> buildNegotateContexts(SmbConfig.Builder builder) throws Exception {
         List<SMB2NegotiateContext> negotiateContexts = new ArrayList<>();
-        SmbConfig config = buildConfig(SmbConfig.builder().withDialects(dialect).withEncryptData(encryptData),
+        SmbConfig config = buildConfig(builder,
                 new PacketProcessor() {
                     @Override
                     public SMB2Packet process(SMB2Packet packetData) {
@@ -78,18 +86,51 @@ public class ProtocolNegotiatorTest {
     @Test
     public void shouldNotAddEncryptionCapabilitiesIfEncryptDataIsFalse() throws Exception {
         List<SMB2NegotiateContext> negotiateContexts = buildNegotateContexts(SMB2Dialect.SMB_3_1_1, false);
-        assertEquals(1, negotiateContexts.size());
+        assertEquals(2, negotiateContexts.size());
         assertInstanceOf(SMB2PreauthIntegrityCapabilities.class, negotiateContexts.get(0));
+        assertInstanceOf(SMB2SigningCapabilities.class, negotiateContexts.get(1));
     }
 
     @Test
     public void shouldAddEncryptionCapabilitiesIfEncryptDataIsTrue() throws Exception {
         List<SMB2NegotiateContext> negotiateContexts = buildNegotateContexts(SMB2Dialect.SMB_3_1_1, true);
-        assertEquals(2, negotiateContexts.size());
+        assertEquals(3, negotiateContexts.size());
         assertInstanceOf(SMB2PreauthIntegrityCapabilities.class, negotiateContexts.get(0));
         assertInstanceOf(SMB2EncryptionCapabilities.class, negotiateContexts.get(1));
     }
 
+    @Test
+    public void shouldOfferGmacBeforeCmacByDefault() throws Exception {
+        List<SMB2NegotiateContext> negotiateContexts = buildNegotateContexts(SMB2Dialect.SMB_3_1_1, false);
+        SMB2SigningCapabilities signingCapabilities = (SMB2SigningCapabilities) negotiateContexts.get(1);
+        assertEquals(Arrays.asList(SMB2SigningAlgorithm.AES_GMAC, SMB2SigningAlgorithm.AES_CMAC), signingCapabilities.getSigningAlgorithms());
+    }
+
+    @Test
+    public void shouldOfferGcmBeforeCcmByDefault() throws Exception {
+        List<SMB2NegotiateContext> negotiateContexts = buildNegotateContexts(SMB2Dialect.SMB_3_1_1, true);
+        SMB2EncryptionCapabilities encryptionCapabilities = (SMB2EncryptionCapabilities) negotiateContexts.get(1);
+        assertEquals(Arrays.asList(SMB3EncryptionCipher.AES_128_GCM, SMB3EncryptionCipher.AES_256_GCM, SMB3EncryptionCipher.AES_128_CCM, SMB3EncryptionCipher.AES_256_CCM), encryptionCapabilities.getCipherList());
+    }
+
+    @Test
+    public void shouldOfferConfiguredCiphers() throws Exception {
+        List<SMB2NegotiateContext> negotiateContexts = buildNegotateContexts(SmbConfig.builder()
+            .withDialects(SMB2Dialect.SMB_3_1_1)
+            .withEncryptData(true)
+            .withEncryptionCiphers(SMB3EncryptionCipher.AES_256_GCM, SMB3EncryptionCipher.AES_256_CCM));
+        SMB2EncryptionCapabilities encryptionCapabilities = (SMB2EncryptionCapabilities) negotiateContexts.get(1);
+        assertEquals(Arrays.asList(SMB3EncryptionCipher.AES_256_GCM, SMB3EncryptionCipher.AES_256_CCM), encryptionCapabilities.getCipherList());
+    }
+
+    @Test
+    public void shouldNotAddSigningCapabilitiesWithoutSigningAlgorithms() throws Exception {
+        List<SMB2NegotiateContext> negotiateContexts = buildNegotateContexts(
+            SmbConfig.builder().withDialects(SMB2Dialect.SMB_3_1_1).withSigningAlgorithms());
+        assertEquals(1, negotiateContexts.size());
+        assertInstanceOf(SMB2PreauthIntegrityCapabilities.class, negotiateContexts.get(0));
+    }
+
     @ParameterizedTest(name = "Testing dialect {0} for only SMB3x dialects support encryption")
     @EnumSource(value = SMB2Dialect.class)
     public void shouldOnlySupportEncryptionForCompatibleDialects(SMB2Dialect dialect) {
@@ -51,7 +51,7 @@ public class SessionTest {
     public void shareNameCannotContainBackslashes() {
         SmbConfig cfg = SmbConfig.createDefaultConfig();
         Connection c = mock(Connection.class);
-        Session s = new Session(c, cfg, null, mock(SMBEventBus.class), null, null, null);
+        Session s = new Session(c, cfg, null, mock(SMBEventBus.class), null, null, null, null);
         Exception ex = assertThrows(IllegalArgumentException.class, () -> s.connectShare("foo\\bar"));
         assertThat(ex.getMessage()).contains("foo\\bar");
     }
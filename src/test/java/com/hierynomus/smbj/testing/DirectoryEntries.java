@@ -0,0 +1,62 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.testing;
+
+import com.hierynomus.msfscc.FileAttributes;
+import com.hierynomus.smb.SMBBuffer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Encodes the output buffer of a QUERY_DIRECTORY response with FileIdBothDirectoryInformation entries.
+ */
+public class DirectoryEntries {
+    /**
+     * @param entries the entry names, a trailing '\' marks a directory and a trailing '@' a directory that is a reparse
+     *                point
+     */
+    public static byte[] encode(List<String> entries) {
+        SMBBuffer buffer = new SMBBuffer();
+        for (int i = 0; i < entries.size(); i++) {
+            String entry = entries.get(i);
+            boolean directory = entry.endsWith("\\") || entry.endsWith("@");
+            byte[] name = (directory ? entry.substring(0, entry.length() - 1) : entry).getBytes(StandardCharsets.UTF_16LE);
+            int length = 104 + name.length;
+            int aligned = (length + 7) & ~7;
+            boolean last = i == entries.size() - 1;
+            long attributes = directory ? FileAttributes.FILE_ATTRIBUTE_DIRECTORY.getValue() : FileAttributes.FILE_ATTRIBUTE_NORMAL.getValue();
+            if (entry.endsWith("@")) {
+                attributes |= FileAttributes.FILE_ATTRIBUTE_REPARSE_POINT.getValue();
+            }
+            buffer.putUInt32(last ? 0 : aligned); // NextEntryOffset
+            buffer.putUInt32(0); // FileIndex
+            for (int j = 0; j < 6; j++) {
+                buffer.putUInt64(0); // Times, EndOfFile and AllocationSize
+            }
+            buffer.putUInt32(attributes);
+            buffer.putUInt32(name.length);
+            buffer.putUInt32(0); // EaSize
+            buffer.putRawBytes(new byte[28]); // ShortNameLength, Reserved1, ShortName and Reserved2
+            buffer.putUInt64(0); // FileId
+            buffer.putRawBytes(name);
+            if (!last) {
+                buffer.putRawBytes(new byte[aligned - length]);
+            }
+        }
+        return buffer.getCompactData();
+    }
+}
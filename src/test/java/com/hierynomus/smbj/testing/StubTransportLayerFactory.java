@@ -18,6 +18,7 @@ package com.hierynomus.smbj.testing;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 
+import com.hierynomus.mssmb2.SMB2CompoundRequest;
 import com.hierynomus.mssmb2.SMB2MessageConverter;
 import com.hierynomus.mssmb2.SMB2Packet;
 import com.hierynomus.mssmb2.SMB2PacketData;
@@ -29,6 +30,7 @@ import com.hierynomus.protocol.transport.PacketHandlers;
 import com.hierynomus.protocol.transport.PacketReceiver;
 import com.hierynomus.protocol.transport.TransportException;
 import com.hierynomus.protocol.transport.TransportLayer;
+import com.hierynomus.smb.SMBBuffer;
 import com.hierynomus.smb.SMBPacket;
 import com.hierynomus.smbj.SmbConfig;
 import com.hierynomus.smbj.connection.Connection;
@@ -68,18 +70,33 @@ public class StubTransportLayerFactory<D extends PacketData<?>, P extends Packet
                 throw new TransportException("Unsupported packet type " + packet.getClass().getSimpleName());
             }
             SMB2Packet request = (SMB2Packet) packet;
+            if (request.getPacket() instanceof SMB2CompoundRequest) {
+                // Serialize the chain like a real transport would, then answer every request in it separately
+                request.write(new SMBBuffer());
+                for (SMB2Packet compounded : ((SMB2CompoundRequest) request.getPacket()).getRequests()) {
+                    respond(compounded);
+                }
+            } else {
+                respond(request);
+            }
+        }
+
+        private void respond(SMB2Packet request) throws TransportException {
             SMB2Packet response = processPacket.process(request);
 
             if (response != null) {
                 response.getHeader().setMessageId(request.getHeader().getMessageId());
-                response.getHeader().setCreditResponse(request.getHeader().getCreditRequest());
+                if (response.getHeader().getCreditResponse() == 0) {
+                    // Grant what was asked for, unless the processor limited the grant
+                    response.getHeader().setCreditResponse(request.getHeader().getCreditRequest());
+                }
                 try {
                     receiver.handle((D) new StubPacketData(response));
                 } catch (BufferException e) {
                     throw new TransportException(e);
                 }
             } else {
-                throw new TransportException("No response for " + packet);
+                throw new TransportException("No response for " + request);
             }
         }
 
@@ -115,6 +132,11 @@ public class StubTransportLayerFactory<D extends PacketData<?>, P extends Packet
         @Override
         protected void readHeader() throws BufferException {
         }
+
+        @Override
+        public SMB2PacketData copy() {
+            return this; // Not backed by a receive buffer
+        }
     }
 
     private static class StubMessageConverter extends SMB2MessageConverter {